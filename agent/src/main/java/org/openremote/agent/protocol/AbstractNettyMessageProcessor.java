@@ -121,10 +121,15 @@ public abstract class AbstractNettyMessageProcessor<T> implements MessageProcess
 
     protected abstract String getSocketAddressString();
 
+    /**
+     * Returns the event loop group of the connection, usually one of the shared {@link
+     * ProtocolExecutorService#getNettyEventLoops}. Any other group is shut down on disconnect.
+     */
     protected abstract EventLoopGroup getWorkerGroup();
 
     protected void configureChannel() {
         bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 2000);
+        bootstrap.option(ChannelOption.ALLOCATOR, executorService.getNettyEventLoops().getAllocator());
     }
 
     @Override
@@ -138,7 +143,6 @@ public abstract class AbstractNettyMessageProcessor<T> implements MessageProcess
         onConnectionStatusChanged(ConnectionStatus.CONNECTING);
 
         if (workerGroup == null) {
-            // TODO: In Netty 5 you can pass in an executor service; can only pass in thread factory for now
             workerGroup = getWorkerGroup();
         }
 
@@ -223,7 +227,9 @@ public abstract class AbstractNettyMessageProcessor<T> implements MessageProcess
 
         } finally {
             if (workerGroup != null) {
-                workerGroup.shutdownGracefully();
+                if (!executorService.getNettyEventLoops().isShared(workerGroup)) {
+                    workerGroup.shutdownGracefully();
+                }
                 workerGroup = null;
             }
             onConnectionStatusChanged(ConnectionStatus.DISCONNECTED);
@@ -291,6 +297,7 @@ public abstract class AbstractNettyMessageProcessor<T> implements MessageProcess
      * Inserts the decoders and encoders into the channel pipeline
      */
     protected void initChannel(Channel channel) {
+        channel.pipeline().addLast(executorService.getNettyEventLoops().getConnectionCounter());
         channel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
             @Override
             public void channelActive(ChannelHandlerContext ctx) throws Exception {
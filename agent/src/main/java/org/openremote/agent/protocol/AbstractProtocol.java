@@ -19,9 +19,11 @@
  */
 package org.openremote.agent.protocol;
 
+import org.apache.camel.Exchange;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.RouteBuilder;
 import org.openremote.agent.protocol.filter.MessageFilter;
+import org.openremote.agent.protocol.filter.MessageFilterChain;
 import org.openremote.container.Container;
 import org.openremote.container.concurrent.GlobalLock;
 import org.openremote.container.message.MessageBrokerContext;
@@ -42,13 +44,21 @@ import org.openremote.model.value.ValueType;
 import org.openremote.model.value.Values;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
+import static org.openremote.container.util.MapAccess.getInteger;
 
 /**
  * Thread-safe base implementation for protocols.
@@ -67,9 +77,15 @@ import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
  * });
  * }</pre></blockquote>
  * <p>
- * All <code>abstract</code> methods are always called within lock scope. An implementation can rely on this lock
- * and safely modify internal, protocol-specific shared state. However, if a protocol implementation schedules
- * an asynchronous task, this task must obtain the lock to call any protocol operations.
+ * All <code>abstract</code> methods are always called within exclusive lock scope. An implementation can rely on
+ * this lock and safely modify internal, protocol-specific shared state. However, if a protocol implementation
+ * schedules an asynchronous task, this task must obtain the lock to call any protocol operations.
+ * <p>
+ * Reading linked attributes and publishing sensor values doesn't require any lock, the linked attributes and protocol
+ * configurations are kept in concurrent maps which are only modified within exclusive lock scope. Sensor values are
+ * filtered and converted on the calling thread, usually the I/O thread of the protocol, and then handed off to the
+ * sensor queue through a bounded, non-blocking channel. The channel sends its queued values in batches on the
+ * {@link ProtocolExecutorService}, so sensor updates don't block each other or the processing of attribute events.
  */
 public abstract class AbstractProtocol implements Protocol {
 
@@ -77,7 +93,7 @@ public abstract class AbstractProtocol implements Protocol {
 
         final AssetAttribute protocolConfiguration;
         final Consumer<ConnectionStatus> connectionStatusConsumer;
-        ConnectionStatus currentConnectionStatus;
+        volatile ConnectionStatus currentConnectionStatus;
 
         protected LinkedProtocolInfo(
             AssetAttribute protocolConfiguration,
@@ -108,15 +124,35 @@ public abstract class AbstractProtocol implements Protocol {
 
     private static final Logger LOG = Logger.getLogger(AbstractProtocol.class.getName());
 
-    protected final Map<AttributeRef, AssetAttribute> linkedAttributes = new HashMap<>();
-    protected final Map<AttributeRef, LinkedProtocolInfo> linkedProtocolConfigurations = new HashMap<>();
-    protected final Map<AttributeRef, List<MessageFilter>> linkedAttributeFilters = new HashMap<>();
+    /**
+     * Maximum number of sensor values waiting to be sent on the sensor queue, when exceeded a value replaces the
+     * waiting value of the same attribute or is dropped.
+     */
+    public static final String PROTOCOL_SENSOR_CHANNEL_CAPACITY = "PROTOCOL_SENSOR_CHANNEL_CAPACITY";
+    public static final int PROTOCOL_SENSOR_CHANNEL_CAPACITY_DEFAULT = 10000;
+    // Maximum number of sensor values sent in a single message on the sensor queue
+    protected static final int SENSOR_CHANNEL_BATCH_SIZE = 500;
+
+    protected final Map<AttributeRef, AssetAttribute> linkedAttributes = new ConcurrentHashMap<>();
+    protected final Map<AttributeRef, LinkedProtocolInfo> linkedProtocolConfigurations = new ConcurrentHashMap<>();
+    // The filter chains are compiled when the attribute is linked and never modified
+    protected final Map<AttributeRef, MessageFilterChain> linkedAttributeFilters = new ConcurrentHashMap<>();
+    protected final Queue<AtomicReference<AttributeEvent>> sensorChannel = new ConcurrentLinkedQueue<>();
+    // The last waiting entry of each attribute in the sensor channel, its event is replaced when the channel is full
+    protected final Map<AttributeRef, AtomicReference<AttributeEvent>> sensorChannelLatest = new ConcurrentHashMap<>();
+    protected final AtomicInteger sensorChannelSize = new AtomicInteger();
+    protected final AtomicBoolean sensorChannelSending = new AtomicBoolean();
+    protected final AtomicLong sensorEventsMerged = new AtomicLong();
+    protected final AtomicLong sensorEventsDropped = new AtomicLong();
+    protected int sensorChannelCapacity = PROTOCOL_SENSOR_CHANNEL_CAPACITY_DEFAULT;
     protected static final List<MetaItemDescriptor> attributeMetaItemDescriptors;
     protected MessageBrokerContext messageBrokerContext;
     protected ProducerTemplate producerTemplate;
     protected TimerService timerService;
     protected ProtocolExecutorService executorService;
     protected ProtocolAssetService assetService;
+    // Until this time the sensor queue is considered to be under backpressure, see isSensorQueueBackpressure()
+    protected volatile long sensorQueueBackpressureUntil;
 
     static {
         attributeMetaItemDescriptors = Arrays.asList(
@@ -139,6 +175,7 @@ public abstract class AbstractProtocol implements Protocol {
         timerService = container.getService(TimerService.class);
         executorService = container.getService(ProtocolExecutorService.class);
         assetService = container.getService(ProtocolAssetService.class);
+        sensorChannelCapacity = getInteger(container.getConfig(), PROTOCOL_SENSOR_CHANNEL_CAPACITY, PROTOCOL_SENSOR_CHANNEL_CAPACITY_DEFAULT);
     }
 
     @Override
@@ -220,7 +257,7 @@ public abstract class AbstractProtocol implements Protocol {
 
                 Optional<List<MessageFilter>> messageFilters = Protocol.getLinkedAttributeMessageFilters(attribute);
                 messageFilters.ifPresent(mFilters -> {
-                    linkedAttributeFilters.put(attributeRef, mFilters);
+                    linkedAttributeFilters.put(attributeRef, MessageFilterChain.compile(mFilters));
                 });
 
                 try {
@@ -251,7 +288,7 @@ public abstract class AbstractProtocol implements Protocol {
      * Gets a linked attribute by its attribute ref
      */
     protected AssetAttribute getLinkedAttribute(AttributeRef attributeRef) {
-        return withLockReturning(getProtocolName() + "::getLinkedAttribute", () -> linkedAttributes.get(attributeRef));
+        return linkedAttributes.get(attributeRef);
     }
 
     /**
@@ -263,12 +300,10 @@ public abstract class AbstractProtocol implements Protocol {
     }
 
     protected AssetAttribute getLinkedProtocolConfiguration(AttributeRef protocolConfigurationRef) {
-        return withLockReturning(getProtocolName() + "::getLinkedProtocolConfigurations", () -> {
-            LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfigurationRef);
-            // Don't bother with null check if someone calls here with an attribute not linked to this protocol
-            // then they're doing something wrong so fail hard and fast
-            return linkedProtocolInfo.getProtocolConfiguration();
-        });
+        LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfigurationRef);
+        // Don't bother with null check if someone calls here with an attribute not linked to this protocol
+        // then they're doing something wrong so fail hard and fast
+        return linkedProtocolInfo.getProtocolConfiguration();
     }
 
     final protected void processLinkedAttributeWrite(AttributeEvent event) {
@@ -298,14 +333,12 @@ public abstract class AbstractProtocol implements Protocol {
      * publish new sensor values, which performs additional verification and uses a different messaging queue.
      */
     final protected void sendAttributeEvent(AttributeEvent event) {
-        withLock(getProtocolName() + "::sendAttributeEvent", () -> {
-            // Don't allow updating linked attributes with this mechanism as it could cause an infinite loop
-            if (linkedAttributes.containsKey(event.getAttributeRef())) {
-                LOG.warning("Cannot update an attribute linked to the same protocol; use updateLinkedAttribute for that: " + event);
-                return;
-            }
-            assetService.sendAttributeEvent(event);
-        });
+        // Don't allow updating linked attributes with this mechanism as it could cause an infinite loop
+        if (linkedAttributes.containsKey(event.getAttributeRef())) {
+            LOG.warning("Cannot update an attribute linked to the same protocol; use updateLinkedAttribute for that: " + event);
+            return;
+        }
+        assetService.sendAttributeEvent(event);
     }
 
     /**
@@ -314,88 +347,166 @@ public abstract class AbstractProtocol implements Protocol {
      * before sending on the sensor queue.
      */
     @SuppressWarnings("unchecked")
-    final protected void updateLinkedAttribute(final AttributeState finalState, long timestamp) {
-        withLock(getProtocolName() + "::updateLinkedAttribute", () -> {
-            AttributeState state = finalState;
-            AssetAttribute attribute = linkedAttributes.get(state.getAttributeRef());
+    final protected void updateLinkedAttribute(AttributeState state, long timestamp) {
+        AssetAttribute attribute = linkedAttributes.get(state.getAttributeRef());
 
-            if (attribute == null) {
-                LOG.severe("Update linked attribute called for un-linked attribute: " + state);
-                return;
+        if (attribute == null) {
+            LOG.severe("Update linked attribute called for un-linked attribute: " + state);
+            return;
+        }
+
+        if (state.getValue().isPresent()) {
+            Value value = state.getValue().get();
+            MessageFilterChain filters = linkedAttributeFilters.get(state.getAttributeRef());
+
+            if (filters != null) {
+                LOG.fine("Applying message filters to sensor value...");
+                value = filters.process(value);
             }
 
-            if (state.getValue().isPresent()) {
-                List<MessageFilter> filters;
-                Value value = state.getValue().get();
-
-                filters = linkedAttributeFilters.get(state.getAttributeRef());
-
-                if (filters != null) {
-                    LOG.fine("Applying message filters to sensor value...");
-
-                    for (MessageFilter filter : filters) {
-                        boolean filterOk = filter.getMessageType() == value.getType().getModelType();
-
-                        if (!filterOk) {
-                            // Try and convert the value
-                            ValueType filterValueType = ValueType.fromModelType(filter.getMessageType());
-                            if (filterValueType == null) {
-                                LOG.fine("Message filter type unknown: " + filter.getMessageType().getName());
-                                value = null;
-                            } else {
-                                Optional<Value> val = Values.convert(value, filterValueType);
-                                if (!val.isPresent()) {
-                                    LOG.fine("Message filter type '" + filter.getMessageType().getName()
-                                                 + "' is not compatible with actual message type '" + value.getType().getModelType().getName()
-                                                 + "': " + filter.getClass().getName());
-                                } else {
-                                    filterOk = true;
-                                }
-                                value = val.orElse(null);
-                            }
-                        }
-
-                        if (filterOk) {
-                            try {
-                                LOG.finest("Applying message filter: " + filter.getClass().getName());
-                                value = filter.process(value);
-                            } catch (Exception e) {
-                                LOG.log(
-                                    Level.SEVERE,
-                                    "Message filter threw and exception during processing of message: "
-                                        + filter.getClass().getName(),
-                                    e);
-                                value = null;
-                            }
-                        }
-
-                        if (value == null) {
-                            break;
-                        }
+            // Do basic value conversion
+            Optional<ValueType> attributeValueType = attribute.getType().map(AttributeValueType::getValueType);
+
+            if (value != null && attributeValueType.isPresent()) {
+                if (attributeValueType.get() != value.getType()) {
+                    LOG.fine("Converting value: " + value.getType() + " -> " + attributeValueType.get());
+                    Optional<Value> convertedValue = Values.convert(value, attributeValueType.get());
+                    if (!convertedValue.isPresent()) {
+                        LOG.warning("Failed to convert value: " + value.getType() + " -> " + attributeValueType.get());
+                    } else {
+                        value = convertedValue.get();
                     }
                 }
+            }
 
-                // Do basic value conversion
-                Optional<ValueType> attributeValueType = attribute.getType().map(AttributeValueType::getValueType);
-
-                if (value != null && attributeValueType.isPresent()) {
-                    if (attributeValueType.get() != value.getType()) {
-                        LOG.fine("Converting value: " + value.getType() + " -> " + attributeValueType.get());
-                        Optional<Value> convertedValue = Values.convert(value, attributeValueType.get());
-                        if (!convertedValue.isPresent()) {
-                            LOG.warning("Failed to convert value: " + value.getType() + " -> " + attributeValueType.get());
-                        } else {
-                            value = convertedValue.get();
-                        }
-                    }
+            state = new AttributeState(state.getAttributeRef(), value);
+        }
+        queueSensorEvent(new AttributeEvent(state, timestamp));
+    }
+
+    /**
+     * Queues the event in the sensor channel without blocking, and makes sure the channel is being sent. When the
+     * channel is full the event replaces the waiting event of the same attribute, the newest value always wins, or
+     * is dropped if no event of the attribute is waiting.
+     */
+    protected void queueSensorEvent(AttributeEvent attributeEvent) {
+        int size = sensorChannelSize.incrementAndGet();
+        if (size > sensorChannelCapacity) {
+            sensorChannelSize.decrementAndGet();
+            onSensorQueueBackpressure();
+            if (replaceSensorEvent(attributeEvent)) {
+                sensorEventsMerged.incrementAndGet();
+                LOG.finest("Sensor channel full, replaced waiting sensor update: " + attributeEvent);
+            } else {
+                long dropped = sensorEventsDropped.incrementAndGet();
+                if (dropped % 1000 == 1) {
+                    LOG.warning("Sensor channel full, dropping sensor update (dropped total " + dropped + "): " + attributeEvent);
                 }
+            }
+            return;
+        }
+        if (size > sensorChannelCapacity / 2) {
+            onSensorQueueBackpressure();
+        }
+        LOG.finest("Queueing in sensor channel: " + attributeEvent);
+        AtomicReference<AttributeEvent> entry = new AtomicReference<>(attributeEvent);
+        sensorChannelLatest.put(attributeEvent.getAttributeRef(), entry);
+        sensorChannel.add(entry);
+        scheduleSensorChannel();
+    }
+
+    /**
+     * @return <code>false</code> if no event of the attribute is waiting in the sensor channel.
+     */
+    protected boolean replaceSensorEvent(AttributeEvent attributeEvent) {
+        AtomicReference<AttributeEvent> entry = sensorChannelLatest.get(attributeEvent.getAttributeRef());
+        if (entry == null)
+            return false;
+        AttributeEvent waiting;
+        while ((waiting = entry.get()) != null) {
+            if (entry.compareAndSet(waiting, attributeEvent))
+                return true;
+        }
+        // Taken by the sender in the meantime
+        return false;
+    }
+
+    public long getSensorEventsMerged() {
+        return sensorEventsMerged.get();
+    }
+
+    public long getSensorEventsDropped() {
+        return sensorEventsDropped.get();
+    }
+
+    protected void scheduleSensorChannel() {
+        if (sensorChannelSending.compareAndSet(false, true)) {
+            try {
+                executorService.execute(this::sendSensorChannel);
+            } catch (RejectedExecutionException ex) {
+                sensorChannelSending.set(false);
+                LOG.fine("Protocol executor rejected sending sensor channel, shutting down? " + getProtocolName());
+            }
+        }
+    }
 
-                state = new AttributeState(state.getAttributeRef(), value);
+    /**
+     * Sends the events of the sensor channel in batches on the sensor queue until the channel is empty, only one
+     * thread sends at a time so the order of events is preserved.
+     */
+    protected void sendSensorChannel() {
+        try {
+            List<AttributeEvent> batch = new ArrayList<>();
+            AtomicReference<AttributeEvent> entry;
+            while ((entry = sensorChannel.poll()) != null) {
+                sensorChannelSize.decrementAndGet();
+                AttributeEvent attributeEvent = entry.getAndSet(null);
+                sensorChannelLatest.remove(attributeEvent.getAttributeRef(), entry);
+                batch.add(attributeEvent);
+                if (batch.size() >= SENSOR_CHANNEL_BATCH_SIZE || sensorChannel.isEmpty()) {
+                    sendSensorEvents(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+        } catch (Exception ex) {
+            LOG.log(Level.WARNING, "Sending sensor channel failed: " + getProtocolName(), ex);
+        } finally {
+            sensorChannelSending.set(false);
+            // An event may have been queued after the last poll, while this thread was still sending
+            if (!sensorChannel.isEmpty()) {
+                scheduleSensorChannel();
             }
-            AttributeEvent attributeEvent = new AttributeEvent(state, timestamp);
-            LOG.fine("Sending on sensor queue: " + attributeEvent);
-            producerTemplate.sendBodyAndHeader(SENSOR_QUEUE, attributeEvent, Protocol.SENSOR_QUEUE_SOURCE_PROTOCOL, getProtocolName());
+        }
+    }
+
+    protected void sendSensorEvents(List<AttributeEvent> attributeEvents) {
+        LOG.fine("Sending on sensor queue: " + attributeEvents.size() + " event(s)");
+        Exchange exchange = producerTemplate.send(SENSOR_QUEUE, sensorExchange -> {
+            sensorExchange.getIn().setBody(attributeEvents.size() == 1 ? attributeEvents.get(0) : attributeEvents);
+            sensorExchange.getIn().setHeader(Protocol.SENSOR_QUEUE_SOURCE_PROTOCOL, getProtocolName());
         });
+        if (exchange.getException() != null) {
+            LOG.log(Level.WARNING, "Sending on sensor queue failed: " + attributeEvents, exchange.getException());
+        }
+        if (exchange.getProperty(SENSOR_QUEUE_BACKPRESSURE, false, Boolean.class)) {
+            onSensorQueueBackpressure();
+        }
+    }
+
+    protected void onSensorQueueBackpressure() {
+        if (!isSensorQueueBackpressure()) {
+            LOG.info("Sensor queue signals backpressure, sensor updates are queued faster than processed: " + getProtocolName());
+        }
+        sensorQueueBackpressureUntil = System.currentTimeMillis() + SENSOR_QUEUE_BACKPRESSURE_MILLIS;
+    }
+
+    /**
+     * Indicates if sensor updates of this protocol were recently queued faster than they are processed, or dropped
+     * because the sensor queue was full. Protocols that poll devices or services should skip polls while this is the
+     * case.
+     */
+    protected boolean isSensorQueueBackpressure() {
+        return System.currentTimeMillis() < sensorQueueBackpressureUntil;
     }
 
     /**
@@ -438,10 +549,8 @@ public abstract class AbstractProtocol implements Protocol {
      * Gets the current runtime status of a protocol configuration.
      */
     final protected ConnectionStatus getStatus(AssetAttribute protocolConfiguration) {
-        return withLockReturning(getProtocolName() + "::getStatus", () -> {
-            LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfiguration.getReferenceOrThrow());
-            return linkedProtocolInfo.getCurrentConnectionStatus();
-        });
+        LinkedProtocolInfo linkedProtocolInfo = linkedProtocolConfigurations.get(protocolConfiguration.getReferenceOrThrow());
+        return linkedProtocolInfo.getCurrentConnectionStatus();
     }
 
     @Override
@@ -20,7 +20,7 @@
 package org.openremote.agent.protocol;
 
 import io.netty.channel.Channel;
-import io.netty.channel.oio.OioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
 import org.openremote.model.util.TextUtil;
 
 import java.net.SocketAddress;
@@ -57,9 +57,8 @@ public abstract class AbstractSerialMessageProcessor<T> extends AbstractNettyMes
         return port;
     }
 
-    @SuppressWarnings("deprecation")
     @Override
-    protected io.netty.channel.EventLoopGroup getWorkerGroup() {
-        return new OioEventLoopGroup(1);
+    protected EventLoopGroup getWorkerGroup() {
+        return executorService.getNettyEventLoops().getBlockingGroup();
     }
 }
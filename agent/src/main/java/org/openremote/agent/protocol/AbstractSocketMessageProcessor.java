@@ -22,8 +22,7 @@ package org.openremote.agent.protocol;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import org.openremote.agent.protocol.io.NettyEventLoops;
 import org.openremote.model.syslog.SyslogCategory;
 import org.openremote.model.util.TextUtil;
 
@@ -51,7 +50,7 @@ public abstract class AbstractSocketMessageProcessor<T> extends AbstractNettyMes
 
     @Override
     protected Class<? extends Channel> getChannelClass() {
-        return NioSocketChannel.class;
+        return NettyEventLoops.getSocketChannelClass(workerGroup);
     }
 
     @Override
@@ -66,7 +65,7 @@ public abstract class AbstractSocketMessageProcessor<T> extends AbstractNettyMes
 
     @Override
     protected EventLoopGroup getWorkerGroup() {
-        return new NioEventLoopGroup(1);
+        return executorService.getNettyEventLoops().getWorkerGroup();
     }
 
     @Override
@@ -139,6 +139,10 @@ public interface Protocol extends ContainerService {
     Logger LOG = Logger.getLogger(Protocol.class.getName());
     String ACTUATOR_TOPIC_TARGET_PROTOCOL = "Protocol";
     String SENSOR_QUEUE_SOURCE_PROTOCOL = "Protocol";
+    // Exchange property set by the sensor queue consumer if the producer should slow down
+    String SENSOR_QUEUE_BACKPRESSURE = "SensorQueueBackpressure";
+    // How long a protocol considers the sensor queue under backpressure after it was signalled
+    long SENSOR_QUEUE_BACKPRESSURE_MILLIS = 1000;
 
     /**
      * {@link MetaItem} for defining {@link MessageFilter}s to apply to values before they are sent on the
@@ -155,8 +159,10 @@ public interface Protocol extends ContainerService {
     // Message topic for communicating from asset/thing to protocol layer (asset attribute changed, trigger actuator)
     String ACTUATOR_TOPIC = "seda://ActuatorTopic?multipleConsumers=true&concurrentConsumers=1&waitForTaskToComplete=NEVER&purgeWhenStopping=true&discardIfNoConsumers=true&limitConcurrentConsumers=false&size=1000";
 
-    // Message queue for communicating from protocol to asset/thing layer (sensor changed, trigger asset attribute update)
-    String SENSOR_QUEUE = "seda://SensorQueue?waitForTaskToComplete=NEVER&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
+    // Message queue for communicating from protocol to asset/thing layer (sensor changed, trigger asset attribute update),
+    // the events are queued by the consumer which may signal backpressure with exchange property SENSOR_QUEUE_BACKPRESSURE,
+    // the message body is a single AttributeEvent or a List of AttributeEvents sent as a batch
+    String SENSOR_QUEUE = "direct://SensorQueue";
 
     /**
      * Get the name for this protocol
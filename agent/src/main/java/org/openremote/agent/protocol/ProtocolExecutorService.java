@@ -19,6 +19,7 @@
  */
 package org.openremote.agent.protocol;
 
+import org.openremote.agent.protocol.io.NettyEventLoops;
 import org.openremote.container.ContainerService;
 
 import java.util.concurrent.ScheduledExecutorService;
@@ -45,4 +46,9 @@ public interface ProtocolExecutorService extends ScheduledExecutorService, Conta
      * @see java.util.concurrent.ScheduledExecutorService#scheduleWithFixedDelay
      */
     ScheduledFuture scheduleWithFixedDelay(Runnable runnable, long initialDelayMillis, long periodMillis);
+
+    /**
+     * The Netty event loops shared by all protocol connections and servers.
+     */
+    NettyEventLoops getNettyEventLoops();
 }
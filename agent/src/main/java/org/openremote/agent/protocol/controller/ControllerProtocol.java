@@ -19,7 +19,6 @@
  */
 package org.openremote.agent.protocol.controller;
 
-import org.apache.http.conn.HttpHostConnectException;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 import org.openremote.agent.protocol.AbstractProtocol;
 import org.openremote.agent.protocol.controller.command.ControllerCommandBasic;
@@ -47,6 +46,7 @@ import java.util.logging.Logger;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.model.Constants.PROTOCOL_NAMESPACE;
 import static org.openremote.model.util.TextUtil.*;
 
@@ -182,6 +182,11 @@ public class ControllerProtocol extends AbstractProtocol {
     public void init(Container container) throws Exception {
         super.init(container);
         WebTargetBuilder.setExecutorService(executorService);
+        WebTargetBuilder.setMaxConnectionsPerHost(getInteger(
+            container.getConfig(),
+            WebTargetBuilder.HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST,
+            WebTargetBuilder.HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST_DEFAULT
+        ));
     }
 
     @Override
@@ -426,7 +431,10 @@ public class ControllerProtocol extends AbstractProtocol {
     }
 
     /**
-     * Polling Request execution if a Connection issue (exception) occurs, we check the nature {@link #checkIfConnectionRefused(Exception, AttributeRef)}
+     * Polling Request execution if a Connection issue (exception) occurs, we check the nature {@link #checkIfConnectionRefused(Throwable, AttributeRef)}
+     * <p>
+     * The request doesn't hold a thread whilst the Controller holds the long-polling request, the response consumer is
+     * called on the executor service when the response is received.
      *
      * @param pollingKey       device name and controller agent ref on which we'll polling
      * @param sensorList       list of sensors to catch status
@@ -438,21 +446,19 @@ public class ControllerProtocol extends AbstractProtocol {
         HttpClientProtocol.HttpClientRequest httpClientRequest = RequestBuilder
                 .buildStatusPollingRequest(pollingKey.getDeviceName(), sensorList, this.controllersMap.get(pollingKey.getControllerAgentRef()).getDeviceId(), this.controllersTargetMap.get(pollingKey.getControllerAgentRef()));
 
-        Response response = null;
-
-        try {
-            response = httpClientRequest.invoke(null);
-
-            this.updateConnectionStatus(pollingKey.getControllerAgentRef(), ConnectionStatus.CONNECTED);
-        } catch (Exception e) {
-            LOG.log(Level.SEVERE,
-                    "### Exception thrown whilst doing polling request [device=" + pollingKey.getDeviceName() + ", sensors=" + this.formatSensors(sensorList) + "]",
-                    e);
+        httpClientRequest.submitLongPoll(null, executorService).whenComplete((response, error) -> {
+            if (error == null) {
+                this.updateConnectionStatus(pollingKey.getControllerAgentRef(), ConnectionStatus.CONNECTED);
+            } else {
+                LOG.log(Level.SEVERE,
+                        "### Exception thrown whilst doing polling request [device=" + pollingKey.getDeviceName() + ", sensors=" + this.formatSensors(sensorList) + "]",
+                        error);
 
-            this.checkIfConnectionRefused(e, pollingKey.getControllerAgentRef());
-        }
+                this.checkIfConnectionRefused(error, pollingKey.getControllerAgentRef());
+            }
 
-        responseConsumer.accept(response);
+            responseConsumer.accept(error == null ? response : null);
+        });
     }
 
     /**
@@ -569,28 +575,28 @@ public class ControllerProtocol extends AbstractProtocol {
     }
 
     /**
-     * {@link #checkIfConnectionRefused(Exception, AttributeRef)} check the exception received from a request execution to see if it's not a
+     * {@link #checkIfConnectionRefused(Throwable, AttributeRef)} check the exception received from a request execution to see if it's not a
      * connection issue. If it is the case, we'll start a heartbeat task until we get a new signal. Heartbeat is done evey
      * {@link #HEARTBEAT_DELAY_SECONDS} seconds.
      *
      * @param e           is the exception thrown by invoking the request
      * @param protocolRef is the reference to Protocol configuration (to update status,...)
      */
-    private void checkIfConnectionRefused(Exception e, AttributeRef protocolRef) {
-        if (e.getCause() instanceof HttpHostConnectException) {
-            HttpHostConnectException e2 = (HttpHostConnectException) e.getCause();
-
-            if (e2.getCause() instanceof ConnectException || e2.getCause() instanceof UnknownHostException) {
-                ConnectException e3 = (ConnectException) e2.getCause();
-                LOG.log(Level.SEVERE, "### Connection refused : " + e3.getMessage());
-                this.updateConnectionStatus(protocolRef, ConnectionStatus.DISCONNECTED);
-
-                //Starting a heartbeat Task until connection is OK
-                if (!this.controllerHeartbeat.containsKey(protocolRef) || this.controllerHeartbeat.get(protocolRef).isCancelled()) {
-                    this.controllerHeartbeat.put(protocolRef, this.executorService
-                            .scheduleWithFixedDelay(() -> this.executeHeartbeat(protocolRef, response -> onHeartbeatResponse(protocolRef, response)),
-                                    0, HEARTBEAT_DELAY_SECONDS, TimeUnit.SECONDS));
-                }
+    private void checkIfConnectionRefused(Throwable e, AttributeRef protocolRef) {
+        Throwable cause = e.getCause();
+        while (cause != null && !(cause instanceof ConnectException || cause instanceof UnknownHostException)) {
+            cause = cause.getCause();
+        }
+
+        if (cause != null) {
+            LOG.log(Level.SEVERE, "### Connection refused : " + cause.getMessage());
+            this.updateConnectionStatus(protocolRef, ConnectionStatus.DISCONNECTED);
+
+            //Starting a heartbeat Task until connection is OK
+            if (!this.controllerHeartbeat.containsKey(protocolRef) || this.controllerHeartbeat.get(protocolRef).isCancelled()) {
+                this.controllerHeartbeat.put(protocolRef, this.executorService
+                        .scheduleWithFixedDelay(() -> this.executeHeartbeat(protocolRef, response -> onHeartbeatResponse(protocolRef, response)),
+                                0, HEARTBEAT_DELAY_SECONDS, TimeUnit.SECONDS));
             }
         }
     }
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.protocol.filter;
+
+import org.openremote.container.json.ValueCodec;
+import org.openremote.model.value.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+
+/**
+ * A list of {@link MessageFilter}s compiled once into steps that are applied in order, following the rules of
+ * {@link MessageFilter}. Messages are passed between steps as plain strings where possible:
+ * <ul>
+ * <li>{@link RegexFilter} and {@link SubStringFilter} work on the string and reuse a {@link Matcher} per thread,
+ * no {@link StringValue} is created until the end of the chain</li>
+ * <li>{@link JsonFilter} extracts its path from a string message with {@link ValueCodec#extract}, without parsing
+ * the whole message into an {@link ObjectValue}</li>
+ * <li>Other filters get the message converted to their message type, as before</li>
+ * </ul>
+ * A chain is immutable and can be used by several threads concurrently.
+ */
+public class MessageFilterChain {
+
+    @FunctionalInterface
+    protected interface Step {
+        /**
+         * @param message A {@link String} or a {@link Value}, never <code>null</code>.
+         * @return A {@link String} or a {@link Value}, <code>null</code> if the message was filtered out.
+         */
+        Object apply(Object message) throws Exception;
+    }
+
+    private static final Logger LOG = Logger.getLogger(MessageFilterChain.class.getName());
+
+    protected final List<MessageFilter> filters;
+    protected final Step[] steps;
+
+    protected MessageFilterChain(List<MessageFilter> filters) {
+        this.filters = Collections.unmodifiableList(new ArrayList<>(filters));
+        this.steps = new Step[filters.size()];
+        for (int i = 0; i < steps.length; i++) {
+            steps[i] = compile(filters.get(i));
+        }
+    }
+
+    public static MessageFilterChain compile(List<MessageFilter> filters) {
+        return new MessageFilterChain(filters);
+    }
+
+    public List<MessageFilter> getFilters() {
+        return filters;
+    }
+
+    public boolean isEmpty() {
+        return steps.length == 0;
+    }
+
+    /**
+     * @return The filtered message, <code>null</code> if a filter didn't pass the message.
+     */
+    public Value process(Value value) {
+        if (value == null) {
+            return null;
+        }
+
+        // Unwrap so string filters don't create values between steps
+        Object message = value.getType() == ValueType.STRING ? ((StringValue) value).getString() : value;
+
+        for (int i = 0; i < steps.length && message != null; i++) {
+            try {
+                message = steps[i].apply(message);
+            } catch (Exception e) {
+                LOG.log(
+                    Level.SEVERE,
+                    "Message filter threw and exception during processing of message: "
+                        + filters.get(i).getClass().getName(),
+                    e);
+                message = null;
+            }
+        }
+
+        return toValue(message);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Step compile(MessageFilter filter) {
+        if (filter instanceof RegexFilter) {
+            RegexFilter regexFilter = (RegexFilter) filter;
+            if (regexFilter.pattern == null) {
+                return message -> null;
+            }
+            ThreadLocal<Matcher> matchers = ThreadLocal.withInitial(() -> regexFilter.pattern.matcher(""));
+            return message -> {
+                String str = toString(message, filter);
+                if (str == null) {
+                    return null;
+                }
+                Matcher matcher = matchers.get().reset(str);
+                boolean matched = matcher.find();
+                for (int matchIndex = 0; matched && matchIndex < regexFilter.matchIndex; matchIndex++) {
+                    matched = matcher.find();
+                }
+                String result = matched && regexFilter.matchGroup <= matcher.groupCount()
+                    ? matcher.group(regexFilter.matchGroup)
+                    : null;
+                // Don't hold on to the message in the thread-local matcher
+                matcher.reset("");
+                return result;
+            };
+        }
+
+        if (filter instanceof SubStringFilter) {
+            SubStringFilter subStringFilter = (SubStringFilter) filter;
+            return message -> {
+                String str = toString(message, filter);
+                if (str == null) {
+                    return null;
+                }
+                try {
+                    return subStringFilter.endIndex != null
+                        ? str.substring(subStringFilter.beginIndex, subStringFilter.endIndex)
+                        : str.substring(subStringFilter.beginIndex);
+                } catch (IndexOutOfBoundsException ignored) {
+                    return null;
+                }
+            };
+        }
+
+        if (filter instanceof JsonFilter) {
+            JsonFilter jsonFilter = (JsonFilter) filter;
+            if (jsonFilter.path == null || jsonFilter.path.isEmpty()) {
+                return message -> null;
+            }
+            List<String> path = new ArrayList<>(jsonFilter.path);
+            return message -> {
+                if (message instanceof StringValue) {
+                    message = ((StringValue) message).getString();
+                }
+                if (message instanceof String) {
+                    try {
+                        return ValueCodec.extract((String) message, path).orElse(null);
+                    } catch (IOException ex) {
+                        LOG.fine("Message filter type '" + filter.getMessageType().getName()
+                            + "' is not compatible with message, invalid JSON: " + ex.getMessage());
+                        return null;
+                    }
+                }
+                Value value = toMessageType((Value) message, filter);
+                return value != null ? jsonFilter.process((ObjectValue) value) : null;
+            };
+        }
+
+        return message -> {
+            Value value = toMessageType(toValue(message), filter);
+            return value != null ? filter.process(value) : null;
+        };
+    }
+
+    protected static String toString(Object message, MessageFilter filter) {
+        if (message instanceof String) {
+            return (String) message;
+        }
+        Value value = toMessageType((Value) message, filter);
+        return value != null ? ((StringValue) value).getString() : null;
+    }
+
+    /**
+     * @return The value converted to the message type of the filter, <code>null</code> if it can't be converted.
+     */
+    protected static Value toMessageType(Value value, MessageFilter filter) {
+        if (value == null || filter.getMessageType() == value.getType().getModelType()) {
+            return value;
+        }
+        ValueType filterValueType = ValueType.fromModelType(filter.getMessageType());
+        if (filterValueType == null) {
+            LOG.fine("Message filter type unknown: " + filter.getMessageType().getName());
+            return null;
+        }
+        Optional<Value> convertedValue = Values.convert(value, filterValueType);
+        if (!convertedValue.isPresent()) {
+            LOG.fine("Message filter type '" + filter.getMessageType().getName()
+                + "' is not compatible with actual message type '" + value.getType().getModelType().getName()
+                + "': " + filter.getClass().getName());
+        }
+        return convertedValue.orElse(null);
+    }
+
+    protected static Value toValue(Object message) {
+        return message instanceof String ? Values.create((String) message) : (Value) message;
+    }
+}
@@ -25,6 +25,9 @@ import org.jboss.resteasy.specimpl.BuiltResponse;
 import org.jboss.resteasy.specimpl.ResponseBuilderImpl;
 import org.openremote.agent.protocol.AbstractProtocol;
 import org.openremote.agent.protocol.Protocol;
+import org.openremote.agent.protocol.filter.JsonFilter;
+import org.openremote.agent.protocol.filter.MessageFilter;
+import org.openremote.agent.protocol.filter.MessageFilterChain;
 import org.openremote.container.Container;
 import org.openremote.model.AbstractValueHolder;
 import org.openremote.model.ValidationFailure;
@@ -42,6 +45,7 @@ import javax.ws.rs.HttpMethod;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
@@ -50,14 +54,19 @@ import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.model.Constants.PROTOCOL_NAMESPACE;
 import static org.openremote.model.util.TextUtil.*;
 
@@ -88,6 +97,15 @@ import static org.openremote.model.util.TextUtil.*;
  * #META_ATTRIBUTE_POLLING_SECONDS} {@link MetaItem}) can use the standard {@link Protocol#META_PROTOCOL_FILTERS} in
  * order to filter the received HTTP response.
  * <p>
+ * <h1>Polling</h1>
+ * <p>
+ * Linked {@link Attribute}s of a {@link ProtocolConfiguration} that poll the same request (path, method, headers, query
+ * parameters and body) with the same {@link #META_ATTRIBUTE_POLLING_SECONDS} share a single polling request; the
+ * response is read once and the value is passed through the filters of each attribute. When the response contains an
+ * <code>ETag</code> and/or <code>Last-Modified</code> header then subsequent polling requests of a GET or HEAD request
+ * are conditional (<code>If-None-Match</code>/<code>If-Modified-Since</code>) and a 304 (Not Modified) response leaves
+ * the attribute values unchanged.
+ * <p>
  * <h1>Connection Status</h1>
  * <p>
  * The {@link ConnectionStatus} of the {@link ProtocolConfiguration} is determined by the ping {@link
@@ -270,6 +288,47 @@ public class HttpClientProtocol extends AbstractProtocol {
             return invocation.invoke();
         }
 
+        /**
+         * Sends the request without blocking a thread whilst waiting for the response, see
+         * {@link NettyClientHttpEngine#submit(Invocation, Executor)}.
+         */
+        public CompletableFuture<Response> submit(String dynamicRequestValue, Executor executor) {
+            Invocation.Builder requestBuilder = getRequestBuilder(dynamicRequestValue);
+            Invocation invocation = buildInvocation(requestBuilder, dynamicRequestValue);
+            return NettyClientHttpEngine.submit(invocation, executor);
+        }
+
+        /**
+         * Sends a long-polling request, which holds its connection until the server responds, without the limit of
+         * connections per host, see {@link NettyClientHttpEngine#LONG_POLL}.
+         */
+        public CompletableFuture<Response> submitLongPoll(String dynamicRequestValue, Executor executor) {
+            Invocation.Builder requestBuilder = getRequestBuilder(dynamicRequestValue);
+            requestBuilder.property(NettyClientHttpEngine.LONG_POLL, true);
+            Invocation invocation = buildInvocation(requestBuilder, dynamicRequestValue);
+            return NettyClientHttpEngine.submit(invocation, executor);
+        }
+
+        /**
+         * Sends the request with the validators of a previous response, the server responds with 304 (Not Modified)
+         * if the resource has not changed.
+         */
+        public CompletableFuture<Response> submitConditional(String entityTag, String lastModified, Executor executor) {
+            Invocation.Builder requestBuilder = getRequestBuilder(null);
+            if (entityTag != null) {
+                requestBuilder.header(HttpHeaders.IF_NONE_MATCH, entityTag);
+            }
+            if (lastModified != null) {
+                requestBuilder.header(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+            }
+            Invocation invocation = buildInvocation(requestBuilder, null);
+            return NettyClientHttpEngine.submit(invocation, executor);
+        }
+
+        public boolean isConditionalRequestSupported() {
+            return !pagingEnabled && (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method));
+        }
+
         protected Future<Response> submit(String dynamicRequestValue) {
             Invocation.Builder requestBuilder = getRequestBuilder(dynamicRequestValue);
             Invocation invocation = buildInvocation(requestBuilder, dynamicRequestValue);
@@ -282,6 +341,107 @@ public class HttpClientProtocol extends AbstractProtocol {
         }
     }
 
+    /**
+     * Identifies polling requests that can be shared by linked attributes.
+     */
+    protected static class PollingKey {
+
+        final protected AttributeRef protocolConfigurationRef;
+        final protected String path;
+        final protected String method;
+        final protected MultivaluedMap<String, String> headers;
+        final protected MultivaluedMap<String, String> queryParameters;
+        final protected List<Integer> failureCodes;
+        final protected String body;
+        final protected String contentType;
+        final protected boolean pagingEnabled;
+        final protected boolean updateConnectionStatus;
+        final protected int pollingSeconds;
+
+        public PollingKey(AttributeRef protocolConfigurationRef, HttpClientRequest clientRequest, int pollingSeconds) {
+            this.protocolConfigurationRef = protocolConfigurationRef;
+            this.path = clientRequest.path;
+            this.method = clientRequest.method;
+            this.headers = clientRequest.headers;
+            this.queryParameters = clientRequest.queryParameters;
+            this.failureCodes = clientRequest.failureCodes;
+            this.body = clientRequest.body;
+            this.contentType = clientRequest.contentType;
+            this.pagingEnabled = clientRequest.pagingEnabled;
+            this.updateConnectionStatus = clientRequest.updateConnectionStatus;
+            this.pollingSeconds = pollingSeconds;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            PollingKey that = (PollingKey) o;
+            return pagingEnabled == that.pagingEnabled &&
+                updateConnectionStatus == that.updateConnectionStatus &&
+                pollingSeconds == that.pollingSeconds &&
+                protocolConfigurationRef.equals(that.protocolConfigurationRef) &&
+                Objects.equals(path, that.path) &&
+                Objects.equals(method, that.method) &&
+                Objects.equals(headers, that.headers) &&
+                Objects.equals(queryParameters, that.queryParameters) &&
+                Objects.equals(failureCodes, that.failureCodes) &&
+                Objects.equals(body, that.body) &&
+                Objects.equals(contentType, that.contentType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(protocolConfigurationRef, path, method, headers, queryParameters, body, pollingSeconds);
+        }
+    }
+
+    /**
+     * A polling request shared by all linked attributes with the same {@link PollingKey}, and the validators of the
+     * last response for conditional requests.
+     */
+    protected static class PollingGroup {
+
+        final protected PollingKey key;
+        final protected HttpClientRequest clientRequest;
+        final protected Set<AttributeRef> attributeRefs = new CopyOnWriteArraySet<>();
+        final protected AtomicBoolean requestPending = new AtomicBoolean();
+        protected ScheduledFuture pollingTask;
+        protected volatile String entityTag;
+        protected volatile String lastModified;
+
+        public PollingGroup(PollingKey key, HttpClientRequest clientRequest) {
+            this.key = key;
+            this.clientRequest = clientRequest;
+        }
+
+        public boolean hasValidators() {
+            return entityTag != null || lastModified != null;
+        }
+
+        public void updateValidators(Response response) {
+            if (!clientRequest.isConditionalRequestSupported()) {
+                return;
+            }
+            entityTag = response.getHeaderString(HttpHeaders.ETAG);
+            lastModified = response.getHeaderString(HttpHeaders.LAST_MODIFIED);
+        }
+
+        public void clearValidators() {
+            entityTag = null;
+            lastModified = null;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "request=" + clientRequest +
+                ", pollingSeconds=" + key.pollingSeconds +
+                ", attributes=" + attributeRefs.size() +
+                '}';
+        }
+    }
+
     /**
      * Used to
      */
@@ -711,17 +871,24 @@ public class HttpClientProtocol extends AbstractProtocol {
     protected final Map<AttributeRef, Pair<ResteasyWebTarget, List<Integer>>> clientMap = new HashMap<>();
     protected final Map<AttributeRef, HttpClientRequest> requestMap = new HashMap<>();
     protected final Map<AttributeRef, ScheduledFuture> pollingMap = new HashMap<>();
+    protected final Map<PollingKey, PollingGroup> pollingGroupMap = new HashMap<>();
 
     @Override
     public void init(Container container) throws Exception {
         super.init(container);
         WebTargetBuilder.setExecutorService(executorService);
+        WebTargetBuilder.setMaxConnectionsPerHost(getInteger(
+            container.getConfig(),
+            WebTargetBuilder.HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST,
+            WebTargetBuilder.HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST_DEFAULT
+        ));
     }
 
     @Override
     protected void doStop(Container container) {
         pollingMap.forEach((attributeRef, scheduledFuture) -> scheduledFuture.cancel(true));
         pollingMap.clear();
+        pollingGroupMap.clear();
         requestMap.clear();
         clientMap.clear();
         WebTargetBuilder.close();
@@ -1040,13 +1207,53 @@ public class HttpClientProtocol extends AbstractProtocol {
 
         requestMap.put(attributeRef, clientRequest);
 
-        Optional.ofNullable(pollingSeconds).ifPresent(seconds -> pollingMap.put(attributeRef, schedulePollingRequest(
+        Optional.ofNullable(pollingSeconds).ifPresent(seconds -> pollingMap.put(attributeRef, addPollingRequest(
             attributeRef,
             protocolConfigurationRef,
             clientRequest,
             seconds)));
     }
 
+    /**
+     * Adds the attribute to the {@link PollingGroup} of the request, scheduling a new polling request if there is no
+     * group yet for the request and polling interval.
+     */
+    protected ScheduledFuture addPollingRequest(AttributeRef attributeRef,
+                                                AttributeRef protocolConfigurationRef,
+                                                HttpClientRequest clientRequest,
+                                                int pollingSeconds) {
+
+        // Replace the polling request of a previous link of the attribute
+        cancelPolling(attributeRef);
+
+        PollingKey pollingKey = new PollingKey(protocolConfigurationRef, clientRequest, pollingSeconds);
+        PollingGroup pollingGroup = pollingGroupMap.get(pollingKey);
+
+        if (pollingGroup != null) {
+            LOG.fine("Adding attribute to shared polling request '" + pollingGroup + "': " + attributeRef);
+            pollingGroup.attributeRefs.add(attributeRef);
+            // The new attribute needs a full response
+            pollingGroup.clearValidators();
+            return pollingGroup.pollingTask;
+        }
+
+        PollingGroup newPollingGroup = new PollingGroup(pollingKey, clientRequest);
+        newPollingGroup.attributeRefs.add(attributeRef);
+        pollingGroupMap.put(pollingKey, newPollingGroup);
+
+        LOG.fine("Scheduling polling request '" + clientRequest + "' to execute every " + pollingSeconds + " seconds for attribute: " + attributeRef);
+
+        newPollingGroup.pollingTask = executorService.scheduleWithFixedDelay(() ->
+            executePollingRequest(newPollingGroup, response ->
+                onPollingResponse(
+                    newPollingGroup,
+                    response,
+                    protocolConfigurationRef)
+            ), 0, pollingSeconds, POLLING_TIME_UNIT);
+
+        return newPollingGroup.pollingTask;
+    }
+
     @Override
     protected void doUnlinkAttribute(AssetAttribute attribute, AssetAttribute protocolConfiguration) {
         AttributeRef attributeRef = attribute.getReferenceOrThrow();
@@ -1279,6 +1486,51 @@ public class HttpClientProtocol extends AbstractProtocol {
         responseConsumer.accept(originalResponse);
     }
 
+    /**
+     * Sends the polling request of the group without blocking a thread whilst waiting for the response, unless
+     * paging is enabled. A poll is skipped if the response to the previous poll has not yet been received, or if the
+     * sensor queue signals backpressure.
+     */
+    protected void executePollingRequest(PollingGroup pollingGroup, Consumer<Response> responseConsumer) {
+        HttpClientRequest clientRequest = pollingGroup.clientRequest;
+
+        if (clientRequest.pagingEnabled) {
+            executePollingRequest(clientRequest, responseConsumer);
+            return;
+        }
+
+        if (isSensorQueueBackpressure()) {
+            LOG.fine("Skipping poll as the sensor queue signals backpressure: " + pollingGroup);
+            return;
+        }
+
+        if (!pollingGroup.requestPending.compareAndSet(false, true)) {
+            LOG.fine("Skipping poll as the previous request has not yet completed: " + pollingGroup);
+            return;
+        }
+
+        CompletableFuture<Response> futureResponse;
+
+        try {
+            futureResponse = pollingGroup.hasValidators()
+                ? clientRequest.submitConditional(pollingGroup.entityTag, pollingGroup.lastModified, executorService)
+                : clientRequest.submit(null, executorService);
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Exception thrown whilst doing polling request", e);
+            pollingGroup.requestPending.set(false);
+            responseConsumer.accept(null);
+            return;
+        }
+
+        futureResponse.whenComplete((response, error) -> {
+            pollingGroup.requestPending.set(false);
+            if (error != null) {
+                LOG.log(Level.SEVERE, "Exception thrown whilst doing polling request", error);
+            }
+            responseConsumer.accept(error != null ? null : response);
+        });
+    }
+
     protected Response executePagingRequest(HttpClientRequest clientRequest, Response response) {
         Optional<String> linkHeader = Optional.ofNullable(response.getHeaderString(HEADER_LINK));
         if (linkHeader.isPresent()) {
@@ -1339,6 +1591,98 @@ public class HttpClientProtocol extends AbstractProtocol {
         }
     }
 
+    protected void onPollingResponse(PollingGroup pollingGroup,
+                                     Response response,
+                                     AttributeRef protocolConfigurationRef) {
+
+        HttpClientRequest request = pollingGroup.clientRequest;
+        int responseCode = response != null ? response.getStatus() : 500;
+        boolean notModified = responseCode == Response.Status.NOT_MODIFIED.getStatusCode() && pollingGroup.hasValidators();
+
+        if (request.updateConnectionStatus) {
+            updateConnectionStatus(request, protocolConfigurationRef, notModified ? Response.Status.OK.getStatusCode() : responseCode);
+        }
+
+        if (notModified) {
+            LOG.finest("Polling response not modified, attribute values unchanged: " + pollingGroup);
+            return;
+        }
+
+        Value value = null;
+
+        if (response != null && response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL) {
+            try {
+                if (response.hasEntity()) {
+                    String responseBody = response.readEntity(String.class);
+                    value = responseBody != null ? Values.create(responseBody) : null;
+                }
+                pollingGroup.updateValidators(response);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Error occurred whilst trying to read response body", e);
+                pollingGroup.clearValidators();
+                if (request.updateConnectionStatus) {
+                    updateConnectionStatus(request, protocolConfigurationRef, 500);
+                }
+            }
+        } else {
+            pollingGroup.clearValidators();
+            if (isPermanentFailure(responseCode, request.failureCodes)) {
+                doPermanentFailure(protocolConfigurationRef);
+                pollingGroup.attributeRefs.forEach(this::cancelPolling);
+                return;
+            }
+        }
+
+        updateLinkedAttributes(pollingGroup, value);
+    }
+
+    /**
+     * Passes the response value to the filters of each attribute of the polling group. The response body isn't
+     * parsed for a {@link JsonFilter} at the start of a chain, it only extracts its path from the body, see
+     * {@link MessageFilterChain}. For other filters that require JSON, the body is parsed once for all attributes.
+     */
+    protected void updateLinkedAttributes(PollingGroup pollingGroup, Value value) {
+        Value parsedValue = null;
+        boolean parsed = false;
+
+        for (AttributeRef attributeRef : pollingGroup.attributeRefs) {
+            Value attributeValue = value;
+            ValueType filterValueType = getParsedValueType(linkedAttributeFilters.get(attributeRef));
+
+            if (value != null
+                && value.getType() == ValueType.STRING
+                && (filterValueType == ValueType.OBJECT || filterValueType == ValueType.ARRAY)) {
+
+                if (!parsed) {
+                    parsed = true;
+                    try {
+                        parsedValue = Values.parse(value.toString()).orElse(null);
+                    } catch (ValueException e) {
+                        LOG.fine("Polling response is not valid JSON: " + pollingGroup);
+                    }
+                }
+
+                // Otherwise the filter converts the value
+                if (parsedValue != null && parsedValue.getType() == filterValueType) {
+                    attributeValue = parsedValue;
+                }
+            }
+
+            updateLinkedAttribute(new AttributeState(attributeRef, attributeValue));
+        }
+    }
+
+    /**
+     * @return The value type the first filter of the chain requires, if the value must be parsed for it.
+     */
+    protected static ValueType getParsedValueType(MessageFilterChain filterChain) {
+        if (filterChain == null || filterChain.isEmpty()) {
+            return null;
+        }
+        MessageFilter filter = filterChain.getFilters().get(0);
+        return filter instanceof JsonFilter ? null : ValueType.fromModelType(filter.getMessageType());
+    }
+
     protected void onAttributeWriteResponse(HttpClientRequest request,
                                             Response response,
                                             AttributeRef protocolConfigurationRef) {
@@ -1357,8 +1701,23 @@ public class HttpClientProtocol extends AbstractProtocol {
     protected void cancelPolling(AttributeRef attributeRef) {
         withLock(getProtocolName() + "::cancelPolling", () -> {
             ScheduledFuture pingPoll = pollingMap.remove(attributeRef);
-            if (pingPoll != null) {
-                pingPoll.cancel(false);
+            PollingGroup pollingGroup = null;
+            for (PollingGroup group : pollingGroupMap.values()) {
+                if (group.attributeRefs.contains(attributeRef)) {
+                    group.attributeRefs.remove(attributeRef);
+                    pollingGroup = group;
+                    break;
+                }
+            }
+
+            if (pollingGroup == null) {
+                if (pingPoll != null) {
+                    pingPoll.cancel(false);
+                }
+            } else if (pollingGroup.attributeRefs.isEmpty()) {
+                LOG.fine("Cancelling polling request as it has no more attributes: " + pollingGroup);
+                pollingGroupMap.remove(pollingGroup.key);
+                pollingGroup.pollingTask.cancel(false);
             }
         });
     }
@@ -0,0 +1,693 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.protocol.http;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.pool.*;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.PrematureChannelClosureException;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.InetNameResolver;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import org.jboss.resteasy.client.jaxrs.ClientHttpEngine;
+import org.jboss.resteasy.client.jaxrs.internal.AbortedResponse;
+import org.jboss.resteasy.client.jaxrs.internal.ClientInvocation;
+import org.jboss.resteasy.client.jaxrs.internal.ClientRequestContextImpl;
+import org.jboss.resteasy.client.jaxrs.internal.ClientResponse;
+import org.jboss.resteasy.client.jaxrs.internal.ClientResponseContextImpl;
+import org.jboss.resteasy.util.CaseInsensitiveMap;
+import org.openremote.container.concurrent.ContainerThreadFactory;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseFilter;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking HTTP/1.1 client engine for the shared JAX-RS client of {@link WebTargetBuilder}, requests are
+ * written and responses read on a small Netty event loop group.
+ * <p>
+ * Connections are pooled per origin (scheme, host and port) with a limit of connections per origin, requests wait for
+ * a free connection if the limit is reached. Requests with the {@link #LONG_POLL} property set are sent on a separate
+ * pool of each origin without a limit, a long-poll holds its connection until the server responds and must not
+ * exhaust the connections of other requests. Connections are kept alive and reused until the server closes them, a
+ * request that fails because the connection was closed before the response was received is retried once if the
+ * method is idempotent. Request and response bodies are buffered, responses larger than {@link #MAX_CONTENT_LENGTH} fail.
+ * A request fails if no data is received for the socket timeout while waiting for its response, like the socket read
+ * timeout of a blocking client. Host names are resolved on a separate thread pool, not on the event loop.
+ * <p>
+ * {@link Invocation#invoke} blocks the calling thread until the response has been received. Use
+ * {@link #submit(Invocation, Executor)} for requests that must not block a thread while waiting for the response,
+ * e.g. polling and long-polling requests: the request filters are executed on the calling thread, the response
+ * filters and the completion of the returned future on the executor. The filters are the same as for
+ * {@link Invocation#invoke}, registered as instances or as classes.
+ */
+public class NettyClientHttpEngine implements ClientHttpEngine {
+
+    /**
+     * A request written to a pooled connection, the connection handles one request at a time.
+     */
+    protected static class PendingRequest {
+
+        final protected ClientInvocation invocation;
+        final protected CompletableFuture<ClientResponse> future = new CompletableFuture<>();
+        protected boolean keepAlive;
+        // Updated on the event loop when data is read, the read timeout is rescheduled until there is no data
+        volatile protected long lastReadNanos;
+        volatile protected io.netty.util.concurrent.ScheduledFuture<?> readTimeout;
+
+        public PendingRequest(ClientInvocation invocation) {
+            this.invocation = invocation;
+        }
+    }
+
+    /**
+     * Records when data of the response is read, before it is decoded and aggregated.
+     */
+    @ChannelHandler.Sharable
+    protected static class ReadActivityHandler extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            PendingRequest pendingRequest = ctx.channel().attr(PENDING_REQUEST).get();
+            if (pendingRequest != null) {
+                pendingRequest.lastReadNanos = System.nanoTime();
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    /**
+     * Resolves host names with the blocking JDK resolver on an executor, so the event loop is never blocked.
+     */
+    protected static class ExecutorNameResolver extends InetNameResolver {
+
+        final protected Executor resolverExecutor;
+
+        public ExecutorNameResolver(EventExecutor eventExecutor, Executor resolverExecutor) {
+            super(eventExecutor);
+            this.resolverExecutor = resolverExecutor;
+        }
+
+        @Override
+        protected void doResolve(String inetHost, Promise<InetAddress> promise) {
+            try {
+                resolverExecutor.execute(() -> {
+                    try {
+                        promise.trySuccess(InetAddress.getByName(inetHost));
+                    } catch (Exception e) {
+                        promise.tryFailure(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                promise.tryFailure(e);
+            }
+        }
+
+        @Override
+        protected void doResolveAll(String inetHost, Promise<List<InetAddress>> promise) {
+            try {
+                resolverExecutor.execute(() -> {
+                    try {
+                        promise.trySuccess(Arrays.asList(InetAddress.getAllByName(inetHost)));
+                    } catch (Exception e) {
+                        promise.tryFailure(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                promise.tryFailure(e);
+            }
+        }
+    }
+
+    protected static class ResponseHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse response) {
+            PendingRequest pendingRequest = ctx.channel().attr(PENDING_REQUEST).getAndSet(null);
+            if (pendingRequest == null) {
+                LOG.fine("Ignoring response without request: " + ctx.channel());
+                return;
+            }
+            if (!response.decoderResult().isSuccess()) {
+                pendingRequest.future.completeExceptionally(response.decoderResult().cause());
+                return;
+            }
+            pendingRequest.keepAlive = HttpUtil.isKeepAlive(response);
+            pendingRequest.future.complete(createResponse(pendingRequest.invocation, response));
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            PendingRequest pendingRequest = ctx.channel().attr(PENDING_REQUEST).getAndSet(null);
+            if (pendingRequest != null) {
+                pendingRequest.future.completeExceptionally(
+                    new PrematureChannelClosureException("Connection closed before response was received")
+                );
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            PendingRequest pendingRequest = ctx.channel().attr(PENDING_REQUEST).getAndSet(null);
+            if (pendingRequest != null) {
+                pendingRequest.future.completeExceptionally(cause);
+            } else {
+                LOG.log(Level.FINE, "Exception on idle connection: " + ctx.channel(), cause);
+            }
+            ctx.close();
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(NettyClientHttpEngine.class.getName());
+    public static final int MAX_CONTENT_LENGTH = 10 * 1024 * 1024;
+    public static final int MAX_PENDING_ACQUIRES = 10000;
+    public static final int RESOLVER_THREADS = 2;
+    /**
+     * Set this request property to <code>true</code> for long-polling requests.
+     */
+    public static final String LONG_POLL = NettyClientHttpEngine.class.getName() + ".LONG_POLL";
+    protected static final ReadActivityHandler READ_ACTIVITY_HANDLER = new ReadActivityHandler();
+    protected static final AttributeKey<PendingRequest> PENDING_REQUEST = AttributeKey.valueOf("pendingRequest");
+    protected static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList(
+        "GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"
+    ));
+
+    final protected EventLoopGroup eventLoopGroup;
+    final protected boolean ownsEventLoopGroup;
+    final protected ThreadPoolExecutor resolverExecutor;
+    final protected Bootstrap bootstrap;
+    final protected SslContext sslContext;
+    final protected ChannelPoolMap<URI, FixedChannelPool> pools;
+    final protected ChannelPoolMap<URI, SimpleChannelPool> longPollPools;
+    final protected int maxConnectionsPerOrigin;
+    final protected long connectionCheckoutTimeoutMillis;
+    final protected long socketTimeoutMillis;
+
+    /**
+     * Creates an engine with its own event loop group of the given number of threads.
+     */
+    public NettyClientHttpEngine(int eventLoopThreads,
+                                 int maxConnectionsPerOrigin,
+                                 long connectionTimeoutMillis,
+                                 long connectionCheckoutTimeoutMillis,
+                                 long socketTimeoutMillis) {
+        this(
+            new NioEventLoopGroup(eventLoopThreads, new ContainerThreadFactory("HttpClient")),
+            true,
+            maxConnectionsPerOrigin,
+            connectionTimeoutMillis,
+            connectionCheckoutTimeoutMillis,
+            socketTimeoutMillis
+        );
+    }
+
+    protected NettyClientHttpEngine(EventLoopGroup eventLoopGroup,
+                                    boolean ownsEventLoopGroup,
+                                    int maxConnectionsPerOrigin,
+                                    long connectionTimeoutMillis,
+                                    long connectionCheckoutTimeoutMillis,
+                                    long socketTimeoutMillis) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.ownsEventLoopGroup = ownsEventLoopGroup;
+        this.maxConnectionsPerOrigin = maxConnectionsPerOrigin;
+        this.connectionCheckoutTimeoutMillis = connectionCheckoutTimeoutMillis;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+
+        this.resolverExecutor = new ThreadPoolExecutor(
+            RESOLVER_THREADS,
+            RESOLVER_THREADS,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new ContainerThreadFactory("HttpClientResolver")
+        );
+        this.resolverExecutor.allowCoreThreadTimeOut(true);
+
+        try {
+            this.sslContext = SslContextBuilder.forClient().build();
+        } catch (SSLException e) {
+            throw new IllegalStateException("Failed to create SSL context", e);
+        }
+
+        this.bootstrap = new Bootstrap()
+            .group(eventLoopGroup)
+            .channel(NioSocketChannel.class)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectionTimeoutMillis)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .option(ChannelOption.TCP_NODELAY, true)
+            .resolver(new AddressResolverGroup<InetSocketAddress>() {
+                @Override
+                protected AddressResolver<InetSocketAddress> newResolver(EventExecutor executor) {
+                    return new ExecutorNameResolver(executor, resolverExecutor).asAddressResolver();
+                }
+            });
+
+        this.pools = new AbstractChannelPoolMap<URI, FixedChannelPool>() {
+            @Override
+            protected FixedChannelPool newPool(URI origin) {
+                return createPool(origin);
+            }
+        };
+
+        this.longPollPools = new AbstractChannelPoolMap<URI, SimpleChannelPool>() {
+            @Override
+            protected SimpleChannelPool newPool(URI origin) {
+                return createLongPollPool(origin);
+            }
+        };
+    }
+
+    /**
+     * Sends the request and completes the future with the filtered response on the executor, without blocking a
+     * thread while waiting for the response. Falls back to invoking the request on the executor if the client
+     * doesn't use this engine.
+     */
+    public static CompletableFuture<Response> submit(Invocation invocation, Executor executor) {
+        ClientInvocation clientInvocation = (ClientInvocation) invocation;
+        ClientHttpEngine httpEngine = clientInvocation.getClient().httpEngine();
+
+        if (!(httpEngine instanceof NettyClientHttpEngine)) {
+            return CompletableFuture.supplyAsync(invocation::invoke, executor);
+        }
+
+        return ((NettyClientHttpEngine) httpEngine).submit(clientInvocation, executor);
+    }
+
+    @Override
+    public SSLContext getSslContext() {
+        return null;
+    }
+
+    @Override
+    public HostnameVerifier getHostnameVerifier() {
+        return null;
+    }
+
+    @Override
+    public ClientResponse invoke(ClientInvocation request) {
+        CompletableFuture<ClientResponse> future = execute(request);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted whilst waiting for response: " + request.getUri(), e);
+        } catch (ExecutionException e) {
+            throw new ProcessingException("Unable to invoke request: " + request.getUri(), e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsEventLoopGroup) {
+            eventLoopGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+        }
+        resolverExecutor.shutdownNow();
+    }
+
+    protected CompletableFuture<Response> submit(ClientInvocation invocation, Executor executor) {
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        ClientRequestContextImpl requestContext = new ClientRequestContextImpl(invocation);
+
+        try {
+            for (ClientRequestFilter filter : getRequestFilters(invocation)) {
+                filter.filter(requestContext);
+                if (requestContext.getAbortedWithResponse() != null) {
+                    ClientResponse aborted = new AbortedResponse(
+                        invocation.getClientConfiguration(),
+                        requestContext.getAbortedWithResponse()
+                    );
+                    executor.execute(() -> completeFiltered(result, invocation, requestContext, aborted));
+                    return result;
+                }
+            }
+        } catch (Exception e) {
+            result.completeExceptionally(e instanceof ProcessingException ? e : new ProcessingException(e));
+            return result;
+        }
+
+        CompletableFuture<ClientResponse> future = execute(invocation);
+        future.whenCompleteAsync((response, error) -> {
+            if (error != null) {
+                result.completeExceptionally(new ProcessingException("Unable to invoke request: " + invocation.getUri(), error));
+            } else {
+                completeFiltered(result, invocation, requestContext, response);
+            }
+        }, executor);
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                future.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    protected void completeFiltered(CompletableFuture<Response> result,
+                                    ClientInvocation invocation,
+                                    ClientRequestContextImpl requestContext,
+                                    ClientResponse response) {
+        try {
+            ClientResponseContextImpl responseContext = new ClientResponseContextImpl(response);
+            for (ClientResponseFilter filter : getResponseFilters(invocation)) {
+                filter.filter(requestContext, responseContext);
+            }
+            result.complete(response);
+        } catch (Exception e) {
+            result.completeExceptionally(e instanceof ProcessingException ? e : new ProcessingException(e));
+        }
+    }
+
+    /**
+     * Sends the request without executing filters.
+     */
+    public CompletableFuture<ClientResponse> execute(ClientInvocation invocation) {
+        return execute(invocation, true);
+    }
+
+    protected CompletableFuture<ClientResponse> execute(ClientInvocation invocation, boolean retry) {
+        PendingRequest pendingRequest = new PendingRequest(invocation);
+        URI uri = invocation.getUri();
+        FullHttpRequest request;
+        ChannelPool pool;
+
+        try {
+            request = createRequest(invocation, uri);
+            pool = isLongPoll(invocation) ? longPollPools.get(getOrigin(uri)) : pools.get(getOrigin(uri));
+        } catch (Exception e) {
+            pendingRequest.future.completeExceptionally(e);
+            return pendingRequest.future;
+        }
+
+        pool.acquire().addListener((FutureListener<Channel>) acquired -> {
+            if (!acquired.isSuccess()) {
+                request.release();
+                pendingRequest.future.completeExceptionally(acquired.cause());
+                return;
+            }
+
+            Channel channel = acquired.getNow();
+
+            if (pendingRequest.future.isDone()) {
+                // Cancelled whilst waiting for a connection
+                request.release();
+                pool.release(channel);
+                return;
+            }
+
+            channel.attr(PENDING_REQUEST).set(pendingRequest);
+            pendingRequest.lastReadNanos = System.nanoTime();
+            scheduleReadTimeout(channel, pendingRequest, TimeUnit.MILLISECONDS.toNanos(socketTimeoutMillis));
+
+            pendingRequest.future.whenComplete((response, error) -> {
+                io.netty.util.concurrent.ScheduledFuture<?> readTimeout = pendingRequest.readTimeout;
+                if (readTimeout != null) {
+                    readTimeout.cancel(false);
+                }
+                channel.attr(PENDING_REQUEST).compareAndSet(pendingRequest, null);
+                if (error != null || !pendingRequest.keepAlive) {
+                    channel.close();
+                }
+                pool.release(channel);
+            });
+
+            channel.writeAndFlush(request).addListener(written -> {
+                if (!written.isSuccess()) {
+                    pendingRequest.future.completeExceptionally(written.cause());
+                }
+            });
+        });
+
+        if (!retry || !IDEMPOTENT_METHODS.contains(invocation.getMethod())) {
+            return pendingRequest.future;
+        }
+
+        // The server may close an idle connection at any time, retry once on a new or another pooled connection
+        CompletableFuture<ClientResponse> result = new CompletableFuture<>();
+        pendingRequest.future.whenComplete((response, error) -> {
+            if (error instanceof PrematureChannelClosureException && !result.isDone()) {
+                LOG.fine("Connection closed by server, retrying request: " + uri);
+                execute(invocation, false).whenComplete((retried, retryError) -> {
+                    if (retryError != null) {
+                        result.completeExceptionally(retryError);
+                    } else {
+                        result.complete(retried);
+                    }
+                });
+            } else if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(response);
+            }
+        });
+        result.whenComplete((response, error) -> {
+            if (result.isCancelled()) {
+                pendingRequest.future.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Fails the request if no data has been read since the timeout, otherwise checks again when the timeout after
+     * the last read elapses.
+     */
+    protected void scheduleReadTimeout(Channel channel, PendingRequest pendingRequest, long delayNanos) {
+        pendingRequest.readTimeout = channel.eventLoop().schedule(() -> {
+            if (pendingRequest.future.isDone())
+                return;
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(socketTimeoutMillis) - (System.nanoTime() - pendingRequest.lastReadNanos);
+            if (remainingNanos <= 0) {
+                pendingRequest.future.completeExceptionally(
+                    new SocketTimeoutException("No data received within " + socketTimeoutMillis + "ms: " + pendingRequest.invocation.getUri())
+                );
+            } else {
+                scheduleReadTimeout(channel, pendingRequest, remainingNanos);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    protected FixedChannelPool createPool(URI origin) {
+        LOG.fine("Creating connection pool for: " + origin);
+
+        return new FixedChannelPool(
+            createPoolBootstrap(origin),
+            createPoolHandler(origin),
+            ChannelHealthChecker.ACTIVE,
+            FixedChannelPool.AcquireTimeoutAction.FAIL,
+            connectionCheckoutTimeoutMillis,
+            maxConnectionsPerOrigin,
+            MAX_PENDING_ACQUIRES,
+            true
+        );
+    }
+
+    protected SimpleChannelPool createLongPollPool(URI origin) {
+        LOG.fine("Creating long-poll connection pool for: " + origin);
+
+        return new SimpleChannelPool(
+            createPoolBootstrap(origin),
+            createPoolHandler(origin),
+            ChannelHealthChecker.ACTIVE,
+            true
+        );
+    }
+
+    protected Bootstrap createPoolBootstrap(URI origin) {
+        // Resolved by the resolver of the bootstrap when connecting
+        return bootstrap.clone()
+            .remoteAddress(InetSocketAddress.createUnresolved(origin.getHost(), origin.getPort()));
+    }
+
+    protected ChannelPoolHandler createPoolHandler(URI origin) {
+        boolean secure = "https".equals(origin.getScheme());
+
+        return new AbstractChannelPoolHandler() {
+            @Override
+            public void channelCreated(Channel channel) {
+                ChannelPipeline pipeline = channel.pipeline();
+                pipeline.addLast(READ_ACTIVITY_HANDLER);
+                if (secure) {
+                    SSLEngine sslEngine = sslContext.newEngine(channel.alloc(), origin.getHost(), origin.getPort());
+                    SSLParameters sslParameters = sslEngine.getSSLParameters();
+                    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslEngine.setSSLParameters(sslParameters);
+                    pipeline.addLast(new io.netty.handler.ssl.SslHandler(sslEngine));
+                }
+                pipeline.addLast(new HttpClientCodec());
+                pipeline.addLast(new HttpContentDecompressor());
+                pipeline.addLast(new HttpObjectAggregator(MAX_CONTENT_LENGTH));
+                pipeline.addLast(new ResponseHandler());
+            }
+        };
+    }
+
+    protected static boolean isLongPoll(ClientInvocation invocation) {
+        return Boolean.TRUE.equals(invocation.getConfiguration().getProperty(LONG_POLL));
+    }
+
+    protected static URI getOrigin(URI uri) {
+        String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+        if (!"http".equals(scheme) && !"https".equals(scheme)) {
+            throw new ProcessingException("Unsupported URI scheme: " + uri);
+        }
+        if (uri.getHost() == null) {
+            throw new ProcessingException("URI has no host: " + uri);
+        }
+        int port = uri.getPort() != -1 ? uri.getPort() : "https".equals(scheme) ? 443 : 80;
+        return URI.create(scheme + "://" + uri.getHost() + ":" + port);
+    }
+
+    protected static FullHttpRequest createRequest(ClientInvocation invocation, URI uri) throws IOException {
+        ByteBuf content = Unpooled.EMPTY_BUFFER;
+
+        if (invocation.getEntity() != null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            invocation.writeRequestBody(out);
+            content = Unpooled.wrappedBuffer(out.toByteArray());
+        }
+
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+
+        FullHttpRequest request = new DefaultFullHttpRequest(
+            HttpVersion.HTTP_1_1,
+            HttpMethod.valueOf(invocation.getMethod()),
+            path,
+            content
+        );
+
+        HttpHeaders headers = request.headers();
+        invocation.getHeaders().asMap().forEach((name, values) -> {
+            for (String value : values) {
+                if (value != null) {
+                    headers.add(name, value);
+                }
+            }
+        });
+
+        MediaType mediaType = invocation.getHeaders().getMediaType();
+        if (mediaType != null && !headers.contains(HttpHeaderNames.CONTENT_TYPE)) {
+            headers.set(HttpHeaderNames.CONTENT_TYPE, mediaType.toString());
+        }
+
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        boolean defaultPort = uri.getPort() == -1
+            || ("http".equals(scheme) && uri.getPort() == 80)
+            || ("https".equals(scheme) && uri.getPort() == 443);
+        headers.set(HttpHeaderNames.HOST, defaultPort ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+        headers.set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        if (!headers.contains(HttpHeaderNames.ACCEPT_ENCODING)) {
+            headers.set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP_DEFLATE);
+        }
+        HttpUtil.setContentLength(request, content.readableBytes());
+
+        return request;
+    }
+
+    protected static ClientResponse createResponse(ClientInvocation invocation, FullHttpResponse httpResponse) {
+        byte[] body = ByteBufUtil.getBytes(httpResponse.content());
+
+        ClientResponse response = new ClientResponse(invocation.getClientConfiguration()) {
+            protected InputStream stream = body.length > 0 ? new ByteArrayInputStream(body) : null;
+
+            @Override
+            public InputStream getInputStream() {
+                return stream;
+            }
+
+            @Override
+            public void setInputStream(InputStream stream) {
+                this.stream = stream;
+            }
+
+            @Override
+            public void releaseConnection() throws IOException {
+                // The connection has been released when the response was received
+                stream = null;
+            }
+        };
+
+        CaseInsensitiveMap<String> headers = new CaseInsensitiveMap<>();
+        httpResponse.headers().forEach(header -> headers.add(header.getKey(), header.getValue()));
+
+        response.setProperties(invocation.getMutableProperties());
+        response.setStatus(httpResponse.status().code());
+        response.setHeaders(headers);
+        response.setClientConfiguration(invocation.getClientConfiguration());
+        return response;
+    }
+
+    /**
+     * @return The request filters of the client and the request in order of priority, instantiated if registered as
+     * classes, the same filters {@link ClientInvocation#invoke} executes.
+     */
+    protected static ClientRequestFilter[] getRequestFilters(ClientInvocation invocation) {
+        ClientRequestFilter[] filters = invocation.getClientConfiguration().getRequestFilters(null, null);
+        return filters != null ? filters : new ClientRequestFilter[0];
+    }
+
+    protected static ClientResponseFilter[] getResponseFilters(ClientInvocation invocation) {
+        ClientResponseFilter[] filters = invocation.getClientConfiguration().getResponseFilters(null, null);
+        return filters != null ? filters : new ClientResponseFilter[0];
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "maxConnectionsPerOrigin=" + maxConnectionsPerOrigin +
+            ", socketTimeoutMillis=" + socketTimeoutMillis +
+            '}';
+    }
+}
@@ -37,12 +37,12 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
  * This is a factory for creating JAX-RS {@link javax.ws.rs.client.WebTarget} instances. The instances share a common
- * {@link javax.ws.rs.client.Client} that uses a connection pool and has the following
+ * {@link javax.ws.rs.client.Client} that uses the non-blocking {@link NettyClientHttpEngine} with a connection pool
+ * per host and has the following
  * {@link javax.ws.rs.ext.ContextResolver}s registered (additional filters etc. should be registered on the
  * {@link WebTargetBuilder} instances):
  * <ul>
@@ -52,11 +52,14 @@ import java.util.stream.Collectors;
 // TODO: This should probably be amalgamated with WebClient somehow to provide a unified JAX-RS Client API
 public class WebTargetBuilder {
 
-    public static final int CONNECTION_POOL_SIZE = 200;
+    public static final String HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST = "HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST";
+    public static final int HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST_DEFAULT = 200;
+    public static final int EVENT_LOOP_THREADS = 2;
     public static final long CONNECTION_CHECKOUT_TIMEOUT_MILLISECONDS = 5000;
     public static final long CONNECTION_TIMEOUT_MILLISECONDS = 10000;
     protected static ResteasyClient client;
     protected static ExecutorService asyncExecutorService;
+    protected static int maxConnectionsPerHost = HTTP_CLIENT_MAX_CONNECTIONS_PER_HOST_DEFAULT;
     protected BasicAuthentication basicAuthentication;
     protected OAuthGrant oAuthGrant;
     protected UriBuilder uri;
@@ -103,6 +106,18 @@ public class WebTargetBuilder {
         asyncExecutorService = executorService;
     }
 
+    /**
+     * Set the maximum number of pooled connections per host, requests wait for a free connection when the limit is
+     * reached. Long-polling requests are not limited, see {@link NettyClientHttpEngine#LONG_POLL}.
+     */
+    public static void setMaxConnectionsPerHost(int maxConnections) {
+        if (client != null) {
+            throw new IllegalStateException("Max connections per host must be set before any call to create");
+        }
+
+        maxConnectionsPerHost = maxConnections;
+    }
+
     /**
      * Add Basic authentication to requests sent by this {@link WebTarget}; this should not be used in conjunction with
      * any other authentication.
@@ -208,11 +223,15 @@ public class WebTargetBuilder {
         if (client != null) {
             return;
         }
+        NettyClientHttpEngine httpEngine = new NettyClientHttpEngine(
+            EVENT_LOOP_THREADS,
+            maxConnectionsPerHost,
+            CONNECTION_TIMEOUT_MILLISECONDS,
+            CONNECTION_CHECKOUT_TIMEOUT_MILLISECONDS,
+            overrideSocketTimeout == null ? CONNECTION_TIMEOUT_MILLISECONDS : overrideSocketTimeout);
+
         ResteasyClientBuilder clientBuilder = new ResteasyClientBuilder()
-            .connectionPoolSize(CONNECTION_POOL_SIZE)
-            .connectionCheckoutTimeout(CONNECTION_CHECKOUT_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS)
-            .socketTimeout(overrideSocketTimeout == null ? CONNECTION_TIMEOUT_MILLISECONDS : overrideSocketTimeout, TimeUnit.MILLISECONDS)
-            .establishConnectionTimeout(CONNECTION_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS)
+            .httpEngine(httpEngine)
             .register(new JacksonConfig());
 
         if (asyncExecutorService != null) {
@@ -23,7 +23,6 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import org.openremote.model.asset.agent.ConnectionStatus;
 import org.openremote.model.syslog.SyslogCategory;
@@ -39,8 +38,10 @@ import static org.openremote.model.syslog.SyslogCategory.PROTOCOL;
 
 /**
  * Abstract implementation of {@link IoServer} that uses the Netty library.
+ * <p>
+ * The server should use the shared {@link NettyEventLoops} of the protocols if available, see {@link
+ * #setEventLoops}, otherwise it has its own event loop group.
  */
-// TODO: In Netty 5 you can pass in an executor service; can only pass in thread factory for now
 public abstract class AbstractIoServer<T, U extends Channel> implements IoServer<T, U> {
 
     private static final Logger LOG = SyslogCategory.getLogger(PROTOCOL, AbstractIoServer.class);
@@ -48,6 +49,7 @@ public abstract class AbstractIoServer<T, U extends Channel> implements IoServer
     protected ServerBootstrap bootstrap;
     protected ChannelFuture channelFuture;
     protected EventLoopGroup workerGroup;
+    protected NettyEventLoops eventLoops;
     protected boolean started;
     protected final ChannelGroup allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     protected final List<BiConsumer<U, T>> messageConsumers = new ArrayList<>();
@@ -66,8 +68,6 @@ public abstract class AbstractIoServer<T, U extends Channel> implements IoServer
             workerGroup = getWorkerGroup();
         }
 
-        workerGroup = new NioEventLoopGroup();
-
         try {
             bootstrap = new ServerBootstrap();
             bootstrap.channel(getServerChannelClass());
@@ -103,11 +103,10 @@ public abstract class AbstractIoServer<T, U extends Channel> implements IoServer
         started = false;
 
         try {
-            if (channelFuture != null) {
-                channelFuture.channel().close().sync();
-            }
+            // Close the server and client channels, a shared group isn't shut down and would keep the clients open
+            allChannels.close().sync();
 
-            if (workerGroup != null) {
+            if (workerGroup != null && (eventLoops == null || !eventLoops.isShared(workerGroup))) {
                 workerGroup.shutdownGracefully().sync();
             }
         } catch (InterruptedException ignored) {
@@ -163,12 +162,23 @@ public abstract class AbstractIoServer<T, U extends Channel> implements IoServer
         return started;
     }
 
+    /**
+     * Use the shared event loops, must be called before the server is started.
+     */
+    public void setEventLoops(NettyEventLoops eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
     /**
      * Initialise the specified client channel (will be called when a new client connection is made)
      */
     protected void initClientChannel(U channel) {
         LOG.fine("Client initialising: " + getClientDescriptor(channel));
 
+        if (eventLoops != null) {
+            channel.pipeline().addLast(eventLoops.getConnectionCounter());
+        }
+
         // Add handler to track when a channel becomes active and to handle exceptions
         channel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
             @Override
@@ -252,6 +262,9 @@ public abstract class AbstractIoServer<T, U extends Channel> implements IoServer
      */
     protected void configureServerChannelOptions() {
         bootstrap.option(ChannelOption.SO_BACKLOG, clientLimit);
+        if (eventLoops != null) {
+            bootstrap.option(ChannelOption.ALLOCATOR, eventLoops.getAllocator());
+        }
     }
 
     /**
@@ -259,6 +272,9 @@ public abstract class AbstractIoServer<T, U extends Channel> implements IoServer
      */
     protected void configureClientChannelOptions() {
         bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true);
+        if (eventLoops != null) {
+            bootstrap.childOption(ChannelOption.ALLOCATOR, eventLoops.getAllocator());
+        }
     }
 
     @Override
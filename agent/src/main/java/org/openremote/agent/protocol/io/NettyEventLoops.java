@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.agent.protocol.io;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.oio.OioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.openremote.container.concurrent.ContainerThreadFactory;
+import org.openremote.model.value.ObjectValue;
+import org.openremote.model.value.Values;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The Netty event loop groups shared by all protocol connections and servers, instead of event loop threads per
+ * connection or server. Uses the native epoll transport if enabled and available, otherwise NIO. Serial ports are
+ * blocking, their channels share a group with a thread per channel.
+ * <p>
+ * Channels should be created with the channel classes of the group they are registered with, see {@link
+ * #getSocketChannelClass} and {@link #getServerSocketChannelClass}, use the pooled {@link #getAllocator} and add the
+ * {@link #getConnectionCounter} to their pipeline for the metrics of each event loop.
+ */
+public class NettyEventLoops {
+
+    private static final Logger LOG = Logger.getLogger(NettyEventLoops.class.getName());
+
+    @ChannelHandler.Sharable
+    protected class ConnectionCounter extends ChannelInboundHandlerAdapter {
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            getConnections(ctx.channel().eventLoop()).incrementAndGet();
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            EventLoop eventLoop = ctx.channel().eventLoop();
+            // The loops of blocking channels are discarded with their channel
+            if (getConnections(eventLoop).decrementAndGet() <= 0 && eventLoop.parent() == blockingGroup) {
+                connections.remove(eventLoop);
+            }
+            super.channelInactive(ctx);
+        }
+    }
+
+    final protected EventLoopGroup workerGroup;
+    final protected EventLoopGroup blockingGroup;
+    final protected boolean nativeTransport;
+    final protected int threads;
+    final protected PooledByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    final protected ChannelHandler connectionCounter = new ConnectionCounter();
+    final protected Map<EventLoop, AtomicInteger> connections = new ConcurrentHashMap<>();
+
+    /**
+     * @param threads         The number of event loop threads shared by all non-blocking channels.
+     * @param nativeTransport Use the native epoll transport if it's available.
+     */
+    @SuppressWarnings("deprecation")
+    public NettyEventLoops(int threads, boolean nativeTransport) {
+        this.threads = threads;
+        this.nativeTransport = nativeTransport && Epoll.isAvailable();
+        if (nativeTransport && !this.nativeTransport) {
+            LOG.info("Native epoll transport not available, using NIO: " + Epoll.unavailabilityCause());
+        }
+        ContainerThreadFactory threadFactory = new ContainerThreadFactory("Protocol IO");
+        this.workerGroup = this.nativeTransport
+            ? new EpollEventLoopGroup(threads, threadFactory)
+            : new NioEventLoopGroup(threads, threadFactory);
+        // A thread per channel, only created when a blocking channel is registered
+        this.blockingGroup = new OioEventLoopGroup(0, new ContainerThreadFactory("Protocol Blocking IO"));
+    }
+
+    public EventLoopGroup getWorkerGroup() {
+        return workerGroup;
+    }
+
+    /**
+     * The group for blocking channels, such as serial ports.
+     */
+    public EventLoopGroup getBlockingGroup() {
+        return blockingGroup;
+    }
+
+    /**
+     * Shared groups must not be shut down by their users.
+     */
+    public boolean isShared(EventLoopGroup group) {
+        return group == workerGroup || group == blockingGroup;
+    }
+
+    public boolean isNativeTransport() {
+        return nativeTransport;
+    }
+
+    public PooledByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    public ChannelHandler getConnectionCounter() {
+        return connectionCounter;
+    }
+
+    public static Class<? extends SocketChannel> getSocketChannelClass(EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public static Class<? extends ServerSocketChannel> getServerSocketChannelClass(EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public void shutdown() {
+        workerGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+        blockingGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+    }
+
+    protected AtomicInteger getConnections(EventLoop eventLoop) {
+        return connections.computeIfAbsent(eventLoop, loop -> new AtomicInteger());
+    }
+
+    public ObjectValue toObjectValue() {
+        ObjectValue objectValue = Values.createObject();
+        objectValue.put("transport", nativeTransport ? "epoll" : "nio");
+        objectValue.put("threads", threads);
+
+        ObjectValue loopsValue = Values.createObject();
+        int i = 0;
+        for (EventExecutor executor : workerGroup) {
+            ObjectValue loopValue = Values.createObject();
+            AtomicInteger loopConnections = executor instanceof EventLoop ? connections.get(executor) : null;
+            loopValue.put("connections", loopConnections != null ? loopConnections.get() : 0);
+            if (executor instanceof SingleThreadEventExecutor) {
+                loopValue.put("pendingTasks", ((SingleThreadEventExecutor) executor).pendingTasks());
+            }
+            loopsValue.put(Integer.toString(i++), loopValue);
+        }
+        objectValue.put("eventLoops", loopsValue);
+
+        int blockingConnections = 0;
+        for (Map.Entry<EventLoop, AtomicInteger> entry : connections.entrySet()) {
+            if (entry.getKey().parent() == blockingGroup) {
+                blockingConnections += entry.getValue().get();
+            }
+        }
+        objectValue.put("blockingConnections", blockingConnections);
+
+        ObjectValue allocatorValue = Values.createObject();
+        allocatorValue.put("usedHeapMemory", allocator.metric().usedHeapMemory());
+        allocatorValue.put("usedDirectMemory", allocator.metric().usedDirectMemory());
+        objectValue.put("allocator", allocatorValue);
+        return objectValue;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "transport=" + (nativeTransport ? "epoll" : "nio") +
+            ", threads=" + threads +
+            '}';
+    }
+}
@@ -90,6 +90,7 @@ public abstract class AbstractTcpServerProtocol<T extends TcpServer<U>, U> exten
 
         LOG.info("Creating TCP server instance");
         T tcpServer = createTcpServer(port, bindAddress.map(StringValue::getString).orElse(null), protocolConfiguration);
+        tcpServer.setEventLoops(executorService.getNettyEventLoops());
         tcpServerMap.put(protocolRef, tcpServer);
         startTcpServer(protocolRef, tcpServer);
 
@@ -23,8 +23,8 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.ServerChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.openremote.agent.protocol.io.AbstractIoServer;
+import org.openremote.agent.protocol.io.NettyEventLoops;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -49,12 +49,12 @@ public abstract class TcpServer<T> extends AbstractIoServer<T, SocketChannel> {
 
     @Override
     protected Class<? extends ServerChannel> getServerChannelClass() {
-        return NioServerSocketChannel.class;
+        return NettyEventLoops.getServerSocketChannelClass(workerGroup);
     }
 
     @Override
     protected EventLoopGroup getWorkerGroup() {
-        return new NioEventLoopGroup();
+        return eventLoops != null ? eventLoops.getWorkerGroup() : new NioEventLoopGroup();
     }
 
     @Override
@@ -30,12 +30,70 @@ import java.util.function.*;
 
 import static org.openremote.agent.protocol.velbus.AbstractVelbusProtocol.*;
 
+/**
+ * Packets are sent one at a time from three lanes, see {@link SendPriority}. Property writes are queued per device
+ * address and property, a write replaces the packets of a queued write of the same property that wasn't sent yet.
+ * <p>
+ * The delay between packet writes adapts to the bus: it starts at {@link #DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS},
+ * shrinks while the addressed modules answer requests, grows back when they don't, and backs off when the bus interface
+ * signals its receive buffer is full or the bus is off.
+ */
 public class VelbusNetwork {
 
+    /**
+     * Lanes of the send queue, a packet is only sent when the lanes of higher priority are empty.
+     */
+    public enum SendPriority {
+        // Property writes, i.e. user actions
+        WRITE,
+        // Initialisation and status requests
+        STATUS,
+        // Time injection
+        BACKGROUND
+    }
+
+    protected static class QueuedWrite {
+        // Null if the write must not be replaced
+        final String key;
+        VelbusPacket[] packets;
+
+        protected QueuedWrite(String key, VelbusPacket[] packets) {
+            this.key = key;
+            this.packets = packets;
+        }
+    }
+
+    /**
+     * Commands which set a state, a queued write of these can be replaced by a later write of the same property.
+     * Other writes, e.g. button presses and releases, are events and every write must be sent.
+     */
+    protected static final Set<Integer> STATE_WRITE_COMMANDS = new HashSet<>(Arrays.asList(
+        VelbusPacket.OutboundCommand.RELAY_OFF.getCode(),
+        VelbusPacket.OutboundCommand.RELAY_ON.getCode(),
+        VelbusPacket.OutboundCommand.SET_LEVEL.getCode(),
+        VelbusPacket.OutboundCommand.LED_OFF.getCode(),
+        VelbusPacket.OutboundCommand.LED_ON.getCode(),
+        VelbusPacket.OutboundCommand.LED_SLOW.getCode(),
+        VelbusPacket.OutboundCommand.LED_FAST.getCode(),
+        VelbusPacket.OutboundCommand.LED_VERYFAST.getCode()
+    ));
+
     protected static int DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS = 100; // Need to throttle bus writes
+    protected static int MIN_DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS = 20;
+    protected static int MAX_DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS = 1000;
     protected final Integer timeInjectionIntervalSeconds;
     protected MessageProcessor<VelbusPacket> messageProcessor;
-    protected final Queue<VelbusPacket> messageQueue = new ArrayDeque<>();
+    // Queued packets of each lane, property writes are queued as QueuedWrite
+    protected final Map<SendPriority, Deque<Object>> sendQueues = new EnumMap<>(SendPriority.class);
+    protected final Map<String, QueuedWrite> queuedWrites = new HashMap<>();
+    // Remaining packets of the write currently being sent
+    protected final Deque<VelbusPacket> sendingPackets = new ArrayDeque<>();
+    protected int sendDelayMillis = DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS;
+    protected int lastSentAddress = -1;
+    // The commands of the packets the module addressed by the last sent packet answers with
+    protected Set<VelbusPacket.InboundCommand> lastSentResponses = Collections.emptySet();
+    protected boolean lastSentAcknowledged;
+    protected long busPausedUntil;
     protected List<ScheduledFuture> scheduledTasks = new ArrayList<>();
     protected ScheduledFuture timeInjector;
     protected VelbusDevice[] devices = new VelbusDevice[254];
@@ -45,6 +103,9 @@ public class VelbusNetwork {
     protected final List<Consumer<ConnectionStatus>> connectionStatusConsumers = new ArrayList<>();
 
     public VelbusNetwork(MessageProcessor<VelbusPacket> messageProcessor, ProtocolExecutorService executorService, Integer timeInjectionIntervalSeconds) {
+        for (SendPriority priority : SendPriority.values()) {
+            sendQueues.put(priority, new ArrayDeque<>());
+        }
         this.messageProcessor = messageProcessor;
         this.executorService = executorService;
         this.timeInjectionIntervalSeconds = timeInjectionIntervalSeconds;
@@ -72,14 +133,54 @@ public class VelbusNetwork {
         return this.executorService;
     }
 
-    public synchronized void sendPackets(VelbusPacket... packets) {
+    public void sendPackets(VelbusPacket... packets) {
+        sendPackets(SendPriority.STATUS, packets);
+    }
+
+    public synchronized void sendPackets(SendPriority priority, VelbusPacket... packets) {
         if (getConnectionStatus() == ConnectionStatus.CONNECTED) {
-            messageQueue.addAll(Arrays.asList(packets));
+            sendQueues.get(priority).addAll(Arrays.asList(packets));
+            startSendingPackets();
+        }
+    }
+
+    /**
+     * Queues the packets of a property write, a state write replaces the packets of a queued state write of the same
+     * device property which haven't been sent yet.
+     */
+    public synchronized void sendWritePackets(int deviceAddress, String property, VelbusPacket... packets) {
+        if (getConnectionStatus() != ConnectionStatus.CONNECTED) {
+            return;
+        }
 
-            if (queueProcessingTask == null) {
-                startSendingPackets();
+        if (!isStateWrite(packets)) {
+            sendQueues.get(SendPriority.WRITE).add(new QueuedWrite(null, packets));
+            startSendingPackets();
+            return;
+        }
+
+        String key = deviceAddress + ":" + property;
+        QueuedWrite queuedWrite = queuedWrites.get(key);
+
+        if (queuedWrite != null) {
+            LOG.finest("Replacing queued write of device property: " + key);
+            queuedWrite.packets = packets;
+        } else {
+            queuedWrite = new QueuedWrite(key, packets);
+            queuedWrites.put(key, queuedWrite);
+            sendQueues.get(SendPriority.WRITE).add(queuedWrite);
+        }
+
+        startSendingPackets();
+    }
+
+    protected static boolean isStateWrite(VelbusPacket... packets) {
+        for (VelbusPacket packet : packets) {
+            if (!STATE_WRITE_COMMANDS.contains(packet.getCommand())) {
+                return false;
             }
         }
+        return packets.length > 0;
     }
 
     public void connect() {
@@ -129,7 +230,7 @@ public class VelbusNetwork {
 
         if (status == ConnectionStatus.CONNECTED) {
             // Don't process stale messages
-            messageQueue.clear();
+            clearSendQueues();
 
             // Initialise the devices
             for (int i=0; i<devices.length; i++) {
@@ -155,10 +256,17 @@ public class VelbusNetwork {
         // Forward the packet to the device if it exists
         int address = packet.getAddress();
 
+        if (address == 0) {
+            onBusStatusReceived(packet);
+            return;
+        }
+
         if (address > 254 || address < 1) {
             return;
         }
 
+        onPacketAcknowledged(packet);
+
         VelbusDevice matchingDevice = devices[address-1];
         VelbusPacket.InboundCommand command = VelbusPacket.InboundCommand.fromCode(packet.getCommand());
         LOG.finest("Received packet " + command + " : " + packet);
@@ -258,24 +366,166 @@ public class VelbusNetwork {
             return;
         }
 
-        queueProcessingTask = getExecutorService().scheduleWithFixedDelay(
-            this::doSendPacket,
-            0,
-            DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS
-        );
+        queueProcessingTask = getExecutorService().schedule(this::doSendPacket, 0);
     }
 
     protected void doSendPacket() {
-        if (getConnectionStatus() == ConnectionStatus.CONNECTED) {
-            VelbusPacket packet = messageQueue.poll();
-            if (packet != null) {
-                VelbusPacket.OutboundCommand command = VelbusPacket.OutboundCommand.fromCode(packet.getCommand());
-                LOG.finest("Sending packet " + command + " : " + packet);
-                messageProcessor.sendMessage(packet);
-            } else {
-                queueProcessingTask.cancel(false);
-                queueProcessingTask = null;
+        VelbusPacket packet;
+
+        synchronized (this) {
+            queueProcessingTask = null;
+
+            if (messageProcessor == null || getConnectionStatus() != ConnectionStatus.CONNECTED) {
+                return;
             }
+
+            if (System.currentTimeMillis() < busPausedUntil) {
+                queueProcessingTask = getExecutorService().schedule(this::doSendPacket, sendDelayMillis);
+                return;
+            }
+
+            packet = pollPacket();
+
+            if (packet == null) {
+                return;
+            }
+
+            // Adapt the delay to whether the module addressed by the previous packet answered
+            if (lastSentAddress > 0 && !lastSentAcknowledged) {
+                sendDelayMillis = Math.min(DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS, sendDelayMillis + Math.max(1, sendDelayMillis / 4));
+            }
+            // Only packets the module answers tell whether the bus keeps up
+            lastSentResponses = getResponseCommands(packet);
+            lastSentAddress = lastSentResponses.isEmpty() ? -1 : packet.getAddress();
+            lastSentAcknowledged = false;
+
+            queueProcessingTask = getExecutorService().schedule(this::doSendPacket, sendDelayMillis);
+        }
+
+        // Don't hold the lock while sending, the message processor may deliver answers on this thread
+        VelbusPacket.OutboundCommand command = VelbusPacket.OutboundCommand.fromCode(packet.getCommand());
+        LOG.finest("Sending packet " + command + " : " + packet);
+        messageProcessor.sendMessage(packet);
+    }
+
+    /**
+     * Takes the next packet from the write being sent or from the lane with the highest priority.
+     */
+    protected synchronized VelbusPacket pollPacket() {
+        if (!sendingPackets.isEmpty()) {
+            return sendingPackets.poll();
+        }
+
+        for (SendPriority priority : SendPriority.values()) {
+            Deque<Object> sendQueue = sendQueues.get(priority);
+            Object queued;
+
+            while ((queued = sendQueue.poll()) != null) {
+                if (!(queued instanceof QueuedWrite)) {
+                    return (VelbusPacket) queued;
+                }
+
+                QueuedWrite queuedWrite = (QueuedWrite) queued;
+                // Later writes of this property must be queued again
+                if (queuedWrite.key != null) {
+                    queuedWrites.remove(queuedWrite.key);
+                }
+                sendingPackets.addAll(Arrays.asList(queuedWrite.packets));
+
+                if (!sendingPackets.isEmpty()) {
+                    return sendingPackets.poll();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    protected synchronized void clearSendQueues() {
+        sendQueues.values().forEach(Deque::clear);
+        queuedWrites.clear();
+        sendingPackets.clear();
+        sendDelayMillis = DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS;
+        lastSentAddress = -1;
+        lastSentResponses = Collections.emptySet();
+        busPausedUntil = 0;
+    }
+
+    /**
+     * An answer of the module addressed by the last sent packet means the bus keeps up, so the delay can shrink.
+     * Modules also broadcast packets on their own, e.g. button presses, those are not answers.
+     */
+    protected synchronized void onPacketAcknowledged(VelbusPacket packet) {
+        if (packet.getAddress() != lastSentAddress || lastSentAcknowledged) {
+            return;
+        }
+
+        VelbusPacket.InboundCommand command = VelbusPacket.InboundCommand.fromCode(packet.getCommand());
+        if (!lastSentResponses.contains(command)) {
+            return;
+        }
+
+        lastSentAcknowledged = true;
+        int minDelay = Math.min(MIN_DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS, DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS);
+        sendDelayMillis = Math.max(minDelay, sendDelayMillis * 3 / 4);
+    }
+
+    /**
+     * @return The commands of the packets a module answers the packet with, empty if no answer is expected.
+     */
+    protected static Set<VelbusPacket.InboundCommand> getResponseCommands(VelbusPacket packet) {
+        if (packet.getRtr()) {
+            return EnumSet.of(VelbusPacket.InboundCommand.MODULE_TYPE);
+        }
+
+        switch (VelbusPacket.OutboundCommand.fromCode(packet.getCommand())) {
+            case MODULE_STATUS:
+                return EnumSet.of(
+                    VelbusPacket.InboundCommand.MODULE_STATUS,
+                    VelbusPacket.InboundCommand.RELAY_STATUS,
+                    VelbusPacket.InboundCommand.DIMMER_STATUS,
+                    VelbusPacket.InboundCommand.DIMMER_LEVEL_STATUS,
+                    VelbusPacket.InboundCommand.OUT_LEVEL_STATUS,
+                    VelbusPacket.InboundCommand.BLIND_STATUS,
+                    VelbusPacket.InboundCommand.SENSOR_STATUS,
+                    VelbusPacket.InboundCommand.LED_STATUS
+                );
+            case READ_MEMORY:
+            case WRITE_MEMORY:
+                return EnumSet.of(VelbusPacket.InboundCommand.MEMORY_DATA);
+            case READ_MEMORY_BLOCK:
+                return EnumSet.of(VelbusPacket.InboundCommand.MEMORY_BLOCK_DUMP);
+            case SENSOR_SETTINGS:
+                return EnumSet.of(VelbusPacket.InboundCommand.TEMP_SETTINGS1, VelbusPacket.InboundCommand.TEMP_SETTINGS2);
+            case SENSOR_READOUT:
+                return EnumSet.of(
+                    VelbusPacket.InboundCommand.CURRENT_TEMP_STATUS,
+                    VelbusPacket.InboundCommand.RAW_SENSOR_STATUS,
+                    VelbusPacket.InboundCommand.RAW_SENSOR_TEXT_STATUS
+                );
+            case COUNTER_STATUS:
+                return EnumSet.of(VelbusPacket.InboundCommand.COUNTER_STATUS);
+            default:
+                return Collections.emptySet();
+        }
+    }
+
+    protected synchronized void onBusStatusReceived(VelbusPacket packet) {
+        VelbusPacket.InboundCommand command = VelbusPacket.InboundCommand.fromCode(packet.getCommand());
+
+        switch (command) {
+            case RX_BUFFER_FULL:
+            case BUS_OFF:
+                // Back off, the pause ends when the interface is ready again or after the maximum delay
+                LOG.fine("Bus interface signals " + command + ", pausing packet writes");
+                sendDelayMillis = Math.min(MAX_DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS, Math.max(sendDelayMillis * 2, DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS));
+                busPausedUntil = System.currentTimeMillis() + MAX_DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS;
+                break;
+            case RX_READY:
+            case BUS_ACTIVE:
+                LOG.fine("Bus interface signals " + command + ", resuming packet writes");
+                busPausedUntil = 0;
+                break;
         }
     }
 
@@ -293,6 +543,6 @@ public class VelbusNetwork {
     }
 
     protected void doTimeInjection() {
-        sendPackets(VelbusDevice.createTimeInjectionPackets());
+        sendPackets(SendPriority.BACKGROUND, VelbusDevice.createTimeInjectionPackets());
     }
 }
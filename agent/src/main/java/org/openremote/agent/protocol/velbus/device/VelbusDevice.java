@@ -218,7 +218,7 @@ public class VelbusDevice {
             for (FeatureProcessor processor : featureProcessors) {
                 List<VelbusPacket> packets = processor.getPropertyWritePackets(this, property, value);
                 if (packets != null) {
-                    velbusNetwork.sendPackets(packets.toArray(new VelbusPacket[packets.size()]));
+                    velbusNetwork.sendWritePackets(baseAddress, property, packets.toArray(new VelbusPacket[packets.size()]));
                     break;
                 }
             }
@@ -20,14 +20,28 @@
 package org.openremote.container.concurrent;
 
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.FINEST;
 
 /**
- * A global reentrant exclusive lock, use convenience methods {@link #withLock} and {@link #withLockReturning}.
+ * A global reentrant read/write lock, use convenience methods {@link #withLock} and {@link #withLockReturning} for
+ * exclusive access and {@link #withReadLock} and {@link #withReadLockReturning} for shared access.
+ * <p>
+ * The exclusive lock guards changes of the system topology (protocol configurations, linked attributes, deployed
+ * rulesets etc.). The hot paths that only read this topology, such as processing of attribute events, obtain the
+ * shared lock and must guard any finer grained state with a {@link StripedLock}.
+ * <p>
+ * Both locks are reentrant and a thread holding the exclusive lock can also obtain the shared lock. A thread holding
+ * only the shared lock can not obtain the exclusive lock, this fails immediately with {@link IllegalStateException}
+ * instead of deadlocking: code that might change the topology must obtain the exclusive lock before it calls code
+ * obtaining the shared lock.
+ * <p>
+ * If the waiting thread is interrupted, the guarded code is not executed, the lock methods return <code>null</code>
+ * and the interrupt status of the thread is restored.
  */
 public class GlobalLock {
 
@@ -36,11 +50,11 @@ public class GlobalLock {
     /**
      * At least getOwner() is protected and not private...
      */
-    static class CustomReentrantLock extends ReentrantLock {
+    static class CustomReentrantReadWriteLock extends ReentrantReadWriteLock {
 
-        String info;
+        volatile String info;
 
-        public CustomReentrantLock() {
+        public CustomReentrantReadWriteLock() {
             super(true);
         }
 
@@ -49,42 +63,30 @@ public class GlobalLock {
             if ((lockOwner = super.getOwner()) != null) {
                 return lockOwner.getName() + " executing " + info;
             }
-            return "Unknown executing " + info;
-        }
-
-        public boolean tryLock(String info, long timeout, TimeUnit unit) throws InterruptedException {
-            boolean result = super.tryLock(timeout, unit);
-            if (result) {
-                this.info = info;
-            }
-            return result;
-        }
-
-        @Override
-        public void unlock() {
-            super.unlock();
-            info = null;
+            return "Unknown executing " + info + " (shared holders: " + getReadLockCount() + ")";
         }
     }
 
     // Provides exclusive access to shared state
-    static protected final CustomReentrantLock lock = new CustomReentrantLock();
+    static protected final CustomReentrantReadWriteLock lock = new CustomReentrantReadWriteLock();
 
     protected GlobalLock() {
     }
 
     /**
-     * @return Defaults to 10 seconds.
+     * @return Defaults to 30 seconds.
      */
     static public int getLockTimeoutMillis() {
         return 30000;
     }
 
     /**
-     * Obtain the lock within {@link #getLockTimeoutMillis()} or throw {@link IllegalStateException}.
+     * Obtain the exclusive lock within {@link #getLockTimeoutMillis()} or throw {@link IllegalStateException}.
      *
      * @param info     An informal text that is printed in log messages.
      * @param runnable The guarded code to execute while holding the lock.
+     * @throws IllegalStateException If the lock can't be obtained in time or the current thread holds only the
+     *                               shared lock.
      */
     static public void withLock(String info, Runnable runnable) {
         withLockReturning(info, () -> {
@@ -94,23 +96,64 @@ public class GlobalLock {
     }
 
     /**
-     * Obtain the lock within {@link #getLockTimeoutMillis()} or throw {@link IllegalStateException}.
+     * Obtain the exclusive lock within {@link #getLockTimeoutMillis()} or throw {@link IllegalStateException}.
      *
      * @param info     An informal text that is printed in log messages.
      * @param supplier The guarded code to execute while holding the lock.
+     * @throws IllegalStateException If the lock can't be obtained in time or the current thread holds only the
+     *                               shared lock.
      */
     static public <R> R withLockReturning(String info, Supplier<R> supplier) {
+        if (isOnlySharedLockHeldByCurrentThread()) {
+            throw new IllegalStateException(
+                "Can't upgrade shared to exclusive lock, this would deadlock: " + info
+            );
+        }
+        return withLockReturning(lock.writeLock(), info, supplier);
+    }
+
+    /**
+     * Obtain the shared lock within {@link #getLockTimeoutMillis()} or throw {@link IllegalStateException}.
+     *
+     * @param info     An informal text that is printed in log messages.
+     * @param runnable The guarded code to execute while holding the lock.
+     */
+    static public void withReadLock(String info, Runnable runnable) {
+        withReadLockReturning(info, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Obtain the shared lock within {@link #getLockTimeoutMillis()} or throw {@link IllegalStateException}.
+     *
+     * @param info     An informal text that is printed in log messages.
+     * @param supplier The guarded code to execute while holding the lock.
+     */
+    static public <R> R withReadLockReturning(String info, Supplier<R> supplier) {
+        return withLockReturning(lock.readLock(), info, supplier);
+    }
+
+    static protected <R> R withLockReturning(Lock guard, String info, Supplier<R> supplier) {
+        boolean exclusive = guard == lock.writeLock();
         try {
-            if (lock.tryLock(info, getLockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
-                LOG.finest("+ Acquired lock (count: " + lock.getHoldCount() + "): " + info);
+            if (guard.tryLock(getLockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                if (exclusive) {
+                    lock.info = info;
+                }
+                LOG.finest("+ Acquired " + (exclusive ? "exclusive" : "shared") + " lock (count: " + getHoldCount(exclusive) + "): " + info);
                 try {
                     return supplier.get();
                 } finally {
-                    LOG.finest("- Releasing lock (count: " + lock.getHoldCount() + "): " + info);
-                    if (!lock.isHeldByCurrentThread()) {
+                    LOG.finest("- Releasing " + (exclusive ? "exclusive" : "shared") + " lock (count: " + getHoldCount(exclusive) + "): " + info);
+                    if (getHoldCount(exclusive) == 0) {
                         LOG.severe("Lock is held by another thread, ensure the same thread acquires and releases the lock!");
                     } else {
-                        lock.unlock();
+                        guard.unlock();
+                        if (exclusive && lock.getWriteHoldCount() == 0) {
+                            lock.info = null;
+                        }
                     }
                 }
             } else {
@@ -120,7 +163,20 @@ public class GlobalLock {
             }
         } catch (InterruptedException ex) {
             LOG.log(FINEST, "Interrupted while waiting for lock: " + info);
+            Thread.currentThread().interrupt();
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * @return <code>true</code> if the current thread holds the shared but not the exclusive lock and therefore can't
+     * obtain the exclusive lock.
+     */
+    static public boolean isOnlySharedLockHeldByCurrentThread() {
+        return lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread();
+    }
+
+    static protected int getHoldCount(boolean exclusive) {
+        return exclusive ? lock.getWriteHoldCount() : lock.getReadHoldCount();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINEST;
+
+/**
+ * A fixed set of reentrant exclusive locks, a key (e.g. an asset identifier) is always mapped to the same lock
+ * stripe. Work on different keys can therefore run concurrently while work on the same key is serialized. Use
+ * the convenience methods {@link #withLock} and {@link #withLockReturning}, the lock timeout is the same as
+ * {@link GlobalLock#getLockTimeoutMillis()}.
+ * <p>
+ * Different keys can map to the same stripe, never obtain the lock of one key while holding the lock of another
+ * key, this might deadlock. If the waiting thread is interrupted, the guarded code is not executed, the lock methods
+ * return <code>null</code> and the interrupt status of the thread is restored.
+ */
+public class StripedLock {
+
+    private static final Logger LOG = Logger.getLogger(StripedLock.class.getName());
+
+    public static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors() * 4;
+
+    static class Stripe extends ReentrantLock {
+
+        volatile String info;
+
+        public Stripe() {
+            super(true);
+        }
+
+        String owner() {
+            Thread lockOwner;
+            if ((lockOwner = super.getOwner()) != null) {
+                return lockOwner.getName() + " executing " + info;
+            }
+            return "Unknown executing " + info;
+        }
+    }
+
+    final protected String name;
+    final protected Stripe[] stripes;
+
+    public StripedLock(String name) {
+        this(name, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes Will be rounded up to the next power of two.
+     */
+    public StripedLock(String name, int stripes) {
+        this.name = name;
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Obtain the lock for the key within {@link GlobalLock#getLockTimeoutMillis()} or throw {@link
+     * IllegalStateException}.
+     *
+     * @param key      The key of the guarded state, <code>null</code> is a valid key.
+     * @param info     An informal text that is printed in log messages.
+     * @param runnable The guarded code to execute while holding the lock.
+     */
+    public void withLock(Object key, String info, Runnable runnable) {
+        withLockReturning(key, info, () -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Obtain the lock for the key within {@link GlobalLock#getLockTimeoutMillis()} or throw {@link
+     * IllegalStateException}.
+     *
+     * @param key      The key of the guarded state, <code>null</code> is a valid key.
+     * @param info     An informal text that is printed in log messages.
+     * @param supplier The guarded code to execute while holding the lock.
+     */
+    public <R> R withLockReturning(Object key, String info, Supplier<R> supplier) {
+        Stripe stripe = stripes[getStripeIndex(key)];
+        try {
+            if (stripe.tryLock(GlobalLock.getLockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                stripe.info = info;
+                LOG.finest("+ Acquired " + name + " lock (count: " + stripe.getHoldCount() + "): " + info);
+                try {
+                    return supplier.get();
+                } finally {
+                    LOG.finest("- Releasing " + name + " lock (count: " + stripe.getHoldCount() + "): " + info);
+                    if (!stripe.isHeldByCurrentThread()) {
+                        LOG.severe("Lock is held by another thread, ensure the same thread acquires and releases the lock!");
+                    } else {
+                        stripe.unlock();
+                        if (stripe.getHoldCount() == 0) {
+                            stripe.info = null;
+                        }
+                    }
+                }
+            } else {
+                throw new IllegalStateException(
+                    "Could not acquire " + name + " lock owned by " + stripe.owner() + " after waiting " + GlobalLock.getLockTimeoutMillis() + "ms: " + info
+                );
+            }
+        } catch (InterruptedException ex) {
+            LOG.log(FINEST, "Interrupted while waiting for " + name + " lock: " + info);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    protected int getStripeIndex(Object key) {
+        if (key == null) {
+            return 0;
+        }
+        // Spread the higher bits, the same as HashMap
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (stripes.length - 1);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "name='" + name + '\'' +
+            ", stripes=" + stripes.length +
+            '}';
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.container.json;
+
+import com.fasterxml.jackson.core.*;
+import org.openremote.model.value.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Reads and writes {@link Value}s directly from a {@link JsonParser} and to a {@link JsonGenerator}, without
+ * intermediate JSON strings or trees.
+ * <p>
+ * The JSON is the same as with {@link Value#toJson()} and {@link Values#parse}: all numbers are doubles, integral
+ * numbers nested in objects and arrays are written without fraction, non-finite numbers are written as
+ * <code>null</code>, and <code>null</code> elements of arrays and objects are preserved. Object keys are written
+ * in the same order as the value visitor does, numeric keys first.
+ */
+public class ValueCodec {
+
+    // Bounds recursion, the value visitor detects cycles instead
+    public static final int MAX_DEPTH = 1000;
+
+    protected static final JsonFactory JSON_FACTORY = new JsonFactory()
+        .enable(JsonParser.Feature.ALLOW_SINGLE_QUOTES)
+        .enable(JsonParser.Feature.ALLOW_UNQUOTED_FIELD_NAMES);
+
+    protected ValueCodec() {
+    }
+
+    /**
+     * Parses UTF-8 encoded JSON without decoding it into a string first.
+     *
+     * @return The value, empty if the JSON is empty or <code>null</code>.
+     */
+    public static <T extends Value> Optional<T> parse(byte[] json) throws IOException {
+        if (json == null || json.length == 0)
+            return Optional.empty();
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            return parse(parser);
+        }
+    }
+
+    /**
+     * @return The value, empty if the JSON is empty or <code>null</code>.
+     */
+    public static <T extends Value> Optional<T> parse(String json) throws IOException {
+        if (json == null || json.isEmpty())
+            return Optional.empty();
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            return parse(parser);
+        }
+    }
+
+    /**
+     * Extracts the value at the path from JSON text, without parsing the rest of the document into a value. A path
+     * segment of digits selects an array element, other segments select an object member. Other members and elements
+     * are skipped. If an object has duplicate keys, the last one is selected, same as when the document is parsed
+     * into an {@link ObjectValue}.
+     *
+     * @return The value, empty if the document isn't an object or the path doesn't exist.
+     */
+    public static Optional<Value> extract(String json, List<String> path) throws IOException {
+        if (json == null || json.isEmpty() || path == null || path.isEmpty())
+            return Optional.empty();
+        for (String segment : path) {
+            if (segment == null || segment.isEmpty())
+                return Optional.empty();
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            // The root must be an object, same as when the whole document is converted to an object value
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                return Optional.empty();
+            return Optional.ofNullable(extract(parser, path, 0));
+        }
+    }
+
+    /**
+     * Reads the value at the path from the value starting at the current token of the parser, the parser is left on
+     * the last token of the value.
+     */
+    protected static Value extract(JsonParser parser, List<String> path, int pathIndex) throws IOException {
+        if (pathIndex == path.size())
+            return read(parser);
+
+        String segment = path.get(pathIndex);
+        JsonToken token = parser.getCurrentToken();
+        Value value = null;
+
+        if (isNumeric(segment)) {
+            if (token != JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                return null;
+            }
+            int index = Integer.parseInt(segment);
+            for (int i = 0; parser.nextToken() != JsonToken.END_ARRAY; i++) {
+                if (i == index) {
+                    value = extract(parser, path, pathIndex + 1);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } else {
+            if (token != JsonToken.START_OBJECT) {
+                parser.skipChildren();
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                boolean matches = segment.equals(parser.getCurrentName());
+                parser.nextToken();
+                if (matches) {
+                    // A later duplicate key replaces the value
+                    value = extract(parser, path, pathIndex + 1);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <T extends Value> Optional<T> parse(JsonParser parser) throws IOException {
+        if (parser.nextToken() == null)
+            return Optional.empty();
+        return Optional.ofNullable((T) read(parser));
+    }
+
+    /**
+     * Reads the value starting at the current token of the parser, the parser is left on the last token of
+     * the value.
+     *
+     * @return The value, or <code>null</code> for a JSON <code>null</code>.
+     */
+    public static Value read(JsonParser parser) throws IOException {
+        return read(parser, 0);
+    }
+
+    protected static Value read(JsonParser parser, int depth) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == null)
+            throw new JsonParseException(parser, "Unexpected end of JSON input");
+
+        switch (token) {
+            case START_OBJECT:
+                checkDepth(parser, depth);
+                ObjectValue objectValue = Values.createObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    objectValue.put(key, read(parser, depth + 1));
+                }
+                return objectValue;
+            case START_ARRAY:
+                checkDepth(parser, depth);
+                ArrayValue arrayValue = Values.createArray();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    arrayValue.add(read(parser, depth + 1));
+                }
+                return arrayValue;
+            case VALUE_STRING:
+                return Values.create(parser.getText());
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return Values.create(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return Values.create(true);
+            case VALUE_FALSE:
+                return Values.create(false);
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException(parser, "Unexpected token: " + token);
+        }
+    }
+
+    /**
+     * @return The JSON of the value as UTF-8 bytes.
+     */
+    public static byte[] writeBytes(Value value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            write(value, generator);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the value, or <code>null</code>, to the generator.
+     */
+    public static void write(Value value, JsonGenerator generator) throws IOException {
+        if (value != null && value.getType() == ValueType.NUMBER) {
+            // A number on its own keeps its fraction, see NumberValueImpl#toJson
+            double number = ((NumberValue) value).getNumber();
+            if (Double.isInfinite(number) || Double.isNaN(number)) {
+                generator.writeNull();
+            } else {
+                generator.writeNumber(number);
+            }
+            return;
+        }
+        write(value, generator, 0);
+    }
+
+    protected static void write(Value value, JsonGenerator generator, int depth) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+        switch (value.getType()) {
+            case OBJECT:
+                checkDepth(generator, depth);
+                ObjectValue objectValue = (ObjectValue) value;
+                generator.writeStartObject();
+                for (String key : getKeysInOrder(objectValue.keys())) {
+                    if (key.isEmpty() || "$H".equals(key) || "__gwt_ObjectId".equals(key))
+                        continue;
+                    generator.writeFieldName(key);
+                    write(objectValue.get(key).orElse(null), generator, depth + 1);
+                }
+                generator.writeEndObject();
+                break;
+            case ARRAY:
+                checkDepth(generator, depth);
+                ArrayValue arrayValue = (ArrayValue) value;
+                generator.writeStartArray();
+                for (int i = 0; i < arrayValue.length(); i++) {
+                    write(arrayValue.get(i).orElse(null), generator, depth + 1);
+                }
+                generator.writeEndArray();
+                break;
+            case STRING:
+                generator.writeString(((StringValue) value).getString());
+                break;
+            case NUMBER:
+                writeNumber(((NumberValue) value).getNumber(), generator);
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(((BooleanValue) value).getBoolean());
+                break;
+        }
+    }
+
+    protected static void writeNumber(double number, JsonGenerator generator) throws IOException {
+        if (Double.isInfinite(number) || Double.isNaN(number)) {
+            generator.writeNull();
+        } else if (number == Math.rint(number) && Math.abs(number) < 1e7) {
+            // Same as the value visitor, which strips ".0" from the Java representation (below 10^7, without exponent)
+            generator.writeNumber((long) number);
+        } else {
+            generator.writeNumber(number);
+        }
+    }
+
+    /**
+     * Numeric keys sorted as strings first, then all other keys in insertion order.
+     */
+    protected static List<String> getKeysInOrder(String[] keys) {
+        List<String> numeric = null;
+        for (String key : keys) {
+            if (isNumeric(key)) {
+                if (numeric == null) {
+                    numeric = new ArrayList<>();
+                }
+                numeric.add(key);
+            }
+        }
+        if (numeric == null) {
+            List<String> result = new ArrayList<>(keys.length);
+            Collections.addAll(result, keys);
+            return result;
+        }
+        Collections.sort(numeric);
+        for (String key : keys) {
+            if (!isNumeric(key)) {
+                numeric.add(key);
+            }
+        }
+        return numeric;
+    }
+
+    protected static boolean isNumeric(String key) {
+        if (key.isEmpty())
+            return false;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        return true;
+    }
+
+    protected static void checkDepth(JsonParser parser, int depth) throws JsonParseException {
+        if (depth > MAX_DEPTH)
+            throw new JsonParseException(parser, "Value nesting too deep: " + depth);
+    }
+
+    protected static void checkDepth(JsonGenerator generator, int depth) throws JsonGenerationException {
+        if (depth > MAX_DEPTH)
+            throw new JsonGenerationException("Value nesting too deep, cycle detected: " + depth, generator);
+    }
+}
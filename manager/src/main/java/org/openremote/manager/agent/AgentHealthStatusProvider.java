@@ -19,6 +19,7 @@
  */
 package org.openremote.manager.agent;
 
+import org.openremote.agent.protocol.ProtocolExecutorService;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
 import org.openremote.model.asset.Asset;
@@ -39,10 +40,12 @@ public class AgentHealthStatusProvider implements HealthStatusProvider, Containe
     public static final String NAME = "agents";
     public static final String VERSION = "1.0";
     protected AgentService agentService;
+    protected ProtocolExecutorService protocolExecutorService;
 
     @Override
     public void init(Container container) throws Exception {
         agentService = container.getService(AgentService.class);
+        protocolExecutorService = container.getService(ProtocolExecutorService.class);
     }
 
     @Override
@@ -155,6 +158,7 @@ public class AgentHealthStatusProvider implements HealthStatusProvider, Containe
         objectValue.put("disabledProtocolConfigs", disabledCount.get());
         objectValue.put("otherProtocolConfigs", otherCount.get());
         objectValue.put("linkedAttributes", agentService.linkedAttributes.values().stream().mapToInt(List::size).sum());
+        objectValue.put("nettyEventLoops", protocolExecutorService.getNettyEventLoops().toObjectValue());
 
         return objectValue;
     }
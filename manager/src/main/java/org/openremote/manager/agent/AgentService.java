@@ -59,10 +59,11 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.apache.camel.builder.PredicateBuilder.or;
 import static org.openremote.agent.protocol.Protocol.ACTUATOR_TOPIC;
 import static org.openremote.agent.protocol.Protocol.SENSOR_QUEUE;
 import static org.openremote.container.concurrent.GlobalLock.withLock;
-import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
+import static org.openremote.container.concurrent.GlobalLock.withReadLockReturning;
 import static org.openremote.container.persistence.PersistenceEvent.*;
 import static org.openremote.manager.asset.AssetProcessingService.ASSET_QUEUE;
 import static org.openremote.model.AbstractValueTimestampHolder.VALUE_TIMESTAMP_FIELD_NAME;
@@ -95,7 +96,7 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
     protected final Map<String, Protocol> protocols = new HashMap<>();
     protected final Map<AttributeRef, List<AttributeRef>> linkedAttributes = new HashMap<>();
     protected LocalAgentConnector localAgentConnector;
-    protected Map<String, Asset> agentMap;
+    protected volatile Map<String, Asset> agentMap;
 
 
     @Override
@@ -182,7 +183,7 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
         // A protocol wants to write a new sensor value
         from(SENSOR_QUEUE)
             .routeId("FromSensorUpdates")
-            .filter(body().isInstanceOf(AttributeEvent.class))
+            .filter(or(body().isInstanceOf(AttributeEvent.class), body().isInstanceOf(List.class)))
             .setHeader(HEADER_SOURCE, () -> SENSOR)
             .to(ASSET_QUEUE);
     }
@@ -552,7 +553,7 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
     }
 
     public ConnectionStatus getProtocolConnectionStatus(AttributeRef protocolRef) {
-        return withLockReturning(getClass().getSimpleName() + "::getProtocolConnectionStatus", () ->
+        return withReadLockReturning(getClass().getSimpleName() + "::getProtocolConnectionStatus", () ->
             Optional.ofNullable(protocolConfigurations.get(protocolRef))
                 .map(pair -> pair.value)
                 .orElse(null));
@@ -643,7 +644,7 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
             return false;
         }
 
-        Boolean result = withLockReturning(getClass().getSimpleName() + "::processAssetUpdate", () ->
+        Boolean result = withReadLockReturning(getClass().getSimpleName() + "::processAssetUpdate", () ->
             AgentLink.getAgentLink(attribute)
                 .map(ref ->
                     getProtocolConfiguration(ref)
@@ -708,7 +709,7 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
     }
 
     public Optional<AssetAttribute> getProtocolConfiguration(AttributeRef protocolRef) {
-        return withLockReturning(getClass().getSimpleName() + "::getProtocolConfiguration", () -> {
+        return withReadLockReturning(getClass().getSimpleName() + "::getProtocolConfiguration", () -> {
             Pair<AssetAttribute, ConnectionStatus> deploymentStatusPair = protocolConfigurations.get(protocolRef);
             return deploymentStatusPair == null ? Optional.empty() : Optional.of(deploymentStatusPair.key);
         });
@@ -732,13 +733,18 @@ public class AgentService extends RouteBuilder implements ContainerService, Asse
     }
 
     public Map<String, Asset> getAgents() {
-        return withLockReturning(getClass().getSimpleName() + "::getAgents", () -> {
+        return withReadLockReturning(getClass().getSimpleName() + "::getAgents", () -> {
+            // Loaded by the first reader, afterwards only changed while holding the exclusive lock
             if (agentMap == null) {
-                agentMap = assetStorageService.findAll(new AssetQuery()
-                    .select(new AssetQuery.Select(AssetQuery.Include.ALL))
-                    .type(AssetType.AGENT))
-                    .stream()
-                    .collect(Collectors.toMap(Asset::getId, agent -> agent));
+                synchronized (this) {
+                    if (agentMap == null) {
+                        agentMap = assetStorageService.findAll(new AssetQuery()
+                            .select(new AssetQuery.Select(AssetQuery.Include.ALL))
+                            .type(AssetType.AGENT))
+                            .stream()
+                            .collect(Collectors.toMap(Asset::getId, agent -> agent));
+                    }
+                }
             }
             return agentMap;
         });
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.value.Value;
+import org.postgresql.util.PGobject;
+
+import java.sql.PreparedStatement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers attribute values in memory and writes them in batches, instead of updating the asset row for every
+ * attribute event. Values of the same attribute are merged while pending, only the latest value is written. All
+ * pending values of an asset are written with a single multi-path <code>jsonb_set</code> update, all updates of a
+ * flush are executed as one JDBC batch in one transaction.
+ * <p>
+ * The number of pending values is bounded, when the limit is reached new values are rejected until the next flush,
+ * values of attributes that are already pending are still merged. Values of a failed flush are queued again as long
+ * as the limit allows, the rest is dropped. Pending values are not visible to SQL predicates on attribute values,
+ * but they are applied to the loaded attributes of every asset query projection that includes attribute values.
+ * Readers load and apply under the {@link #getReadLock read lock}, written values stay in flight until readers
+ * that might have loaded the asset before the commit are done.
+ */
+public class AssetAttributeWriteBehind {
+
+    private static final Logger LOG = Logger.getLogger(AssetAttributeWriteBehind.class.getName());
+
+    protected static class PendingValue {
+        final Value value;
+        final long timestamp;
+
+        PendingValue(Value value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    final protected PersistenceService persistenceService;
+    final protected int maxPending;
+
+    // Per asset an immutable map of attribute name to value, replaced on every write
+    final protected Map<String, Map<String, PendingValue>> pending = new ConcurrentHashMap<>();
+    // Values taken from the pending map by the current flush, still visible to readers until written
+    final protected Map<String, Map<String, PendingValue>> inFlight = new ConcurrentHashMap<>();
+    final protected AtomicInteger pendingCount = new AtomicInteger();
+    final protected ReadWriteLock inFlightLock = new ReentrantReadWriteLock();
+
+    final protected AtomicLong valuesQueued = new AtomicLong();
+    final protected AtomicLong valuesMerged = new AtomicLong();
+    final protected AtomicLong valuesWritten = new AtomicLong();
+    final protected AtomicLong rowsWritten = new AtomicLong();
+    final protected AtomicLong batchesWritten = new AtomicLong();
+    final protected AtomicLong flushFailures = new AtomicLong();
+    final protected AtomicLong valuesRejected = new AtomicLong();
+    final protected AtomicLong valuesDropped = new AtomicLong();
+
+    public AssetAttributeWriteBehind(PersistenceService persistenceService, int maxPending) {
+        this.persistenceService = persistenceService;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return <code>false</code> if the value was rejected because too many values are pending.
+     */
+    public boolean queue(String assetId, String attributeName, Value value, long timestamp) {
+        boolean[] queued = new boolean[1];
+        pending.compute(assetId, (id, values) -> {
+            boolean merged = values != null && values.containsKey(attributeName);
+            if (!merged && pendingCount.get() >= maxPending) {
+                return values;
+            }
+            Map<String, PendingValue> updated = values != null ? new HashMap<>(values) : new HashMap<>();
+            updated.put(attributeName, new PendingValue(value, timestamp));
+            if (merged) {
+                valuesMerged.incrementAndGet();
+            } else {
+                pendingCount.incrementAndGet();
+            }
+            queued[0] = true;
+            return updated;
+        });
+
+        if (!queued[0]) {
+            valuesRejected.incrementAndGet();
+            LOG.fine("Too many pending attribute values, rejecting value of asset '" + assetId + "' attribute: " + attributeName);
+            return false;
+        }
+        valuesQueued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Readers must hold this lock while they load assets and {@link #apply} pending values, so values written
+     * concurrently are not lost between the query and applying them.
+     */
+    public Lock getReadLock() {
+        return inFlightLock.readLock();
+    }
+
+    /**
+     * Apply pending values to the attributes of the given asset, if the asset was loaded with attributes.
+     */
+    public void apply(Asset asset) {
+        if (asset == null || asset.getId() == null || asset.getAttributes() == null)
+            return;
+        // Read pending before in-flight, a flush moves values from pending to in-flight
+        Map<String, PendingValue> pendingValues = pending.get(asset.getId());
+        Map<String, PendingValue> inFlightValues = inFlight.get(asset.getId());
+        if (inFlightValues != null) {
+            apply(asset, inFlightValues);
+        }
+        if (pendingValues != null) {
+            apply(asset, pendingValues);
+        }
+    }
+
+    /**
+     * Write the pending values of a single asset now, e.g. before the asset is merged.
+     */
+    public void flush(String assetId) {
+        if (assetId == null || !pending.containsKey(assetId))
+            return;
+        synchronized (this) {
+            Map<String, Map<String, PendingValue>> batch = new HashMap<>();
+            drain(assetId, batch);
+            write(batch);
+        }
+    }
+
+    /**
+     * Write all pending values.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty())
+            return;
+        Map<String, Map<String, PendingValue>> batch = new HashMap<>();
+        for (String assetId : new ArrayList<>(pending.keySet())) {
+            drain(assetId, batch);
+        }
+        write(batch);
+    }
+
+    /**
+     * Discard the pending values of an asset, e.g. when the asset is deleted.
+     */
+    public void discard(String assetId) {
+        Map<String, PendingValue> values = pending.remove(assetId);
+        if (values != null) {
+            pendingCount.addAndGet(-values.size());
+        }
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getValuesQueued() {
+        return valuesQueued.get();
+    }
+
+    public long getValuesMerged() {
+        return valuesMerged.get();
+    }
+
+    public long getValuesWritten() {
+        return valuesWritten.get();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
+
+    public long getFlushFailures() {
+        return flushFailures.get();
+    }
+
+    public long getValuesRejected() {
+        return valuesRejected.get();
+    }
+
+    public long getValuesDropped() {
+        return valuesDropped.get();
+    }
+
+    protected void apply(Asset asset, Map<String, PendingValue> values) {
+        values.forEach((attributeName, pendingValue) ->
+            asset.getAttribute(attributeName).ifPresent(attribute -> {
+                attribute.setValue(pendingValue.value, pendingValue.timestamp);
+                asset.replaceAttribute(attribute);
+            })
+        );
+    }
+
+    protected void drain(String assetId, Map<String, Map<String, PendingValue>> batch) {
+        // Atomically move the values to in-flight so readers never miss them
+        pending.computeIfPresent(assetId, (id, values) -> {
+            inFlight.put(id, values);
+            batch.put(id, values);
+            pendingCount.addAndGet(-values.size());
+            return null;
+        });
+    }
+
+    protected void write(Map<String, Map<String, PendingValue>> batch) {
+        if (batch.isEmpty())
+            return;
+
+        // Assets with the same number of attribute values share a statement
+        Map<Integer, List<Map.Entry<String, Map<String, PendingValue>>>> byAttributeCount = new HashMap<>();
+        for (Map.Entry<String, Map<String, PendingValue>> entry : batch.entrySet()) {
+            byAttributeCount.computeIfAbsent(entry.getValue().size(), size -> new ArrayList<>()).add(entry);
+        }
+
+        try {
+            int rows = writeBatch(byAttributeCount);
+
+            int values = batch.values().stream().mapToInt(Map::size).sum();
+            valuesWritten.addAndGet(values);
+            rowsWritten.addAndGet(rows);
+            batchesWritten.incrementAndGet();
+            LOG.fine("Wrote " + values + " attribute values of " + batch.size() + " assets, updated rows: " + rows);
+        } catch (Exception ex) {
+            flushFailures.incrementAndGet();
+            LOG.log(Level.WARNING, "Writing pending attribute values failed, will retry: " + batch.size() + " assets", ex);
+            requeue(batch);
+        } finally {
+            // Wait for readers which might have loaded the assets before the commit
+            inFlightLock.writeLock().lock();
+            try {
+                batch.forEach(inFlight::remove);
+            } finally {
+                inFlightLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Executes the updates of the assets grouped by number of attribute values in one transaction.
+     *
+     * @return The number of updated rows.
+     */
+    protected int writeBatch(Map<Integer, List<Map.Entry<String, Map<String, PendingValue>>>> byAttributeCount) {
+        int[] rows = new int[1];
+        persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+            for (Map.Entry<Integer, List<Map.Entry<String, Map<String, PendingValue>>>> group : byAttributeCount.entrySet()) {
+                try (PreparedStatement statement = connection.prepareStatement(buildUpdate(group.getKey()))) {
+                    for (Map.Entry<String, Map<String, PendingValue>> asset : group.getValue()) {
+                        int index = 1;
+                        for (Map.Entry<String, PendingValue> attribute : asset.getValue().entrySet()) {
+                            statement.setArray(index++, connection.createArrayOf(
+                                "text", new String[]{attribute.getKey(), "value"}
+                            ));
+                            PGobject pgJsonValue = new PGobject();
+                            pgJsonValue.setType("jsonb");
+                            // Careful, do not set Java null (as returned by value.toJson()) here! It will erase your whole SQL column!
+                            pgJsonValue.setValue(attribute.getValue().value == null ? "null" : attribute.getValue().value.toJson());
+                            statement.setObject(index++, pgJsonValue);
+
+                            statement.setArray(index++, connection.createArrayOf(
+                                "text", new String[]{attribute.getKey(), "valueTimestamp"}
+                            ));
+                            PGobject pgJsonValueTimestamp = new PGobject();
+                            pgJsonValueTimestamp.setType("jsonb");
+                            pgJsonValueTimestamp.setValue(Long.toString(attribute.getValue().timestamp));
+                            statement.setObject(index++, pgJsonValueTimestamp);
+                        }
+                        statement.setString(index, asset.getKey());
+                        statement.addBatch();
+                    }
+                    for (int updated : statement.executeBatch()) {
+                        if (updated > 0)
+                            rows[0] += updated;
+                    }
+                }
+            }
+        }));
+        return rows[0];
+    }
+
+    protected void requeue(Map<String, Map<String, PendingValue>> batch) {
+        int[] dropped = new int[1];
+        // Values queued after the failed flush are newer and win, the failed values only as long as there is room
+        batch.forEach((assetId, failedValues) -> pending.compute(assetId, (id, values) -> {
+            Map<String, PendingValue> updated = values != null ? new HashMap<>(values) : new HashMap<>();
+            for (Map.Entry<String, PendingValue> entry : failedValues.entrySet()) {
+                if (updated.containsKey(entry.getKey()))
+                    continue;
+                if (pendingCount.get() >= maxPending) {
+                    dropped[0]++;
+                    continue;
+                }
+                updated.put(entry.getKey(), entry.getValue());
+                pendingCount.incrementAndGet();
+            }
+            return updated.isEmpty() ? null : updated;
+        }));
+        if (dropped[0] > 0) {
+            valuesDropped.addAndGet(dropped[0]);
+            LOG.warning("Too many pending attribute values, dropped values of failed write: " + dropped[0]);
+        }
+    }
+
+    protected String buildUpdate(int attributeCount) {
+        StringBuilder expression = new StringBuilder("ATTRIBUTES");
+        for (int i = 0; i < attributeCount; i++) {
+            expression.insert(0, "jsonb_set(jsonb_set(").append(", ?, ?, true), ?, ?, true)");
+        }
+        // A missing attribute is not created, jsonb_set doesn't create intermediate path elements
+        return "update ASSET set ATTRIBUTES = " + expression + " where ID = ?";
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "pending=" + pendingCount.get() +
+            ", maxPending=" + maxPending +
+            '}';
+    }
+}
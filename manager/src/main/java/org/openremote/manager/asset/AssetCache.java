@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.openremote.model.asset.Asset;
+import org.openremote.model.value.Value;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of complete assets (including path and attributes) by identifier, the least recently used
+ * assets are evicted. Cached instances are never handed out, callers always receive a copy they can modify.
+ * <p>
+ * Loads racing with a modification of the same asset (or with a structural change of the asset tree) are not
+ * cached, the generation of the key is compared before and after loading.
+ * <p>
+ * Attribute value updates are applied when the transaction that stored them was committed, see
+ * {@link #beginUpdate} and {@link #endUpdate}. While an update is pending, the asset is loaded without the cache,
+ * so the updating transaction sees its own changes and other readers never see uncommitted values.
+ */
+public class AssetCache {
+
+    protected static final int GENERATION_STRIPES = 1024;
+
+    final protected Cache<String, Asset> cache;
+    final protected AtomicLong structureGeneration = new AtomicLong();
+    final protected AtomicLongArray keyGenerations = new AtomicLongArray(GENERATION_STRIPES);
+    // The number of uncommitted updates of each asset
+    final protected Map<String, Integer> pendingUpdates = new ConcurrentHashMap<>();
+
+    public AssetCache(int maximumSize) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build();
+    }
+
+    /**
+     * @return A copy of the cached asset, or the asset provided by the loader, <code>null</code> if not found.
+     */
+    public Asset get(String assetId, Supplier<Asset> loader) {
+        if (pendingUpdates.containsKey(assetId))
+            return loader.get();
+
+        Asset cached = cache.getIfPresent(assetId);
+        if (cached != null)
+            return copy(cached);
+
+        long structure = structureGeneration.get();
+        int stripe = getGenerationStripe(assetId);
+        long key = keyGenerations.get(stripe);
+
+        Asset asset = loader.get();
+        if (asset != null && structureGeneration.get() == structure && keyGenerations.get(stripe) == key
+            && !pendingUpdates.containsKey(assetId)) {
+            cache.put(assetId, copy(asset));
+        }
+        return asset;
+    }
+
+    /**
+     * An update of the asset is being stored in a transaction, until {@link #endUpdate} the asset is not served from
+     * or loaded into the cache.
+     */
+    public void beginUpdate(String assetId) {
+        pendingUpdates.merge(assetId, 1, Integer::sum);
+        keyGenerations.incrementAndGet(getGenerationStripe(assetId));
+    }
+
+    /**
+     * The transaction of an update started with {@link #beginUpdate} was completed, the cached asset must have
+     * been updated or invalidated before.
+     */
+    public void endUpdate(String assetId) {
+        pendingUpdates.computeIfPresent(assetId, (id, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public void updateAttributeValue(String assetId, String attributeName, Value value, long timestamp) {
+        keyGenerations.incrementAndGet(getGenerationStripe(assetId));
+        cache.asMap().computeIfPresent(assetId, (id, cached) -> {
+            Asset updated = copy(cached);
+            updated.getAttribute(attributeName).ifPresent(attribute -> {
+                attribute.setValue(value, timestamp);
+                updated.replaceAttribute(attribute);
+            });
+            return updated;
+        });
+    }
+
+    public void invalidate(String assetId) {
+        keyGenerations.incrementAndGet(getGenerationStripe(assetId));
+        cache.invalidate(assetId);
+    }
+
+    /**
+     * Invalidate the asset and all cached descendants, their path and parent details might have changed.
+     */
+    public void invalidateTree(String assetId) {
+        structureGeneration.incrementAndGet();
+        invalidate(assetId);
+        cache.asMap().values().removeIf(asset -> asset.pathContains(assetId));
+    }
+
+    /**
+     * Invalidate all assets of the realm, e.g. when the tenant details stored with the assets have changed.
+     */
+    public void invalidateRealm(String realmId) {
+        structureGeneration.incrementAndGet();
+        cache.asMap().values().removeIf(asset -> Objects.equals(asset.getRealmId(), realmId));
+    }
+
+    public void invalidateAll() {
+        structureGeneration.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    protected int getGenerationStripe(String assetId) {
+        int h = assetId != null ? assetId.hashCode() : 0;
+        h ^= (h >>> 16);
+        return h & (GENERATION_STRIPES - 1);
+    }
+
+    protected static Asset copy(Asset asset) {
+        return new Asset(
+            asset.getId(), asset.getVersion(), asset.getCreatedOn(), asset.getName(), asset.getType(),
+            asset.isAccessPublicRead(), asset.getParentId(), asset.getParentName(), asset.getParentType(),
+            asset.getRealmId(), asset.getTenantRealm(), asset.getTenantDisplayName(),
+            asset.getPath() != null ? asset.getPath().clone() : null,
+            asset.getAttributes() != null ? asset.getAttributes().deepCopy() : null
+        );
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "size=" + cache.size() +
+            '}';
+    }
+}
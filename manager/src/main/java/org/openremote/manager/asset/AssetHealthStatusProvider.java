@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import com.google.common.cache.CacheStats;
+import org.openremote.container.Container;
+import org.openremote.container.ContainerService;
+import org.openremote.model.system.HealthStatusProvider;
+import org.openremote.model.value.ObjectValue;
+import org.openremote.model.value.Value;
+import org.openremote.model.value.Values;
+
+public class AssetHealthStatusProvider implements HealthStatusProvider, ContainerService {
+
+    public static final String NAME = "assets";
+    public static final String VERSION = "1.0";
+    protected AssetStorageService assetStorageService;
+    protected AssetProcessingService assetProcessingService;
+
+    @Override
+    public void init(Container container) throws Exception {
+        assetStorageService = container.getService(AssetStorageService.class);
+        assetProcessingService = container.getService(AssetProcessingService.class);
+    }
+
+    @Override
+    public void start(Container container) throws Exception {
+
+    }
+
+    @Override
+    public void stop(Container container) throws Exception {
+
+    }
+
+    @Override
+    public String getHealthStatusName() {
+        return NAME;
+    }
+
+    @Override
+    public String getHealthStatusVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Value getHealthStatus() {
+        ObjectValue value = Values.createObject();
+
+        AssetAttributeWriteBehind writeBehind = assetStorageService.getAttributeWriteBehind();
+        ObjectValue writeBehindValue = Values.createObject();
+        writeBehindValue.put("enabled", writeBehind != null);
+        if (writeBehind != null) {
+            writeBehindValue.put("pendingValues", writeBehind.getPendingCount());
+            writeBehindValue.put("queuedValues", writeBehind.getValuesQueued());
+            writeBehindValue.put("mergedValues", writeBehind.getValuesMerged());
+            writeBehindValue.put("writtenValues", writeBehind.getValuesWritten());
+            writeBehindValue.put("writtenRows", writeBehind.getRowsWritten());
+            writeBehindValue.put("writtenBatches", writeBehind.getBatchesWritten());
+            writeBehindValue.put("flushFailures", writeBehind.getFlushFailures());
+            writeBehindValue.put("rejectedValues", writeBehind.getValuesRejected());
+            writeBehindValue.put("droppedValues", writeBehind.getValuesDropped());
+        }
+        value.put("attributeWriteBehind", writeBehindValue);
+
+        AssetCache assetCache = assetStorageService.getAssetCache();
+        ObjectValue cacheValue = Values.createObject();
+        cacheValue.put("enabled", assetCache != null);
+        if (assetCache != null) {
+            CacheStats stats = assetCache.getStats();
+            cacheValue.put("size", assetCache.getSize());
+            cacheValue.put("hits", stats.hitCount());
+            cacheValue.put("misses", stats.missCount());
+            cacheValue.put("hitRate", stats.hitRate());
+            cacheValue.put("evictions", stats.evictionCount());
+        }
+        value.put("assetCache", cacheValue);
+
+        value.put("assetQueue", assetProcessingService.getAssetQueue().toObjectValue());
+        return value;
+    }
+}
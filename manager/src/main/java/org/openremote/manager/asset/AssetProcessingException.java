@@ -117,7 +117,12 @@ public class AssetProcessingException extends RuntimeException {
         /**
          * The event value is not the excepted value for the attribute
          */
-        INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE
+        INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE,
+
+        /**
+         * The asset queue partition of the event was full, the event was not processed.
+         */
+        QUEUE_FULL
     }
 
     final protected Reason reason;
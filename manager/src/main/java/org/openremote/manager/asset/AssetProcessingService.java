@@ -20,11 +20,14 @@
 package org.openremote.manager.asset;
 
 import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePattern;
 import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultExchange;
 import org.openremote.agent.protocol.Protocol;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
+import org.openremote.container.concurrent.StripedLock;
 import org.openremote.container.message.MessageBrokerService;
 import org.openremote.container.message.MessageBrokerSetupService;
 import org.openremote.container.persistence.PersistenceService;
@@ -46,14 +49,16 @@ import org.openremote.model.value.Value;
 import org.openremote.model.value.Values;
 
 import javax.persistence.EntityManager;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.openremote.container.concurrent.GlobalLock.withLock;
+import static org.apache.camel.builder.PredicateBuilder.or;
+import static org.openremote.container.concurrent.GlobalLock.withReadLock;
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.asset.AssetProcessingException.Reason.*;
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_TOPIC;
 import static org.openremote.model.asset.agent.AgentLink.getAgentLink;
@@ -120,9 +125,44 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
 
     private static final Logger LOG = Logger.getLogger(AssetProcessingService.class.getName());
 
-    // TODO: Some of these options should be configurable depending on expected load etc.
-    // Message topic for communicating individual asset attribute changes
-    public static final String ASSET_QUEUE = "seda://AssetQueue?waitForTaskToComplete=IfReplyExpected&timeout=10000&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
+    /**
+     * The asset level authorization of a client, shared by the events of a bulk write so the checks are done once per
+     * asset and not once per event. Attribute level checks are still done for each event.
+     */
+    public static class ClientAuthorization {
+
+        final protected AuthContext authContext;
+        final protected Map<String, Boolean> writableAssets = new ConcurrentHashMap<>();
+        protected volatile Boolean restrictedUser;
+
+        public ClientAuthorization(AuthContext authContext) {
+            this.authContext = Objects.requireNonNull(authContext);
+        }
+
+        public AuthContext getAuthContext() {
+            return authContext;
+        }
+    }
+
+    // Header with the ClientAuthorization of a client event, optional
+    public static final String HEADER_CLIENT_AUTHORIZATION = AssetProcessingService.class.getName() + ".CLIENT_AUTHORIZATION";
+
+    // Message topic for communicating individual asset attribute changes, the events are queued in one of
+    // the asset queue partitions by asset identifier, see AssetQueue
+    public static final String ASSET_QUEUE = "direct://AssetQueue";
+    // Number of asset queue partitions, each partition has a single consumer so events of an asset stay in order
+    public static final String ASSET_QUEUE_PARTITIONS = "ASSET_QUEUE_PARTITIONS";
+    public static final int ASSET_QUEUE_PARTITIONS_DEFAULT = Runtime.getRuntime().availableProcessors();
+    public static final String ASSET_QUEUE_PARTITION_CAPACITY = "ASSET_QUEUE_PARTITION_CAPACITY";
+    public static final int ASSET_QUEUE_PARTITION_CAPACITY_DEFAULT = 25000;
+    // Replace queued sensor events with newer sensor events of the same attribute
+    public static final String ASSET_QUEUE_CONFLATE_SENSOR_EVENTS = "ASSET_QUEUE_CONFLATE_SENSOR_EVENTS";
+    public static final boolean ASSET_QUEUE_CONFLATE_SENSOR_EVENTS_DEFAULT = false;
+    // How long a protocol waits when the partition of a sensor event is full, before the event is dropped
+    public static final String ASSET_QUEUE_SENSOR_WAIT_MILLIS = "ASSET_QUEUE_SENSOR_WAIT_MILLIS";
+    public static final int ASSET_QUEUE_SENSOR_WAIT_MILLIS_DEFAULT = 100;
+    // How long a client waits when the partition of its event is full, and for the result of its event
+    public static final int ASSET_QUEUE_CLIENT_WAIT_MILLIS = 10000;
 
     protected TimerService timerService;
     protected ManagerIdentityService identityService;
@@ -134,8 +174,11 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
     protected AssetAttributeLinkingService assetAttributeLinkingService;
     protected MessageBrokerService messageBrokerService;
     protected ClientEventService clientEventService;
+    protected AssetQueue assetQueue;
+    // Serializes processing of events per asset, processing of different assets can run concurrently
+    protected StripedLock assetLock;
     // Used in testing to detect if initial/startup processing has completed
-    protected long lastProcessedEventTimestamp = System.currentTimeMillis();
+    protected volatile long lastProcessedEventTimestamp = System.currentTimeMillis();
 
     final protected List<AssetUpdateProcessor> processors = new ArrayList<>();
 
@@ -152,6 +195,18 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         messageBrokerService = container.getService(MessageBrokerService.class);
         clientEventService = container.getService(ClientEventService.class);
 
+        int assetQueuePartitions = Math.max(1, getInteger(container.getConfig(), ASSET_QUEUE_PARTITIONS, ASSET_QUEUE_PARTITIONS_DEFAULT));
+        assetLock = new StripedLock("Asset", assetQueuePartitions * 4);
+        assetQueue = new AssetQueue(
+            assetQueuePartitions,
+            Math.max(1, getInteger(container.getConfig(), ASSET_QUEUE_PARTITION_CAPACITY, ASSET_QUEUE_PARTITION_CAPACITY_DEFAULT)),
+            getBoolean(container.getConfig(), ASSET_QUEUE_CONFLATE_SENSOR_EVENTS, ASSET_QUEUE_CONFLATE_SENSOR_EVENTS_DEFAULT),
+            Math.max(0, getInteger(container.getConfig(), ASSET_QUEUE_SENSOR_WAIT_MILLIS, ASSET_QUEUE_SENSOR_WAIT_MILLIS_DEFAULT)),
+            ASSET_QUEUE_CLIENT_WAIT_MILLIS,
+            this::processFromAssetQueue
+        );
+        LOG.info("Processing attribute events with: " + assetQueue);
+
         clientEventService.addSubscriptionAuthorizer((auth, subscription) -> {
             if (!subscription.isEventType(AttributeEvent.class)) {
                 return false;
@@ -204,12 +259,12 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
 
     @Override
     public void start(Container container) throws Exception {
-
+        assetQueue.start();
     }
 
     @Override
     public void stop(Container container) throws Exception {
-
+        assetQueue.stop();
     }
 
     @Override
@@ -238,172 +293,256 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
          - See pseudocode here: http://activemq.apache.org/should-i-use-xa.html
          - Do we want JMS/AMQP/WSS or SOME_API/MQTT/WSS? ActiveMQ or Moquette?
         */
+        // Queue each event in the partition of its asset, this keeps the events of an asset in order
         from(ASSET_QUEUE)
-            .routeId("AssetQueueProcessor")
-            .filter(body().isInstanceOf(AttributeEvent.class))
+            .routeId("AssetQueue")
+            .filter(or(body().isInstanceOf(AttributeEvent.class), body().isInstanceOf(List.class)))
             .doTry()
-            // Lock the global context, we can only process attribute events when the
-            // context isn't locked. Agent- and RulesService lock the context while protocols
-            // or rulesets are modified.
-            .process(exchange -> withLock(getClass().getSimpleName() + "::processFromAssetQueue", () -> {
-
-                AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
-                LOG.finest("Processing: " + event);
-                if (event.getEntityId() == null || event.getEntityId().isEmpty())
-                    return;
-                if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
-                    return;
+            .process(exchange -> {
                 Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
                 if (source == null) {
                     throw new AssetProcessingException(MISSING_SOURCE);
                 }
-
-                // Process the asset update in a database transaction, this ensures that processors
-                // will see consistent database state and we only commit if no processor failed. This
-                // still won't make this procedure consistent with the message queue from which we consume!
-                persistenceService.doTransaction(em -> {
-                    Asset asset = assetStorageService.find(em, event.getEntityId(), true);
-                    if (asset == null)
-                        throw new AssetProcessingException(ASSET_NOT_FOUND);
-
-                    AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
-                    if (oldAttribute == null)
-                        throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
-
-                    switch (source) {
-                        case CLIENT:
-
-                            AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
-                            if (authContext == null) {
-                                // Check attribute has public write flag
-                                if (!oldAttribute.getMetaItem(AssetMeta.ACCESS_PUBLIC_WRITE).isPresent()) {
-                                    throw new AssetProcessingException(NO_AUTH_CONTEXT);
-                                }
-                                // Check read-only
-                                if (oldAttribute.isReadOnly()) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-                            } else {
-                                // Check realm, must be accessible
-                                if (!identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext,
-                                                                                                       asset)) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Check read-only
-                                if (oldAttribute.isReadOnly() && !authContext.isSuperUser()) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Regular user must have write assets role
-                                if (!authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(),
-                                                                              Constants.KEYCLOAK_CLIENT_ID)) {
-                                    throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                }
-
-                                // Check restricted user
-                                if (identityService.getIdentityProvider().isRestrictedUser(authContext.getUserId())) {
-                                    // Must be asset linked to user
-                                    if (!assetStorageService.isUserAsset(authContext.getUserId(),
-                                                                         event.getEntityId())) {
-                                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                    }
-                                    // Must be writable by restricted client
-                                    if (!oldAttribute.isAccessRestrictedWrite()) {
-                                        throw new AssetProcessingException(INSUFFICIENT_ACCESS);
-                                    }
-                                }
-                            }
-                            break;
-
-                        case SENSOR:
-                            Optional<AssetAttribute> protocolConfiguration =
-                                getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
-
-                            // Sensor event must be for an attribute linked to a protocol configuration
-                            if (!protocolConfiguration.isPresent()) {
-                                throw new AssetProcessingException(INVALID_AGENT_LINK);
-                            }
-                            break;
+                List<AssetQueue.Result> results = new ArrayList<>();
+                if (exchange.getIn().getBody() instanceof List) {
+                    // A batch of events, e.g. from the sensor channel of a protocol, is queued as separate exchanges
+                    // with a single wait if partitions are full
+                    List<AttributeEvent> events = new ArrayList<>();
+                    for (Object item : exchange.getIn().getBody(List.class)) {
+                        if (item instanceof AttributeEvent) {
+                            events.add((AttributeEvent) item);
+                        }
                     }
+                    results.addAll(assetQueue.offer(exchange, events, source));
+                } else {
+                    AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+                    results.add(assetQueue.offer(exchange, event, source));
+                }
+                if (results.contains(AssetQueue.Result.BACKPRESSURE) || results.contains(AssetQueue.Result.DROPPED)) {
+                    exchange.setProperty(Protocol.SENSOR_QUEUE_BACKPRESSURE, true);
+                }
+            })
+            .endDoTry()
+            .doCatch(AssetProcessingException.class)
+            .process(handleAssetProcessingException(LOG));
+    }
 
-                    // Agent attributes can't be updated with events
-                    if (asset.getWellKnownType() == AssetType.AGENT) {
-                        throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
-                    }
+    public AssetQueue getAssetQueue() {
+        return assetQueue;
+    }
+
+    /**
+     * Processes an event taken from the {@link #assetQueue} on the worker thread of its partition.
+     */
+    protected void processFromAssetQueue(Exchange exchange) {
+        AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+        try {
+            // Obtain the shared global lock, we can only process attribute events when the context
+            // isn't exclusively locked. Agent- and RulesService lock the context exclusively while
+            // protocols or rulesets are modified. Events of the same asset are processed sequentially.
+            withReadLock(getClass().getSimpleName() + "::processFromAssetQueue", () ->
+                assetLock.withLock(
+                    event.getEntityId(),
+                    getClass().getSimpleName() + "::processFromAssetQueue",
+                    () -> processFromAssetQueue(exchange, event)
+                )
+            );
+        } catch (AssetProcessingException ex) {
+            exchange.setProperty(Exchange.EXCEPTION_CAUGHT, ex);
+            try {
+                handleAssetProcessingException(LOG).process(exchange);
+            } catch (Exception handlerException) {
+                LOG.log(Level.WARNING, "Handling asset processing exception failed", handlerException);
+            }
+        }
+    }
 
-                    // For executable attributes, non-sensor sources can set a writable attribute execute status
-                    if (oldAttribute.isExecutable() && source != SENSOR) {
-                        Optional<AttributeExecuteStatus> status = event.getValue()
-                            .flatMap(Values::getString)
-                            .flatMap(AttributeExecuteStatus::fromString);
+    protected void processFromAssetQueue(Exchange exchange, AttributeEvent event) {
+        LOG.finest("Processing: " + event);
+        if (event.getEntityId() == null || event.getEntityId().isEmpty())
+            return;
+        if (event.getAttributeName() == null || event.getAttributeName().isEmpty())
+            return;
+        Source source = exchange.getIn().getHeader(HEADER_SOURCE, () -> null, Source.class);
+        if (source == null) {
+            throw new AssetProcessingException(MISSING_SOURCE);
+        }
 
-                        if (status.isPresent() && !status.get().isWrite()) {
-                            throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
+        // Process the asset update in a database transaction, this ensures that processors
+        // will see consistent database state and we only commit if no processor failed. This
+        // still won't make this procedure consistent with the message queue from which we consume!
+        persistenceService.doTransaction(em -> {
+            Asset asset = assetStorageService.find(em, event.getEntityId(), true);
+            if (asset == null)
+                throw new AssetProcessingException(ASSET_NOT_FOUND);
+
+            AssetAttribute oldAttribute = asset.getAttribute(event.getAttributeName()).orElse(null);
+            if (oldAttribute == null)
+                throw new AssetProcessingException(ATTRIBUTE_NOT_FOUND);
+
+            switch (source) {
+                case CLIENT:
+
+                    AuthContext authContext = exchange.getIn().getHeader(Constants.AUTH_CONTEXT, AuthContext.class);
+                    if (authContext == null) {
+                        // Check attribute has public write flag
+                        if (!oldAttribute.getMetaItem(AssetMeta.ACCESS_PUBLIC_WRITE).isPresent()) {
+                            throw new AssetProcessingException(NO_AUTH_CONTEXT);
+                        }
+                        // Check read-only
+                        if (oldAttribute.isReadOnly()) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
+                    } else {
+                        ClientAuthorization authorization = exchange.getIn().getHeader(
+                            HEADER_CLIENT_AUTHORIZATION, () -> new ClientAuthorization(authContext), ClientAuthorization.class
+                        );
+
+                        // Check realm, role and linked assets of restricted user
+                        if (!isAssetWritable(authorization, asset)) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
+
+                        // Check read-only
+                        if (oldAttribute.isReadOnly() && !authContext.isSuperUser()) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
+                        }
+
+                        // Must be writable by restricted client
+                        if (isRestrictedUser(authorization) && !oldAttribute.isAccessRestrictedWrite()) {
+                            throw new AssetProcessingException(INSUFFICIENT_ACCESS);
                         }
                     }
+                    break;
 
-                    //Check if attribute is well known and the value is valid
-                    AssetModel.getAttributeDescriptor(oldAttribute.name).ifPresent(wellKnownAttribute -> {
-                        // Check if the value is valid
-                        wellKnownAttribute.getValueType()
-                            .isValidValue(event.getValue().orElse(null))
-                            .ifPresent(validationFailure -> {
-                                throw new AssetProcessingException(
-                                    INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE
-                                );
-                            });
-                    });
+                case SENSOR:
+                    Optional<AssetAttribute> protocolConfiguration =
+                        getAgentLink(oldAttribute).flatMap(agentService::getProtocolConfiguration);
 
-                    // Either use the timestamp of the event or set event time to processing time
-                    long processingTime = timerService.getCurrentTimeMillis();
-                    long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
+                    // Sensor event must be for an attribute linked to a protocol configuration
+                    if (!protocolConfiguration.isPresent()) {
+                        throw new AssetProcessingException(INVALID_AGENT_LINK);
+                    }
+                    break;
+            }
 
-                    // Ensure timestamp of event is not in the future as that would essentially block access to
-                    // the attribute until after that time (maybe that is desirable behaviour)
-                    if (eventTime - processingTime > 0) {
-                        // TODO: Decide how to handle update events in the future - ignore or change timestamp
+            // Agent attributes can't be updated with events
+            if (asset.getWellKnownType() == AssetType.AGENT) {
+                throw new AssetProcessingException(ILLEGAL_AGENT_UPDATE);
+            }
+
+            // For executable attributes, non-sensor sources can set a writable attribute execute status
+            if (oldAttribute.isExecutable() && source != SENSOR) {
+                Optional<AttributeExecuteStatus> status = event.getValue()
+                    .flatMap(Values::getString)
+                    .flatMap(AttributeExecuteStatus::fromString);
+
+                if (status.isPresent() && !status.get().isWrite()) {
+                    throw new AssetProcessingException(INVALID_ATTRIBUTE_EXECUTE_STATUS);
+                }
+            }
+
+            //Check if attribute is well known and the value is valid
+            AssetModel.getAttributeDescriptor(oldAttribute.name).ifPresent(wellKnownAttribute -> {
+                // Check if the value is valid
+                wellKnownAttribute.getValueType()
+                    .isValidValue(event.getValue().orElse(null))
+                    .ifPresent(validationFailure -> {
                         throw new AssetProcessingException(
-                            EVENT_IN_FUTURE,
-                            "current time: " + new Date(processingTime) + "/" + processingTime
-                                + ", event time: " + new Date(eventTime) + "/" + eventTime
+                            INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE
                         );
-                    }
+                    });
+            });
 
-                    // Check the last update timestamp of the attribute, ignoring any event that is older than last update
-                    // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
-                    // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
-                    oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
-                        lastStateTime -> {
-                            throw new AssetProcessingException(
-                                EVENT_OUTDATED,
-                                "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
-                                    + ", event time: " + new Date(eventTime) + "/" + eventTime);
-                        }
-                    );
+            // Either use the timestamp of the event or set event time to processing time
+            long processingTime = timerService.getCurrentTimeMillis();
+            long eventTime = event.getTimestamp() > 0 ? event.getTimestamp() : processingTime;
 
-                    // Create a copy of the attribute and set the new value and timestamp
-                    AssetAttribute updatedAttribute = oldAttribute.deepCopy();
-                    updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
+            // Ensure timestamp of event is not in the future as that would essentially block access to
+            // the attribute until after that time (maybe that is desirable behaviour)
+            if (eventTime - processingTime > 0) {
+                // TODO: Decide how to handle update events in the future - ignore or change timestamp
+                throw new AssetProcessingException(
+                    EVENT_IN_FUTURE,
+                    "current time: " + new Date(processingTime) + "/" + processingTime
+                        + ", event time: " + new Date(eventTime) + "/" + eventTime
+                );
+            }
 
-                    // Validate constraints of attribute
-                    List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
-                    if (!validationFailures.isEmpty()) {
-                        throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
-                    }
+            // Check the last update timestamp of the attribute, ignoring any event that is older than last update
+            // TODO This means we drop out-of-sequence events but accept events with the same source timestamp
+            // TODO Several attribute events can occur in the same millisecond, then order of application is undefined
+            oldAttribute.getValueTimestamp().filter(t -> t >= 0 && eventTime < t).ifPresent(
+                lastStateTime -> {
+                    throw new AssetProcessingException(
+                        EVENT_OUTDATED,
+                        "last asset state time: " + new Date(lastStateTime) + "/" + lastStateTime
+                            + ", event time: " + new Date(eventTime) + "/" + eventTime);
+                }
+            );
 
-                    // Push through all processors
-                    boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+            // Create a copy of the attribute and set the new value and timestamp
+            AssetAttribute updatedAttribute = oldAttribute.deepCopy();
+            updatedAttribute.setValue(event.getValue().orElse(null), eventTime);
 
-                    // Publish a new event for clients if no processor consumed the update completely
-                    if (!consumedCompletely) {
-                        publishClientEvent(asset, updatedAttribute);
-                    }
-                });
-            }))
-            .endDoTry()
-            .doCatch(AssetProcessingException.class)
-            .process(handleAssetProcessingException(LOG));
+            // Validate constraints of attribute
+            List<ValidationFailure> validationFailures = updatedAttribute.getValidationFailures();
+            if (!validationFailures.isEmpty()) {
+                throw new AssetProcessingException(ATTRIBUTE_VALIDATION_FAILURE, validationFailures.toString());
+            }
+
+            // Push through all processors
+            boolean consumedCompletely = processAssetUpdate(em, asset, updatedAttribute, source);
+
+            // Publish a new event for clients if no processor consumed the update completely
+            if (!consumedCompletely) {
+                publishClientEvent(asset, updatedAttribute);
+            }
+        });
+    }
+
+    /**
+     * Queues the attribute write requests of a client in one pass, without waiting for the events to be processed. The
+     * asset level authorization of the client is checked once per asset for all events. If an event can't be queued
+     * because its partition is full, it and all following events are rejected with {@link
+     * AssetProcessingException.Reason#QUEUE_FULL}.
+     *
+     * @param authContext Can be <code>null</code> for public writes.
+     * @return The result of each event in order, completed with <code>null</code> when the event has been processed
+     * successfully or with the exception of a failed or rejected event.
+     */
+    public List<CompletableFuture<Exception>> queueClientEvents(AuthContext authContext, List<AttributeEvent> events) {
+        ClientAuthorization authorization = authContext != null ? new ClientAuthorization(authContext) : null;
+        List<CompletableFuture<Exception>> results = new ArrayList<>(events.size());
+        AssetProcessingException queueFull = null;
+
+        for (AttributeEvent event : events) {
+            CompletableFuture<Exception> result = new CompletableFuture<>();
+            results.add(result);
+            if (queueFull != null) {
+                result.complete(queueFull);
+                continue;
+            }
+
+            Exchange exchange = new DefaultExchange(getContext(), ExchangePattern.InOut);
+            exchange.getIn().setBody(event);
+            exchange.getIn().setHeader(HEADER_SOURCE, CLIENT);
+            if (authorization != null) {
+                exchange.getIn().setHeader(Constants.AUTH_CONTEXT, authContext);
+                exchange.getIn().setHeader(HEADER_CLIENT_AUTHORIZATION, authorization);
+            }
+            try {
+                if (assetQueue.offer(exchange, event, CLIENT, () -> result.complete(getProcessingFailure(exchange))) == AssetQueue.Result.DROPPED) {
+                    // The callback is not called for dropped events
+                    result.complete(new AssetProcessingException(QUEUE_FULL, "event dropped"));
+                }
+            } catch (AssetProcessingException ex) {
+                LOG.warning("Rejecting remaining client events: " + ex.getReasonPhrase());
+                queueFull = ex;
+                result.complete(ex);
+            }
+        }
+        return results;
     }
 
     /**
@@ -468,9 +607,40 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
         return complete;
     }
 
+    protected boolean isRestrictedUser(ClientAuthorization authorization) {
+        if (authorization.restrictedUser == null) {
+            authorization.restrictedUser = identityService.getIdentityProvider().isRestrictedUser(
+                authorization.authContext.getUserId()
+            );
+        }
+        return authorization.restrictedUser;
+    }
+
+    protected boolean isAssetWritable(ClientAuthorization authorization, Asset asset) {
+        Boolean writable = authorization.writableAssets.get(asset.getId());
+        if (writable == null) {
+            AuthContext authContext = authorization.authContext;
+            writable = identityService.getIdentityProvider().isTenantActiveAndAccessible(authContext, asset)
+                // Regular user must have write assets role
+                && authContext.hasResourceRoleOrIsSuperUser(ClientRole.WRITE_ASSETS.getValue(), Constants.KEYCLOAK_CLIENT_ID)
+                // Restricted user must be linked to asset
+                && (!isRestrictedUser(authorization) || assetStorageService.isUserAsset(authContext.getUserId(), asset.getId()));
+            authorization.writableAssets.put(asset.getId(), writable);
+        }
+        return writable;
+    }
+
+    protected static Exception getProcessingFailure(Exchange exchange) {
+        if (exchange.getException() != null) {
+            return exchange.getException();
+        }
+        Object result = exchange.hasOut() ? exchange.getOut().getBody() : null;
+        return result instanceof Exception ? (Exception) result : null;
+    }
+
     protected static Processor handleAssetProcessingException(Logger logger) {
         return exchange -> {
-            AttributeEvent event = exchange.getIn().getBody(AttributeEvent.class);
+            Object event = exchange.getIn().getBody();
             Exception exception = (Exception) exchange.getProperty(Exchange.EXCEPTION_CAUGHT);
 
             StringBuilder error = new StringBuilder();
@@ -489,10 +659,10 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
             if (exception instanceof AssetProcessingException) {
                 AssetProcessingException processingException = (AssetProcessingException) exception;
                 error.append(" - ").append(processingException.getReasonPhrase());
-                error.append(": ").append(event.toString());
+                error.append(": ").append(event);
                 logger.warning(error.toString());
             } else {
-                error.append(": ").append(event.toString());
+                error.append(": ").append(event);
                 logger.log(Level.WARNING, error.toString(), exception);
             }
 
@@ -511,13 +681,12 @@ public class AssetProcessingService extends RouteBuilder implements ContainerSer
 
         // If there is no timestamp, use system time (0 or -1 are "no timestamp")
         Optional<Long> timestamp = attribute.getValueTimestamp();
-        String valueTimestamp = Long.toString(
-            timestamp.filter(ts -> ts > 0).orElseGet(() -> timerService.getCurrentTimeMillis())
-        );
+        long valueTimestamp = timestamp.filter(ts -> ts > 0).orElseGet(() -> timerService.getCurrentTimeMillis());
 
-        if (!assetStorageService.storeAttributeValue(em, asset.getId(), attributeName, value, valueTimestamp)) {
+        // With write-behind enabled the value is written later, in a batch with other values
+        if (!assetStorageService.queueAttributeValue(em, asset.getId(), attributeName, value, valueTimestamp)) {
             throw new AssetProcessingException(
-                STATE_STORAGE_FAILED, "database update failed, no rows updated"
+                STATE_STORAGE_FAILED, "database update failed or too many pending values, value not stored"
             );
         }
     }
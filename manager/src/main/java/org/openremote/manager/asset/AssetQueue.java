@@ -0,0 +1,546 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.asset;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangeTimedOutException;
+import org.openremote.container.concurrent.ContainerThreadFactory;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.attribute.AttributeEvent.Source;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.value.ObjectValue;
+import org.openremote.model.value.Values;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.openremote.manager.asset.AssetProcessingException.Reason.QUEUE_FULL;
+
+/**
+ * The attribute events waiting to be processed, partitioned by asset identifier. Each partition is a bounded queue
+ * with a single worker thread, the events of an asset are processed in order and events of different assets are
+ * processed concurrently.
+ * <p>
+ * When a partition is full the producer waits depending on the source of the event: a sensor event waits for the
+ * configured sensor wait time and is then dropped, a client event waits for the client wait time and is then
+ * rejected. A client event of a producer that doesn't wait for the result, e.g. the consumer of the client event
+ * topic, is rejected without waiting. Internal and attribute linking events don't wait and may exceed the capacity,
+ * they are produced while events are processed and waiting for the workers could deadlock them, they are rejected
+ * when the partition holds {@link #OVERFLOW_FACTOR} times its capacity. A sensor event is accepted with
+ * backpressure if its partition is more than half full, see {@link Result#BACKPRESSURE}.
+ * <p>
+ * If conflation is enabled, a queued sensor event is replaced by a newer sensor event of the same attribute. The
+ * replaced value is never processed, it is not stored as a datapoint and not seen by rules.
+ */
+public class AssetQueue {
+
+    private static final Logger LOG = Logger.getLogger(AssetQueue.class.getName());
+
+    // Internal and attribute linking events are rejected when a partition holds this many times its capacity
+    public static final int OVERFLOW_FACTOR = 2;
+
+    public enum Result {
+        /**
+         * The event was queued.
+         */
+        QUEUED,
+        /**
+         * The event was queued but the partition is filling up, the producer should slow down.
+         */
+        BACKPRESSURE,
+        /**
+         * The event replaced a queued event of the same attribute.
+         */
+        CONFLATED,
+        /**
+         * The partition was full, the event was dropped.
+         */
+        DROPPED
+    }
+
+    protected static class QueuedEvent {
+        // Replaced when conflated, guarded by the partition lock
+        protected Exchange exchange;
+        protected AttributeEvent event;
+        final protected Source source;
+        final protected long queuedNanos;
+        // Set if the producer wants to know when the event has been processed
+        final protected Runnable onProcessed;
+
+        protected QueuedEvent(Exchange exchange, AttributeEvent event, Source source, Runnable onProcessed) {
+            this.exchange = exchange;
+            this.event = event;
+            this.source = source;
+            this.queuedNanos = System.nanoTime();
+            this.onProcessed = onProcessed;
+        }
+    }
+
+    public static class SourceMetrics {
+        final protected AtomicInteger queued = new AtomicInteger();
+        final protected AtomicLong received = new AtomicLong();
+        final protected AtomicLong conflated = new AtomicLong();
+        final protected AtomicLong dropped = new AtomicLong();
+
+        public int getQueued() {
+            return queued.get();
+        }
+
+        public long getReceived() {
+            return received.get();
+        }
+
+        public long getConflated() {
+            return conflated.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public ObjectValue toObjectValue() {
+            ObjectValue objectValue = Values.createObject();
+            objectValue.put("queued", getQueued());
+            objectValue.put("received", getReceived());
+            objectValue.put("conflated", getConflated());
+            objectValue.put("dropped", getDropped());
+            return objectValue;
+        }
+    }
+
+    protected class Partition implements Runnable {
+
+        final protected ArrayDeque<QueuedEvent> events = new ArrayDeque<>();
+        // The queued sensor events that can be conflated, by attribute
+        final protected Map<AttributeRef, QueuedEvent> conflatable = new HashMap<>();
+        final protected ReentrantLock lock = new ReentrantLock();
+        final protected Condition notEmpty = lock.newCondition();
+        final protected Condition notFull = lock.newCondition();
+        protected int maxSize;
+
+        protected Result offer(QueuedEvent queuedEvent, long waitNanos, int limit) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                if (conflate && queuedEvent.onProcessed == null && queuedEvent.source == Source.SENSOR) {
+                    QueuedEvent queued = conflatable.get(queuedEvent.event.getAttributeRef());
+                    if (queued != null && queued.event.getTimestamp() <= queuedEvent.event.getTimestamp()) {
+                        queued.exchange = queuedEvent.exchange;
+                        queued.event = queuedEvent.event;
+                        return Result.CONFLATED;
+                    }
+                }
+
+                while (events.size() >= limit) {
+                    if (waitNanos <= 0 || !running)
+                        return Result.DROPPED;
+                    waitNanos = notFull.awaitNanos(waitNanos);
+                }
+
+                events.add(queuedEvent);
+                maxSize = Math.max(maxSize, events.size());
+                if (conflate && queuedEvent.onProcessed == null && queuedEvent.source == Source.SENSOR) {
+                    conflatable.put(queuedEvent.event.getAttributeRef(), queuedEvent);
+                }
+                notEmpty.signal();
+                return events.size() > capacity / 2 ? Result.BACKPRESSURE : Result.QUEUED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        protected QueuedEvent take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (events.isEmpty()) {
+                    notEmpty.await();
+                }
+                QueuedEvent queuedEvent = events.poll();
+                if (queuedEvent.source == Source.SENSOR) {
+                    conflatable.remove(queuedEvent.event.getAttributeRef(), queuedEvent);
+                }
+                notFull.signal();
+                return queuedEvent;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return <code>false</code> if the event is no longer queued, it has been taken by the worker.
+         */
+        protected boolean remove(QueuedEvent queuedEvent) {
+            lock.lock();
+            try {
+                if (!events.removeIf(queued -> queued == queuedEvent))
+                    return false;
+                if (queuedEvent.source == Source.SENSOR) {
+                    conflatable.remove(queuedEvent.event.getAttributeRef(), queuedEvent);
+                }
+                notFull.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        protected List<QueuedEvent> clear() {
+            lock.lock();
+            try {
+                List<QueuedEvent> cleared = new ArrayList<>(events);
+                events.clear();
+                conflatable.clear();
+                notFull.signalAll();
+                return cleared;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        protected int size() {
+            lock.lock();
+            try {
+                return events.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                QueuedEvent queuedEvent;
+                try {
+                    queuedEvent = take();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                metrics.get(queuedEvent.source).queued.decrementAndGet();
+                recordWait(System.nanoTime() - queuedEvent.queuedNanos);
+                try {
+                    processor.accept(queuedEvent.exchange);
+                } catch (Throwable t) {
+                    LOG.log(Level.SEVERE, "Processing queued event failed: " + queuedEvent.event, t);
+                    queuedEvent.exchange.setException(t instanceof Exception ? (Exception) t : new RuntimeException(t));
+                } finally {
+                    if (queuedEvent.onProcessed != null) {
+                        queuedEvent.onProcessed.run();
+                    }
+                }
+            }
+        }
+    }
+
+    final protected Partition[] partitions;
+    final protected int capacity;
+    final protected boolean conflate;
+    final protected long sensorWaitMillis;
+    final protected long clientWaitMillis;
+    final protected Consumer<Exchange> processor;
+    final protected Map<Source, SourceMetrics> metrics = new EnumMap<>(Source.class);
+    final protected List<Thread> workers = new ArrayList<>();
+    protected volatile boolean running;
+
+    final protected LongAdder waitCount = new LongAdder();
+    final protected LongAdder waitTotalNanos = new LongAdder();
+    final protected AtomicLong waitMaxNanos = new AtomicLong();
+
+    /**
+     * @param capacity  The capacity of each partition.
+     * @param processor Processes the exchange of a queued event on the worker thread of its partition.
+     */
+    public AssetQueue(int partitions, int capacity, boolean conflate, long sensorWaitMillis, long clientWaitMillis, Consumer<Exchange> processor) {
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition();
+        }
+        this.capacity = capacity;
+        this.conflate = conflate;
+        this.sensorWaitMillis = sensorWaitMillis;
+        this.clientWaitMillis = clientWaitMillis;
+        this.processor = processor;
+        for (Source source : Source.values()) {
+            metrics.put(source, new SourceMetrics());
+        }
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        ContainerThreadFactory threadFactory = new ContainerThreadFactory("Asset Queue");
+        for (Partition partition : partitions) {
+            Thread worker = threadFactory.newThread(partition);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the workers and discards all queued events, producers waiting for their event are released with an
+     * exception.
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        workers.forEach(Thread::interrupt);
+        workers.clear();
+        for (Partition partition : partitions) {
+            for (QueuedEvent queuedEvent : partition.clear()) {
+                metrics.get(queuedEvent.source).queued.decrementAndGet();
+                if (queuedEvent.onProcessed != null) {
+                    queuedEvent.exchange.setException(new IllegalStateException("Asset queue stopped"));
+                    queuedEvent.onProcessed.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the event of the exchange. If the exchange expects a reply, waits until the event has been processed. If
+     * the event is still queued after the client wait time, it is removed and never processed, the exchange fails with
+     * {@link ExchangeTimedOutException}. If the worker is already processing the event, waits for the result.
+     *
+     * @throws AssetProcessingException With {@link AssetProcessingException.Reason#QUEUE_FULL} if a client, internal
+     *                                  or attribute linking event can't be queued.
+     */
+    public Result offer(Exchange exchange, AttributeEvent event, Source source) throws AssetProcessingException {
+        if (!exchange.getPattern().isOutCapable()) {
+            // The producer continues with its exchange if it doesn't wait for the reply, nor for a full partition
+            // if it is a client
+            QueuedEvent queuedEvent = new QueuedEvent(exchange.copy(), event, source, null);
+            return source == Source.CLIENT ? offer(queuedEvent, System.nanoTime()) : offer(queuedEvent);
+        }
+
+        CountDownLatch processed = new CountDownLatch(1);
+        QueuedEvent queuedEvent = new QueuedEvent(exchange, event, source, processed::countDown);
+        Result result = offer(queuedEvent);
+        if (result == Result.DROPPED)
+            return result;
+
+        Exception failure;
+        boolean interrupted = false;
+        try {
+            if (processed.await(clientWaitMillis, TimeUnit.MILLISECONDS))
+                return result;
+            failure = new ExchangeTimedOutException(exchange, clientWaitMillis);
+        } catch (InterruptedException ex) {
+            interrupted = true;
+            failure = ex;
+        }
+
+        // The worker must not see the exchange after the producer continued with it
+        if (partitions[getPartition(event.getEntityId())].remove(queuedEvent)) {
+            metrics.get(source).queued.decrementAndGet();
+            exchange.setException(failure);
+        } else {
+            // The event is being processed and takes effect, the producer gets its result
+            while (true) {
+                try {
+                    processed.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    /**
+     * Queues the event of the exchange without waiting for it to be processed. The exchange is processed as given, the
+     * producer must not use it until the optional callback has been called. The callback is called on the worker
+     * thread when the event has been processed or when the queue is stopped, it is not called if the event is dropped.
+     * Events with a callback are never conflated.
+     *
+     * @throws AssetProcessingException With {@link AssetProcessingException.Reason#QUEUE_FULL} if a client, internal
+     *                                  or attribute linking event can't be queued.
+     */
+    public Result offer(Exchange exchange, AttributeEvent event, Source source, Runnable onProcessed) throws AssetProcessingException {
+        return offer(new QueuedEvent(exchange, event, source, onProcessed));
+    }
+
+    /**
+     * Queues a batch of events without waiting for them to be processed, each event with its own copy of the exchange.
+     * If partitions are full, the producer waits once for the wait time of the source in total, not for each event.
+     *
+     * @return The result of each event in order.
+     * @throws AssetProcessingException With {@link AssetProcessingException.Reason#QUEUE_FULL} if a client, internal
+     *                                  or attribute linking event can't be queued, the events before it have been queued.
+     */
+    public List<Result> offer(Exchange exchange, List<AttributeEvent> events, Source source) throws AssetProcessingException {
+        long waitDeadlineNanos = System.nanoTime() + getWaitNanos(source);
+        List<Result> results = new ArrayList<>(events.size());
+        for (AttributeEvent event : events) {
+            Exchange eventExchange = exchange.copy();
+            eventExchange.getIn().setBody(event);
+            results.add(offer(new QueuedEvent(eventExchange, event, source, null), waitDeadlineNanos));
+        }
+        return results;
+    }
+
+    protected Result offer(QueuedEvent queuedEvent) throws AssetProcessingException {
+        return offer(queuedEvent, System.nanoTime() + getWaitNanos(queuedEvent.source));
+    }
+
+    /**
+     * @param waitDeadlineNanos Until when the producer waits if the partition is full.
+     */
+    protected Result offer(QueuedEvent queuedEvent, long waitDeadlineNanos) throws AssetProcessingException {
+        Source source = queuedEvent.source;
+        AttributeEvent event = queuedEvent.event;
+        SourceMetrics sourceMetrics = metrics.get(source);
+        sourceMetrics.received.incrementAndGet();
+
+        // Internal and attribute linking events don't wait and may exceed the capacity
+        boolean overflow = source != Source.SENSOR && source != Source.CLIENT;
+
+        Result result;
+        try {
+            result = partitions[getPartition(event.getEntityId())].offer(
+                queuedEvent,
+                overflow ? 0 : waitDeadlineNanos - System.nanoTime(),
+                overflow ? capacity * OVERFLOW_FACTOR : capacity
+            );
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result = Result.DROPPED;
+        }
+
+        switch (result) {
+            case CONFLATED:
+                sourceMetrics.conflated.incrementAndGet();
+                return result;
+            case DROPPED:
+                sourceMetrics.dropped.incrementAndGet();
+                if (source == Source.CLIENT) {
+                    throw new AssetProcessingException(QUEUE_FULL, "waited " + TimeUnit.NANOSECONDS.toMillis(Math.max(0, waitDeadlineNanos - queuedEvent.queuedNanos)) + "ms");
+                }
+                if (overflow) {
+                    LOG.warning("Asset queue partition overflowing, rejected " + source + " event: " + event);
+                    throw new AssetProcessingException(QUEUE_FULL, "partition holds " + capacity * OVERFLOW_FACTOR + " events");
+                }
+                LOG.fine("Asset queue partition full, dropped " + source + " event: " + event);
+                return result;
+            default:
+                sourceMetrics.queued.incrementAndGet();
+                return result;
+        }
+    }
+
+    protected long getWaitNanos(Source source) {
+        switch (source) {
+            case SENSOR:
+                return TimeUnit.MILLISECONDS.toNanos(sensorWaitMillis);
+            case CLIENT:
+                return TimeUnit.MILLISECONDS.toNanos(clientWaitMillis);
+            default:
+                return 0;
+        }
+    }
+
+    public int getPartition(String assetId) {
+        if (assetId == null) {
+            return 0;
+        }
+        return Math.abs(assetId.hashCode() % partitions.length);
+    }
+
+    public int getPartitions() {
+        return partitions.length;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isConflate() {
+        return conflate;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    public SourceMetrics getMetrics(Source source) {
+        return metrics.get(source);
+    }
+
+    protected void recordWait(long nanos) {
+        waitCount.increment();
+        waitTotalNanos.add(nanos);
+        waitMaxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public ObjectValue toObjectValue() {
+        ObjectValue objectValue = Values.createObject();
+        objectValue.put("partitions", partitions.length);
+        objectValue.put("partitionCapacity", capacity);
+        objectValue.put("conflate", conflate);
+        objectValue.put("size", getSize());
+
+        ObjectValue partitionsValue = Values.createObject();
+        for (int i = 0; i < partitions.length; i++) {
+            ObjectValue partitionValue = Values.createObject();
+            partitionValue.put("size", partitions[i].size());
+            partitionValue.put("maxSize", partitions[i].maxSize);
+            partitionsValue.put(Integer.toString(i), partitionValue);
+        }
+        objectValue.put("partition", partitionsValue);
+
+        ObjectValue sourcesValue = Values.createObject();
+        metrics.forEach((source, sourceMetrics) -> sourcesValue.put(source.name(), sourceMetrics.toObjectValue()));
+        objectValue.put("sources", sourcesValue);
+
+        ObjectValue waitValue = Values.createObject();
+        long count = waitCount.sum();
+        waitValue.put("count", count);
+        waitValue.put("averageMillis", count > 0 ? TimeUnit.NANOSECONDS.toMillis(waitTotalNanos.sum() / count) : 0);
+        waitValue.put("maxMillis", TimeUnit.NANOSECONDS.toMillis(waitMaxNanos.get()));
+        objectValue.put("wait", waitValue);
+        return objectValue;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "partitions=" + partitions.length +
+            ", capacity=" + capacity +
+            ", conflate=" + conflate +
+            ", size=" + getSize() +
+            '}';
+    }
+}
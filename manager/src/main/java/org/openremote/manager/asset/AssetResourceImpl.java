@@ -40,8 +40,13 @@ import org.openremote.model.value.Values;
 import javax.persistence.OptimisticLockException;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import static javax.ws.rs.core.Response.Status.*;
@@ -57,14 +62,17 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
 
     protected final static Asset[] EMPTY_ASSETS = new Asset[0];
     protected final AssetStorageService assetStorageService;
+    protected final AssetProcessingService assetProcessingService;
     protected final MessageBrokerService messageBrokerService;
 
     public AssetResourceImpl(TimerService timerService,
                              ManagerIdentityService identityService,
                              AssetStorageService assetStorageService,
+                             AssetProcessingService assetProcessingService,
                              MessageBrokerService messageBrokerService) {
         super(timerService, identityService);
         this.assetStorageService = assetStorageService;
+        this.assetProcessingService = assetProcessingService;
         this.messageBrokerService = messageBrokerService;
     }
 
@@ -412,6 +420,8 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
                         case INVALID_ATTRIBUTE_EXECUTE_STATUS:
                         case INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE:
                             throw new IllegalStateException(processingException);
+                        case QUEUE_FULL:
+                            throw new WebApplicationException(SERVICE_UNAVAILABLE);
                         default:
                             throw processingException;
                     }
@@ -426,6 +436,112 @@ public class AssetResourceImpl extends ManagerWebResource implements AssetResour
         }
     }
 
+    @Override
+    public AttributeWriteResult[] writeAttributeValues(RequestParams requestParams, AttributeEvent[] events) {
+        if (events == null || events.length == 0) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+
+        LOG.fine("Write attribute values request: " + events.length + " event(s)");
+
+        // Queue the valid events in one pass, then wait for all of them
+        List<AttributeEvent> validEvents = new ArrayList<>(events.length);
+        for (AttributeEvent event : events) {
+            if (isValid(event)) {
+                validEvents.add(event);
+            }
+        }
+        List<CompletableFuture<Exception>> futures = assetProcessingService.queueClientEvents(
+            isAuthenticated() ? getAuthContext() : null, validEvents
+        );
+
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]))
+                .get(AssetProcessingService.ASSET_QUEUE_CLIENT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new WebApplicationException(ex, SERVICE_UNAVAILABLE);
+        } catch (ExecutionException | TimeoutException ex) {
+            LOG.fine("Timeout waiting for write attribute values request, returning partial result");
+        }
+
+        AttributeWriteResult[] results = new AttributeWriteResult[events.length];
+        Iterator<CompletableFuture<Exception>> futureIterator = futures.iterator();
+        for (int i = 0; i < events.length; i++) {
+            if (!isValid(events[i])) {
+                results[i] = new AttributeWriteResult(null, AttributeWriteFailure.INVALID_ATTRIBUTE_REF);
+                continue;
+            }
+            CompletableFuture<Exception> future = futureIterator.next();
+            results[i] = new AttributeWriteResult(
+                events[i].getAttributeRef(),
+                future.isDone() ? getWriteFailure(future.getNow(null)) : AttributeWriteFailure.TIMEOUT
+            );
+        }
+        return results;
+    }
+
+    @Override
+    public Response writeAttributeValuesAsync(RequestParams requestParams, AttributeEvent[] events) {
+        if (events == null || events.length == 0 || !Arrays.stream(events).allMatch(AssetResourceImpl::isValid)) {
+            throw new WebApplicationException(BAD_REQUEST);
+        }
+
+        LOG.fine("Write attribute values asynchronously request: " + events.length + " event(s)");
+
+        List<CompletableFuture<Exception>> futures = assetProcessingService.queueClientEvents(
+            isAuthenticated() ? getAuthContext() : null, Arrays.asList(events)
+        );
+
+        // Events rejected when queueing are completed already
+        for (CompletableFuture<Exception> future : futures) {
+            if (future.isDone() && getWriteFailure(future.getNow(null)) == AttributeWriteFailure.QUEUE_FULL) {
+                throw new WebApplicationException(SERVICE_UNAVAILABLE);
+            }
+        }
+
+        return Response.status(ACCEPTED).build();
+    }
+
+    protected static boolean isValid(AttributeEvent event) {
+        return event != null
+            && event.getAttributeState() != null
+            && event.getAttributeRef() != null
+            && !isNullOrEmpty(event.getEntityId())
+            && !isNullOrEmpty(event.getAttributeName());
+    }
+
+    protected static AttributeWriteFailure getWriteFailure(Exception exception) {
+        if (exception == null) {
+            return null;
+        }
+        if (!(exception instanceof AssetProcessingException)) {
+            return AttributeWriteFailure.PROCESSING_FAILURE;
+        }
+        switch (((AssetProcessingException) exception).getReason()) {
+            case ILLEGAL_SOURCE:
+            case NO_AUTH_CONTEXT:
+            case INSUFFICIENT_ACCESS:
+                return AttributeWriteFailure.INSUFFICIENT_ACCESS;
+            case ASSET_NOT_FOUND:
+                return AttributeWriteFailure.ASSET_NOT_FOUND;
+            case ATTRIBUTE_NOT_FOUND:
+                return AttributeWriteFailure.ATTRIBUTE_NOT_FOUND;
+            case INVALID_AGENT_LINK:
+            case ILLEGAL_AGENT_UPDATE:
+            case INVALID_ATTRIBUTE_EXECUTE_STATUS:
+            case INVALID_VALUE_FOR_WELL_KNOWN_ATTRIBUTE:
+            case ATTRIBUTE_VALIDATION_FAILURE:
+            case EVENT_IN_FUTURE:
+            case EVENT_OUTDATED:
+                return AttributeWriteFailure.INVALID_REQUEST;
+            case QUEUE_FULL:
+                return AttributeWriteFailure.QUEUE_FULL;
+            default:
+                return AttributeWriteFailure.PROCESSING_FAILURE;
+        }
+    }
+
     @Override
     public Asset create(RequestParams requestParams, Asset asset) {
         try {
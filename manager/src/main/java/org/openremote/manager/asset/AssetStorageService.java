@@ -28,6 +28,7 @@ import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.property.RRule;
 import org.apache.camel.builder.RouteBuilder;
 import org.hibernate.Session;
+import org.hibernate.Transaction;
 import org.hibernate.jdbc.AbstractReturningWork;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
@@ -39,8 +40,10 @@ import org.openremote.container.security.AuthContext;
 import org.openremote.container.timer.TimerService;
 import org.openremote.container.web.WebService;
 import org.openremote.manager.asset.console.ConsoleResourceImpl;
+import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.event.ClientEventService;
 import org.openremote.manager.rules.AssetQueryPredicate;
+import org.openremote.manager.security.AuthorizationCache;
 import org.openremote.manager.security.ManagerIdentityService;
 import org.openremote.model.Constants;
 import org.openremote.model.ValidationFailure;
@@ -54,6 +57,7 @@ import org.openremote.model.query.AssetQuery;
 import org.openremote.model.query.BaseAssetQuery;
 import org.openremote.model.query.filter.*;
 import org.openremote.model.security.ClientRole;
+import org.openremote.model.security.Tenant;
 import org.openremote.model.security.User;
 import org.openremote.model.util.Pair;
 import org.openremote.model.util.TextUtil;
@@ -66,6 +70,8 @@ import org.postgresql.util.PGobject;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
 import java.sql.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -73,7 +79,10 @@ import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
 import java.util.*;
 import java.util.Date;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -81,6 +90,7 @@ import java.util.stream.Stream;
 
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.manager.event.ClientEventService.CLIENT_EVENT_TOPIC;
 import static org.openremote.manager.event.ClientEventService.getSessionKey;
 import static org.openremote.model.asset.AssetAttribute.attributesFromJson;
@@ -112,10 +122,30 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
     private static final Logger LOG = Logger.getLogger(AssetStorageService.class.getName());
 
+    /**
+     * Attribute values stored with {@link #queueAttributeValue} are buffered and written in batches with this
+     * interval, the default of <code>0</code> disables write-behind and values are stored immediately.
+     */
+    public static final String ASSET_ATTRIBUTE_WRITE_BEHIND_MILLIS = "ASSET_ATTRIBUTE_WRITE_BEHIND_MILLIS";
+    public static final int ASSET_ATTRIBUTE_WRITE_BEHIND_MILLIS_DEFAULT = 0;
+    public static final String ASSET_ATTRIBUTE_WRITE_BEHIND_MAX_PENDING = "ASSET_ATTRIBUTE_WRITE_BEHIND_MAX_PENDING";
+    public static final int ASSET_ATTRIBUTE_WRITE_BEHIND_MAX_PENDING_DEFAULT = 10000;
+    /**
+     * The maximum number of complete assets kept in memory for lookups by identifier, <code>0</code> disables the
+     * cache.
+     */
+    public static final String ASSET_CACHE_MAX_SIZE = "ASSET_CACHE_MAX_SIZE";
+    public static final int ASSET_CACHE_MAX_SIZE_DEFAULT = 10000;
+
     protected TimerService timerService;
     protected PersistenceService persistenceService;
     protected ManagerIdentityService identityService;
     protected ClientEventService clientEventService;
+    protected ManagerExecutorService executorService;
+    protected int writeBehindMillis;
+    protected AssetAttributeWriteBehind writeBehind;
+    protected ScheduledFuture writeBehindFlush;
+    protected AssetCache assetCache;
 
     @Override
     public void init(Container container) throws Exception {
@@ -123,6 +153,21 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         persistenceService = container.getService(PersistenceService.class);
         identityService = container.getService(ManagerIdentityService.class);
         clientEventService = container.getService(ClientEventService.class);
+        executorService = container.getService(ManagerExecutorService.class);
+
+        writeBehindMillis = getInteger(container.getConfig(), ASSET_ATTRIBUTE_WRITE_BEHIND_MILLIS, ASSET_ATTRIBUTE_WRITE_BEHIND_MILLIS_DEFAULT);
+        if (writeBehindMillis > 0) {
+            writeBehind = new AssetAttributeWriteBehind(
+                persistenceService,
+                Math.max(1, getInteger(container.getConfig(), ASSET_ATTRIBUTE_WRITE_BEHIND_MAX_PENDING, ASSET_ATTRIBUTE_WRITE_BEHIND_MAX_PENDING_DEFAULT))
+            );
+            LOG.info("Attribute value write-behind enabled with interval " + writeBehindMillis + "ms: " + writeBehind);
+        }
+
+        int assetCacheMaxSize = getInteger(container.getConfig(), ASSET_CACHE_MAX_SIZE, ASSET_CACHE_MAX_SIZE_DEFAULT);
+        if (assetCacheMaxSize > 0) {
+            assetCache = new AssetCache(assetCacheMaxSize);
+        }
 
         clientEventService.addSubscriptionAuthorizer((auth, subscription) ->
             (subscription.isEventType(AssetTreeModifiedEvent.class) || subscription.isEventType(
@@ -138,6 +183,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                 container.getService(TimerService.class),
                 identityService,
                 this,
+                container.getService(AssetProcessingService.class),
                 container.getService(MessageBrokerService.class)
             )
         );
@@ -153,11 +199,24 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
     @Override
     public void start(Container container) throws Exception {
+        if (writeBehind != null) {
+            writeBehindFlush = executorService.scheduleAtFixedRate(this::flushAttributeValues, writeBehindMillis, writeBehindMillis);
+        }
     }
 
     @Override
     public void stop(Container container) throws Exception {
-
+        if (writeBehindFlush != null) {
+            writeBehindFlush.cancel(false);
+            writeBehindFlush = null;
+        }
+        if (writeBehind != null) {
+            // Persistence service is stopped after this service, write what is left
+            writeBehind.flush();
+            if (writeBehind.getPendingCount() > 0) {
+                LOG.warning("Discarding pending attribute values that could not be written: " + writeBehind.getPendingCount());
+            }
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -167,7 +226,40 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         from(PERSISTENCE_TOPIC)
             .routeId("AssetPersistenceChanges")
             .filter(isPersistenceEventForEntityType(Asset.class))
-            .process(exchange -> publishModificationEvents(exchange.getIn().getBody(PersistenceEvent.class)));
+            .process(exchange -> {
+                PersistenceEvent<Asset> persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                // Also invalidated when merging or deleting through this service, this covers other writers
+                if (assetCache != null && persistenceEvent.getCause() != PersistenceEvent.Cause.INSERT) {
+                    assetCache.invalidateTree(persistenceEvent.getEntity().getId());
+                }
+                // User asset links are deleted by the database cascade, no persistence event
+                if (identityService.getAuthorizationCache() != null && persistenceEvent.getCause() == PersistenceEvent.Cause.DELETE) {
+                    identityService.getAuthorizationCache().invalidateAsset(persistenceEvent.getEntity().getId());
+                }
+                publishModificationEvents(persistenceEvent);
+            });
+
+        // The tenant details of cached assets might have changed
+        from(PERSISTENCE_TOPIC)
+            .routeId("AssetCacheTenantChanges")
+            .filter(isPersistenceEventForEntityType(Tenant.class))
+            .process(exchange -> {
+                PersistenceEvent<Tenant> persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                if (assetCache != null) {
+                    assetCache.invalidateRealm(persistenceEvent.getEntity().getId());
+                }
+            });
+
+        // Linking or unlinking users and assets changes what restricted users can access
+        from(PERSISTENCE_TOPIC)
+            .routeId("UserAssetPersistenceChanges")
+            .filter(isPersistenceEventForEntityType(UserAsset.class))
+            .process(exchange -> {
+                PersistenceEvent<UserAsset> persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                if (identityService.getAuthorizationCache() != null) {
+                    identityService.getAuthorizationCache().invalidateUserAssets(persistenceEvent.getEntity().getId().getUserId());
+                }
+            });
 
         // React if a client wants to read attribute state
         from(CLIENT_EVENT_TOPIC)
@@ -220,6 +312,8 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     public Asset find(String assetId, boolean loadComplete) {
         if (assetId == null)
             throw new IllegalArgumentException("Can't query null asset identifier");
+        if (assetCache != null && loadComplete)
+            return persistenceService.doReturningTransaction(em -> find(em, assetId, true, PRIVATE_READ));
         return find(new AssetQuery().select(new Select(loadComplete ? ALL : ALL_EXCEPT_PATH_AND_ATTRIBUTES)).id(assetId));
     }
 
@@ -237,6 +331,8 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     public Asset find(String assetId, boolean loadComplete, Access access) {
         if (assetId == null)
             throw new IllegalArgumentException("Can't query null asset identifier");
+        if (assetCache != null && loadComplete && access == PRIVATE_READ)
+            return persistenceService.doReturningTransaction(em -> find(em, assetId, true, PRIVATE_READ));
         return find(new AssetQuery().select(new Select(loadComplete ? ALL : ALL_EXCEPT_PATH_AND_ATTRIBUTES, access)).id(
             assetId));
     }
@@ -318,7 +414,22 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
      * @throws IllegalArgumentException if the realm or parent is illegal, or other asset constraint is violated.
      */
     public Asset merge(Asset asset, boolean overrideVersion, String userName) {
-        return persistenceService.doReturningTransaction(em -> {
+        // Pending attribute values are older than the merged state
+        if (writeBehind != null) {
+            writeBehind.flush(asset.getId());
+        }
+        try {
+            return doMerge(asset, overrideVersion, userName);
+        } finally {
+            if (assetCache != null && asset.getId() != null) {
+                assetCache.invalidateTree(asset.getId());
+            }
+        }
+    }
+
+    protected Asset doMerge(Asset asset, boolean overrideVersion, String userName) {
+        AtomicReference<String> linkedUserId = new AtomicReference<>();
+        Asset mergedAsset = persistenceService.doReturningTransaction(em -> {
 
             // Update all empty attribute timestamps with server-time (a caller which doesn't have a
             // reliable time source such as a browser should clear the timestamp when setting an attribute
@@ -393,16 +504,29 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
 
             if (user != null) {
                 storeUserAsset(em, new UserAsset(user.getRealmId(), user.getId(), updatedAsset.getId()));
+                linkedUserId.set(user.getId());
             }
 
             return updatedAsset;
         });
+        invalidateUserAssets(linkedUserId.get());
+        return mergedAsset;
     }
 
     /**
      * @return <code>true</code> if the asset was deleted, false if the asset still has children and can't be deleted.
      */
     public boolean delete(String assetId) {
+        try {
+            return doDelete(assetId);
+        } finally {
+            if (assetCache != null) {
+                assetCache.invalidateTree(assetId);
+            }
+        }
+    }
+
+    protected boolean doDelete(String assetId) {
         return persistenceService.doReturningTransaction(em -> {
             Asset asset = em.find(Asset.class, assetId);
             if (asset != null) {
@@ -413,6 +537,9 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                     return false;
                 LOG.fine("Removing: " + asset);
                 em.remove(asset);
+                if (writeBehind != null) {
+                    writeBehind.discard(assetId);
+                }
             }
             return true;
         });
@@ -423,6 +550,10 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     public boolean isUserAsset(String userId, String assetId) {
+        AuthorizationCache authorizationCache = identityService.getAuthorizationCache();
+        if (authorizationCache != null && !TextUtil.isNullOrEmpty(userId)) {
+            return authorizationCache.getUserAssetIds(userId, () -> findUserAssetIds(userId)).contains(assetId);
+        }
         return persistenceService.doReturningTransaction(entityManager -> {
             try {
                 String queryStr = TextUtil.isNullOrEmpty(userId) ?
@@ -460,6 +591,10 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     }
 
     public boolean isUserAssets(String userId, List<String> assetIds) {
+        AuthorizationCache authorizationCache = identityService.getAuthorizationCache();
+        if (authorizationCache != null && !TextUtil.isNullOrEmpty(userId)) {
+            return authorizationCache.getUserAssetIds(userId, () -> findUserAssetIds(userId)).containsAll(assetIds);
+        }
         return persistenceService.doReturningTransaction(entityManager -> {
             try {
                 return entityManager.createQuery(
@@ -520,6 +655,16 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }));
     }
 
+    protected Set<String> findUserAssetIds(String userId) {
+        return new HashSet<>(persistenceService.doReturningTransaction(entityManager ->
+            entityManager.createQuery(
+                "select ua.id.assetId from UserAsset ua where ua.id.userId = :userId",
+                String.class)
+                .setParameter("userId", userId)
+                .getResultList()
+        ));
+    }
+
     public List<UserAsset> findUserAssets(String realmId, String userId, String assetId) {
         return persistenceService.doReturningTransaction(entityManager -> {
             StringBuilder sb = new StringBuilder();
@@ -553,6 +698,7 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
      */
     public void storeUserAsset(UserAsset userAsset) {
         persistenceService.doTransaction(entityManager -> storeUserAsset(entityManager, userAsset));
+        invalidateUserAssets(userAsset.getId().getUserId());
     }
 
     /**
@@ -565,6 +711,18 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             if (userAsset != null)
                 entityManager.remove(userAsset);
         });
+        invalidateUserAssets(userId);
+    }
+
+    /**
+     * Invalidates the cached asset links of the user once the change was committed, the persistence event is
+     * delivered asynchronously and the user must not keep access to an unlinked asset until then.
+     */
+    protected void invalidateUserAssets(String userId) {
+        AuthorizationCache authorizationCache = identityService.getAuthorizationCache();
+        if (authorizationCache != null && userId != null) {
+            authorizationCache.invalidateUserAssets(userId);
+        }
     }
 
     protected void storeUserAsset(EntityManager entityManager, UserAsset userAsset) {
@@ -591,6 +749,12 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
     protected Asset find(EntityManager em, String assetId, boolean loadComplete, Access access) {
         if (assetId == null)
             throw new IllegalArgumentException("Can't query null asset identifier");
+        if (assetCache != null && loadComplete && access == PRIVATE_READ) {
+            return assetCache.get(assetId, () -> find(
+                em,
+                new AssetQuery().select(new Select(ALL, PRIVATE_READ)).id(assetId)
+            ));
+        }
         return find(
             em,
             new AssetQuery().select(
@@ -619,6 +783,12 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
             @Override
             public List<Asset> execute(Connection connection) throws SQLException {
                 LOG.fine("Executing: " + querySql.querySql);
+                // Values written by a concurrent flush stay in flight until the pending values have been applied
+                Lock writeBehindLock = writeBehind != null && isAttributeValuesIncluded(query.select.include)
+                    ? writeBehind.getReadLock()
+                    : null;
+                if (writeBehindLock != null)
+                    writeBehindLock.lock();
                 try (PreparedStatement st = connection.prepareStatement(querySql.querySql)) {
                     querySql.apply(st);
 
@@ -636,13 +806,29 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                                 result.add(mapResultTuple(query, rs));
                             }
                         }
+                        if (writeBehindLock != null) {
+                            result.forEach(writeBehind::apply);
+                        }
                         return result;
                     }
+                } finally {
+                    if (writeBehindLock != null)
+                        writeBehindLock.unlock();
                 }
             }
         });
     }
 
+    /**
+     * @return <code>true</code> if the projection loads attribute values, pending write-behind values must then be
+     * applied to the loaded attributes (an attribute restricted select only loads some attributes).
+     */
+    protected static boolean isAttributeValuesIncluded(AssetQuery.Include include) {
+        return include == ALL
+            || include == AssetQuery.Include.ALL_EXCEPT_PATH
+            || include == AssetQuery.Include.ONLY_ID_AND_NAME_AND_ATTRIBUTES;
+    }
+
     protected PreparedAssetQuery buildQuery(BaseAssetQuery query) {
         LOG.fine("Building: " + query);
         StringBuilder sb = new StringBuilder();
@@ -1254,6 +1440,91 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
         }
     }
 
+    public boolean isAttributeWriteBehindEnabled() {
+        return writeBehind != null;
+    }
+
+    /**
+     * Store the attribute value with the next write-behind flush, the value is visible immediately on assets
+     * loaded with attribute values. Stores the value immediately if write-behind is disabled.
+     *
+     * @return <code>false</code> if the attribute name is invalid, too many values are pending, or the value could
+     * not be stored.
+     */
+    public boolean queueAttributeValue(EntityManager em, String assetId, String attributeName, Value value, long timestamp) {
+        if (writeBehind == null) {
+            return storeAttributeValue(em, assetId, attributeName, value, Long.toString(timestamp));
+        }
+        // Check we don't have a SQL injection hole in attribute name!
+        if (!AssetAttribute.ATTRIBUTE_NAME_VALIDATOR.test(attributeName)) {
+            LOG.fine(
+                "Invalid attribute name (must match '" + AssetAttribute.ATTRIBUTE_NAME_PATTERN + "'): " + attributeName
+            );
+            return false;
+        }
+        if (!writeBehind.queue(assetId, attributeName, value, timestamp)) {
+            return false;
+        }
+        updateCachedAttributeValue(em, assetId, attributeName, value, timestamp);
+        return true;
+    }
+
+    /**
+     * Write all pending attribute values now, if write-behind is enabled.
+     */
+    public void flushAttributeValues() {
+        if (writeBehind == null)
+            return;
+        try {
+            writeBehind.flush();
+        } catch (Exception ex) {
+            // Don't let an exception cancel the scheduled flush
+            LOG.log(Level.WARNING, "Error flushing attribute values", ex);
+        }
+    }
+
+    public AssetAttributeWriteBehind getAttributeWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Updates the cached asset when the transaction is committed, invalidates it when the transaction is rolled back.
+     */
+    protected void updateCachedAttributeValue(EntityManager em, String assetId, String attributeName, Value value, long timestamp) {
+        if (assetCache == null)
+            return;
+
+        Transaction transaction = em.unwrap(Session.class).getTransaction();
+        if (!transaction.isActive()) {
+            assetCache.updateAttributeValue(assetId, attributeName, value, timestamp);
+            return;
+        }
+
+        assetCache.beginUpdate(assetId);
+        transaction.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                try {
+                    if (status == Status.STATUS_COMMITTED) {
+                        assetCache.updateAttributeValue(assetId, attributeName, value, timestamp);
+                    } else {
+                        assetCache.invalidate(assetId);
+                    }
+                } finally {
+                    assetCache.endUpdate(assetId);
+                }
+            }
+        });
+    }
+
+    public AssetCache getAssetCache() {
+        return assetCache;
+    }
+
     public boolean storeAttributeValue(EntityManager em, String assetId, String attributeName, Value value, String timestamp) {
         return em.unwrap(Session.class).doReturningWork(connection -> {
             String update =
@@ -1302,6 +1573,11 @@ public class AssetStorageService extends RouteBuilder implements ContainerServic
                     + "' attribute '" + attributeName
                     + "' (affected rows: " + updatedRows + ") value: "
                     + (value != null ? value.toJson() : "null"));
+                if (updatedRows == 1) {
+                    updateCachedAttributeValue(em, assetId, attributeName, value, Long.parseLong(timestamp));
+                } else if (assetCache != null) {
+                    assetCache.invalidate(assetId);
+                }
                 return updatedRows == 1;
             }
         });
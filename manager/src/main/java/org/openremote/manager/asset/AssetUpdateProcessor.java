@@ -30,9 +30,11 @@ import javax.persistence.EntityManager;
  * Process update of an asset attribute (value), from a {@link Source}.
  *
  * Implementations don't have to lock the whole context through {@link GlobalLock}, the
- * caller of this has already obtained the lock. Internal synchronization and thread-safety
- * must still be maintained if shared state of a processor can be modified by concurrent tasks
- * maintained by that processor.
+ * caller of this has already obtained the shared lock and the lock of the updated asset.
+ * Updates of different assets are processed concurrently, internal synchronization and
+ * thread-safety must be maintained if shared state of a processor can be modified by
+ * concurrent tasks or by updates of other assets. Never obtain the exclusive
+ * {@link GlobalLock} in a processor.
  */
 public interface AssetUpdateProcessor {
 
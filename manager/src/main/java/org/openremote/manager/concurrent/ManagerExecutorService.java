@@ -20,6 +20,7 @@
 package org.openremote.manager.concurrent;
 
 import org.openremote.agent.protocol.ProtocolExecutorService;
+import org.openremote.agent.protocol.io.NettyEventLoops;
 import org.openremote.container.Container;
 import org.openremote.container.concurrent.ContainerScheduledExecutor;
 
@@ -27,6 +28,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.*;
 
+import static org.openremote.container.util.MapAccess.getBoolean;
 import static org.openremote.container.util.MapAccess.getInteger;
 
 public class ManagerExecutorService implements ProtocolExecutorService {
@@ -39,13 +41,29 @@ public class ManagerExecutorService implements ProtocolExecutorService {
     public static final String SCHEDULED_TASKS_THREADS_MAX = "SCHEDULED_TASKS_THREADS_MAX";
     public static final int SCHEDULED_TASKS_THREADS_MAX_DEFAULT = Math.max(Runtime.getRuntime().availableProcessors(), 2);
 
+    /**
+     * Event loop threads shared by all non-blocking network connections and servers of protocols. Each
+     * thread multiplexes many mostly idle connections, the native epoll transport is used on Linux if
+     * available and enabled.
+     */
+    public static final String PROTOCOL_EVENT_LOOP_THREADS = "PROTOCOL_EVENT_LOOP_THREADS";
+    public static final int PROTOCOL_EVENT_LOOP_THREADS_DEFAULT = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+    public static final String PROTOCOL_EVENT_LOOP_NATIVE = "PROTOCOL_EVENT_LOOP_NATIVE";
+    public static final boolean PROTOCOL_EVENT_LOOP_NATIVE_DEFAULT = true;
+
     protected ScheduledExecutorService scheduledTasksExecutor;
+    protected NettyEventLoops nettyEventLoops;
 
     @Override
     public void init(Container container) throws Exception {
         int scheduledTasksThreadsMax =
             getInteger(container.getConfig(), SCHEDULED_TASKS_THREADS_MAX, SCHEDULED_TASKS_THREADS_MAX_DEFAULT);
         scheduledTasksExecutor = new ContainerScheduledExecutor("Scheduled task", scheduledTasksThreadsMax);
+
+        nettyEventLoops = new NettyEventLoops(
+            Math.max(1, getInteger(container.getConfig(), PROTOCOL_EVENT_LOOP_THREADS, PROTOCOL_EVENT_LOOP_THREADS_DEFAULT)),
+            getBoolean(container.getConfig(), PROTOCOL_EVENT_LOOP_NATIVE, PROTOCOL_EVENT_LOOP_NATIVE_DEFAULT)
+        );
     }
 
     @Override
@@ -55,6 +73,7 @@ public class ManagerExecutorService implements ProtocolExecutorService {
     @Override
     public void stop(Container container) throws Exception {
         scheduledTasksExecutor.shutdownNow();
+        nettyEventLoops.shutdown();
     }
 
     @Override
@@ -72,6 +91,11 @@ public class ManagerExecutorService implements ProtocolExecutorService {
         return scheduledTasksExecutor.scheduleWithFixedDelay(runnable, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS);
     }
 
+    @Override
+    public NettyEventLoops getNettyEventLoops() {
+        return nettyEventLoops;
+    }
+
     @Override
     public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
         return scheduledTasksExecutor.schedule(command, delay, unit);
@@ -161,6 +185,8 @@ public class ManagerExecutorService implements ProtocolExecutorService {
 
     @Override
     public String toString() {
-        return getClass().getSimpleName() + "{}";
+        return getClass().getSimpleName() + "{" +
+            "nettyEventLoops=" + nettyEventLoops +
+            '}';
     }
 }
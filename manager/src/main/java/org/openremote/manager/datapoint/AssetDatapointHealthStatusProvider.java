@@ -61,6 +61,19 @@ public class AssetDatapointHealthStatusProvider implements HealthStatusProvider,
     public Value getHealthStatus() {
         ObjectValue value = Values.createObject();
         value.put("totalDatapoints", assetDatapointService.getDatapointsCount());
+
+        AssetDatapointStorage datapointStorage = assetDatapointService.getDatapointStorage();
+        if (datapointStorage != null) {
+            value.put("pendingDatapoints", datapointStorage.getPendingCount());
+            value.put("failedDatapoints", datapointStorage.getFailedCount());
+            value.put("queuedDatapoints", datapointStorage.getDatapointsQueued());
+            value.put("insertedDatapoints", datapointStorage.getDatapointsInserted());
+            value.put("discardedDatapoints", datapointStorage.getDatapointsDiscarded());
+            value.put("insertedBatches", datapointStorage.getBatchesInserted());
+            value.put("insertFailures", datapointStorage.getInsertFailures());
+            value.put("partitions", datapointStorage.getPartitionCount());
+            value.put("droppedPartitions", datapointStorage.getPartitionsDropped());
+        }
         return value;
     }
 }
@@ -34,6 +34,7 @@ import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledFuture;
@@ -51,11 +52,23 @@ import static java.util.stream.Collectors.toList;
  * {@link org.openremote.model.asset.AssetMeta#DATA_POINTS_MAX_AGE_DAYS} {@link org.openremote.model.attribute.MetaItem}
  * and {@link #DATA_POINTS_MAX_AGE_DAYS} setting; storage duration defaults to {@value #DATA_POINTS_MAX_AGE_DAYS_DEFAULT}
  * days.
+ * <p>
+ * Each datapoint is stored in the transaction of the attribute update by default. Set
+ * {@link #DATA_POINTS_INSERT_BATCH_MILLIS} to a positive interval to buffer datapoints and insert them in bulk into
+ * time partitions of the datapoint table instead, see {@link AssetDatapointStorage}. Buffered datapoints are not
+ * visible until they have been inserted. Number and boolean datapoints are added to rollups in both cases, charts
+ * are aggregated from the rollups.
  */
 public class AssetDatapointService implements ContainerService, AssetUpdateProcessor {
 
     public static final String DATA_POINTS_MAX_AGE_DAYS = "DATA_POINTS_MAX_AGE_DAYS";
     public static final String DATA_POINTS_MAX_AGE_DAYS_DEFAULT = "30";
+    public static final String DATA_POINTS_INSERT_BATCH_MILLIS = "DATA_POINTS_INSERT_BATCH_MILLIS";
+    public static final String DATA_POINTS_INSERT_BATCH_MILLIS_DEFAULT = "0";
+    public static final String DATA_POINTS_INSERT_MAX_PENDING = "DATA_POINTS_INSERT_MAX_PENDING";
+    public static final String DATA_POINTS_INSERT_MAX_PENDING_DEFAULT = "50000";
+    public static final String DATA_POINTS_PARTITIONING = "DATA_POINTS_PARTITIONING";
+    public static final String DATA_POINTS_PARTITIONING_DEFAULT = AssetDatapointStorage.Partitioning.MONTH.name();
     private static final Logger LOG = Logger.getLogger(AssetDatapointService.class.getName());
     protected PersistenceService persistenceService;
     protected AssetStorageService assetStorageService;
@@ -63,6 +76,9 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
     protected ManagerExecutorService managerExecutorService;
     protected int maxDatapointAgeDays;
     protected ScheduledFuture dataPointsPurgeScheduledFuture;
+    protected int insertBatchMillis;
+    protected AssetDatapointStorage datapointStorage;
+    protected ScheduledFuture dataPointsInsertScheduledFuture;
 
     @Override
     public void init(Container container) throws Exception {
@@ -87,6 +103,22 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         if (maxDatapointAgeDays <= 0) {
             LOG.warning(DATA_POINTS_MAX_AGE_DAYS + " value is not a valid value so data points won't be auto purged");
         }
+
+        insertBatchMillis = Integer.parseInt(
+                container.getConfig().getOrDefault(DATA_POINTS_INSERT_BATCH_MILLIS, DATA_POINTS_INSERT_BATCH_MILLIS_DEFAULT)
+        );
+        datapointStorage = new AssetDatapointStorage(
+                persistenceService,
+                AssetDatapointStorage.Partitioning.valueOf(
+                        container.getConfig().getOrDefault(DATA_POINTS_PARTITIONING, DATA_POINTS_PARTITIONING_DEFAULT)
+                ),
+                Math.max(1, Integer.parseInt(
+                        container.getConfig().getOrDefault(DATA_POINTS_INSERT_MAX_PENDING, DATA_POINTS_INSERT_MAX_PENDING_DEFAULT)
+                ))
+        );
+        if (insertBatchMillis > 0) {
+            LOG.info("Inserting data points in batches every " + insertBatchMillis + "ms: " + datapointStorage);
+        }
     }
 
     @Override
@@ -100,6 +132,13 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                     period);
 
         }
+        datapointStorage.load();
+        if (insertBatchMillis > 0) {
+            dataPointsInsertScheduledFuture = managerExecutorService.scheduleAtFixedRate(
+                    this::flushDatapoints,
+                    insertBatchMillis,
+                    insertBatchMillis);
+        }
     }
 
     @Override
@@ -107,6 +146,16 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         if (dataPointsPurgeScheduledFuture != null) {
             dataPointsPurgeScheduledFuture.cancel(true);
         }
+        if (dataPointsInsertScheduledFuture != null) {
+            dataPointsInsertScheduledFuture.cancel(false);
+        }
+        if (insertBatchMillis > 0) {
+            // Persistence service is stopped after this service, insert what is left
+            datapointStorage.flush();
+            if (datapointStorage.getFailedCount() > 0) {
+                LOG.warning("Discarding datapoints that could not be inserted: " + datapointStorage.getFailedCount());
+            }
+        }
     }
 
     @Override
@@ -120,7 +169,12 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                 && attribute.getStateEvent().get().getValue().isPresent()) { // Don't store datapoints with null value
             LOG.finest("Storing datapoint for: " + attribute);
             AssetDatapoint assetDatapoint = new AssetDatapoint(attribute.getStateEvent().get());
-            em.persist(assetDatapoint);
+            if (insertBatchMillis > 0) {
+                datapointStorage.queue(assetDatapoint);
+            } else {
+                em.persist(assetDatapoint);
+                datapointStorage.addToRollups(em, assetDatapoint);
+            }
         }
         return false;
     }
@@ -139,6 +193,24 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
     }
 
 
+    /**
+     * Insert all buffered datapoints now, if datapoints are inserted in batches.
+     */
+    public void flushDatapoints() {
+        if (insertBatchMillis <= 0)
+            return;
+        try {
+            datapointStorage.flush();
+        } catch (Exception ex) {
+            // Don't let an exception cancel the scheduled insert
+            LOG.log(Level.WARNING, "Error inserting data points", ex);
+        }
+    }
+
+    public AssetDatapointStorage getDatapointStorage() {
+        return datapointStorage;
+    }
+
     public long getDatapointsCount() {
         return getDatapointsCount(null);
     }
@@ -167,6 +239,19 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
     public NumberDatapoint[] aggregateDatapoints(AssetAttribute attribute,
                                                  DatapointInterval datapointInterval,
                                                  long timestamp) {
+        return aggregateDatapoints(attribute, datapointInterval, timestamp, true);
+    }
+
+    /**
+     * The first and last intervals are aggregated completely, also outside the requested period, so the result is
+     * the same whether it is aggregated from the rollups or the datapoints.
+     *
+     * @param useRollups Aggregate the rollups instead of the datapoints, if they have buckets which fit the intervals.
+     */
+    protected NumberDatapoint[] aggregateDatapoints(AssetAttribute attribute,
+                                                    DatapointInterval datapointInterval,
+                                                    long timestamp,
+                                                    boolean useRollups) {
         LOG.fine("Aggregating datapoints for: " + attribute);
 
         AttributeRef attributeRef = attribute.getReferenceOrThrow();
@@ -218,35 +303,68 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                                 throw new IllegalArgumentException("Can't handle interval: " + datapointInterval);
                         }
 
-                        StringBuilder query = new StringBuilder();
-
-                        query.append("select TS as X, coalesce(AVG_VALUE, null) as Y " +
-                                " from ( " +
-                                "       select date_trunc(?, GS)::timestamp TS " +
-                                "       from generate_series(to_timestamp(?) - ?, to_timestamp(?), ?) GS " +
-                                "       ) TS " +
-                                "  left join ( " +
-                                "       select " +
-                                "           date_trunc(?, to_timestamp(TIMESTAMP / 1000))::timestamp as TS, ");
-
+                        String numberExpression;
                         switch (attribute.getTypeOrThrow().getValueType()) {
                             case NUMBER:
-                                query.append(" AVG(VALUE::text::numeric) as AVG_VALUE ");
+                                numberExpression = "VALUE::text::numeric";
                                 break;
                             case BOOLEAN:
-                                query.append(" AVG(case when VALUE::text::boolean is true then 1 else 0 end) as AVG_VALUE ");
+                                numberExpression = "case when VALUE::text::boolean is true then 1 else 0 end";
                                 break;
                             default:
                                 throw new IllegalArgumentException("Can't aggregate number datapoints for type of: " + attribute);
                         }
 
-                        query.append(" from ASSET_DATAPOINT " +
+                        // Use the coarsest rollup with buckets that fit into the truncated intervals
+                        AssetDatapointStorage.RollupResolution rollupResolution = useRollups
+                                ? datapointStorage.getRollupResolution(truncateX)
+                                : null;
+
+                        StringBuilder query = new StringBuilder();
+
+                        query.append("select TS as X, AVG_VALUE as Y, MIN_VALUE, MAX_VALUE " +
+                                " from ( " +
+                                "       select date_trunc(?, GS)::timestamp TS " +
+                                "       from generate_series(to_timestamp(?) - ?, to_timestamp(?), ?) GS " +
+                                "       ) TS " +
+                                "  left join ( " +
+                                "       select ");
+
+                        // Compare the raw millisecond timestamp with constant bounds, so the index can be used, the
+                        // bounds are the edges of the first and last truncated intervals which rollup buckets fit into
+                        if (rollupResolution != null) {
+                            query.append(
+                                "           date_trunc(?, to_timestamp(BUCKET / 1000))::timestamp as TS, " +
+                                "           sum(SUM_VALUE) / sum(VALUE_COUNT) as AVG_VALUE, " +
+                                "           min(MIN_VALUE) as MIN_VALUE, " +
+                                "           max(MAX_VALUE) as MAX_VALUE " +
+                                "         from ASSET_DATAPOINT_ROLLUP " +
                                 "         where " +
-                                "           to_timestamp(TIMESTAMP / 1000) >= to_timestamp(?) - ? " +
+                                "           ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
                                 "           and " +
-                                "           to_timestamp(TIMESTAMP / 1000) <= to_timestamp(?) " +
+                                "           RESOLUTION = '" + rollupResolution.name() + "' " +
                                 "           and " +
+                                "           BUCKET >= (extract(epoch from date_trunc(?, to_timestamp(?) - ?)) * 1000)::int8 " +
+                                "           and " +
+                                "           BUCKET < (extract(epoch from date_trunc(?, to_timestamp(?)) + ?) * 1000)::int8 "
+                            );
+                        } else {
+                            query.append(
+                                "           date_trunc(?, to_timestamp(TIMESTAMP / 1000))::timestamp as TS, " +
+                                "           AVG(" + numberExpression + ") as AVG_VALUE, " +
+                                "           MIN(" + numberExpression + ") as MIN_VALUE, " +
+                                "           MAX(" + numberExpression + ") as MAX_VALUE " +
+                                "         from ASSET_DATAPOINT " +
+                                "         where " +
                                 "           ENTITY_ID = ? and ATTRIBUTE_NAME = ? " +
+                                "           and " +
+                                "           TIMESTAMP >= (extract(epoch from date_trunc(?, to_timestamp(?) - ?)) * 1000)::int8 " +
+                                "           and " +
+                                "           TIMESTAMP < (extract(epoch from date_trunc(?, to_timestamp(?)) + ?) * 1000)::int8 "
+                            );
+                        }
+
+                        query.append(
                                 "         group by TS " +
                                 "  ) DP using (TS) " +
                                 " order by TS asc "
@@ -261,18 +379,23 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                             st.setLong(4, timestampSeconds);
                             st.setObject(5, new PGInterval(step));
                             st.setString(6, truncateX);
-                            st.setLong(7, timestampSeconds);
-                            st.setObject(8, new PGInterval(interval));
-                            st.setLong(9, timestampSeconds);
-                            st.setString(10, attributeRef.getEntityId());
-                            st.setString(11, attributeRef.getAttributeName());
+                            st.setString(7, attributeRef.getEntityId());
+                            st.setString(8, attributeRef.getAttributeName());
+                            st.setString(9, truncateX);
+                            st.setLong(10, timestampSeconds);
+                            st.setObject(11, new PGInterval(interval));
+                            st.setString(12, truncateX);
+                            st.setLong(13, timestampSeconds);
+                            st.setObject(14, new PGInterval(step));
 
                             try (ResultSet rs = st.executeQuery()) {
                                 List<NumberDatapoint> result = new ArrayList<>();
                                 while (rs.next()) {
                                     String label = labelFunction.apply(rs.getTimestamp(1));
                                     Number value = rs.getObject(2) != null ? rs.getDouble(2) : null;
-                                    result.add(new NumberDatapoint(label, value));
+                                    Number min = rs.getObject(3) != null ? rs.getDouble(3) : null;
+                                    Number max = rs.getObject(4) != null ? rs.getDouble(4) : null;
+                                    result.add(new NumberDatapoint(label, value, min, max));
                                 }
                                 return result.toArray(new NumberDatapoint[result.size()]);
                             }
@@ -303,13 +426,29 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                 .flatMap(List::stream)
                 .collect(toList());
 
+        // Drop partitions older than the max age of all their attributes, this is cheaper than deleting their rows
+        Map<AttributeRef, Long> attributeCutoffs = new HashMap<>();
+        attributes.forEach(attribute -> attributeCutoffs.put(
+                attribute.getReferenceOrThrow(),
+                getCutoffMillis(attribute
+                        .getMetaItem(AssetMeta.DATA_POINTS_MAX_AGE_DAYS)
+                        .flatMap(metaItem -> Values.getIntegerCoerced(metaItem.getValue().orElse(null)))
+                        .orElse(maxDatapointAgeDays))
+        ));
+        int dropped = datapointStorage.dropPartitionsBefore(getCutoffMillis(maxDatapointAgeDays), attributeCutoffs);
+        LOG.fine("Dropped data point partitions older than the max age of their attributes: " + dropped);
+
         // Purge data points not in the above list using default duration
         LOG.fine("Purging data points of attributes that use default max age days of " + maxDatapointAgeDays);
 
-        persistenceService.doTransaction(em -> em.createQuery(
-                "delete from AssetDatapoint dp " +
-                        "where dp.timestamp < :dt" + buildWhereClause(attributes, true)
-        ).setParameter("dt", 1000L * timerService.getNow().truncatedTo(DAYS).minus(maxDatapointAgeDays, DAYS).getEpochSecond()).executeUpdate());
+        long defaultCutoff = getCutoffMillis(maxDatapointAgeDays);
+        persistenceService.doTransaction(em -> {
+            em.createQuery(
+                    "delete from AssetDatapoint dp " +
+                            "where dp.timestamp < :dt" + buildWhereClause(attributes, true)
+            ).setParameter("dt", defaultCutoff).executeUpdate();
+            purgeRollups(em, defaultCutoff, attributes, true);
+        });
 
         if (!attributes.isEmpty()) {
             // Purge data points that have specific age constraints
@@ -325,10 +464,14 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                 LOG.fine("Purging data points of " + attrs.size() + " attributes that use a max age of " + age);
 
                 try {
-                    persistenceService.doTransaction(em -> em.createQuery(
-                            "delete from AssetDatapoint dp " +
-                                    "where dp.timestamp < :dt" + buildWhereClause(attrs, false)
-                    ).setParameter("dt", 1000L * timerService.getNow().truncatedTo(DAYS).minus(age, DAYS).getEpochSecond()).executeUpdate());
+                    long cutoff = getCutoffMillis(age);
+                    persistenceService.doTransaction(em -> {
+                        em.createQuery(
+                                "delete from AssetDatapoint dp " +
+                                        "where dp.timestamp < :dt" + buildWhereClause(attrs, false)
+                        ).setParameter("dt", cutoff).executeUpdate();
+                        purgeRollups(em, cutoff, attrs, false);
+                    });
                 } catch (Exception e) {
                     LOG.log(Level.SEVERE, "An error occurred whilst deleting data points, this should not happen", e);
                 }
@@ -338,7 +481,31 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
         LOG.info("Finished data points purge daily task");
     }
 
+    protected long getCutoffMillis(int maxAgeDays) {
+        return 1000L * timerService.getNow().truncatedTo(DAYS).minus(maxAgeDays, DAYS).getEpochSecond();
+    }
+
+    /**
+     * Delete the rollup buckets which end before the cutoff, using the same attribute filter as the datapoints.
+     */
+    protected void purgeRollups(EntityManager em, long cutoff, List<AssetAttribute> attributes, boolean negate) {
+        StringBuilder resolutionMillis = new StringBuilder("case RESOLUTION");
+        for (AssetDatapointStorage.RollupResolution resolution : AssetDatapointStorage.RollupResolution.values()) {
+            resolutionMillis.append(" when '").append(resolution.name()).append("' then ").append(resolution.millis);
+        }
+        resolutionMillis.append(" end");
+        em.createNativeQuery(
+                "delete from ASSET_DATAPOINT_ROLLUP " +
+                        "where BUCKET + " + resolutionMillis + " <= :dt" +
+                        buildWhereClause(attributes, negate, "ENTITY_ID", "ATTRIBUTE_NAME")
+        ).setParameter("dt", cutoff).executeUpdate();
+    }
+
     protected String buildWhereClause(List<AssetAttribute> attributes, boolean negate) {
+        return buildWhereClause(attributes, negate, "dp.entityId", "dp.attributeName");
+    }
+
+    protected String buildWhereClause(List<AssetAttribute> attributes, boolean negate, String entityIdProperty, String attributeNameProperty) {
 
         if (attributes.isEmpty()) {
             return "";
@@ -351,7 +518,7 @@ public class AssetDatapointService implements ContainerService, AssetUpdateProce
                 })
                 .collect(Collectors.joining(","));
 
-        return " and (dp.entityId, dp.attributeName) " + (negate ? "not " : "") + "in (" + whereStr + ")";
+        return " and (" + entityIdProperty + ", " + attributeNameProperty + ") " + (negate ? "not " : "") + "in (" + whereStr + ")";
     }
 
     protected long getFirstRunMillis(Instant currentTime) {
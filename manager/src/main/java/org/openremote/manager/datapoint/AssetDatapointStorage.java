@@ -0,0 +1,621 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.datapoint;
+
+import org.hibernate.Session;
+import org.openremote.container.persistence.PersistenceService;
+import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.datapoint.AssetDatapoint;
+import org.openremote.model.value.Values;
+import org.postgresql.PGConnection;
+
+import javax.persistence.EntityManager;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.time.zone.ZoneRules;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Time-partitioned storage of {@link AssetDatapoint}s. The <code>ASSET_DATAPOINT</code> table is the parent of
+ * child tables (partitions) which each hold the datapoints of a day or month (UTC), queries on the parent table
+ * include all partitions. Partitions are created on demand and have a primary key/index on entity identifier,
+ * attribute name and timestamp, so range queries on the raw millisecond timestamp can use an index.
+ * <p>
+ * Datapoints are buffered and inserted in bulk: a batch is copied into a temporary staging table with
+ * <code>COPY</code> and then moved into its partitions, ignoring datapoints of deleted assets and duplicates, also
+ * of datapoints still stored in the parent table. The number of buffered datapoints is bounded, when the limit is
+ * reached the producer flushes synchronously.
+ * <p>
+ * A batch which could not be inserted (e.g. the database is temporarily unavailable) is retried before newer
+ * batches with the next flush, up to {@link #MAX_INSERT_ATTEMPTS} times. Batches waiting to be retried are bounded
+ * by the maximum number of buffered datapoints, the oldest are discarded first.
+ * <p>
+ * Retention drops whole partitions which only contain datapoints older than the cutoff of their attribute.
+ * <p>
+ * Inserted number and boolean datapoints are added to the minimum, maximum, sum and count of their minute, hour
+ * and day buckets in <code>ASSET_DATAPOINT_ROLLUP</code>, in the same transaction. Datapoints which are not inserted
+ * in bulk must be added to the rollups with {@link #addToRollups} in the transaction storing them.
+ */
+public class AssetDatapointStorage {
+
+    private static final Logger LOG = Logger.getLogger(AssetDatapointStorage.class.getName());
+
+    public enum Partitioning {
+        DAY,
+        MONTH
+    }
+
+    /**
+     * The bucket sizes of the <code>ASSET_DATAPOINT_ROLLUP</code> table, buckets are aligned to UTC.
+     */
+    public enum RollupResolution {
+        MINUTE(60000L),
+        HOUR(3600000L),
+        DAY(86400000L);
+
+        final public long millis;
+
+        RollupResolution(long millis) {
+            this.millis = millis;
+        }
+    }
+
+    public static final int MAX_INSERT_ATTEMPTS = 5;
+
+    protected static final String PARTITION_PREFIX = "asset_datapoint_";
+    protected static final String ROLLUP_COLUMNS =
+        "(ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, BUCKET, MIN_VALUE, MAX_VALUE, SUM_VALUE, VALUE_COUNT) ";
+    protected static final String ROLLUP_CONFLICT_UPDATE =
+        "on conflict (ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, BUCKET) do update set " +
+            "MIN_VALUE = least(R.MIN_VALUE, excluded.MIN_VALUE), " +
+            "MAX_VALUE = greatest(R.MAX_VALUE, excluded.MAX_VALUE), " +
+            "SUM_VALUE = R.SUM_VALUE + excluded.SUM_VALUE, " +
+            "VALUE_COUNT = R.VALUE_COUNT + excluded.VALUE_COUNT";
+    protected static final DateTimeFormatter PARTITION_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    protected static class Partition {
+        final String name;
+        final long startMillis;
+        final long endMillis;
+
+        Partition(String name, long startMillis, long endMillis) {
+            this.name = name;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+    }
+
+    protected static class FailedBatch {
+        final List<AssetDatapoint> datapoints;
+        int attempts;
+
+        FailedBatch(List<AssetDatapoint> datapoints, int attempts) {
+            this.datapoints = datapoints;
+            this.attempts = attempts;
+        }
+    }
+
+    final protected PersistenceService persistenceService;
+    final protected Partitioning partitioning;
+    final protected int maxPending;
+    final protected Set<String> knownPartitions = ConcurrentHashMap.newKeySet();
+    // Guarded by knownPartitions, the same as inserts
+    final protected Deque<FailedBatch> failedBatches = new ArrayDeque<>();
+    protected int failedDatapoints;
+
+    protected List<AssetDatapoint> pending = new ArrayList<>();
+    protected ZoneId sessionTimeZone = ZoneOffset.UTC;
+
+    final protected AtomicLong datapointsQueued = new AtomicLong();
+    final protected AtomicLong datapointsInserted = new AtomicLong();
+    final protected AtomicLong datapointsDiscarded = new AtomicLong();
+    final protected AtomicLong batchesInserted = new AtomicLong();
+    final protected AtomicLong insertFailures = new AtomicLong();
+    final protected AtomicLong partitionsDropped = new AtomicLong();
+
+    public AssetDatapointStorage(PersistenceService persistenceService, Partitioning partitioning, int maxPending) {
+        this.persistenceService = persistenceService;
+        this.partitioning = partitioning;
+        this.maxPending = maxPending;
+    }
+
+    public void queue(AssetDatapoint datapoint) {
+        boolean full;
+        synchronized (this) {
+            pending.add(datapoint);
+            full = pending.size() >= maxPending;
+        }
+        datapointsQueued.incrementAndGet();
+        if (full) {
+            LOG.fine("Too many pending datapoints, flushing on producer thread: " + maxPending);
+            flush();
+        }
+    }
+
+    /**
+     * Insert all pending datapoints, after retrying batches that could not be inserted before.
+     */
+    public void flush() {
+        List<AssetDatapoint> batch;
+        synchronized (this) {
+            batch = pending;
+            if (!batch.isEmpty()) {
+                pending = new ArrayList<>();
+            }
+        }
+        // Serialize inserts, partitions are created as needed
+        synchronized (knownPartitions) {
+            if (failedBatches.isEmpty() && batch.isEmpty())
+                return;
+
+            // Keep the order of batches, stop retrying when the database is still failing
+            boolean failing = false;
+            while (!failedBatches.isEmpty()) {
+                FailedBatch failedBatch = failedBatches.peekFirst();
+                if (!insert(failedBatch.datapoints)) {
+                    failedBatch.attempts++;
+                    if (failedBatch.attempts >= MAX_INSERT_ATTEMPTS) {
+                        failedBatches.pollFirst();
+                        failedDatapoints -= failedBatch.datapoints.size();
+                        discard(failedBatch, "too many attempts");
+                    }
+                    failing = true;
+                    break;
+                }
+                failedBatches.pollFirst();
+                failedDatapoints -= failedBatch.datapoints.size();
+            }
+
+            if (batch.isEmpty())
+                return;
+            if (failing) {
+                retry(new FailedBatch(batch, 0));
+            } else if (!insert(batch)) {
+                retry(new FailedBatch(batch, 1));
+            }
+        }
+    }
+
+    /**
+     * Add a number or boolean datapoint to its rollup buckets, in the transaction which stores the datapoint.
+     */
+    public void addToRollups(EntityManager em, AssetDatapoint datapoint) {
+        Double number = Values.getNumber(datapoint.getValue()).orElseGet(() ->
+            Values.getBoolean(datapoint.getValue()).map(value -> value ? 1d : 0d).orElse(null)
+        );
+        if (number == null)
+            return;
+
+        StringBuilder buckets = new StringBuilder();
+        for (RollupResolution resolution : RollupResolution.values()) {
+            buckets.append(buckets.length() > 0 ? ", " : "")
+                .append("('").append(resolution.name()).append("', ")
+                .append(datapoint.getTimestamp() - datapoint.getTimestamp() % resolution.millis).append(")");
+        }
+        em.createNativeQuery(
+            "insert into ASSET_DATAPOINT_ROLLUP as R " + ROLLUP_COLUMNS +
+                "select :entityId, :attributeName, B.RESOLUTION, B.BUCKET, :number, :number, :number, 1 " +
+                "from (values " + buckets + ") as B (RESOLUTION, BUCKET) " +
+                ROLLUP_CONFLICT_UPDATE
+        )
+            .setParameter("entityId", datapoint.getEntityId())
+            .setParameter("attributeName", datapoint.getAttributeName())
+            .setParameter("number", BigDecimal.valueOf(number))
+            .executeUpdate();
+    }
+
+    public int getPendingCount() {
+        synchronized (this) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return The number of datapoints of batches waiting to be retried.
+     */
+    public int getFailedCount() {
+        synchronized (knownPartitions) {
+            return failedDatapoints;
+        }
+    }
+
+    public long getDatapointsQueued() {
+        return datapointsQueued.get();
+    }
+
+    public long getDatapointsInserted() {
+        return datapointsInserted.get();
+    }
+
+    public long getDatapointsDiscarded() {
+        return datapointsDiscarded.get();
+    }
+
+    public long getBatchesInserted() {
+        return batchesInserted.get();
+    }
+
+    public long getInsertFailures() {
+        return insertFailures.get();
+    }
+
+    public long getPartitionsDropped() {
+        return partitionsDropped.get();
+    }
+
+    public int getPartitionCount() {
+        return knownPartitions.size();
+    }
+
+    /**
+     * Read the existing partitions and the time zone used by <code>date_trunc</code> from the database.
+     */
+    public void load() {
+        synchronized (knownPartitions) {
+            getPartitions().forEach(partition -> knownPartitions.add(partition.name));
+            LOG.fine("Existing datapoint partitions: " + knownPartitions.size());
+        }
+        String timeZone = persistenceService.doReturningTransaction(em ->
+            (String) em.createNativeQuery("select current_setting('TimeZone')").getSingleResult()
+        );
+        try {
+            sessionTimeZone = ZoneId.of(timeZone);
+        } catch (DateTimeException ex) {
+            LOG.warning("Unknown database session time zone, not using day and hour rollups: " + timeZone);
+            sessionTimeZone = null;
+        }
+    }
+
+    /**
+     * @param truncateTo The <code>date_trunc</code> field of the aggregation.
+     * @return The coarsest rollup of which every bucket is within one truncated interval in the database session
+     * time zone, or <code>null</code> if there is no such rollup.
+     */
+    public RollupResolution getRollupResolution(String truncateTo) {
+        switch (truncateTo) {
+            case "minute":
+                return RollupResolution.MINUTE;
+            case "hour":
+                return isAligned(RollupResolution.HOUR) ? RollupResolution.HOUR : RollupResolution.MINUTE;
+            case "day":
+            case "month":
+            case "year":
+                if (isAligned(RollupResolution.DAY))
+                    return RollupResolution.DAY;
+                return isAligned(RollupResolution.HOUR) ? RollupResolution.HOUR : RollupResolution.MINUTE;
+            default:
+                return null;
+        }
+    }
+
+    protected boolean isAligned(RollupResolution resolution) {
+        if (sessionTimeZone == null)
+            return resolution == RollupResolution.MINUTE;
+        ZoneRules rules = sessionTimeZone.getRules();
+        if (resolution == RollupResolution.DAY) {
+            return rules.isFixedOffset() && rules.getOffset(Instant.EPOCH).getTotalSeconds() == 0;
+        }
+        // All offsets of the time zone (standard and daylight saving) must be whole multiples of the bucket
+        Instant now = Instant.now();
+        return rules.getStandardOffset(now).getTotalSeconds() * 1000L % resolution.millis == 0
+            && rules.getOffset(now).getTotalSeconds() * 1000L % resolution.millis == 0;
+    }
+
+    /**
+     * Drop all partitions which only contain datapoints older than the cutoff of their attribute.
+     *
+     * @param cutoffMillis          The cutoff of attributes without their own maximum age.
+     * @param attributeCutoffMillis The cutoffs of attributes with their own maximum age.
+     * @return The number of dropped partitions.
+     */
+    public int dropPartitionsBefore(long cutoffMillis, Map<AttributeRef, Long> attributeCutoffMillis) {
+        long latestCutoffMillis = attributeCutoffMillis.values().stream().reduce(cutoffMillis, Math::max);
+        synchronized (knownPartitions) {
+            List<Partition> partitions = getPartitions();
+            int dropped = 0;
+            for (Partition partition : partitions) {
+                if (partition.endMillis > latestCutoffMillis)
+                    continue;
+                try {
+                    boolean isDropped = persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+                        if (isRetained(connection, partition, cutoffMillis, attributeCutoffMillis)) {
+                            LOG.fine("Keeping datapoint partition with datapoints of attributes after their cutoff: " + partition.name);
+                            return false;
+                        }
+                        LOG.info("Dropping datapoint partition older than cutoff: " + partition.name);
+                        try (Statement statement = connection.createStatement()) {
+                            statement.executeUpdate("drop table if exists " + partition.name);
+                        }
+                        return true;
+                    }));
+                    if (isDropped) {
+                        knownPartitions.remove(partition.name);
+                        partitionsDropped.incrementAndGet();
+                        dropped++;
+                    }
+                } catch (Exception ex) {
+                    LOG.log(Level.WARNING, "Dropping datapoint partition failed: " + partition.name, ex);
+                }
+            }
+            return dropped;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the partition contains datapoints of an attribute with a cutoff before the end of
+     * the partition.
+     */
+    protected boolean isRetained(Connection connection, Partition partition, long cutoffMillis, Map<AttributeRef, Long> attributeCutoffMillis) throws SQLException {
+        // If the partition ends after the default cutoff, only attributes which may be dropped can be in it,
+        // otherwise none of the attributes which must be retained
+        boolean retainDefault = partition.endMillis > cutoffMillis;
+        List<AttributeRef> attributeRefs = new ArrayList<>();
+        attributeCutoffMillis.forEach((attributeRef, attributeCutoff) -> {
+            if ((attributeCutoff >= partition.endMillis) == retainDefault)
+                attributeRefs.add(attributeRef);
+        });
+        if (!retainDefault && attributeRefs.isEmpty())
+            return false;
+
+        try (PreparedStatement statement = connection.prepareStatement(
+            "select exists (select 1 from " + partition.name + " " +
+                "where (ENTITY_ID, ATTRIBUTE_NAME) " + (retainDefault ? "not in" : "in") + " (select * from unnest(?, ?)))"
+        )) {
+            statement.setArray(1, connection.createArrayOf("text", attributeRefs.stream().map(AttributeRef::getEntityId).toArray()));
+            statement.setArray(2, connection.createArrayOf("text", attributeRefs.stream().map(AttributeRef::getAttributeName).toArray()));
+            try (ResultSet rs = statement.executeQuery()) {
+                rs.next();
+                return rs.getBoolean(1);
+            }
+        }
+    }
+
+    protected void retry(FailedBatch batch) {
+        failedBatches.addLast(batch);
+        failedDatapoints += batch.datapoints.size();
+        while (failedDatapoints > maxPending && failedBatches.size() > 1) {
+            FailedBatch oldest = failedBatches.pollFirst();
+            failedDatapoints -= oldest.datapoints.size();
+            discard(oldest, "too many failed datapoints");
+        }
+        LOG.fine("Retrying failed datapoint batches with next flush: " + failedBatches.size());
+    }
+
+    protected void discard(FailedBatch batch, String reason) {
+        datapointsDiscarded.addAndGet(batch.datapoints.size());
+        LOG.warning("Inserting datapoints failed after " + batch.attempts + " attempt(s), discarding (" + reason + "): " + batch.datapoints.size());
+    }
+
+    /**
+     * @return <code>false</code> if the batch could not be inserted and should be retried.
+     */
+    protected boolean insert(List<AssetDatapoint> batch) {
+        try {
+            long inserted = write(batch);
+            datapointsInserted.addAndGet(inserted);
+            datapointsDiscarded.addAndGet(batch.size() - inserted);
+            batchesInserted.incrementAndGet();
+            return true;
+        } catch (Exception ex) {
+            insertFailures.incrementAndGet();
+            LOG.log(Level.WARNING, "Inserting datapoints failed: " + batch.size(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return The number of inserted datapoints, duplicates and datapoints of deleted assets are not inserted.
+     */
+    protected long write(List<AssetDatapoint> batch) {
+        Map<String, Partition> partitions = new LinkedHashMap<>();
+        StringBuilder copyData = new StringBuilder(batch.size() * 96);
+        for (AssetDatapoint datapoint : batch) {
+            Partition partition = getPartition(datapoint.getTimestamp());
+            partitions.putIfAbsent(partition.name, partition);
+            copyData.append(datapoint.getTimestamp()).append('\t');
+            appendCopyText(copyData, datapoint.getEntityId()).append('\t');
+            appendCopyText(copyData, datapoint.getAttributeName()).append('\t');
+            appendCopyText(copyData, datapoint.getValue().toJson()).append('\n');
+        }
+
+        try {
+            long[] inserted = new long[1];
+            persistenceService.doTransaction(em -> em.unwrap(Session.class).doWork(connection -> {
+                try (Statement statement = connection.createStatement()) {
+                    for (Partition partition : partitions.values()) {
+                        if (!knownPartitions.contains(partition.name)) {
+                            statement.executeUpdate(buildCreatePartition(partition));
+                            knownPartitions.add(partition.name);
+                        }
+                    }
+                    statement.executeUpdate(
+                        "create temporary table if not exists ASSET_DATAPOINT_STAGING " +
+                            "(like ASSET_DATAPOINT including defaults) on commit delete rows"
+                    );
+                }
+
+                try {
+                    connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                        "copy ASSET_DATAPOINT_STAGING (TIMESTAMP, ENTITY_ID, ATTRIBUTE_NAME, VALUE) from stdin",
+                        new StringReader(copyData.toString())
+                    );
+                } catch (java.io.IOException ex) {
+                    throw new SQLException("Copying datapoints failed", ex);
+                }
+
+                for (Partition partition : partitions.values()) {
+                    try (PreparedStatement statement = connection.prepareStatement(buildInsert(partition))) {
+                        statement.setLong(1, partition.startMillis);
+                        statement.setLong(2, partition.endMillis);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            rs.next();
+                            inserted[0] += rs.getLong(1);
+                        }
+                    }
+                }
+            }));
+
+            LOG.fine("Inserted " + inserted[0] + " of " + batch.size() + " datapoints into partitions: " + partitions.size());
+            return inserted[0];
+        } catch (RuntimeException ex) {
+            // The partition might not have been created, check again next time
+            knownPartitions.removeAll(partitions.keySet());
+            throw ex;
+        }
+    }
+
+    protected Partition getPartition(long timestamp) {
+        ZonedDateTime start = Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC).truncatedTo(ChronoUnit.DAYS);
+        ZonedDateTime end;
+        if (partitioning == Partitioning.MONTH) {
+            start = start.withDayOfMonth(1);
+            end = start.plusMonths(1);
+        } else {
+            end = start.plusDays(1);
+        }
+        String name = PARTITION_PREFIX + PARTITION_DATE_FORMAT.format(start) + "_" + PARTITION_DATE_FORMAT.format(end);
+        return new Partition(name, start.toInstant().toEpochMilli(), end.toInstant().toEpochMilli());
+    }
+
+    protected List<Partition> getPartitions() {
+        return persistenceService.doReturningTransaction(em -> em.unwrap(Session.class).doReturningWork(connection -> {
+            List<Partition> partitions = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(
+                "select C.RELNAME from PG_INHERITS I " +
+                    "join PG_CLASS C on C.OID = I.INHRELID " +
+                    "join PG_CLASS P on P.OID = I.INHPARENT " +
+                    "join PG_NAMESPACE N on N.OID = P.RELNAMESPACE " +
+                    "where P.RELNAME = 'asset_datapoint' and N.NSPNAME = current_schema()"
+            ); ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    String name = rs.getString(1);
+                    String[] bounds = name.startsWith(PARTITION_PREFIX)
+                        ? name.substring(PARTITION_PREFIX.length()).split("_")
+                        : new String[0];
+                    if (bounds.length != 2) {
+                        LOG.fine("Ignoring unknown child table of datapoints: " + name);
+                        continue;
+                    }
+                    partitions.add(new Partition(
+                        name,
+                        toEpochMillis(bounds[0]),
+                        toEpochMillis(bounds[1])
+                    ));
+                }
+            }
+            return partitions;
+        }));
+    }
+
+    protected static long toEpochMillis(String partitionDate) {
+        return LocalDate.parse(partitionDate, PARTITION_DATE_FORMAT).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Move the staged datapoints of the partition and add only the inserted rows (not duplicates) to the rollups,
+     * the statement returns the number of inserted rows. The conflict clause only covers the partition, rows stored
+     * in the parent table before it was partitioned are checked with its index.
+     */
+    protected static String buildInsert(Partition partition) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("with INSERTED as (");
+        sb.append("insert into ").append(partition.name).append(" (TIMESTAMP, ENTITY_ID, ATTRIBUTE_NAME, VALUE) ");
+        sb.append("select S.TIMESTAMP, S.ENTITY_ID, S.ATTRIBUTE_NAME, S.VALUE from ASSET_DATAPOINT_STAGING S ");
+        sb.append("where S.TIMESTAMP >= ? and S.TIMESTAMP < ? ");
+        sb.append("and exists (select 1 from ASSET A where A.ID = S.ENTITY_ID) ");
+        sb.append("and not exists (select 1 from only ASSET_DATAPOINT D ");
+        sb.append("where D.ENTITY_ID = S.ENTITY_ID and D.ATTRIBUTE_NAME = S.ATTRIBUTE_NAME and D.TIMESTAMP = S.TIMESTAMP) ");
+        sb.append("on conflict do nothing ");
+        sb.append("returning TIMESTAMP, ENTITY_ID, ATTRIBUTE_NAME, VALUE");
+        sb.append("), NUMBERS as (");
+        sb.append("select ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP, case jsonb_typeof(VALUE) ");
+        sb.append("when 'number' then (VALUE #>> '{}')::numeric ");
+        sb.append("when 'boolean' then case when (VALUE #>> '{}')::boolean then 1 else 0 end ");
+        sb.append("end as NUMBER from INSERTED");
+        sb.append(")");
+        for (RollupResolution resolution : RollupResolution.values()) {
+            sb.append(", ").append(resolution.name()).append("_ROLLUP as (");
+            sb.append("insert into ASSET_DATAPOINT_ROLLUP as R ").append(ROLLUP_COLUMNS);
+            sb.append("select ENTITY_ID, ATTRIBUTE_NAME, '").append(resolution.name()).append("', ");
+            sb.append("TIMESTAMP - TIMESTAMP % ").append(resolution.millis).append(" as BUCKET, ");
+            sb.append("min(NUMBER), max(NUMBER), sum(NUMBER), count(NUMBER) from NUMBERS ");
+            sb.append("where NUMBER is not null group by ENTITY_ID, ATTRIBUTE_NAME, BUCKET ");
+            sb.append(ROLLUP_CONFLICT_UPDATE);
+            sb.append(")");
+        }
+        sb.append(" select count(*) from INSERTED");
+        return sb.toString();
+    }
+
+    protected static String buildCreatePartition(Partition partition) {
+        return "create table if not exists " + partition.name + " (" +
+            "check (TIMESTAMP >= " + partition.startMillis + " and TIMESTAMP < " + partition.endMillis + "), " +
+            "primary key (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP), " +
+            "foreign key (ENTITY_ID) references ASSET (ID) on delete cascade" +
+            ") inherits (ASSET_DATAPOINT)";
+    }
+
+    /**
+     * Escape for the text format of <code>COPY</code>.
+     */
+    protected static StringBuilder appendCopyText(StringBuilder sb, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "partitioning=" + partitioning +
+            ", maxPending=" + maxPending +
+            '}';
+    }
+}
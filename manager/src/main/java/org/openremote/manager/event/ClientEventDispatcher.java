@@ -0,0 +1,313 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.event;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.openremote.container.Container;
+import org.openremote.container.web.socket.WebsocketSessions;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.event.shared.SharedEvent;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends events and messages to WebSocket sessions through a bounded outbound queue per session.
+ * <p>
+ * An event is serialized once, no matter how many sessions receive it. Each session has at most one asynchronous
+ * send in flight, events queued while a send is in progress are coalesced into a single <code>EVENT[...]</code>
+ * array message. If a session falls behind and its queue reaches the conflation threshold, a queued
+ * {@link AttributeEvent} is replaced by a newer event of the same attribute, the latest value wins. If the queue
+ * is full, the session is closed so a slow client can not hold messages for everyone else.
+ */
+public class ClientEventDispatcher {
+
+    private static final Logger LOG = Logger.getLogger(ClientEventDispatcher.class.getName());
+
+    protected static class Frame {
+        // The JSON of an event, or the complete message if not an event
+        String text;
+        final boolean event;
+        final String conflationKey;
+
+        Frame(String text, boolean event, String conflationKey) {
+            this.text = text;
+            this.event = event;
+            this.conflationKey = conflationKey;
+        }
+    }
+
+    protected class SessionQueue {
+        final String sessionKey;
+        final Session session;
+        final Deque<Frame> frames = new ArrayDeque<>();
+        final Map<String, Frame> conflatableFrames = new HashMap<>();
+        boolean sending;
+        boolean closed;
+
+        SessionQueue(String sessionKey, Session session) {
+            this.sessionKey = sessionKey;
+            this.session = session;
+            if (sendTimeoutMillis > 0) {
+                session.getAsyncRemote().setSendTimeout(sendTimeoutMillis);
+            }
+        }
+
+        void offer(Frame frame) {
+            boolean overflow = false;
+            synchronized (this) {
+                if (closed)
+                    return;
+
+                if (frame.conflationKey != null && frames.size() >= conflateThreshold) {
+                    Frame queued = conflatableFrames.get(frame.conflationKey);
+                    if (queued != null) {
+                        queued.text = frame.text;
+                        eventsConflated.incrementAndGet();
+                        return;
+                    }
+                }
+
+                if (frames.size() >= maxQueueSize) {
+                    overflow = true;
+                    closed = true;
+                    frames.clear();
+                    conflatableFrames.clear();
+                } else {
+                    frames.add(frame);
+                    if (frame.conflationKey != null) {
+                        conflatableFrames.put(frame.conflationKey, frame);
+                    }
+                    if (sending)
+                        return;
+                    sending = true;
+                }
+            }
+
+            if (overflow) {
+                LOG.info("Closing WebSocket session '" + sessionKey + "', too many pending messages: " + maxQueueSize);
+                sessionsClosed.incrementAndGet();
+                close(this, new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Too many pending messages"));
+            } else {
+                sendNext();
+            }
+        }
+
+        void sendNext() {
+            String message;
+            synchronized (this) {
+                if (closed || frames.isEmpty()) {
+                    sending = false;
+                    return;
+                }
+                message = pollMessage();
+            }
+
+            try {
+                session.getAsyncRemote().sendText(message, result -> {
+                    if (result.isOK()) {
+                        messagesSent.incrementAndGet();
+                        // Don't recurse on the stack if the container completes the send in the calling thread
+                        executor.execute(this::sendNext);
+                    } else {
+                        LOG.log(Level.FINE, "Error sending to WebSocket session '" + sessionKey + "'", result.getException());
+                        close(this, new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Send failed"));
+                    }
+                });
+            } catch (Exception ex) {
+                LOG.log(Level.FINE, "Error sending to WebSocket session '" + sessionKey + "'", ex);
+                close(this, new CloseReason(CloseReason.CloseCodes.UNEXPECTED_CONDITION, "Send failed"));
+            }
+        }
+
+        /**
+         * Removes the next message from the queue, consecutive events are sent as an array.
+         */
+        String pollMessage() {
+            Frame first = poll();
+            if (!first.event)
+                return first.text;
+
+            if (frames.isEmpty() || !frames.peek().event)
+                return SharedEvent.MESSAGE_PREFIX + first.text;
+
+            StringBuilder sb = new StringBuilder(SharedEvent.MESSAGE_PREFIX).append('[').append(first.text);
+            int count = 1;
+            while (count < maxBatchSize && !frames.isEmpty() && frames.peek().event) {
+                sb.append(',').append(poll().text);
+                count++;
+            }
+            return sb.append(']').toString();
+        }
+
+        Frame poll() {
+            Frame frame = frames.poll();
+            if (frame.conflationKey != null) {
+                conflatableFrames.remove(frame.conflationKey, frame);
+            }
+            return frame;
+        }
+    }
+
+    final protected Supplier<WebsocketSessions> websocketSessions;
+    final protected Executor executor;
+    final protected int maxQueueSize;
+    final protected int conflateThreshold;
+    final protected int maxBatchSize;
+    final protected long sendTimeoutMillis;
+    final protected Map<String, SessionQueue> sessionQueues = new ConcurrentHashMap<>();
+
+    final protected AtomicLong messagesSent = new AtomicLong();
+    final protected AtomicLong eventsConflated = new AtomicLong();
+    final protected AtomicLong sessionsClosed = new AtomicLong();
+
+    /**
+     * @param websocketSessions Resolves the sessions when they are first used, the WebSocket component is not
+     *                          available before the message broker context starts.
+     * @param executor          Runs the next send after a send completed.
+     */
+    public ClientEventDispatcher(Supplier<WebsocketSessions> websocketSessions,
+                                 Executor executor,
+                                 int maxQueueSize,
+                                 int conflateThreshold,
+                                 int maxBatchSize,
+                                 long sendTimeoutMillis) {
+        this.websocketSessions = websocketSessions;
+        this.executor = executor;
+        this.maxQueueSize = Math.max(maxQueueSize, 1);
+        this.conflateThreshold = Math.max(conflateThreshold, 0);
+        this.maxBatchSize = Math.max(maxBatchSize, 1);
+        this.sendTimeoutMillis = sendTimeoutMillis;
+    }
+
+    /**
+     * Serializes the event once and queues it for all given sessions.
+     */
+    public void dispatch(SharedEvent event, Collection<String> sessionKeys) {
+        if (sessionKeys.isEmpty())
+            return;
+
+        String json;
+        try {
+            json = Container.JSON.writeValueAsString(event);
+        } catch (JsonProcessingException ex) {
+            LOG.log(Level.WARNING, "Error serializing event, not sending to sessions: " + event, ex);
+            return;
+        }
+
+        String conflationKey = null;
+        if (event instanceof AttributeEvent) {
+            AttributeEvent attributeEvent = (AttributeEvent) event;
+            conflationKey = attributeEvent.getEntityId() + ":" + attributeEvent.getAttributeName();
+        }
+
+        for (String sessionKey : sessionKeys) {
+            SessionQueue queue = getSessionQueue(sessionKey);
+            if (queue != null) {
+                queue.offer(new Frame(json, true, conflationKey));
+            }
+        }
+    }
+
+    /**
+     * Queues a complete message for the session, in order with the events sent to the session.
+     */
+    public void send(String sessionKey, String message) {
+        SessionQueue queue = getSessionQueue(sessionKey);
+        if (queue != null) {
+            queue.offer(new Frame(message, false, null));
+        }
+    }
+
+    /**
+     * Discards the queue of a closed session.
+     */
+    public void remove(String sessionKey) {
+        SessionQueue queue = sessionQueues.remove(sessionKey);
+        if (queue != null) {
+            discard(queue);
+        }
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getEventsConflated() {
+        return eventsConflated.get();
+    }
+
+    public long getSessionsClosed() {
+        return sessionsClosed.get();
+    }
+
+    protected SessionQueue getSessionQueue(String sessionKey) {
+        if (sessionKey == null)
+            return null;
+        SessionQueue queue = sessionQueues.computeIfAbsent(sessionKey, key -> {
+            Session session = websocketSessions.get().get(key);
+            return session != null && session.isOpen() ? new SessionQueue(key, session) : null;
+        });
+        if (queue != null && !queue.session.isOpen()) {
+            sessionQueues.remove(sessionKey, queue);
+            discard(queue);
+            return null;
+        }
+        return queue;
+    }
+
+    protected void discard(SessionQueue queue) {
+        synchronized (queue) {
+            queue.closed = true;
+            queue.frames.clear();
+            queue.conflatableFrames.clear();
+        }
+    }
+
+    protected void close(SessionQueue queue, CloseReason closeReason) {
+        sessionQueues.remove(queue.sessionKey, queue);
+        discard(queue);
+        try {
+            if (queue.session.isOpen()) {
+                queue.session.close(closeReason);
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Error closing WebSocket session '" + queue.sessionKey + "'", ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "sessions=" + sessionQueues.size() +
+            ", messagesSent=" + messagesSent +
+            ", eventsConflated=" + eventsConflated +
+            ", sessionsClosed=" + sessionsClosed +
+            '}';
+    }
+}
@@ -27,6 +27,7 @@ import org.openremote.container.message.MessageBrokerService;
 import org.openremote.container.message.MessageBrokerSetupService;
 import org.openremote.container.security.AuthContext;
 import org.openremote.container.timer.TimerService;
+import org.openremote.container.web.socket.WebsocketComponent;
 import org.openremote.container.web.socket.WebsocketConstants;
 import org.openremote.manager.concurrent.ManagerExecutorService;
 import org.openremote.manager.security.ManagerIdentityService;
@@ -43,6 +44,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Logger;
 
 import static org.apache.camel.builder.PredicateBuilder.or;
+import static org.openremote.container.util.MapAccess.getInteger;
 
 /**
  * Receives and publishes messages, handles the client/server event bus.
@@ -90,6 +92,10 @@ import static org.apache.camel.builder.PredicateBuilder.or;
  * The payload is an array of {@link SharedEvent}s.
  * </p></dd>
  * </dl>
+ * <p>
+ * Messages are sent to each session asynchronously through a bounded queue, see {@link ClientEventDispatcher}.
+ * Events published while a message is being sent to a session are combined into a single <code>EVENT[...]</code>
+ * message.
  */
 public class ClientEventService implements ContainerService {
 
@@ -104,11 +110,28 @@ public class ClientEventService implements ContainerService {
 
     public static final String HEADER_ACCESS_RESTRICTED = ClientEventService.class.getName() + ".HEADER_ACCESS_RESTRICTED";
 
+    // Maximum number of queued messages per session, a session that falls further behind is closed
+    public static final String CLIENT_EVENT_SESSION_QUEUE_MAX = "CLIENT_EVENT_SESSION_QUEUE_MAX";
+    public static final int CLIENT_EVENT_SESSION_QUEUE_MAX_DEFAULT = 5000;
+
+    // Number of queued messages per session after which attribute events replace queued events of the same attribute
+    public static final String CLIENT_EVENT_SESSION_CONFLATE_THRESHOLD = "CLIENT_EVENT_SESSION_CONFLATE_THRESHOLD";
+    public static final int CLIENT_EVENT_SESSION_CONFLATE_THRESHOLD_DEFAULT = 500;
+
+    // Maximum number of events combined in a single EVENT[...] message
+    public static final String CLIENT_EVENT_SESSION_BATCH_MAX = "CLIENT_EVENT_SESSION_BATCH_MAX";
+    public static final int CLIENT_EVENT_SESSION_BATCH_MAX_DEFAULT = 100;
+
+    public static final String CLIENT_EVENT_SESSION_SEND_TIMEOUT_MILLIS = "CLIENT_EVENT_SESSION_SEND_TIMEOUT_MILLIS";
+    public static final int CLIENT_EVENT_SESSION_SEND_TIMEOUT_MILLIS_DEFAULT = 30000;
+
     final protected Collection<EventSubscriptionAuthorizer> eventSubscriptionAuthorizers = new CopyOnWriteArraySet<>();
     protected TimerService timerService;
     protected MessageBrokerService messageBrokerService;
     protected ManagerIdentityService identityService;
+    protected MessageBrokerSetupService messageBrokerSetupService;
     protected EventSubscriptions eventSubscriptions;
+    protected ClientEventDispatcher eventDispatcher;
 
     protected boolean stopped;
 
@@ -118,12 +141,24 @@ public class ClientEventService implements ContainerService {
         messageBrokerService = container.getService(MessageBrokerService.class);
         identityService = container.getService(ManagerIdentityService.class);
 
+        ManagerExecutorService executorService = container.getService(ManagerExecutorService.class);
         eventSubscriptions = new EventSubscriptions(
             container.getService(TimerService.class),
-            container.getService(ManagerExecutorService.class)
+            executorService
+        );
+
+        messageBrokerSetupService = container.getService(MessageBrokerSetupService.class);
+        eventDispatcher = new ClientEventDispatcher(
+            () -> messageBrokerSetupService.getContext()
+                .getComponent(WebsocketComponent.NAME, WebsocketComponent.class)
+                .getWebsocketSessions(),
+            executorService,
+            getInteger(container.getConfig(), CLIENT_EVENT_SESSION_QUEUE_MAX, CLIENT_EVENT_SESSION_QUEUE_MAX_DEFAULT),
+            getInteger(container.getConfig(), CLIENT_EVENT_SESSION_CONFLATE_THRESHOLD, CLIENT_EVENT_SESSION_CONFLATE_THRESHOLD_DEFAULT),
+            getInteger(container.getConfig(), CLIENT_EVENT_SESSION_BATCH_MAX, CLIENT_EVENT_SESSION_BATCH_MAX_DEFAULT),
+            getInteger(container.getConfig(), CLIENT_EVENT_SESSION_SEND_TIMEOUT_MILLIS, CLIENT_EVENT_SESSION_SEND_TIMEOUT_MILLIS_DEFAULT)
         );
 
-        MessageBrokerSetupService messageBrokerSetupService = container.getService(MessageBrokerSetupService.class);
         messageBrokerSetupService.getContext().getTypeConverterRegistry().addTypeConverters(
             new EventTypeConverters()
         );
@@ -147,6 +182,7 @@ public class ClientEventService implements ContainerService {
                     .process(exchange -> {
                         String sessionKey = getSessionKey(exchange);
                         eventSubscriptions.cancelAll(sessionKey);
+                        eventDispatcher.remove(sessionKey);
                     })
                     .stop()
                     .end()
@@ -193,8 +229,12 @@ public class ClientEventService implements ContainerService {
                     .routeId("ToClientWebsocketEvents")
                     .choice()
                     .when(body().isInstanceOf(SharedEvent.class))
-                    .split(method(eventSubscriptions, "splitForSubscribers"))
-                    .to("websocket://" + WEBSOCKET_EVENTS)
+                    .process(exchange -> {
+                        SharedEvent event = exchange.getIn().getBody(SharedEvent.class);
+                        boolean accessibleForRestrictedUsers = exchange.getIn().getHeader(HEADER_ACCESS_RESTRICTED, false, Boolean.class);
+                        Collection<String> sessionKeys = eventSubscriptions.getSubscribedSessions(accessibleForRestrictedUsers, event);
+                        eventDispatcher.dispatch(event, sessionKeys);
+                    })
                     .end();
             }
         });
@@ -237,14 +277,21 @@ public class ClientEventService implements ContainerService {
         }
     }
 
+    /**
+     * Queues the data for the session, after any events that are already queued. The data is converted to
+     * a message with the registered type converters.
+     */
     public void sendToSession(String sessionKey, Object data) {
-        if (messageBrokerService != null && messageBrokerService.getProducerTemplate() != null) {
+        if (eventDispatcher != null && messageBrokerSetupService.getContext() != null) {
             LOG.fine("Sending to session '" + sessionKey + "': " + data);
-            messageBrokerService.getProducerTemplate().sendBodyAndHeader(
-                "websocket://" + WEBSOCKET_EVENTS,
-                data,
-                WebsocketConstants.SESSION_KEY, sessionKey
-            );
+            String message = data instanceof String
+                ? (String) data
+                : messageBrokerSetupService.getContext().getTypeConverter().convertTo(String.class, data);
+            if (message == null) {
+                LOG.warning("Can't convert to message for session '" + sessionKey + "': " + data);
+                return;
+            }
+            eventDispatcher.send(sessionKey, message);
         }
     }
 
@@ -256,9 +303,14 @@ public class ClientEventService implements ContainerService {
         return eventSubscriptions;
     }
 
+    public ClientEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
+            "eventDispatcher=" + eventDispatcher +
             '}';
     }
 
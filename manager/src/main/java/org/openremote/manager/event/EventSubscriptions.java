@@ -19,23 +19,24 @@
  */
 package org.openremote.manager.event;
 
-import org.apache.camel.Exchange;
-import org.apache.camel.Message;
-import org.apache.camel.impl.DefaultMessage;
 import org.openremote.container.timer.TimerService;
-import org.openremote.container.web.socket.WebsocketConstants;
 import org.openremote.manager.concurrent.ManagerExecutorService;
-import org.openremote.model.event.shared.CancelEventSubscription;
-import org.openremote.model.event.shared.EventSubscription;
-import org.openremote.model.event.shared.SharedEvent;
+import org.openremote.model.attribute.AttributeEvent;
+import org.openremote.model.event.shared.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
-import static org.openremote.manager.event.ClientEventService.HEADER_ACCESS_RESTRICTED;
-
 /**
  * Manages subscriptions to events for WebSocket sessions.
+ * <p>
+ * Subscriptions are indexed by event type, and within an event type by the asset identifiers of an
+ * {@link AttributeEvent.EntityIdFilter} and the realm of a {@link TenantFilter}. Finding the subscribers of an
+ * event only visits the subscriptions that can match, only subscriptions with other filters are tested with
+ * their filter. The index is updated while holding the lock of the session subscriptions, it is read without
+ * locking.
  */
 public class EventSubscriptions {
 
@@ -43,6 +44,56 @@ public class EventSubscriptions {
 
     final protected TimerService timerService;
     final protected Map<String, SessionSubscriptions> sessionSubscriptions = new HashMap<>();
+    final protected Map<String, EventTypeSubscriptions> subscriptionsByEventType = new ConcurrentHashMap<>();
+
+    /**
+     * The subscriptions of an event type, each subscription is either in the entity or realm index, or unindexed.
+     */
+    static class EventTypeSubscriptions {
+        final Map<String, Set<SessionSubscription>> byEntityId = new ConcurrentHashMap<>();
+        final Map<String, Set<SessionSubscription>> byRealmId = new ConcurrentHashMap<>();
+        final Set<SessionSubscription> unindexed = ConcurrentHashMap.newKeySet();
+
+        void add(SessionSubscription sessionSubscription) {
+            EventFilter filter = sessionSubscription.subscription.getFilter();
+            if (filter instanceof AttributeEvent.EntityIdFilter && ((AttributeEvent.EntityIdFilter) filter).getEntityId() != null) {
+                for (String entityId : ((AttributeEvent.EntityIdFilter) filter).getEntityId()) {
+                    byEntityId.computeIfAbsent(entityId, k -> ConcurrentHashMap.newKeySet()).add(sessionSubscription);
+                }
+            } else if (filter instanceof TenantFilter && ((TenantFilter) filter).getRealmId() != null) {
+                byRealmId.computeIfAbsent(((TenantFilter) filter).getRealmId(), k -> ConcurrentHashMap.newKeySet()).add(sessionSubscription);
+            } else {
+                unindexed.add(sessionSubscription);
+            }
+        }
+
+        void remove(SessionSubscription sessionSubscription) {
+            EventFilter filter = sessionSubscription.subscription.getFilter();
+            if (filter instanceof AttributeEvent.EntityIdFilter && ((AttributeEvent.EntityIdFilter) filter).getEntityId() != null) {
+                for (String entityId : ((AttributeEvent.EntityIdFilter) filter).getEntityId()) {
+                    remove(byEntityId, entityId, sessionSubscription);
+                }
+            } else if (filter instanceof TenantFilter && ((TenantFilter) filter).getRealmId() != null) {
+                remove(byRealmId, ((TenantFilter) filter).getRealmId(), sessionSubscription);
+            } else {
+                unindexed.remove(sessionSubscription);
+            }
+        }
+
+        boolean isEmpty() {
+            return byEntityId.isEmpty() && byRealmId.isEmpty() && unindexed.isEmpty();
+        }
+
+        static void remove(Map<String, Set<SessionSubscription>> index, String key, SessionSubscription sessionSubscription) {
+            Set<SessionSubscription> subscriptions = index.get(key);
+            if (subscriptions != null) {
+                subscriptions.remove(sessionSubscription);
+                if (subscriptions.isEmpty()) {
+                    index.remove(key, subscriptions);
+                }
+            }
+        }
+    }
 
     class SessionSubscriptions extends HashSet<SessionSubscription> {
         public void removeExpired() {
@@ -50,28 +101,45 @@ public class EventSubscriptions {
                     boolean expired = sessionSubscription.isExpired();
                     if (expired) {
                         LOG.fine("Removing expired; " + sessionSubscription.subscription);
+                        unindex(sessionSubscription);
                     }
                     return expired;
                 }
             );
         }
 
-        public void update(boolean restrictedUser, EventSubscription eventSubscription) {
+        public void update(String sessionKey, boolean restrictedUser, EventSubscription eventSubscription) {
             cancel(eventSubscription.getEventType());
-            add(new SessionSubscription(restrictedUser, timerService.getCurrentTimeMillis(), eventSubscription));
+            SessionSubscription sessionSubscription =
+                new SessionSubscription(sessionKey, restrictedUser, timerService.getCurrentTimeMillis(), eventSubscription);
+            add(sessionSubscription);
+            index(sessionSubscription);
         }
 
         public void cancel(String eventType) {
-            removeIf(sessionSubscription -> sessionSubscription.subscription.getEventType().equals(eventType));
+            removeIf(sessionSubscription -> {
+                boolean cancel = sessionSubscription.subscription.getEventType().equals(eventType);
+                if (cancel) {
+                    unindex(sessionSubscription);
+                }
+                return cancel;
+            });
+        }
+
+        public void cancelAll() {
+            forEach(EventSubscriptions.this::unindex);
+            clear();
         }
     }
 
     class SessionSubscription {
+        final String sessionKey;
         final boolean restrictedUser;
         final long timestamp;
         final EventSubscription subscription;
 
-        public SessionSubscription(boolean restrictedUser, long timestamp, EventSubscription subscription) {
+        public SessionSubscription(String sessionKey, boolean restrictedUser, long timestamp, EventSubscription subscription) {
+            this.sessionKey = sessionKey;
             this.restrictedUser = restrictedUser;
             this.timestamp = timestamp;
             this.subscription = subscription;
@@ -108,7 +176,7 @@ public class EventSubscriptions {
             LOG.fine("For session '" + sessionKey + "', updating: " + subscription);
             SessionSubscriptions sessionSubscriptions =
                 this.sessionSubscriptions.computeIfAbsent(sessionKey, k -> new SessionSubscriptions());
-            sessionSubscriptions.update(restrictedUser, subscription);
+            sessionSubscriptions.update(sessionKey, restrictedUser, subscription);
         }
     }
 
@@ -126,49 +194,85 @@ public class EventSubscriptions {
         synchronized (this.sessionSubscriptions) {
             if (this.sessionSubscriptions.containsKey(sessionKey)) {
                 LOG.fine("Cancelling all subscriptions for session: " + sessionKey);
-                this.sessionSubscriptions.remove(sessionKey);
+                this.sessionSubscriptions.remove(sessionKey).cancelAll();
             }
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public <T extends SharedEvent> List<Message> splitForSubscribers(Exchange exchange) {
-        List<Message> messageList = new ArrayList<>();
-        SharedEvent event = exchange.getIn().getBody(SharedEvent.class);
+    /**
+     * Finds the sessions subscribed to the event. Subscriptions with an internal consumer receive the event
+     * directly, in the calling thread. Does not block subscription updates.
+     *
+     * @param accessibleForRestrictedUsers <code>true</code> if the event can be received by restricted user sessions.
+     * @return The keys of the sessions the event should be sent to.
+     */
+    public Collection<String> getSubscribedSessions(boolean accessibleForRestrictedUsers, SharedEvent event) {
         if (event == null)
-            return messageList;
+            return Collections.emptyList();
 
-        boolean accessibleForRestrictedUsers = exchange.getIn().getHeader(HEADER_ACCESS_RESTRICTED, false, Boolean.class);
+        EventTypeSubscriptions subscriptions = subscriptionsByEventType.get(event.getEventType());
+        if (subscriptions == null)
+            return Collections.emptyList();
 
-        Set<Map.Entry<String, SessionSubscriptions>> sessionSubscriptionsSet;
-        synchronized (this.sessionSubscriptions) {
-            sessionSubscriptionsSet = new HashSet<>(sessionSubscriptions.entrySet());
+        List<String> sessionKeys = new ArrayList<>();
+
+        // Subscriptions found in the entity and realm indexes match the filter
+        if (event instanceof AttributeEvent && !subscriptions.byEntityId.isEmpty()) {
+            Set<SessionSubscription> matching = subscriptions.byEntityId.get(((AttributeEvent) event).getEntityId());
+            if (matching != null) {
+                deliver(matching, false, accessibleForRestrictedUsers, event, sessionKeys);
+            }
+        }
+        if (event instanceof TenantScopedEvent && !subscriptions.byRealmId.isEmpty()) {
+            Set<SessionSubscription> matching = subscriptions.byRealmId.get(((TenantScopedEvent) event).getRealmId());
+            if (matching != null) {
+                deliver(matching, false, accessibleForRestrictedUsers, event, sessionKeys);
+            }
         }
+        deliver(subscriptions.unindexed, true, accessibleForRestrictedUsers, event, sessionKeys);
 
-        for (Map.Entry<String, SessionSubscriptions> entry : sessionSubscriptionsSet) {
-            String sessionKey = entry.getKey();
-            SessionSubscriptions subscriptions = entry.getValue();
+        return sessionKeys;
+    }
 
-            for (SessionSubscription sessionSubscription : subscriptions) {
+    @SuppressWarnings("unchecked")
+    protected void deliver(Collection<SessionSubscription> subscriptions,
+                           boolean applyFilter,
+                           boolean accessibleForRestrictedUsers,
+                           SharedEvent event,
+                           List<String> sessionKeys) {
+        for (SessionSubscription sessionSubscription : subscriptions) {
 
-                if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
-                    continue;
+            if (!sessionSubscription.matches(accessibleForRestrictedUsers, event))
+                continue;
 
-                if (sessionSubscription.subscription.getFilter() == null
-                    || sessionSubscription.subscription.getFilter().apply(event)) {
-                    LOG.fine("Creating message for subscribed session '" + sessionKey + "': " + event);
-                    if (sessionSubscription.subscription.getInternalConsumer() == null) {
-                        Message msg = new DefaultMessage();
-                        msg.setBody(event); // Don't copy the event, use same reference
-                        msg.setHeaders(new HashMap<>(exchange.getIn().getHeaders())); // Copy headers
-                        msg.setHeader(WebsocketConstants.SESSION_KEY, sessionKey);
-                        messageList.add(msg);
-                    } else {
-                        sessionSubscription.subscription.getInternalConsumer().accept(event);
-                    }
-                }
+            if (applyFilter
+                && sessionSubscription.subscription.getFilter() != null
+                && !sessionSubscription.subscription.getFilter().apply(event))
+                continue;
+
+            Consumer<SharedEvent> internalConsumer = sessionSubscription.subscription.getInternalConsumer();
+            if (internalConsumer == null) {
+                sessionKeys.add(sessionSubscription.sessionKey);
+            } else {
+                internalConsumer.accept(event);
+            }
+        }
+    }
+
+    protected void index(SessionSubscription sessionSubscription) {
+        subscriptionsByEventType
+            .computeIfAbsent(sessionSubscription.subscription.getEventType(), k -> new EventTypeSubscriptions())
+            .add(sessionSubscription);
+    }
+
+    protected void unindex(SessionSubscription sessionSubscription) {
+        String eventType = sessionSubscription.subscription.getEventType();
+        EventTypeSubscriptions subscriptions = subscriptionsByEventType.get(eventType);
+        if (subscriptions != null) {
+            subscriptions.remove(sessionSubscription);
+            if (subscriptions.isEmpty()) {
+                subscriptionsByEventType.remove(eventType, subscriptions);
             }
         }
-        return messageList;
     }
-}
\ No newline at end of file
+}
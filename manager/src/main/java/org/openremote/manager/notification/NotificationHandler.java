@@ -25,6 +25,10 @@ import org.openremote.model.notification.AbstractNotificationMessage;
 import org.openremote.model.notification.Notification;
 import org.openremote.model.notification.NotificationSendResult;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * A {@link NotificationHandler} is responsible for sending compatible {@link AbstractNotificationMessage} messages to
  * the specified target. Before a message is sent:
@@ -73,4 +77,20 @@ public interface NotificationHandler extends ContainerService {
      * by calling {@link NotificationService#setNotificationDelivered} or {@link NotificationService#setNotificationAcknowleged}
      */
     NotificationSendResult sendMessage(long id, Notification.Source source, String sourceId, Notification.TargetType targetType, String targetId, AbstractNotificationMessage message);
+
+    /**
+     * Send the specified {@link AbstractNotificationMessage} to a batch of targets of the same type, the ID of each
+     * target is at the same position as the target. The result of each target must be at the position of the target.
+     * <p>
+     * The default implementation calls {@link #sendMessage} for each target in turn before returning; handlers that can
+     * send to multiple targets concurrently should override this and complete the returned future when all targets have
+     * been sent to.
+     */
+    default CompletableFuture<List<NotificationSendResult>> sendMessages(List<Long> ids, Notification.Source source, String sourceId, Notification.TargetType targetType, List<String> targetIds, AbstractNotificationMessage message) {
+        List<NotificationSendResult> results = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            results.add(sendMessage(ids.get(i), source, sourceId, targetType, targetIds.get(i), message));
+        }
+        return CompletableFuture.completedFuture(results);
+    }
 }
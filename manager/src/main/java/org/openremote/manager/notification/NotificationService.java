@@ -22,6 +22,7 @@ package org.openremote.manager.notification;
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
 import org.apache.camel.builder.RouteBuilder;
+import org.hibernate.Session;
 import org.openremote.agent.protocol.Protocol;
 import org.openremote.container.Container;
 import org.openremote.container.ContainerService;
@@ -41,6 +42,7 @@ import org.openremote.model.notification.RepeatFrequency;
 import org.openremote.model.notification.SentNotification;
 import org.openremote.model.util.TextUtil;
 import org.openremote.model.util.TimeUtil;
+import org.openremote.model.value.ObjectValue;
 
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
@@ -49,6 +51,9 @@ import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalField;
 import java.time.temporal.WeekFields;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -64,6 +69,11 @@ import static org.openremote.model.notification.Notification.Source.*;
 public class NotificationService extends RouteBuilder implements ContainerService {
 
     public static final String NOTIFICATION_QUEUE = "seda://NotificationQueue?waitForTaskToComplete=IfReplyExpected&timeout=10000&purgeWhenStopping=true&discardIfNoConsumers=false&size=25000";
+    // The maximum number of targets sent to by a handler at once, and of sent notifications inserted at once
+    public static final int SEND_BATCH_SIZE = 500;
+    // The maximum number of cached last sent times, and of targets looked up with one query
+    public static final int LAST_SENT_CACHE_SIZE = 100000;
+    public static final int LAST_SENT_QUERY_SIZE = 10000;
     protected static final TemporalField WEEK_FIELD_ISO = WeekFields.of(Locale.FRANCE).dayOfWeek(); // Always use ISO for consistency
     private static final Logger LOG = Logger.getLogger(NotificationService.class.getName());
     protected TimerService timerService;
@@ -73,6 +83,63 @@ public class NotificationService extends RouteBuilder implements ContainerServic
     protected MessageBrokerService messageBrokerService;
     protected Map<String, NotificationHandler> notificationHandlerMap;
 
+    /**
+     * The time a notification was last sent to a target, for checking the repeat frequency of notifications. Loaded
+     * from the {@link SentNotification}s on demand and updated when sent notifications have been stored, an empty
+     * value is cached if a notification was never sent to the target.
+     */
+    protected final Map<LastSentKey, Optional<Instant>> lastSentCache = Collections.synchronizedMap(
+        new LinkedHashMap<LastSentKey, Optional<Instant>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<LastSentKey, Optional<Instant>> eldest) {
+                return size() > LAST_SENT_CACHE_SIZE;
+            }
+        });
+
+    protected static class LastSentKey {
+        final protected Notification.Source source;
+        final protected String sourceId;
+        final protected Notification.TargetType target;
+        final protected String targetId;
+        final protected String name;
+
+        public LastSentKey(Notification.Source source, String sourceId, Notification.TargetType target, String targetId, String name) {
+            this.source = source;
+            this.sourceId = sourceId;
+            this.target = target;
+            this.targetId = targetId;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LastSentKey that = (LastSentKey) o;
+            return source == that.source &&
+                Objects.equals(sourceId, that.sourceId) &&
+                target == that.target &&
+                Objects.equals(targetId, that.targetId) &&
+                Objects.equals(name, that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(source, sourceId, target, targetId, name);
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "source=" + source +
+                ", sourceId='" + sourceId + '\'' +
+                ", target=" + target +
+                ", targetId='" + targetId + '\'' +
+                ", name='" + name + '\'' +
+                '}';
+        }
+    }
+
     public NotificationService() {
         // Create notification handlers here to facilitate testing
         notificationHandlerMap = new HashMap<>();
@@ -263,77 +330,149 @@ public class NotificationService extends RouteBuilder implements ContainerServic
                         mappedTargetsList.forEach(
                                 targets ->
                                         targets.setIds(
-                                                Arrays.stream(targets.getIds()).filter(
-                                                        targetId -> okToSendNotification(source,
-                                                                sourceId.get(),
-                                                                targets.getType(),
-                                                                targetId,
-                                                                notification))
-                                                        .toArray(String[]::new)
+                                                getTargetsOkToSend(source,
+                                                        sourceId.get(),
+                                                        targets.getType(),
+                                                        targets.getIds(),
+                                                        notification)
                                         ));
                     }
 
                     // Send message to each applicable target
-                    mappedTargetsList.forEach(
-                            targets -> {
-
-                                if (targets.getIds() != null && targets.getIds().length > 0) {
-
-                                    Arrays.stream(targets.getIds()).forEach(targetId ->
-
-                                            persistenceService.doTransaction(em -> {
-
-                                                // commit the notification first to get the ID
-                                                SentNotification sentNotification = new SentNotification()
-                                                        .setName(notification.getName())
-                                                        .setType(notification.getMessage().getType())
-                                                        .setSource(source)
-                                                        .setSourceId(sourceId.get())
-                                                        .setTarget(targets.getType())
-                                                        .setTargetId(targetId)
-                                                        .setSentOn(Date.from(timerService.getNow()));
-
-                                                sentNotification = em.merge(sentNotification);
-                                                long id = sentNotification.getId();
-
-                                                try {
-                                                    NotificationSendResult result = handler.sendMessage(
-                                                            id,
-                                                            source,
-                                                            sourceId.get(),
-                                                            targets.getType(),
-                                                            targetId,
-                                                            notification.getMessage());
-
-                                                    if (result.isSuccess()) {
-                                                        LOG.info("Notification sent '" + id + "': " + targets.getType() + ":" + targetId);
-                                                    } else {
-                                                        LOG.warning("Notification failed '" + id + "': " + targets.getType() + ":" + targetId + ", reason=" + result.getMessage());
-                                                        sentNotification.setError(TextUtil.isNullOrEmpty(result.getMessage()) ? "Unknown error" : result.getMessage());
-                                                    }
-                                                    // Merge the sent notification again with the message included just in case the handler modified the message
-                                                    sentNotification.setMessage(notification.getMessage().toValue());
-                                                    em.merge(sentNotification);
-                                                } catch (Exception e) {
-                                                    LOG.log(Level.SEVERE,
-                                                            "Notification handler threw an exception whilst sending notification '" + id + "'",
-                                                            e);
-                                                    sentNotification.setError(TextUtil.isNullOrEmpty(e.getMessage()) ? "Unknown error" : e.getMessage());
-                                                    em.merge(sentNotification);
-                                                    throw e;
-                                                }
-                                            })
-                                    );
-                                } else {
-                                    LOG.info("Notification target contains no target IDs so ignoring");
-                                }
-                            });
+                    for (Notification.Targets targets : mappedTargetsList) {
+                        if (targets.getIds() != null && targets.getIds().length > 0) {
+                            sendMessages(handler, notification, source, sourceId.get(), targets);
+                        } else {
+                            LOG.info("Notification target contains no target IDs so ignoring");
+                        }
+                    }
                 })
                 .endDoTry()
                 .doCatch(NotificationProcessingException.class)
                 .process(handleNotificationProcessingException(LOG));
     }
 
+    /**
+     * Sends the message to the targets in batches of {@link #SEND_BATCH_SIZE}. The {@link SentNotification}s of a batch
+     * are inserted in one transaction to get their IDs, then the handler sends the batch while the next batch is
+     * inserted. When all batches have been sent, the message and any errors are stored in one transaction per batch.
+     */
+    protected void sendMessages(NotificationHandler handler, Notification notification, Notification.Source source, String sourceId, Notification.Targets targets) throws Exception {
+        List<String> targetIds = Arrays.asList(targets.getIds());
+        List<List<Long>> batchIds = new ArrayList<>();
+        List<List<String>> batchTargetIds = new ArrayList<>();
+        List<CompletableFuture<List<NotificationSendResult>>> batchResults = new ArrayList<>();
+
+        for (int from = 0; from < targetIds.size(); from += SEND_BATCH_SIZE) {
+            List<String> batch = targetIds.subList(from, Math.min(from + SEND_BATCH_SIZE, targetIds.size()));
+            Date sentOn = Date.from(timerService.getNow());
+            List<Long> ids = persistenceService.doReturningTransaction(em -> {
+                em.unwrap(Session.class).setJdbcBatchSize(SEND_BATCH_SIZE);
+                List<SentNotification> sentNotifications = new ArrayList<>(batch.size());
+                for (String targetId : batch) {
+                    SentNotification sentNotification = new SentNotification()
+                        .setName(notification.getName())
+                        .setType(notification.getMessage().getType())
+                        .setSource(source)
+                        .setSourceId(sourceId)
+                        .setTarget(targets.getType())
+                        .setTargetId(targetId)
+                        .setSentOn(sentOn);
+                    em.persist(sentNotification);
+                    sentNotifications.add(sentNotification);
+                }
+                em.flush();
+                return sentNotifications.stream().map(SentNotification::getId).collect(Collectors.toList());
+            });
+
+            // Only record the last sent time when the sent notifications have been committed
+            for (String targetId : batch) {
+                updateLastSent(source, sourceId, targets.getType(), targetId, notification.getName(), sentOn.toInstant());
+            }
+
+            CompletableFuture<List<NotificationSendResult>> results;
+            try {
+                results = handler.sendMessages(ids, source, sourceId, targets.getType(), batch, notification.getMessage());
+            } catch (Exception e) {
+                results = new CompletableFuture<>();
+                results.completeExceptionally(e);
+            }
+            batchIds.add(ids);
+            batchTargetIds.add(batch);
+            batchResults.add(results);
+
+            if (results.isCompletedExceptionally()) {
+                // Don't send the remaining batches, same as a handler throwing for a single target
+                break;
+            }
+        }
+
+        Exception failure = null;
+        for (int i = 0; i < batchResults.size(); i++) {
+            List<NotificationSendResult> results = null;
+            String error = null;
+            try {
+                results = batchResults.get(i).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause()
+                    : e.getCause();
+                LOG.log(Level.SEVERE,
+                    "Notification handler threw an exception whilst sending notifications '" + batchIds.get(i) + "'",
+                    cause);
+                error = TextUtil.isNullOrEmpty(cause.getMessage()) ? "Unknown error" : cause.getMessage();
+                if (failure == null) {
+                    failure = cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+            storeSendResults(notification, targets.getType(), batchIds.get(i), batchTargetIds.get(i), results, error);
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param results <code>null</code> if the batch failed with the specified error.
+     */
+    protected void storeSendResults(Notification notification, Notification.TargetType targetType, List<Long> ids, List<String> targetIds, List<NotificationSendResult> results, String error) {
+        // Store the message after sending just in case the handler modified the message
+        ObjectValue message = notification.getMessage().toValue();
+        Map<Long, NotificationSendResult> resultsById = new HashMap<>(ids.size());
+        int failures = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            NotificationSendResult result = results != null && i < results.size() ? results.get(i) : null;
+            if (result != null && result.isSuccess()) {
+                LOG.fine("Notification sent '" + ids.get(i) + "': " + targetType + ":" + targetIds.get(i));
+            } else {
+                failures++;
+                if (result != null) {
+                    LOG.warning("Notification failed '" + ids.get(i) + "': " + targetType + ":" + targetIds.get(i) + ", reason=" + result.getMessage());
+                }
+            }
+            resultsById.put(ids.get(i), result);
+        }
+        LOG.info("Notification '" + notification.getName() + "' sent to " + (ids.size() - failures) + " of " + ids.size() + " " + targetType + " targets");
+
+        persistenceService.doTransaction(em -> {
+            em.unwrap(Session.class).setJdbcBatchSize(SEND_BATCH_SIZE);
+            List<SentNotification> sentNotifications = em.createQuery(
+                "select n from SentNotification n where n.id in :ids", SentNotification.class
+            ).setParameter("ids", ids).getResultList();
+
+            for (SentNotification sentNotification : sentNotifications) {
+                NotificationSendResult result = resultsById.get(sentNotification.getId());
+                if (result == null) {
+                    sentNotification.setError(error != null ? error : "Unknown error");
+                } else if (!result.isSuccess()) {
+                    sentNotification.setError(TextUtil.isNullOrEmpty(result.getMessage()) ? "Unknown error" : result.getMessage());
+                }
+                sentNotification.setMessage(result != null ? result.getSentMessage().orElse(message) : message);
+            }
+        });
+    }
+
     public void sendNotification(Notification notification) throws NotificationProcessingException {
         sendNotification(notification, INTERNAL, null);
     }
@@ -396,6 +535,8 @@ public class NotificationService extends RouteBuilder implements ContainerServic
                 .setParameter("id", id)
                 .executeUpdate()
         );
+        // The last sent time of the targets may have changed, reload from the database when needed
+        lastSentCache.clear();
     }
 
     public void removeNotifications(List<Long> ids, List<String> types, Long fromTimestamp, Long toTimestamp, List<String> tenantIds, List<String> userIds, List<String> assetIds) throws IllegalArgumentException {
@@ -411,6 +552,7 @@ public class NotificationService extends RouteBuilder implements ContainerServic
                     .forEach(i -> query.setParameter(i + 1, parameters.get(i)));
             query.executeUpdate();
         });
+        lastSentCache.clear();
     }
 
     protected void processCriteria(StringBuilder builder, List<Object> parameters, List<Long> ids, List<String> types, Long fromTimestamp, Long toTimestamp, List<String> tenantIds, List<String> userIds, List<String> assetIds) {
@@ -592,23 +734,81 @@ public class NotificationService extends RouteBuilder implements ContainerServic
     }
 
     protected boolean okToSendNotification(Notification.Source source, String sourceId, Notification.TargetType target, String targetId, Notification notification) {
+        return getTargetsOkToSend(source, sourceId, target, new String[]{targetId}, notification).length > 0;
+    }
+
+    /**
+     * @return The targets the notification can be sent to according to its repeat frequency or interval, the last
+     * sent times not cached are loaded with one query.
+     */
+    protected String[] getTargetsOkToSend(Notification.Source source, String sourceId, Notification.TargetType target, String[] targetIds, Notification notification) {
 
         if (notification.getRepeatFrequency() == RepeatFrequency.ALWAYS) {
-            return true;
+            return targetIds;
         }
 
-        Date lastSend = persistenceService.doReturningTransaction(entityManager -> entityManager.createQuery(
-                "SELECT n.sentOn FROM SentNotification n WHERE n.source =:source AND n.sourceId =:sourceId AND n.target =:target AND n.targetId =:targetId AND n.name =:name ORDER BY n.sentOn DESC", Date.class)
-                .setParameter("source", source)
-                .setParameter("sourceId", sourceId)
-                .setParameter("target", target)
-                .setParameter("targetId", targetId)
-                .setParameter("name", notification.getName())
-                .setMaxResults(1)
-                .getResultList()).stream().findFirst().orElse(null);
-
-        return lastSend == null ||
-                (notification.getRepeatFrequency() != RepeatFrequency.ONCE &&
-                        timerService.getNow().plusSeconds(1).isAfter(getRepeatAfterTimestamp(notification, lastSend.toInstant())));
+        Map<String, Optional<Instant>> lastSends = getLastSent(source, sourceId, target, Arrays.asList(targetIds), notification.getName());
+        Instant now = timerService.getNow();
+
+        return Arrays.stream(targetIds).filter(targetId -> {
+            Instant lastSend = lastSends.get(targetId).orElse(null);
+            return lastSend == null ||
+                    (notification.getRepeatFrequency() != RepeatFrequency.ONCE &&
+                            now.plusSeconds(1).isAfter(getRepeatAfterTimestamp(notification, lastSend)));
+        }).toArray(String[]::new);
+    }
+
+    protected Map<String, Optional<Instant>> getLastSent(Notification.Source source, String sourceId, Notification.TargetType target, List<String> targetIds, String name) {
+        Map<String, Optional<Instant>> lastSends = new HashMap<>(targetIds.size());
+
+        // A null source ID or name never matches in the database, such notifications are always sent
+        if (sourceId == null || name == null) {
+            targetIds.forEach(targetId -> lastSends.put(targetId, Optional.empty()));
+            return lastSends;
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (String targetId : targetIds) {
+            Optional<Instant> lastSend = lastSentCache.get(new LastSentKey(source, sourceId, target, targetId, name));
+            if (lastSend != null) {
+                lastSends.put(targetId, lastSend);
+            } else if (!lastSends.containsKey(targetId)) {
+                lastSends.put(targetId, Optional.empty());
+                missing.add(targetId);
+            }
+        }
+
+        for (int from = 0; from < missing.size(); from += LAST_SENT_QUERY_SIZE) {
+            List<String> query = missing.subList(from, Math.min(from + LAST_SENT_QUERY_SIZE, missing.size()));
+            List<Object[]> results = persistenceService.doReturningTransaction(entityManager -> entityManager.createQuery(
+                    "SELECT n.targetId, max(n.sentOn) FROM SentNotification n WHERE n.source =:source AND n.sourceId =:sourceId AND n.target =:target AND n.targetId IN :targetIds AND n.name =:name GROUP BY n.targetId", Object[].class)
+                    .setParameter("source", source)
+                    .setParameter("sourceId", sourceId)
+                    .setParameter("target", target)
+                    .setParameter("targetIds", query)
+                    .setParameter("name", name)
+                    .getResultList());
+
+            for (Object[] result : results) {
+                lastSends.put((String) result[0], Optional.ofNullable((Date) result[1]).map(Date::toInstant));
+            }
+            for (String targetId : query) {
+                // Don't replace a time recorded by a concurrent send
+                lastSentCache.putIfAbsent(new LastSentKey(source, sourceId, target, targetId, name), lastSends.get(targetId));
+            }
+        }
+
+        return lastSends;
+    }
+
+    protected void updateLastSent(Notification.Source source, String sourceId, Notification.TargetType target, String targetId, String name, Instant sentOn) {
+        if (sourceId == null || name == null)
+            return;
+        // Also cache targets not loaded yet, so a concurrent load of the time before the commit can't replace it
+        lastSentCache.merge(
+            new LastSentKey(source, sourceId, target, targetId, name),
+            Optional.of(sentOn),
+            (lastSend, sent) -> lastSend.isPresent() && lastSend.get().isAfter(sentOn) ? lastSend : sent
+        );
     }
 }
\ No newline at end of file
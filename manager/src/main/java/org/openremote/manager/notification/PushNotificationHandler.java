@@ -26,6 +26,9 @@ import com.google.firebase.FirebaseOptions;
 import com.google.firebase.messaging.*;
 import org.apache.camel.builder.RouteBuilder;
 import org.openremote.container.Container;
+import org.openremote.container.concurrent.ContainerExecutor;
+import org.openremote.container.concurrent.ContainerThreadFactory;
+import org.openremote.container.concurrent.ContainerThreads;
 import org.openremote.container.message.MessageBrokerSetupService;
 import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.manager.asset.AssetStorageService;
@@ -44,16 +47,24 @@ import org.openremote.model.query.filter.ObjectValueKeyPredicate;
 import org.openremote.model.query.filter.PathPredicate;
 import org.openremote.model.query.filter.TenantPredicate;
 import org.openremote.model.util.TextUtil;
+import org.openremote.model.value.ObjectValue;
+import org.openremote.model.value.Values;
 
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import static org.openremote.container.concurrent.GlobalLock.withLock;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.persistence.PersistenceEvent.*;
 import static org.openremote.model.asset.AssetType.CONSOLE;
 import static org.openremote.model.notification.PushNotificationMessage.TargetType.DEVICE;
@@ -61,6 +72,11 @@ import static org.openremote.model.notification.PushNotificationMessage.TargetTy
 import static org.openremote.model.query.BaseAssetQuery.Include.ONLY_ID_AND_NAME;
 import static org.openremote.model.query.BaseAssetQuery.Include.ONLY_ID_AND_NAME_AND_ATTRIBUTES;
 
+/**
+ * Sends {@link PushNotificationMessage}s to consoles through FCM. A batch of targets is sent with up to
+ * {@link #FCM_MAX_CONCURRENT_REQUESTS} concurrent FCM requests, each console receives its own FCM message as the
+ * message data contains the notification ID.
+ */
 public class PushNotificationHandler extends RouteBuilder implements NotificationHandler {
 
     private static final Logger LOG = Logger.getLogger(PushNotificationHandler.class.getName());
@@ -68,16 +84,32 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
     public static final int CONNECT_TIMEOUT_MILLIS = 3000;
     public static final int READ_TIMEOUT_MILLIS = 3000;
     public static final String FCM_PROVIDER_NAME = "fcm";
+    public static final String FCM_MAX_CONCURRENT_REQUESTS = "FCM_MAX_CONCURRENT_REQUESTS";
+    public static final int FCM_MAX_CONCURRENT_REQUESTS_DEFAULT = 20;
 
     protected AssetStorageService assetStorageService;
     protected boolean valid;
-    protected Map<String, String> consoleFCMTokenMap = new HashMap<>();
-    protected List<String> fcmTokenBlacklist = new ArrayList<>();
+    protected Map<String, String> consoleFCMTokenMap = new ConcurrentHashMap<>();
+    protected List<String> fcmTokenBlacklist = new CopyOnWriteArrayList<>();
+    protected ThreadPoolExecutor sendExecutor;
 
     public void init(Container container) throws Exception {
         this.assetStorageService = container.getService(AssetStorageService.class);
         container.getService(MessageBrokerSetupService.class).getContext().addRoutes(this);
 
+        int maxConcurrentRequests = Math.max(
+            getInteger(container.getConfig(), FCM_MAX_CONCURRENT_REQUESTS, FCM_MAX_CONCURRENT_REQUESTS_DEFAULT), 1
+        );
+        sendExecutor = new ContainerExecutor(
+            new ContainerThreadFactory("FCM Send"),
+            ContainerThreads.DEFAULT_REJECTED_EXECUTION_HANDLER,
+            maxConcurrentRequests,
+            maxConcurrentRequests,
+            60,
+            new LinkedBlockingQueue<>()
+        );
+        sendExecutor.allowCoreThreadTimeOut(true);
+
         String firebaseConfigFilePath = container.getConfig().get(FIREBASE_CONFIG_FILE);
 
         if (TextUtil.isNullOrEmpty(firebaseConfigFilePath)) {
@@ -112,8 +144,8 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
             return;
         }
 
-        // Not using Collectors.toMap as there is a quirk in there which means null values aren't supported!
-        consoleFCMTokenMap = new HashMap<>();
+        // Read by the send threads, consoles without token are not stored as null values aren't supported
+        consoleFCMTokenMap = new ConcurrentHashMap<>();
 
         // Find all console assets that use this adapter
         assetStorageService.findAll(
@@ -126,12 +158,14 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
                     new ObjectValueKeyPredicate("push")))
             .stream()
             .filter(PushNotificationHandler::isLinkedToFcmProvider)
-            .forEach(asset -> consoleFCMTokenMap.put(asset.getId(), getFcmToken(asset).orElse(null)));
+            .forEach(asset -> getFcmToken(asset).ifPresent(fcmToken -> consoleFCMTokenMap.put(asset.getId(), fcmToken)));
     }
 
     @Override
     public void stop(Container container) throws Exception {
-
+        if (sendExecutor != null) {
+            sendExecutor.shutdownNow();
+        }
     }
 
     @Override
@@ -300,8 +334,8 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
 
         switch (pushMessage.getTargetType()) {
             case DEVICE:
-                // Always use fcm token from the console asset (so users cannot target other devices)
-                pushMessage.setTarget(fcmToken);
+                // Always use fcm token from the console asset (so users cannot target other devices), the message is
+                // shared by all targets of a batch so the token is not set on the message
                 break;
             case TOPIC:
                 // TODO: Decide how to handle FCM topic support (too much power for users to put anything in target)
@@ -313,7 +347,35 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
                 return NotificationSendResult.failure("Messages sent to conditional targets are not supported");
         }
 
-        return sendMessage(buildFCMMessage(id, pushMessage));
+        NotificationSendResult result = sendMessage(buildFCMMessage(id, pushMessage, fcmToken));
+
+        // Store the device token with the sent notification, without setting it on the shared message
+        ObjectValue sentMessage = pushMessage.toValue();
+        sentMessage.put("target", Values.create(fcmToken));
+        return result.withSentMessage(sentMessage);
+    }
+
+    @Override
+    public CompletableFuture<List<NotificationSendResult>> sendMessages(List<Long> ids, Notification.Source source, String sourceId, Notification.TargetType targetType, List<String> targetIds, AbstractNotificationMessage message) {
+
+        // Set the default target type before the message is shared by the send threads
+        PushNotificationMessage pushMessage = (PushNotificationMessage) message;
+        if (pushMessage.getTargetType() == null) {
+            pushMessage.setTargetType(DEVICE);
+        }
+
+        List<CompletableFuture<NotificationSendResult>> results = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            long id = ids.get(i);
+            String targetId = targetIds.get(i);
+            results.add(CompletableFuture.supplyAsync(
+                () -> sendMessage(id, source, sourceId, targetType, targetId, message),
+                sendExecutor
+            ));
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]))
+            .thenApply(done -> results.stream().map(CompletableFuture::join).collect(Collectors.toList()));
     }
 
 //    public NotificationSendResult sendMessage(PushNotificationMessage.TargetType targetType, String fcmTarget, Message.Builder messageBuilder) {
@@ -347,7 +409,7 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
 
     public NotificationSendResult sendMessage(Message message) {
         try {
-            FirebaseMessaging.getInstance().send(message);
+            getFirebaseMessaging().send(message);
             return NotificationSendResult.success();
         } catch (FirebaseMessagingException e) {
             handleFcmException(e);
@@ -355,6 +417,10 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
         }
     }
 
+    protected FirebaseMessaging getFirebaseMessaging() {
+        return FirebaseMessaging.getInstance();
+    }
+
     protected boolean isConsoleSubscribedToTopic(Asset asset, String topic) {
         return ConsoleConfiguration.getConsoleProvider(asset, PushNotificationMessage.TYPE)
             .map(ConsoleProvider::getData)
@@ -364,13 +430,20 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
     }
 
     protected static Message buildFCMMessage(long id, PushNotificationMessage pushMessage) {
+        return buildFCMMessage(id, pushMessage, pushMessage.getTarget());
+    }
+
+    /**
+     * @param fcmToken The device token if the message target type is {@link PushNotificationMessage.TargetType#DEVICE}.
+     */
+    protected static Message buildFCMMessage(long id, PushNotificationMessage pushMessage, String fcmToken) {
 
         Message.Builder builder = Message.builder();
         boolean dataOnly = TextUtil.isNullOrEmpty(pushMessage.getTitle());
 
         switch (pushMessage.getTargetType()) {
             case DEVICE:
-                builder.setToken(pushMessage.getTarget());
+                builder.setToken(fcmToken);
                 break;
             case TOPIC:
                 builder.setTopic(pushMessage.getTarget());
@@ -480,7 +553,7 @@ public class PushNotificationHandler extends RouteBuilder implements Notificatio
                 case INSERT:
                 case UPDATE:
 
-                    consoleFCMTokenMap.put(asset.getId(), getFcmToken(asset).orElse(null));
+                    getFcmToken(asset).ifPresent(fcmToken -> consoleFCMTokenMap.put(asset.getId(), fcmToken));
                     break;
             }
         });
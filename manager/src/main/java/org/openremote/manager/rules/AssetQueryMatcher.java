@@ -0,0 +1,388 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.openremote.container.timer.TimerService;
+import org.openremote.model.attribute.Meta;
+import org.openremote.model.geo.GeoJSONPoint;
+import org.openremote.model.query.BaseAssetQuery;
+import org.openremote.model.query.filter.*;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.openremote.model.query.BaseAssetQuery.Match.EXACT;
+
+/**
+ * A {@link BaseAssetQuery} compiled for repeated matching of {@link AssetState} facts. The predicates of the
+ * query are built once, with the same semantics as {@link AssetQueryPredicate}. The query is analyzed for
+ * restrictions that can be answered by an {@link AssetStateIndex}: asset identifiers, exact asset type, parent,
+ * path, tenant, exact attribute name, numeric ranges of attribute values, and the bounds of location predicates.
+ * When matching, the smallest candidate set of these index lookups is tested with the predicates, all asset states
+ * are only scanned if the query has no indexed restriction.
+ * <p>
+ * The query must not be modified after it has been compiled. A matcher is independent of the facts, rules can
+ * compile a query once and use it with {@link RulesFacts#matchAssetState(AssetQueryMatcher)} on every firing.
+ */
+public class AssetQueryMatcher implements Predicate<AssetState> {
+
+    final protected BaseAssetQuery query;
+    final protected List<Predicate<AssetState>> predicates = new ArrayList<>();
+    final protected List<Function<AssetStateIndex.Snapshot, Collection<AssetState>>> lookups = new ArrayList<>();
+    protected List<String> indexedAssetIds;
+    protected String indexedAssetType;
+    final protected List<String> indexedAttributeNames = new ArrayList<>();
+    protected LocationPredicate locationPredicate;
+    protected boolean timeDependent;
+
+    public AssetQueryMatcher(TimerService timerService, BaseAssetQuery query) {
+        this.query = query;
+        compilePredicates(timerService);
+        compileLookups();
+    }
+
+    public BaseAssetQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * @return <code>true</code> if matching can use an index instead of scanning all asset states.
+     */
+    public boolean isIndexed() {
+        return !lookups.isEmpty();
+    }
+
+    /**
+     * @return The asset identifiers all matching asset states have, or <code>null</code> if not restricted.
+     */
+    public List<String> getIndexedAssetIds() {
+        return indexedAssetIds;
+    }
+
+    /**
+     * @return The asset type all matching asset states have, or <code>null</code> if not restricted.
+     */
+    public String getIndexedAssetType() {
+        return indexedAssetType;
+    }
+
+    /**
+     * @return The attribute names all matching asset states have, empty if not restricted.
+     */
+    public List<String> getIndexedAttributeNames() {
+        return indexedAttributeNames;
+    }
+
+    /**
+     * @return <code>true</code> if the result depends on the current time, e.g. with a relative date/time predicate.
+     */
+    public boolean isTimeDependent() {
+        return timeDependent;
+    }
+
+    @Override
+    public boolean test(AssetState assetState) {
+        return testPredicates(assetState)
+            && (locationPredicate == null || testLocation(AssetStateIndex.parseLocation(assetState)));
+    }
+
+    /**
+     * Same as {@link #test(AssetState)}, uses the point of the location attribute parsed by the index.
+     */
+    public boolean test(AssetStateIndex.Snapshot index, AssetState assetState) {
+        return testPredicates(assetState)
+            && (locationPredicate == null || testLocation(index.getLocation(assetState)));
+    }
+
+    protected boolean testPredicates(AssetState assetState) {
+        for (Predicate<AssetState> predicate : predicates) {
+            if (!predicate.test(assetState))
+                return false;
+        }
+        return true;
+    }
+
+    protected boolean testLocation(GeoJSONPoint location) {
+        return location != null && AssetQueryPredicate.test(locationPredicate, location.getY(), location.getX());
+    }
+
+    /**
+     * @param index     The snapshot of the index of the given asset states.
+     * @param allStates Scanned in parallel if no index lookup applies.
+     */
+    public Stream<AssetState> match(AssetStateIndex.Snapshot index, Collection<AssetState> allStates) {
+        Collection<AssetState> candidates = getCandidates(index);
+        if (candidates == null) {
+            return allStates.stream().parallel().filter(assetState -> test(index, assetState));
+        }
+        return candidates.stream().filter(assetState -> test(index, assetState));
+    }
+
+    /**
+     * @return The smallest candidate set of all index lookups or <code>null</code> if the query has no indexed
+     * restriction.
+     */
+    public Collection<AssetState> getCandidates(AssetStateIndex.Snapshot index) {
+        Collection<AssetState> candidates = null;
+        for (Function<AssetStateIndex.Snapshot, Collection<AssetState>> lookup : lookups) {
+            Collection<AssetState> result = lookup.apply(index);
+            if (candidates == null || AssetStateIndex.estimateSize(result) < AssetStateIndex.estimateSize(candidates)) {
+                candidates = result;
+            }
+            if (candidates.isEmpty())
+                break;
+        }
+        return candidates;
+    }
+
+    protected void compilePredicates(TimerService timerService) {
+        if (query.ids != null) {
+            Collection<String> ids = query.ids.size() > 8 ? new HashSet<>(query.ids) : query.ids;
+            predicates.add(assetState -> ids.contains(assetState.getId()));
+        }
+
+        if (query.name != null) {
+            Predicate<String> namePredicate = AssetQueryPredicate.asPredicate(query.name);
+            predicates.add(assetState -> namePredicate.test(assetState.getName()));
+        }
+
+        if (query.parent != null) {
+            predicates.add(AssetQueryPredicate.asPredicate(query.parent));
+        }
+
+        if (query.path != null) {
+            Predicate<String[]> pathPredicate = AssetQueryPredicate.asPredicate(query.path);
+            predicates.add(assetState -> pathPredicate.test(assetState.getPath()));
+        }
+
+        if (query.tenant != null) {
+            predicates.add(AssetQueryPredicate.asPredicate(query.tenant));
+        }
+
+        if (query.userId != null) {
+            predicates.add(assetState -> {
+                // TODO Would require linked user IDs in AbstractAssetUpdate
+                throw new UnsupportedOperationException("Restriction by user ID not implemented in rules matching");
+            });
+        }
+
+        if (query.type != null) {
+            Predicate<String> typePredicate = AssetQueryPredicate.asPredicate(query.type);
+            predicates.add(assetState -> typePredicate.test(assetState.getTypeString()));
+        }
+
+        if (query.attribute != null) {
+            for (AttributePredicate p : query.attribute) {
+                timeDependent |= p.value instanceof DateTimePredicate;
+                predicates.add(AssetQueryPredicate.asPredicate(timerService::getCurrentTimeMillis, p));
+            }
+        }
+
+        if (query.attributeMeta != null) {
+            for (AttributeMetaPredicate p : query.attributeMeta) {
+                timeDependent |= p.itemValuePredicate instanceof DateTimePredicate;
+                Predicate<Meta> metaPredicate = AssetQueryPredicate.asPredicate(timerService::getCurrentTimeMillis, p);
+                predicates.add(assetState -> metaPredicate.test(assetState.getMeta()));
+            }
+        }
+
+        if (query.select != null) {
+            predicates.add(assetState -> {
+                throw new UnsupportedOperationException("Projection with 'select' not supported in rules matching");
+            });
+        }
+
+        if (query.orderBy != null) {
+            predicates.add(assetState -> {
+                throw new UnsupportedOperationException("Sorting with 'orderBy' not supported in rules matching");
+            });
+        }
+
+        if (query.location != null) {
+            if (!(query.location instanceof RadialLocationPredicate) && !(query.location instanceof RectangularLocationPredicate)) {
+                throw new UnsupportedOperationException("Location predicate '" + query.location.getClass().getSimpleName() + "' not supported in rules matching");
+            }
+            // Tested last, with the point parsed by the index if available
+            locationPredicate = query.location;
+        }
+    }
+
+    protected void compileLookups() {
+        if (query.ids != null) {
+            List<String> ids = query.ids;
+            indexedAssetIds = ids;
+            if (ids.size() == 1) {
+                String id = ids.get(0);
+                lookups.add(index -> index.getById(id));
+            } else {
+                lookups.add(index -> {
+                    Set<AssetState> result = new LinkedHashSet<>();
+                    for (String id : ids) {
+                        result.addAll(index.getById(id));
+                    }
+                    return result;
+                });
+            }
+        }
+
+        if (isExact(query.type)) {
+            String type = query.type.value;
+            indexedAssetType = type;
+            lookups.add(index -> index.getByType(type));
+        }
+
+        if (query.parent != null) {
+            ParentPredicate parent = query.parent;
+            if (parent.id != null) {
+                lookups.add(index -> index.getByParentId(parent.id));
+            } else if (parent.noParent) {
+                lookups.add(index -> index.getByParentId(null));
+            }
+        }
+
+        if (query.path != null && query.path.path != null && query.path.path.length > 0) {
+            // The first element of the path is the asset itself
+            String id = query.path.path[0];
+            if (indexedAssetIds == null) {
+                indexedAssetIds = Collections.singletonList(id);
+            }
+            lookups.add(index -> index.getById(id));
+        }
+
+        if (query.tenant != null) {
+            TenantPredicate tenant = query.tenant;
+            if (tenant.realmId != null) {
+                lookups.add(index -> index.getByRealmId(tenant.realmId));
+            } else if (tenant.realm != null) {
+                lookups.add(index -> index.getByTenantRealm(tenant.realm));
+            }
+        }
+
+        double[] locationBounds = getLocationBounds(query.location);
+        if (locationBounds != null) {
+            lookups.add(index -> index.getByLocation(locationBounds[0], locationBounds[1], locationBounds[2], locationBounds[3]));
+        }
+
+        if (query.attribute != null) {
+            for (AttributePredicate p : query.attribute) {
+                if (!isExact(p.name))
+                    continue;
+                String attributeName = p.name.value;
+                indexedAttributeNames.add(attributeName);
+                if (p.value instanceof NumberPredicate && isIndexedRange((NumberPredicate) p.value)) {
+                    // A subset of the asset states of the attribute, no separate attribute name lookup needed
+                    NumberPredicate numberPredicate = (NumberPredicate) p.value;
+                    lookups.add(index -> getByNumberPredicate(index, attributeName, numberPredicate));
+                } else {
+                    lookups.add(index -> index.getByAttributeName(attributeName));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The latitude and longitude bounds (latMin, lngMin, latMax, lngMax) containing all locations matching
+     * the predicate, or <code>null</code> if the matching locations aren't bounded, e.g. for a negated predicate.
+     */
+    protected static double[] getLocationBounds(LocationPredicate predicate) {
+        if (predicate instanceof RectangularLocationPredicate) {
+            RectangularLocationPredicate rect = (RectangularLocationPredicate) predicate;
+            return rect.negated ? null : new double[]{rect.latMin, rect.lngMin, rect.latMax, rect.lngMax};
+        }
+        if (predicate instanceof RadialLocationPredicate) {
+            RadialLocationPredicate radial = (RadialLocationPredicate) predicate;
+            if (radial.negated)
+                return null;
+            // Angular radius with a small margin for rounding errors of the distance
+            double angle = (Math.max(radial.radius, 0) / AssetQueryPredicate.EARTH_RADIUS_METRES) * 1.001 + 1e-9;
+            double latDelta = Math.toDegrees(angle);
+            double latMin = radial.lat - latDelta;
+            double latMax = radial.lat + latDelta;
+            double sinLngDelta = Math.sin(angle) / Math.cos(Math.toRadians(radial.lat));
+            if (latMin <= -90 || latMax >= 90 || angle >= Math.PI / 2 || sinLngDelta >= 1) {
+                // The circle contains a pole, all longitudes
+                return new double[]{Math.max(latMin, -90), -180, Math.min(latMax, 90), 180};
+            }
+            double lngDelta = Math.toDegrees(Math.asin(sinLngDelta));
+            return new double[]{latMin, radial.lng - lngDelta, latMax, radial.lng + lngDelta};
+        }
+        return null;
+    }
+
+    protected static boolean isExact(StringPredicate predicate) {
+        return predicate != null && predicate.value != null && predicate.match == EXACT && predicate.caseSensitive;
+    }
+
+    protected static boolean isIndexedRange(NumberPredicate predicate) {
+        if (predicate.numberType != BaseAssetQuery.NumberType.DOUBLE || predicate.operator == null)
+            return false;
+        if (Double.isNaN(predicate.value))
+            return false;
+        switch (predicate.operator) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_EQUALS:
+            case GREATER_THAN:
+            case GREATER_EQUALS:
+                return true;
+            case BETWEEN:
+                return !Double.isNaN(predicate.rangeValue);
+        }
+        return false;
+    }
+
+    protected static Collection<AssetState> getByNumberPredicate(AssetStateIndex.Snapshot index, String attributeName, NumberPredicate predicate) {
+        switch (predicate.operator) {
+            case EQUALS:
+                return index.getByNumberRange(attributeName, predicate.value, true, predicate.value, true);
+            case BETWEEN:
+                return index.getByNumberRange(attributeName, predicate.value, true, predicate.rangeValue, true);
+            case GREATER_THAN:
+                return index.getByNumberRange(attributeName, predicate.value, false, null, false);
+            case GREATER_EQUALS:
+                return index.getByNumberRange(attributeName, predicate.value, true, null, false);
+            case LESS_THAN:
+            case LESS_EQUALS:
+                // An empty or non-numeric value is always "less than x", see AssetQueryPredicate
+                Collection<AssetState> lower = index.getByNumberRange(
+                    attributeName, null, false, predicate.value, predicate.operator == BaseAssetQuery.Operator.LESS_EQUALS
+                );
+                Collection<AssetState> nonNumbers = index.getByNonNumberValue(attributeName);
+                if (nonNumbers.isEmpty())
+                    return lower;
+                List<AssetState> result = new ArrayList<>(lower.size() + AssetStateIndex.estimateSize(nonNumbers));
+                result.addAll(lower);
+                result.addAll(nonNumbers);
+                return result;
+        }
+        return index.getByAttributeName(attributeName);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "predicates=" + predicates.size() +
+            ", lookups=" + lookups.size() +
+            '}';
+    }
+}
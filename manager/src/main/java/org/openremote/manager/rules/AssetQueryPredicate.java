@@ -20,8 +20,6 @@
 package org.openremote.manager.rules;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
-import org.geotools.referencing.GeodeticCalculator;
 import org.openremote.container.timer.TimerService;
 import org.openremote.model.attribute.AttributeType;
 import org.openremote.model.attribute.Meta;
@@ -51,6 +49,9 @@ import static org.openremote.model.query.BaseAssetQuery.Operator.LESS_THAN;
  */
 public class AssetQueryPredicate implements Predicate<AssetState> {
 
+    // Radius of the sphere of the ST_Distance_Sphere database function
+    public static final double EARTH_RADIUS_METRES = 6370986;
+
     final protected BaseAssetQuery query;
     final protected TimerService timerService;
 
@@ -257,27 +258,49 @@ public class AssetQueryPredicate implements Predicate<AssetState> {
                 && (predicate.realmId == null || predicate.realmId.equals(assetState.getRealmId()));
     }
 
+    /**
+     * @return A predicate of coordinates with latitude as x and longitude as y.
+     */
     public static Predicate<Coordinate> asPredicate(LocationPredicate predicate) {
-        return coordinate -> {
-            if (predicate instanceof RadialLocationPredicate) {
-                //TODO geotools version to gradle properties
-                RadialLocationPredicate radialLocationPredicate = (RadialLocationPredicate) predicate;
-                GeodeticCalculator calculator = new GeodeticCalculator();
-                calculator.setStartingGeographicPoint(radialLocationPredicate.lng, radialLocationPredicate.lat);
-                calculator.setDestinationGeographicPoint(coordinate.y, coordinate.x);
-                return calculator.getOrthodromicDistance() < radialLocationPredicate.radius;
-            } else if (predicate instanceof RectangularLocationPredicate) {
-                // Again this is a euclidean plane so doesn't work perfectly for WGS lat/lng - the bigger the rectangle to less accurate it is)
-                RectangularLocationPredicate rectangularLocationPredicate = (RectangularLocationPredicate) predicate;
-                Envelope envelope = new Envelope(rectangularLocationPredicate.latMin,
-                    rectangularLocationPredicate.lngMin,
-                    rectangularLocationPredicate.latMax,
-                    rectangularLocationPredicate.lngMax);
-                return envelope.contains(coordinate);
-            } else {
+        if (!(predicate instanceof RadialLocationPredicate) && !(predicate instanceof RectangularLocationPredicate)) {
+            return coordinate -> {
                 throw new UnsupportedOperationException("Location predicate '" + predicate.getClass().getSimpleName() + "' not supported in rules matching");
-            }
-        };
+            };
+        }
+        return coordinate -> test(predicate, coordinate.x, coordinate.y);
+    }
+
+    /**
+     * Tests a location without allocating, same as the database query: the distance of a radial predicate is
+     * measured on a sphere, a rectangular predicate contains the location if it is within the latitude and
+     * longitude bounds.
+     */
+    public static boolean test(LocationPredicate predicate, double lat, double lng) {
+        if (predicate instanceof RadialLocationPredicate) {
+            RadialLocationPredicate radialLocationPredicate = (RadialLocationPredicate) predicate;
+            boolean within = getDistance(radialLocationPredicate.lat, radialLocationPredicate.lng, lat, lng) <= radialLocationPredicate.radius;
+            return within != radialLocationPredicate.negated;
+        } else if (predicate instanceof RectangularLocationPredicate) {
+            RectangularLocationPredicate rectangularLocationPredicate = (RectangularLocationPredicate) predicate;
+            boolean within = lat >= rectangularLocationPredicate.latMin
+                && lat <= rectangularLocationPredicate.latMax
+                && lng >= rectangularLocationPredicate.lngMin
+                && lng <= rectangularLocationPredicate.lngMax;
+            return within != rectangularLocationPredicate.negated;
+        } else {
+            throw new UnsupportedOperationException("Location predicate '" + predicate.getClass().getSimpleName() + "' not supported in rules matching");
+        }
+    }
+
+    /**
+     * @return The great-circle distance in metres with the haversine formula, on a sphere with the radius used by
+     * the <code>ST_Distance_Sphere</code> function of the database.
+     */
+    public static double getDistance(double lat1, double lng1, double lat2, double lng2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLng = Math.sin(Math.toRadians(lng2 - lng1) / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLng * sinLng;
+        return 2 * EARTH_RADIUS_METRES * Math.asin(Math.min(1, Math.sqrt(a)));
     }
 
     public static Predicate<AssetState> asPredicate(Supplier<Long> currentMillisProducer, AttributePredicate predicate) {
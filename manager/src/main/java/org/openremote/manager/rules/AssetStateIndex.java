@@ -0,0 +1,660 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import com.google.common.collect.Iterators;
+import org.openremote.model.attribute.AttributeType;
+import org.openremote.model.geo.GeoJSONPoint;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+
+/**
+ * Secondary indexes of the {@link AssetState} facts of a {@link RulesFacts} instance, maintained incrementally
+ * when asset states are added and removed. An {@link AssetQueryMatcher} selects the smallest candidate set from
+ * these indexes and only tests the candidates with its predicate.
+ * <p>
+ * Asset states are immutable, the index keeps the indexed instance of each asset state so that a replaced asset
+ * state is removed with the values it was indexed with. Modifications must be serialized by the caller, reads
+ * don't lock. Every modification creates a new version of the index, a replacement is a single modification and
+ * a reader never sees both or none of the replaced and the replacing asset state. Reads go through a
+ * {@link Snapshot}: an open snapshot returns the same asset states until it is closed, so rules engines can fire
+ * on an index shared through an {@link AssetStateStore} while it is updated. Asset states replaced or removed
+ * after the oldest open snapshot was taken are kept until that snapshot is closed.
+ * <p>
+ * The returned collections are ordered by the time asset states were added, a replaced asset state moves to the
+ * end. Collections of asset states with different values, e.g. of number ranges and locations, are materialized
+ * and ordered by value.
+ */
+public class AssetStateIndex {
+
+    /**
+     * The asset states visible at a version of the index. Snapshots from {@link #getSnapshot()} are not
+     * registered and only consistent until the next modification, snapshots from {@link #openSnapshot()} are
+     * stable until they are closed.
+     */
+    public class Snapshot implements AutoCloseable {
+
+        final protected long version;
+        final protected boolean registered;
+
+        protected Snapshot(long version, boolean registered) {
+            this.version = version;
+            this.registered = registered;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return The asset state with the same asset identifier and attribute name or <code>null</code>.
+         */
+        public AssetState get(AssetState assetState) {
+            Entry entry = current.get(assetState);
+            if (entry != null && entry.isVisible(version))
+                return entry.assetState;
+            // Replaced or removed after this snapshot was taken, find it with the other attributes of the asset
+            Bucket bucket = byId.get(assetState.getId());
+            if (bucket != null) {
+                for (Entry candidate : bucket.entries.values()) {
+                    if (candidate.isVisible(version) && candidate.assetState.equals(assetState))
+                        return candidate.assetState;
+                }
+            }
+            return null;
+        }
+
+        public Collection<AssetState> getAll() {
+            return all.getAssetStates(version);
+        }
+
+        public Collection<AssetState> getById(String id) {
+            return get(byId, id);
+        }
+
+        public Collection<AssetState> getByType(String type) {
+            return get(byType, type);
+        }
+
+        public Collection<AssetState> getByAttributeName(String attributeName) {
+            return get(byAttributeName, attributeName);
+        }
+
+        /**
+         * @return The asset states of all attribute names that are equal to the name ignoring case.
+         */
+        public Collection<AssetState> getByAttributeNameIgnoreCase(String attributeName) {
+            return get(byAttributeNameIgnoreCase, foldCase(attributeName));
+        }
+
+        /**
+         * @param parentId <code>null</code> returns the asset states of assets without parent.
+         */
+        public Collection<AssetState> getByParentId(String parentId) {
+            return get(byParentId, parentId != null ? parentId : NO_PARENT);
+        }
+
+        public Collection<AssetState> getByRealmId(String realmId) {
+            return get(byRealmId, realmId);
+        }
+
+        public Collection<AssetState> getByTenantRealm(String tenantRealm) {
+            return get(byTenantRealm, tenantRealm);
+        }
+
+        /**
+         * @return The asset states of the asset and all of its descendants.
+         */
+        public Collection<AssetState> getByPathId(String assetId) {
+            return get(byPathId, assetId);
+        }
+
+        /**
+         * Asset states of the attribute with a numeric value in the given range, the bounds may be <code>null</code>
+         * for an open range. Negative and positive zero are the same value in this index.
+         */
+        public Collection<AssetState> getByNumberRange(String attributeName, Double from, boolean fromInclusive, Double to, boolean toInclusive) {
+            NavigableMap<Double, Bucket> values = byNumberValue.get(attributeName);
+            if (values == null)
+                return Collections.emptyList();
+
+            if (from != null && to != null && (from > to || (from.equals(to) && !(fromInclusive && toInclusive))))
+                return Collections.emptyList();
+
+            NavigableMap<Double, Bucket> range = values;
+            if (from != null && to != null) {
+                range = values.subMap(normalize(from), fromInclusive, normalize(to), toInclusive);
+            } else if (from != null) {
+                range = values.tailMap(normalize(from), fromInclusive);
+            } else if (to != null) {
+                range = values.headMap(normalize(to), toInclusive);
+            }
+
+            List<AssetState> result = new ArrayList<>();
+            for (Bucket bucket : range.values()) {
+                bucket.addVisible(version, result);
+            }
+            return result;
+        }
+
+        /**
+         * Asset states of the attribute with a value that is not a number or empty.
+         */
+        public Collection<AssetState> getByNonNumberValue(String attributeName) {
+            return get(byNonNumberValue, attributeName);
+        }
+
+        /**
+         * Asset states of the location attribute with a point in cells of the location grid covering the bounds, a
+         * superset of the asset states within the bounds. The longitude bounds may exceed the antimeridian, a range
+         * of 360 degrees or more covers all longitudes.
+         */
+        public Collection<AssetState> getByLocation(double latMin, double lngMin, double latMax, double lngMax) {
+            if (latMin > latMax || lngMin > lngMax || byLocationCell.isEmpty())
+                return Collections.emptyList();
+
+            int rowMin = getLocationRow(latMin);
+            int rowMax = getLocationRow(latMax);
+
+            // Column ranges, two if the bounds cross the antimeridian
+            int[] columnRanges;
+            if (lngMax - lngMin >= 360) {
+                columnRanges = new int[]{0, LOCATION_CELL_COLUMNS - 1};
+            } else {
+                int columnMin = getLocationColumn(normalizeLng(lngMin));
+                int columnMax = getLocationColumn(normalizeLng(lngMax));
+                columnRanges = columnMin <= columnMax
+                    ? new int[]{columnMin, columnMax}
+                    : new int[]{columnMin, LOCATION_CELL_COLUMNS - 1, 0, columnMax};
+            }
+
+            long cellCount = 0;
+            for (int i = 0; i < columnRanges.length; i += 2) {
+                cellCount += (long) (rowMax - rowMin + 1) * (columnRanges[i + 1] - columnRanges[i] + 1);
+            }
+
+            List<AssetState> result = new ArrayList<>();
+            if (cellCount > byLocationCell.size()) {
+                // Large bounds, faster to check the occupied cells
+                for (Map.Entry<Long, Bucket> entry : byLocationCell.entrySet()) {
+                    int row = (int) (entry.getKey() / LOCATION_CELL_COLUMNS);
+                    int column = (int) (entry.getKey() % LOCATION_CELL_COLUMNS);
+                    if (row >= rowMin && row <= rowMax && isInRanges(column, columnRanges)) {
+                        entry.getValue().addVisible(version, result);
+                    }
+                }
+            } else {
+                for (int row = rowMin; row <= rowMax; row++) {
+                    for (int i = 0; i < columnRanges.length; i += 2) {
+                        for (int column = columnRanges[i]; column <= columnRanges[i + 1]; column++) {
+                            Bucket bucket = byLocationCell.get((long) row * LOCATION_CELL_COLUMNS + column);
+                            if (bucket != null) {
+                                bucket.addVisible(version, result);
+                            }
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return The point of an indexed asset state of the location attribute, parsed when it was indexed, or the
+         * parsed point of an asset state that isn't indexed. <code>null</code> if the value isn't a point.
+         */
+        public GeoJSONPoint getLocation(AssetState assetState) {
+            Entry entry = current.get(assetState);
+            if (entry != null && entry.assetState == assetState)
+                return entry.location;
+            return parseLocation(assetState);
+        }
+
+        /**
+         * Closes a snapshot opened with {@link #openSnapshot()}, asset states that are no longer visible to any
+         * open snapshot are purged on the next modification of the index.
+         */
+        @Override
+        public void close() {
+            if (!registered)
+                return;
+            synchronized (snapshots) {
+                snapshots.computeIfPresent(version, (v, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+
+        protected Collection<AssetState> get(Map<String, Bucket> index, String key) {
+            if (key == null)
+                return Collections.emptyList();
+            Bucket bucket = index.get(key);
+            return bucket != null ? bucket.getAssetStates(version) : Collections.emptyList();
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "version=" + version +
+                ", registered=" + registered +
+                '}';
+        }
+    }
+
+    /**
+     * An indexed asset state, visible to snapshots of versions from {@link #added} until {@link #superseded}.
+     */
+    protected static class Entry {
+
+        final protected AssetState assetState;
+        final protected GeoJSONPoint location;
+        final protected long added;
+        volatile protected long superseded = Long.MAX_VALUE;
+
+        protected Entry(AssetState assetState, GeoJSONPoint location, long added) {
+            this.assetState = assetState;
+            this.location = location;
+            this.added = added;
+        }
+
+        protected boolean isVisible(long version) {
+            return added <= version && superseded > version;
+        }
+    }
+
+    /**
+     * The entries of an index key, ordered by the version they were added.
+     */
+    protected static class Bucket {
+
+        final protected NavigableMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+        // The size of the bucket from each version it changed on, only the versions visible to the current version
+        // and open snapshots are kept
+        final protected NavigableMap<Long, Integer> sizes = new ConcurrentSkipListMap<>();
+        // Entries that are not superseded, the size of the bucket in the latest version
+        volatile protected int size;
+
+        protected Collection<AssetState> getAssetStates(long version) {
+            return new VisibleAssetStates(this, version);
+        }
+
+        protected int getSize(long version) {
+            Map.Entry<Long, Integer> sizeEntry = sizes.floorEntry(version);
+            return sizeEntry != null ? sizeEntry.getValue() : 0;
+        }
+
+        /**
+         * @param oldest The oldest version visible to the current version or an open snapshot.
+         */
+        protected void resize(int delta, long version, long oldest) {
+            size += delta;
+            sizes.put(version, size);
+            Long oldestChange = sizes.floorKey(oldest);
+            if (oldestChange != null) {
+                sizes.headMap(oldestChange, false).clear();
+            }
+        }
+
+        protected void addVisible(long version, Collection<AssetState> result) {
+            for (Entry entry : entries.values()) {
+                if (entry.isVisible(version)) {
+                    result.add(entry.assetState);
+                }
+            }
+        }
+    }
+
+    /**
+     * The asset states of a bucket visible at a version, iterated without copying and counted without iterating.
+     */
+    protected static class VisibleAssetStates extends AbstractCollection<AssetState> {
+
+        final protected Bucket bucket;
+        final protected long version;
+
+        protected VisibleAssetStates(Bucket bucket, long version) {
+            this.bucket = bucket;
+            this.version = version;
+        }
+
+        @Override
+        public Iterator<AssetState> iterator() {
+            return Iterators.transform(
+                Iterators.filter(bucket.entries.values().iterator(), entry -> entry.isVisible(version)),
+                entry -> entry.assetState
+            );
+        }
+
+        @Override
+        public int size() {
+            return bucket.getSize(version);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size() == 0;
+        }
+    }
+
+    // Key for asset states without parent, the maps below don't store null keys
+    static final String NO_PARENT = "";
+
+    // Size of the cells of the location grid in degrees, about 1.1 km of latitude
+    static final double LOCATION_CELL_DEGREES = 0.01;
+    static final int LOCATION_CELL_ROWS = (int) Math.round(180 / LOCATION_CELL_DEGREES);
+    static final int LOCATION_CELL_COLUMNS = (int) Math.round(360 / LOCATION_CELL_DEGREES);
+
+    // The latest entry of each asset state, by asset identifier and attribute name
+    final protected Map<AssetState, Entry> current = new ConcurrentHashMap<>();
+    final protected Bucket all = new Bucket();
+    final protected Map<String, Bucket> byId = new ConcurrentHashMap<>();
+    final protected Map<String, Bucket> byType = new ConcurrentHashMap<>();
+    final protected Map<String, Bucket> byAttributeName = new ConcurrentHashMap<>();
+    // By attribute name with case folded, see foldCase()
+    final protected Map<String, Bucket> byAttributeNameIgnoreCase = new ConcurrentHashMap<>();
+    final protected Map<String, Bucket> byParentId = new ConcurrentHashMap<>();
+    final protected Map<String, Bucket> byRealmId = new ConcurrentHashMap<>();
+    final protected Map<String, Bucket> byTenantRealm = new ConcurrentHashMap<>();
+    // Every asset on the path, the asset itself and its ancestors
+    final protected Map<String, Bucket> byPathId = new ConcurrentHashMap<>();
+
+    // Per attribute name, sorted by numeric value, and the asset states with non-numeric or empty values
+    final protected Map<String, NavigableMap<Double, Bucket>> byNumberValue = new ConcurrentHashMap<>();
+    final protected Map<String, Bucket> byNonNumberValue = new ConcurrentHashMap<>();
+
+    // Asset states of the location attribute with a point value by cell of the location grid
+    final protected Map<Long, Bucket> byLocationCell = new ConcurrentHashMap<>();
+
+    // Published after a modification, readers don't see entries of later versions
+    volatile protected long version;
+    // Open snapshots, count by version
+    final protected NavigableMap<Long, Integer> snapshots = new TreeMap<>();
+    // Superseded entries by version they were superseded, purged when no open snapshot can see them
+    final protected Deque<Entry> superseded = new ArrayDeque<>();
+
+    /**
+     * Adds the asset state, replacing the indexed asset state with the same asset identifier and attribute name
+     * in the same version.
+     */
+    public void add(AssetState assetState) {
+        long next = version + 1;
+        long oldest = getOldestVersion();
+        Entry previous = current.get(assetState);
+        if (previous != null) {
+            supersede(previous, next, oldest);
+        }
+        Entry entry = new Entry(assetState, parseLocation(assetState), next);
+        current.put(assetState, entry);
+        forEachBucket(entry, true, bucket -> {
+            bucket.entries.put(entry.added, entry);
+            bucket.resize(1, next, oldest);
+        });
+        version = next;
+        purge();
+    }
+
+    /**
+     * Removes the indexed asset state with the same asset identifier and attribute name.
+     *
+     * @return The removed asset state or <code>null</code> if no asset state was indexed.
+     */
+    public AssetState remove(AssetState assetState) {
+        Entry previous = current.remove(assetState);
+        if (previous == null)
+            return null;
+        long next = version + 1;
+        supersede(previous, next, getOldestVersion());
+        version = next;
+        purge();
+        return previous.assetState;
+    }
+
+    public void clear() {
+        for (Entry entry : current.values()) {
+            remove(entry.assetState);
+        }
+    }
+
+    public int size() {
+        return current.size();
+    }
+
+    /**
+     * @return The latest indexed asset state with the same asset identifier and attribute name or
+     * <code>null</code>, for the writer of the index.
+     */
+    public AssetState get(AssetState assetState) {
+        Entry entry = current.get(assetState);
+        return entry != null ? entry.assetState : null;
+    }
+
+    /**
+     * @return A snapshot of the current version that isn't registered, for single reads.
+     */
+    public Snapshot getSnapshot() {
+        return new Snapshot(version, false);
+    }
+
+    /**
+     * @return A snapshot of the current version that must be closed, asset states visible to it are kept until then.
+     */
+    public Snapshot openSnapshot() {
+        synchronized (snapshots) {
+            // Read the version while holding the lock, purge doesn't remove entries of this version concurrently
+            long snapshotVersion = version;
+            snapshots.merge(snapshotVersion, 1, Integer::sum);
+            return new Snapshot(snapshotVersion, true);
+        }
+    }
+
+    /**
+     * @return The number of asset states of a collection returned by a snapshot without counting them, the size
+     * in the latest version for collections of a single index key.
+     */
+    public static int estimateSize(Collection<AssetState> assetStates) {
+        if (assetStates instanceof VisibleAssetStates)
+            return ((VisibleAssetStates) assetStates).bucket.size;
+        return assetStates.size();
+    }
+
+    public static GeoJSONPoint parseLocation(AssetState assetState) {
+        if (!AttributeType.LOCATION.getName().equals(assetState.getAttributeName()))
+            return null;
+        return assetState.getValue().flatMap(GeoJSONPoint::fromValue).orElse(null);
+    }
+
+    protected static long getLocationCell(double lat, double lng) {
+        return (long) getLocationRow(lat) * LOCATION_CELL_COLUMNS + getLocationColumn(normalizeLng(lng));
+    }
+
+    protected static int getLocationRow(double lat) {
+        int row = (int) Math.floor((lat + 90) / LOCATION_CELL_DEGREES);
+        return Math.max(0, Math.min(LOCATION_CELL_ROWS - 1, row));
+    }
+
+    protected static int getLocationColumn(double lng) {
+        int column = (int) Math.floor((lng + 180) / LOCATION_CELL_DEGREES);
+        return Math.max(0, Math.min(LOCATION_CELL_COLUMNS - 1, column));
+    }
+
+    protected static double normalizeLng(double lng) {
+        if (lng >= -180 && lng <= 180)
+            return lng;
+        return ((lng + 180) % 360 + 360) % 360 - 180;
+    }
+
+    protected static boolean isInRanges(int value, int[] ranges) {
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (value >= ranges[i] && value <= ranges[i + 1])
+                return true;
+        }
+        return false;
+    }
+
+    protected static Double getNumberKey(AssetState assetState) {
+        return assetState.getValueAsNumber().map(AssetStateIndex::normalize).orElse(null);
+    }
+
+    protected static Double normalize(Double value) {
+        // Map -0.0 to 0.0, they are equal when compared as primitives but not as Double keys
+        return value == 0.0d ? 0.0d : value;
+    }
+
+    /**
+     * Characters are equal ignoring case if they are equal upper case or equal lower case, the same as
+     * {@link String#equalsIgnoreCase}.
+     */
+    protected static String foldCase(String attributeName) {
+        if (attributeName == null)
+            return null;
+        char[] chars = new char[attributeName.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(Character.toUpperCase(attributeName.charAt(i)));
+        }
+        return new String(chars);
+    }
+
+    protected void supersede(Entry entry, long next, long oldest) {
+        entry.superseded = next;
+        forEachBucket(entry, false, bucket -> bucket.resize(-1, next, oldest));
+        superseded.add(entry);
+    }
+
+    /**
+     * @return The oldest version visible to the current version or an open snapshot.
+     */
+    protected long getOldestVersion() {
+        synchronized (snapshots) {
+            return snapshots.isEmpty() ? version : Math.min(version, snapshots.firstKey());
+        }
+    }
+
+    /**
+     * Removes the superseded entries that are not visible to the current version and any open snapshot.
+     */
+    protected void purge() {
+        long oldest = getOldestVersion();
+        while (!superseded.isEmpty() && superseded.peek().superseded <= oldest) {
+            Entry entry = superseded.poll();
+            forEachBucket(entry, false, bucket -> bucket.entries.remove(entry.added));
+            removeEmptyBuckets(entry);
+        }
+    }
+
+    /**
+     * Calls the consumer with every bucket of the entry, creates missing buckets if requested.
+     */
+    protected void forEachBucket(Entry entry, boolean create, Consumer<Bucket> consumer) {
+        AssetState assetState = entry.assetState;
+        consumer.accept(all);
+        forBucket(byId, assetState.getId(), create, consumer);
+        if (assetState.getPath() != null) {
+            for (String pathId : assetState.getPath()) {
+                forBucket(byPathId, pathId, create, consumer);
+            }
+        }
+        forBucket(byType, assetState.getTypeString(), create, consumer);
+        forBucket(byAttributeName, assetState.getAttributeName(), create, consumer);
+        forBucket(byAttributeNameIgnoreCase, foldCase(assetState.getAttributeName()), create, consumer);
+        forBucket(byParentId, assetState.getParentId() != null ? assetState.getParentId() : NO_PARENT, create, consumer);
+        forBucket(byRealmId, assetState.getRealmId(), create, consumer);
+        forBucket(byTenantRealm, assetState.getTenantRealm(), create, consumer);
+
+        Double number = getNumberKey(assetState);
+        if (number != null) {
+            NavigableMap<Double, Bucket> values = create
+                ? byNumberValue.computeIfAbsent(assetState.getAttributeName(), name -> new ConcurrentSkipListMap<>())
+                : byNumberValue.get(assetState.getAttributeName());
+            if (values != null) {
+                forBucket(values, number, create, consumer);
+            }
+        } else {
+            forBucket(byNonNumberValue, assetState.getAttributeName(), create, consumer);
+        }
+
+        if (entry.location != null) {
+            forBucket(byLocationCell, getLocationCell(entry.location.getY(), entry.location.getX()), create, consumer);
+        }
+    }
+
+    protected void removeEmptyBuckets(Entry entry) {
+        AssetState assetState = entry.assetState;
+        removeIfEmpty(byId, assetState.getId());
+        if (assetState.getPath() != null) {
+            for (String pathId : assetState.getPath()) {
+                removeIfEmpty(byPathId, pathId);
+            }
+        }
+        removeIfEmpty(byType, assetState.getTypeString());
+        removeIfEmpty(byAttributeName, assetState.getAttributeName());
+        removeIfEmpty(byAttributeNameIgnoreCase, foldCase(assetState.getAttributeName()));
+        removeIfEmpty(byParentId, assetState.getParentId() != null ? assetState.getParentId() : NO_PARENT);
+        removeIfEmpty(byRealmId, assetState.getRealmId());
+        removeIfEmpty(byTenantRealm, assetState.getTenantRealm());
+
+        Double number = getNumberKey(assetState);
+        if (number != null) {
+            NavigableMap<Double, Bucket> values = byNumberValue.get(assetState.getAttributeName());
+            if (values != null) {
+                removeIfEmpty(values, number);
+                if (values.isEmpty()) {
+                    byNumberValue.remove(assetState.getAttributeName());
+                }
+            }
+        } else {
+            removeIfEmpty(byNonNumberValue, assetState.getAttributeName());
+        }
+
+        if (entry.location != null) {
+            removeIfEmpty(byLocationCell, getLocationCell(entry.location.getY(), entry.location.getX()));
+        }
+    }
+
+    protected static <K> void forBucket(Map<K, Bucket> index, K key, boolean create, Consumer<Bucket> consumer) {
+        if (key == null)
+            return;
+        Bucket bucket = create ? index.computeIfAbsent(key, k -> new Bucket()) : index.get(key);
+        if (bucket != null) {
+            consumer.accept(bucket);
+        }
+    }
+
+    protected static <K> void removeIfEmpty(Map<K, Bucket> index, K key) {
+        if (key == null)
+            return;
+        Bucket bucket = index.get(key);
+        if (bucket != null && bucket.entries.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "assetStates=" + current.size() +
+            ", version=" + version +
+            ", superseded=" + superseded.size() +
+            ", types=" + byType.size() +
+            ", attributeNames=" + byAttributeName.size() +
+            ", locationCells=" + byLocationCell.size() +
+            '}';
+    }
+}
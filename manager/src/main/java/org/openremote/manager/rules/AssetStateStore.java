@@ -0,0 +1,335 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import com.google.common.collect.Iterators;
+import org.openremote.model.attribute.Meta;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * The asset states of all rules engines, stored and indexed once. The global, tenant and asset rules engines read
+ * the asset states in their scope through a {@link View} instead of each engine holding its own copy and indexes.
+ * <p>
+ * Asset states are interned when stored: the {@link AssetState.AssetInfo} is shared by all asset states of an
+ * asset, and the {@link Meta} of an attribute is shared with the previous state of the attribute if unchanged.
+ * Asset states are immutable, an update replaces the stored instance in a single version of the index.
+ * Modifications are serialized, reads don't lock. An engine reads a stable snapshot of the store while firing,
+ * updates stored meanwhile are seen in the next firing the engine is notified of.
+ */
+public class AssetStateStore {
+
+    /**
+     * The asset states of a realm, of an asset and its descendants, or all asset states. A view is used by a single
+     * rules engine while holding the engine lock, it can hide asset states from that engine until they are replaced
+     * in the store, e.g. when a rule invalidated the state of an attribute it is updating. Between
+     * {@link #openSnapshot} and {@link #closeSnapshot} the view reads the same version of the store.
+     */
+    public class View {
+
+        // Null for all realms and assets
+        final protected String realmId;
+        final protected String assetId;
+        // Only the owner of a private store modifies it, shared views are modified by the rules service
+        final protected boolean modifiable;
+        final protected Map<AssetState, AssetState> hidden = new HashMap<>();
+        protected AssetStateIndex.Snapshot snapshot;
+
+        final protected Collection<AssetState> assetStates = new AbstractCollection<AssetState>() {
+            @Override
+            public Iterator<AssetState> iterator() {
+                Iterator<AssetState> iterator = Iterators.unmodifiableIterator(getScope(getSnapshot()).iterator());
+                return hidden.isEmpty() ? iterator : Iterators.filter(iterator, View.this::isVisible);
+            }
+
+            @Override
+            public int size() {
+                // Only a few asset states are hidden, subtract those in the scope instead of counting the others
+                AssetStateIndex.Snapshot snapshot = getSnapshot();
+                int size = getScope(snapshot).size();
+                for (AssetState hiddenAssetState : hidden.values()) {
+                    if (isInScope(hiddenAssetState) && snapshot.get(hiddenAssetState) == hiddenAssetState) {
+                        size--;
+                    }
+                }
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof AssetState))
+                    return false;
+                AssetState assetState = getSnapshot().get((AssetState) o);
+                return assetState != null && isInScope(assetState) && isVisible(assetState);
+            }
+        };
+
+        protected View(String realmId, String assetId, boolean modifiable) {
+            this.realmId = realmId;
+            this.assetId = assetId;
+            this.modifiable = modifiable;
+        }
+
+        /**
+         * Reads the current version of the store until the snapshot is closed, the asset states of a rules engine
+         * don't change while it fires. A modifiable view always reads the latest version, it only sees its own
+         * modifications.
+         */
+        public void openSnapshot() {
+            if (!modifiable && snapshot == null) {
+                snapshot = index.openSnapshot();
+            }
+        }
+
+        public void closeSnapshot() {
+            if (snapshot != null) {
+                snapshot.close();
+                snapshot = null;
+            }
+        }
+
+        /**
+         * @return The open snapshot or a snapshot of the latest version.
+         */
+        public AssetStateIndex.Snapshot getSnapshot() {
+            return snapshot != null ? snapshot : index.getSnapshot();
+        }
+
+        /**
+         * @return The live and unmodifiable asset states of this view, of the snapshot if open.
+         */
+        public Collection<AssetState> getAssetStates() {
+            return assetStates;
+        }
+
+        public void put(AssetState assetState) {
+            hidden.remove(assetState);
+            if (modifiable) {
+                AssetStateStore.this.put(assetState);
+            }
+        }
+
+        public void remove(AssetState assetState) {
+            if (modifiable) {
+                hidden.remove(assetState);
+                AssetStateStore.this.remove(assetState);
+            } else {
+                hide(assetState);
+            }
+        }
+
+        /**
+         * Hides the stored asset state with the same asset identifier and attribute name from this view, until it is
+         * replaced or removed in the store.
+         */
+        public void hide(AssetState assetState) {
+            AssetState stored = getSnapshot().get(assetState);
+            if (stored != null) {
+                hidden.put(stored, stored);
+            }
+        }
+
+        public Collection<AssetState> getById(String id) {
+            return filter(getSnapshot().getById(id));
+        }
+
+        public Collection<AssetState> getByType(String type) {
+            return filter(getSnapshot().getByType(type));
+        }
+
+        public Stream<AssetState> match(AssetQueryMatcher assetQueryMatcher) {
+            AssetStateIndex.Snapshot snapshot = getSnapshot();
+            Collection<AssetState> scope = getScope(snapshot);
+            Collection<AssetState> candidates = assetQueryMatcher.getCandidates(snapshot);
+            Predicate<AssetState> matches = assetState -> assetQueryMatcher.test(snapshot, assetState);
+            if (candidates == null) {
+                return scope.stream().parallel().filter(this::isVisible).filter(matches);
+            }
+            if (AssetStateIndex.estimateSize(candidates) >= AssetStateIndex.estimateSize(scope)) {
+                return scope.stream().filter(this::isVisible).filter(matches);
+            }
+            return candidates.stream().filter(this::isInView).filter(matches);
+        }
+
+        /**
+         * @return The asset states of the attribute in this view.
+         */
+        public Collection<AssetState> getByAttributeName(String attributeName) {
+            return filter(getSnapshot().getByAttributeName(attributeName));
+        }
+
+        /**
+         * @return The asset states of the attribute in this view, the name is matched ignoring case.
+         */
+        public Collection<AssetState> getByAttributeNameIgnoreCase(String attributeName) {
+            return filter(getSnapshot().getByAttributeNameIgnoreCase(attributeName));
+        }
+
+        protected Collection<AssetState> getScope(AssetStateIndex.Snapshot snapshot) {
+            if (assetId != null)
+                return snapshot.getByPathId(assetId);
+            if (realmId != null)
+                return snapshot.getByRealmId(realmId);
+            return snapshot.getAll();
+        }
+
+        protected Collection<AssetState> filter(Collection<AssetState> assetStates) {
+            List<AssetState> result = new ArrayList<>(AssetStateIndex.estimateSize(assetStates));
+            for (AssetState assetState : assetStates) {
+                if (isInView(assetState)) {
+                    result.add(assetState);
+                }
+            }
+            return result;
+        }
+
+        protected boolean isInView(AssetState assetState) {
+            return isInScope(assetState) && isVisible(assetState);
+        }
+
+        protected boolean isInScope(AssetState assetState) {
+            if (realmId != null && !realmId.equals(assetState.getRealmId()))
+                return false;
+            if (assetId != null) {
+                String[] path = assetState.getPath();
+                if (path == null)
+                    return false;
+                for (String pathId : path) {
+                    if (assetId.equals(pathId))
+                        return true;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        protected boolean isVisible(AssetState assetState) {
+            return hidden.isEmpty() || hidden.get(assetState) != assetState;
+        }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "{" +
+                "realmId='" + realmId + '\'' +
+                ", assetId='" + assetId + '\'' +
+                ", hidden=" + hidden.size() +
+                ", snapshot=" + snapshot +
+                '}';
+        }
+    }
+
+    final protected AssetStateIndex index = new AssetStateIndex();
+    final protected Map<String, AssetState.AssetInfo> assetInfos = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a view of the asset states in the scope of a rules engine, the view doesn't modify the store.
+     *
+     * @param realmId <code>null</code> for all realms.
+     * @param assetId <code>null</code> for all assets, or the asset and its descendants.
+     */
+    public View createView(String realmId, String assetId) {
+        return new View(realmId, assetId, false);
+    }
+
+    /**
+     * Creates a view of all asset states that modifies the store, for a store that is not shared.
+     */
+    public View createModifiableView() {
+        return new View(null, null, true);
+    }
+
+    /**
+     * Stores the asset state, replacing the asset state with the same asset identifier and attribute name.
+     *
+     * @return The stored, interned asset state.
+     */
+    public AssetState put(AssetState assetState) {
+        if (index.get(assetState) == assetState)
+            return assetState;
+        synchronized (this) {
+            AssetState previous = index.get(assetState);
+            if (previous == assetState)
+                return assetState;
+            AssetState.AssetInfo assetInfo = assetInfos.compute(
+                assetState.getId(),
+                (id, existing) -> assetState.getAssetInfo().equals(existing) ? existing : assetState.getAssetInfo()
+            );
+            AssetState interned = intern(assetState, assetInfo, previous);
+            index.add(interned);
+            return interned;
+        }
+    }
+
+    /**
+     * Removes the asset state with the same asset identifier and attribute name.
+     */
+    public synchronized boolean remove(AssetState assetState) {
+        AssetState previous = index.remove(assetState);
+        if (previous == null)
+            return false;
+        if (index.getSnapshot().getById(previous.getId()).isEmpty()) {
+            assetInfos.remove(previous.getId());
+        }
+        return true;
+    }
+
+    /**
+     * Shares the asset information and meta of the stored asset state of the same attribute if they are equal,
+     * without storing the given asset state. Use this for asset events.
+     */
+    public AssetState intern(AssetState assetState) {
+        AssetState.AssetInfo existing = assetInfos.get(assetState.getId());
+        AssetState.AssetInfo assetInfo = assetState.getAssetInfo().equals(existing) ? existing : assetState.getAssetInfo();
+        return intern(assetState, assetInfo, index.get(assetState));
+    }
+
+    /**
+     * @return The asset states of the current version.
+     */
+    public Collection<AssetState> getAssetStates() {
+        return index.getSnapshot().getAll();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    protected AssetState intern(AssetState assetState, AssetState.AssetInfo assetInfo, AssetState previous) {
+        Meta meta = assetState.getMeta();
+        if (previous != null && previous.getMeta() != meta && Objects.equals(previous.getMeta(), meta)) {
+            meta = previous.getMeta();
+        }
+        if (assetInfo == assetState.getAssetInfo() && meta == assetState.getMeta())
+            return assetState;
+        return new AssetState(assetState, assetInfo, meta);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "assetStates=" + index.size() +
+            ", assets=" + assetInfos.size() +
+            '}';
+    }
+}
@@ -22,7 +22,10 @@ package org.openremote.manager.rules;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetStorageService;
 import org.openremote.model.attribute.Meta;
+import org.openremote.model.query.BaseAssetQuery;
 import org.openremote.model.query.filter.AttributeMetaPredicate;
+import org.openremote.model.query.filter.DateTimePredicate;
+import org.openremote.model.query.filter.StringPredicate;
 import org.openremote.model.rules.AssetState;
 import org.openremote.model.rules.json.Rule;
 import org.openremote.model.rules.json.RuleCondition;
@@ -103,9 +106,17 @@ public class JsonRulesBuilder extends RulesBuilder {
         if (rule.when.asset != null) {
 
 
+            AssetPredicate assetPredicate = rule.when.asset;
+            List<String> assetIds = getAssetIds(assetPredicate);
+            List<String> assetTypes = getAssetTypes(assetPredicate);
+            boolean externalState = dependsOnExternalState(assetPredicate);
+
             whenPredicate = facts -> {
 
-                List<AssetState> assetStates = new ArrayList<>(facts.getAssetStates());
+                if (externalState) {
+                    facts.dependOnExternalState();
+                }
+                List<AssetState> assetStates = new ArrayList<>(facts.getAssetStates(assetIds, assetTypes));
 
                 assetStates.removeIf(as -> assetStatePredicate.negate().test(as));
 
@@ -267,8 +278,14 @@ public class JsonRulesBuilder extends RulesBuilder {
                 Arrays.stream(condition.predicates)
                         .map(p -> {
                             Predicate<AssetState> assetStatePredicate = asPredicate(timerService, assetStorageService, p);
+                            List<String> assetIds = getAssetIds(p);
+                            List<String> assetTypes = getAssetTypes(p);
+                            boolean externalState = dependsOnExternalState(p);
                             return (Predicate<RulesFacts>) facts -> {
-                                List<AssetState> assetStates = new ArrayList<>(facts.getAssetStates());
+                                if (externalState) {
+                                    facts.dependOnExternalState();
+                                }
+                                List<AssetState> assetStates = new ArrayList<>(facts.getAssetStates(assetIds, assetTypes));
                                 assetStates.removeIf(as -> assetStatePredicate.negate().test(as));
                                 return !assetStates.isEmpty();
                             };
@@ -313,6 +330,62 @@ public class JsonRulesBuilder extends RulesBuilder {
         return asPredicate(assetStatePredicates, operator);
     }
 
+    /**
+     * @return The asset identifiers all asset states matching the predicate have, or <code>null</code>.
+     */
+    protected static List<String> getAssetIds(AssetPredicate pred) {
+        return pred.ids != null && pred.ids.length > 0 ? Arrays.asList(pred.ids) : null;
+    }
+
+    /**
+     * @return The asset types all asset states matching the predicate have, or <code>null</code>.
+     */
+    protected static List<String> getAssetTypes(AssetPredicate pred) {
+        if (pred.types == null || pred.types.length == 0)
+            return null;
+        List<String> types = new ArrayList<>();
+        for (StringPredicate type : pred.types) {
+            if (type == null || type.value == null || type.match != BaseAssetQuery.Match.EXACT || !type.caseSensitive)
+                return null;
+            types.add(type.value);
+        }
+        return types;
+    }
+
+    /**
+     * @return <code>true</code> if the predicate reads state not tracked in the rules facts, the current time or
+     * the users linked to assets.
+     */
+    protected static boolean dependsOnExternalState(AssetPredicate pred) {
+        return (pred.userIds != null && pred.userIds.length > 0) || dependsOnTime(pred.attributes);
+    }
+
+    protected static boolean dependsOnTime(RuleCondition<AttributePredicate> condition) {
+        if (condition == null)
+            return false;
+        if (condition.predicates != null) {
+            for (AttributePredicate p : condition.predicates) {
+                if (p.valueTimestamp != null
+                    || p.value instanceof DateTimePredicate
+                    || p.lastValue instanceof DateTimePredicate)
+                    return true;
+                if (p.meta != null) {
+                    for (AttributeMetaPredicate metaPredicate : p.meta) {
+                        if (metaPredicate.itemValuePredicate instanceof DateTimePredicate)
+                            return true;
+                    }
+                }
+            }
+        }
+        if (condition.conditions != null) {
+            for (RuleCondition<AttributePredicate> c : condition.conditions) {
+                if (dependsOnTime(c))
+                    return true;
+            }
+        }
+        return false;
+    }
+
     public static Predicate<AssetState> asPredicate(TimerService timerService, AssetStorageService assetStorageService, AssetPredicate pred) {
 
         return assetState -> {
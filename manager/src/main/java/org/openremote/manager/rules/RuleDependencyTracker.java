@@ -0,0 +1,275 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.jeasy.rules.api.Rule;
+import org.jeasy.rules.api.Rules;
+import org.openremote.model.rules.AssetState;
+
+import java.util.*;
+
+/**
+ * Records what the condition of each rule reads from {@link RulesFacts} while it is evaluated, and which of these
+ * inputs changed since. Only rules with changed inputs have to be evaluated again when the engine fires.
+ * <p>
+ * Asset state reads are recorded by asset identifier, asset type, or attribute name, whichever restriction the
+ * query has, in that order of preference. Any asset state that could match a query has this restriction, so
+ * changes of other asset states can not change the result of the condition. Asset state reads without such a
+ * restriction, asset event reads, and named or anonymous fact reads depend on all changes of these facts.
+ * A condition that reads the clock, uses date/time predicates, or queries the database through the facades
+ * depends on external state, the rule is evaluated on every firing.
+ * <p>
+ * Rules that have not been evaluated yet are always selected. This class is not thread-safe, it is guarded by the
+ * rules engine lock like the facts.
+ */
+public class RuleDependencyTracker {
+
+    protected static class Dependencies {
+        final Set<String> assetIds = new HashSet<>();
+        final Set<String> assetTypes = new HashSet<>();
+        final Set<String> attributeNames = new HashSet<>();
+        boolean allAssetStates;
+        boolean assetEvents;
+        boolean facts;
+        boolean external;
+    }
+
+    // Rule equality is by name and priority, rules of different rulesets may be equal
+    final protected Map<Rule, Dependencies> dependencies = new IdentityHashMap<>();
+    final protected Set<Rule> dirtyRules = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    final protected Map<String, Set<Rule>> rulesByAssetId = new HashMap<>();
+    final protected Map<String, Set<Rule>> rulesByAssetType = new HashMap<>();
+    final protected Map<String, Set<Rule>> rulesByAttributeName = new HashMap<>();
+    final protected Set<Rule> allAssetStatesRules = newRuleSet();
+    final protected Set<Rule> assetEventRules = newRuleSet();
+    final protected Set<Rule> factRules = newRuleSet();
+    final protected Set<Rule> externalRules = newRuleSet();
+
+    protected Rule evaluating;
+    protected Dependencies recording;
+
+    protected long rulesSelected;
+    protected long rulesSkipped;
+
+    public void beforeEvaluate(Rule rule) {
+        evaluating = rule;
+        recording = new Dependencies();
+    }
+
+    /**
+     * Stores the dependencies recorded while evaluating the rule, the rule is not dirty anymore.
+     */
+    public void afterEvaluate(Rule rule) {
+        if (evaluating != rule)
+            return;
+        unindex(rule);
+        dependencies.put(rule, recording);
+        index(rule, recording);
+        dirtyRules.remove(rule);
+        evaluating = null;
+        recording = null;
+    }
+
+    public boolean isRecording() {
+        return recording != null;
+    }
+
+    public void readAssetStates(AssetQueryMatcher matcher) {
+        if (recording == null)
+            return;
+        if (matcher.isTimeDependent()) {
+            recording.external = true;
+        }
+        readAssetStates(
+            matcher.getIndexedAssetIds(),
+            matcher.getIndexedAssetType() != null ? Collections.singletonList(matcher.getIndexedAssetType()) : null,
+            matcher.getIndexedAttributeNames()
+        );
+    }
+
+    /**
+     * @param assetIds       The asset identifiers the read is restricted to, or <code>null</code>.
+     * @param assetTypes     The asset types the read is restricted to, or <code>null</code>.
+     * @param attributeNames The attribute names the read is restricted to, or <code>null</code>.
+     */
+    public void readAssetStates(Collection<String> assetIds, Collection<String> assetTypes, Collection<String> attributeNames) {
+        if (recording == null)
+            return;
+        if (assetIds != null) {
+            recording.assetIds.addAll(assetIds);
+        } else if (attributeNames != null && !attributeNames.isEmpty()) {
+            recording.attributeNames.addAll(attributeNames);
+        } else if (assetTypes != null && !assetTypes.isEmpty()) {
+            recording.assetTypes.addAll(assetTypes);
+        } else {
+            recording.allAssetStates = true;
+        }
+    }
+
+    public void readAllAssetStates() {
+        if (recording != null)
+            recording.allAssetStates = true;
+    }
+
+    public void readAssetEvents() {
+        if (recording != null)
+            recording.assetEvents = true;
+    }
+
+    public void readFacts() {
+        if (recording != null)
+            recording.facts = true;
+    }
+
+    public void readExternalState() {
+        if (recording != null)
+            recording.external = true;
+    }
+
+    public void assetStateChanged(AssetState assetState) {
+        markDirty(rulesByAssetId.get(assetState.getId()));
+        markDirty(rulesByAssetType.get(assetState.getTypeString()));
+        markDirty(rulesByAttributeName.get(assetState.getAttributeName()));
+        markDirty(allAssetStatesRules);
+    }
+
+    public void assetEventsChanged() {
+        markDirty(assetEventRules);
+    }
+
+    public void factsChanged() {
+        markDirty(factRules);
+    }
+
+    /**
+     * @param includeExternal Select rules that depend on external state, even if none of their tracked inputs
+     *                        changed.
+     * @return The rules that have to be evaluated, rules that were never evaluated or with changed inputs.
+     */
+    public Rules selectRules(Rules rules, boolean includeExternal) {
+        Set<Rule> selected = new HashSet<>();
+        for (Rule rule : rules) {
+            if (!dependencies.containsKey(rule)
+                || dirtyRules.contains(rule)
+                || (includeExternal && externalRules.contains(rule))) {
+                selected.add(rule);
+                rulesSelected++;
+            } else {
+                rulesSkipped++;
+            }
+        }
+        return new Rules(selected);
+    }
+
+    /**
+     * Forget the dependencies of rules that are no longer deployed.
+     */
+    public void remove(Rules rules) {
+        for (Rule rule : rules) {
+            unindex(rule);
+            dependencies.remove(rule);
+            dirtyRules.remove(rule);
+        }
+    }
+
+    /**
+     * Forget all dependencies, all rules will be evaluated on the next firing.
+     */
+    public void clear() {
+        dependencies.clear();
+        dirtyRules.clear();
+        rulesByAssetId.clear();
+        rulesByAssetType.clear();
+        rulesByAttributeName.clear();
+        allAssetStatesRules.clear();
+        assetEventRules.clear();
+        factRules.clear();
+        externalRules.clear();
+        evaluating = null;
+        recording = null;
+    }
+
+    public long getRulesSelected() {
+        return rulesSelected;
+    }
+
+    public long getRulesSkipped() {
+        return rulesSkipped;
+    }
+
+    protected void markDirty(Set<Rule> rules) {
+        if (rules != null) {
+            dirtyRules.addAll(rules);
+        }
+    }
+
+    protected void index(Rule rule, Dependencies dependencies) {
+        dependencies.assetIds.forEach(assetId -> rulesByAssetId.computeIfAbsent(assetId, k -> newRuleSet()).add(rule));
+        dependencies.assetTypes.forEach(type -> rulesByAssetType.computeIfAbsent(type, k -> newRuleSet()).add(rule));
+        dependencies.attributeNames.forEach(name -> rulesByAttributeName.computeIfAbsent(name, k -> newRuleSet()).add(rule));
+        if (dependencies.allAssetStates)
+            allAssetStatesRules.add(rule);
+        if (dependencies.assetEvents)
+            assetEventRules.add(rule);
+        if (dependencies.facts)
+            factRules.add(rule);
+        if (dependencies.external)
+            externalRules.add(rule);
+    }
+
+    protected void unindex(Rule rule) {
+        Dependencies previous = dependencies.get(rule);
+        if (previous == null)
+            return;
+        previous.assetIds.forEach(assetId -> unindex(rulesByAssetId, assetId, rule));
+        previous.assetTypes.forEach(type -> unindex(rulesByAssetType, type, rule));
+        previous.attributeNames.forEach(name -> unindex(rulesByAttributeName, name, rule));
+        allAssetStatesRules.remove(rule);
+        assetEventRules.remove(rule);
+        factRules.remove(rule);
+        externalRules.remove(rule);
+    }
+
+    protected static void unindex(Map<String, Set<Rule>> index, String key, Rule rule) {
+        Set<Rule> rules = index.get(key);
+        if (rules != null) {
+            rules.remove(rule);
+            if (rules.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    protected static Set<Rule> newRuleSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "rules=" + dependencies.size() +
+            ", dirty=" + dirtyRules.size() +
+            ", external=" + externalRules.size() +
+            ", selected=" + rulesSelected +
+            ", skipped=" + rulesSkipped +
+            '}';
+    }
+}
@@ -19,8 +19,10 @@
  */
 package org.openremote.manager.rules;
 
+import org.jeasy.rules.api.Rules;
 import org.jeasy.rules.core.InferenceRulesEngine;
 import org.jeasy.rules.core.RulesEngineParameters;
+import org.openremote.container.concurrent.StripedLock;
 import org.openremote.container.timer.TimerService;
 import org.openremote.manager.asset.AssetProcessingService;
 import org.openremote.manager.asset.AssetStorageService;
@@ -36,14 +38,15 @@ import org.openremote.model.asset.AssetMeta;
 import org.openremote.model.attribute.AttributeType;
 import org.openremote.model.query.filter.LocationPredicate;
 import org.openremote.model.rules.*;
+import org.openremote.model.util.Pair;
 
 import java.util.*;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.model.rules.RulesetStatus.*;
 
 public class RulesEngine<T extends Ruleset> {
@@ -78,6 +81,9 @@ public class RulesEngine<T extends Ruleset> {
     // Separate logger for periodic stats printer
     public static final Logger STATS_LOG = Logger.getLogger("org.openremote.rules.RulesEngineStats");
 
+    // Guards the facts and deployments of an engine, keyed by engine scope so engines can fire concurrently
+    protected static final StripedLock ENGINE_LOCK = new StripedLock("RulesEngine");
+
     final protected TimerService timerService;
     final protected ManagerExecutorService executorService;
     final protected AssetStorageService assetStorageService;
@@ -92,12 +98,22 @@ public class RulesEngine<T extends Ruleset> {
     final protected Map<Long, RulesetDeployment> deployments = new LinkedHashMap<>();
     final protected RulesFacts facts;
     final protected InferenceRulesEngine engine;
+    // Only set if rules are evaluated incrementally
+    final protected RuleDependencyTracker dependencyTracker;
+    final protected RulesFiringMetrics firingMetrics = new RulesFiringMetrics();
+    // Updates within this time are coalesced into one firing
+    final protected long fireDelayMillis;
 
     protected boolean running;
     protected boolean trackLocationPredicates;
     protected ScheduledFuture fireTimer;
+    protected ScheduledFuture expirationTimer;
     protected ScheduledFuture statsTimer;
 
+    // Set when firing, processed after the engine lock has been released
+    protected boolean stopAfterFiring;
+    protected List<AssetStateLocationPredicates> locationRulesAfterFiring;
+
     // Only used to optimize toString(), contains the details of this engine
     protected String deploymentInfo;
 
@@ -111,25 +127,48 @@ public class RulesEngine<T extends Ruleset> {
                        AssetProcessingService assetProcessingService,
                        NotificationService notificationService,
                        ClientEventService clientEventService,
+                       AssetStateStore assetStateStore,
                        RulesEngineId<T> id,
-                       AssetLocationPredicateProcessor assetLocationPredicatesConsumer) {
+                       AssetLocationPredicateProcessor assetLocationPredicatesConsumer,
+                       boolean incrementalEvaluation,
+                       long fireDelayMillis) {
         this.timerService = timerService;
         this.executorService = executorService;
         this.assetStorageService = assetStorageService;
         this.clientEventService = clientEventService;
         this.id = id;
-        AssetsFacade<T> assetsFacade = new AssetsFacade<>(id, assetStorageService, assetProcessingService::sendAttributeEvent);
+        this.fireDelayMillis = Math.max(fireDelayMillis, 0);
+        // Database queries in rule conditions are not tracked in the facts
+        AssetsFacade<T> assetsFacade = new AssetsFacade<T>(id, assetStorageService, assetProcessingService::sendAttributeEvent) {
+            @Override
+            public Assets.RestrictedQuery query() {
+                RulesEngine.this.facts.dependOnExternalState();
+                return super.query();
+            }
+        };
         this.assetsFacade = assetsFacade;
-        this.usersFacade = new UsersFacade<>(id, assetStorageService, notificationService, identityService);
+        this.usersFacade = new UsersFacade<T>(id, assetStorageService, notificationService, identityService) {
+            @Override
+            public Users.RestrictedQuery query() {
+                RulesEngine.this.facts.dependOnExternalState();
+                return super.query();
+            }
+        };
         this.notificationFacade = new NotificationsFacade<>(id, notificationService);
         this.assetLocationPredicatesConsumer = assetLocationPredicatesConsumer;
 
-        this.facts = new RulesFacts(timerService, assetsFacade, this, RULES_LOG);
+        this.facts = new RulesFacts(
+            timerService, assetsFacade, this, RULES_LOG,
+            assetStateStore.createView(id.getRealmId().orElse(null), id.getAssetId().orElse(null))
+        );
+        this.dependencyTracker = incrementalEvaluation ? new RuleDependencyTracker() : null;
+        facts.setDependencyTracker(dependencyTracker);
         engine = new InferenceRulesEngine(
             // Skip any other rules after the first failed rule (exception thrown in condition or action)
             new RulesEngineParameters(false, true, false, RulesEngineParameters.DEFAULT_RULE_PRIORITY_THRESHOLD)
         );
         engine.registerRuleListener(facts);
+        engine.registerRuleListener(firingMetrics);
     }
 
     public RulesEngineId<T> getId() {
@@ -140,14 +179,22 @@ public class RulesEngine<T extends Ruleset> {
      * @return a shallow copy of the asset state facts.
      */
     public Set<AssetState> getAssetStates() {
-        return new HashSet<>(facts.getAssetStates());
+        return withEngineLockReturning(toString() + "::getAssetStates", () -> new HashSet<>(facts.getAssetStates()));
     }
 
     /**
      * @return a shallow copy of the asset event facts.
      */
     public List<TemporaryFact<AssetState>> getAssetEvents() {
-        return new ArrayList<>(facts.getAssetEvents());
+        return withEngineLockReturning(toString() + "::getAssetEvents", () -> new ArrayList<>(facts.getAssetEvents()));
+    }
+
+    public RulesFiringMetrics getFiringMetrics() {
+        return firingMetrics;
+    }
+
+    public long getFireDelayMillis() {
+        return fireDelayMillis;
     }
 
     public boolean isRunning() {
@@ -200,6 +247,10 @@ public class RulesEngine<T extends Ruleset> {
             LOG.finest("Ruleset is empty so no rules to deploy");
             return;
         }
+        withEngineLock(toString() + "::addRuleset", () -> doAddRuleset(ruleset));
+    }
+
+    protected void doAddRuleset(T ruleset) {
 
         RulesetDeployment deployment = deployments.get(ruleset.getId());
 
@@ -209,6 +260,9 @@ public class RulesEngine<T extends Ruleset> {
         if (deployment != null) {
             LOG.info("Removing ruleset deployment: " + ruleset);
             deployments.remove(ruleset.getId());
+            if (dependencyTracker != null) {
+                dependencyTracker.remove(deployment.getRules());
+            }
             updateDeploymentInfo();
         }
 
@@ -260,6 +314,11 @@ public class RulesEngine<T extends Ruleset> {
      * @return <code>true</code> if this rules engine has no deployments.
      */
     public boolean removeRuleset(Ruleset ruleset) {
+        Boolean result = withEngineLockReturning(toString() + "::removeRuleset", () -> doRemoveRuleset(ruleset));
+        return result != null ? result : false;
+    }
+
+    protected boolean doRemoveRuleset(Ruleset ruleset) {
         if (!deployments.containsKey(ruleset.getId())) {
             LOG.finer("Ruleset cannot be retracted as it was never deployed: " + ruleset);
             return deployments.size() == 0;
@@ -267,7 +326,10 @@ public class RulesEngine<T extends Ruleset> {
 
         stop();
 
-        deployments.remove(ruleset.getId());
+        RulesetDeployment deployment = deployments.remove(ruleset.getId());
+        if (dependencyTracker != null) {
+            dependencyTracker.remove(deployment.getRules());
+        }
         updateDeploymentInfo();
 
         publishRulesetStatus(ruleset, ruleset.isEnabled() ? REMOVED : DISABLED, null);
@@ -301,6 +363,10 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void start() {
+        withEngineLock(toString() + "::start", this::doStart);
+    }
+
+    protected void doStart() {
         if (isRunning()) {
             return;
         }
@@ -317,6 +383,10 @@ public class RulesEngine<T extends Ruleset> {
 
         LOG.info("Starting: " + this);
         running = true;
+        if (dependencyTracker != null) {
+            // Facts might have changed while stopped, evaluate all rules on the first firing
+            dependencyTracker.clear();
+        }
         trackLocationPredicates = true;
         publishRulesEngineStatus();
         fire();
@@ -333,37 +403,85 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void fire() {
-        withLock(toString() + "::scheduleFire", () -> {
-            // Schedule a firing within the guaranteed expiration time (so not immediately), and
-            // only if the last firing is done. This effectively limits how often the rules engine
-            // will fire, only once within the guaranteed minimum expiration time.
-            if (fireTimer == null || fireTimer.isDone()) {
-                LOG.fine("Scheduling rules firing on: " + this);
-                fireTimer = executorService.schedule(
-                    () -> withLock(RulesEngine.this.toString() + "::fire", () -> {
-
-                        // Are temporary facts present before rules are fired?
-                        boolean hadTemporaryFactsBefore = facts.hasTemporaryFacts();
-
-                        // Process rules for all deployments
+        withEngineLock(toString() + "::scheduleFire", () -> {
+            // Schedule a firing after the fire delay, and only if no firing is pending. All changes
+            // within the fire delay are processed in one firing, this limits how often the rules
+            // engine will fire.
+            scheduleFire(fireDelayMillis);
+        });
+    }
+
+    /**
+     * Must be called while holding the engine lock.
+     */
+    protected void scheduleFire(long delayMillis) {
+        if (fireTimer != null && !fireTimer.isDone()) {
+            return;
+        }
+        LOG.fine("Scheduling rules firing on: " + this);
+        fireTimer = executorService.schedule(
+            () -> {
+                withEngineLock(RulesEngine.this.toString() + "::fire", () -> {
+
+                    // Process rules for all deployments, on asset states that don't change while firing, this
+                    // engine is notified of updates and fires again
+                    facts.openAssetStatesSnapshot();
+                    try {
                         fireAllDeployments();
+                    } finally {
+                        facts.closeAssetStatesSnapshot();
+                    }
+
+                    // Fire again when the next temporary fact expires
+                    scheduleExpiration();
+
+                    // Changes made after this firing schedule the next firing
+                    fireTimer = null;
+                });
+
+                // Stopping and location rule consumers obtain the global lock, this must
+                // not happen while we hold the engine lock
+                processFiringResult();
+            },
+            delayMillis
+        );
+    }
 
-                        // If there are temporary facts, or if there were some before and
-                        // now they are gone, schedule a new firing to guarantee processing
-                        // of expired and removed temporary facts
-                        if ((facts.hasTemporaryFacts() || (hadTemporaryFactsBefore && !facts.hasTemporaryFacts()))
-                            && !disableTemporaryFactExpiration) {
-                            LOG.fine("Temporary facts require firing rules on: " + this);
-                            executorService.schedule(this::fire, 0);
-                        } else if (!disableTemporaryFactExpiration) {
-                            LOG.fine("No temporary facts present/changed when firing rules on: " + this);
-                        }
-
-                    }),
-                    TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS
-                );
-            }
-        });
+    /**
+     * Schedules a firing when the next temporary fact expires, instead of polling while temporary facts are present.
+     * Expiration firings are not scheduled earlier than the guaranteed expiration time after the last firing. Must be
+     * called while holding the engine lock.
+     */
+    protected void scheduleExpiration() {
+        if (expirationTimer != null) {
+            expirationTimer.cancel(false);
+            expirationTimer = null;
+        }
+        if (disableTemporaryFactExpiration || !running) {
+            return;
+        }
+        OptionalLong nextExpirationTimestamp = facts.getNextExpirationTimestamp();
+        if (!nextExpirationTimestamp.isPresent()) {
+            LOG.fine("No temporary facts present when firing rules on: " + this);
+            return;
+        }
+
+        long delayMillis;
+        if (timerService.getClock() == TimerService.Clock.REAL) {
+            // A fact expires when the clock is past its expiration timestamp
+            delayMillis = Math.max(
+                nextExpirationTimestamp.getAsLong() + 1 - timerService.getCurrentTimeMillis(),
+                TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS
+            );
+        } else {
+            // The pseudo clock is advanced independently of the executor, check after the guaranteed expiration time
+            delayMillis = TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS;
+        }
+        LOG.fine("Temporary facts require firing rules in " + delayMillis + "ms on: " + this);
+        expirationTimer = executorService.schedule(
+            () -> withEngineLock(RulesEngine.this.toString() + "::fireExpiration", () -> scheduleFire(0)),
+            delayMillis
+        );
     }
 
     protected void fireAllDeployments() {
@@ -378,6 +496,7 @@ public class RulesEngine<T extends Ruleset> {
         // Set the current clock
         RulesClock clock = new RulesClock(timerService);
         facts.setClock(clock);
+        firingMetrics.firingStarted(timerService.getCurrentTimeMillis());
 
         // Remove any expired temporary facts
         facts.removeExpiredTemporaryFacts();
@@ -396,7 +515,11 @@ public class RulesEngine<T extends Ruleset> {
                 facts.reset();
 
                 long startTimestamp = System.currentTimeMillis();
-                engine.fire(deployment.getRules(), facts);
+                if (dependencyTracker != null) {
+                    fireChangedRules(deployment);
+                } else {
+                    engine.fire(deployment.getRules(), facts);
+                }
                 RULES_LOG.fine("Rules executed in: " + (System.currentTimeMillis() - startTimestamp) + "ms");
 
             } catch (Exception ex) {
@@ -408,7 +531,7 @@ public class RulesEngine<T extends Ruleset> {
 
                 // TODO We always stop on any error, good idea?
                 // TODO We only get here on LHS runtime errors, RHS runtime errors are in RuleFacts.onFailure()
-                stop();
+                stopAfterFiring = true;
 
                 // TODO We skip any other deployment when we hit the first error, good idea?
                 break;
@@ -421,8 +544,49 @@ public class RulesEngine<T extends Ruleset> {
         if (trackLocationPredicates) {
             trackLocationPredicates = false;
             if (assetLocationPredicatesConsumer != null) {
-                processLocationRules(facts.stopTrackingLocationRules());
+                locationRulesAfterFiring = facts.stopTrackingLocationRules();
+            }
+        }
+    }
+
+    /**
+     * Only evaluate rules of the deployment whose inputs changed since they were last evaluated, and rules that
+     * depend on external state. Actions can change the inputs of rules that were not selected, these are evaluated
+     * until no rule of the deployment is triggered anymore.
+     */
+    protected void fireChangedRules(RulesetDeployment deployment) {
+        Rules rules = dependencyTracker.selectRules(deployment.getRules(), true);
+        while (!rules.isEmpty()) {
+            RULES_LOG.finest("Evaluating changed rules of: " + deployment);
+            int triggerCount = facts.triggerCount;
+            engine.fire(rules, facts);
+            if (facts.triggerCount == triggerCount) {
+                // No action executed, no facts changed
+                break;
+            }
+            rules = dependencyTracker.selectRules(deployment.getRules(), false);
+        }
+    }
+
+    protected void processFiringResult() {
+        Pair<Boolean, List<AssetStateLocationPredicates>> result = withEngineLockReturning(toString() + "::processFiringResult", () -> {
+            Pair<Boolean, List<AssetStateLocationPredicates>> firingResult = new Pair<>(stopAfterFiring, locationRulesAfterFiring);
+            if (stopAfterFiring) {
+                // This is the current firing, don't interrupt ourselves when stopping
+                fireTimer = null;
             }
+            stopAfterFiring = false;
+            locationRulesAfterFiring = null;
+            return firingResult;
+        });
+        if (result == null) {
+            return;
+        }
+        if (result.key) {
+            stop();
+        }
+        if (result.value != null) {
+            processLocationRules(result.value);
         }
     }
 
@@ -431,19 +595,29 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void stop(boolean systemShutdownInProgress) {
-        if (!isRunning()) {
+        Boolean stopped = withEngineLockReturning(toString() + "::stop", () -> {
+            if (!isRunning()) {
+                return false;
+            }
+            LOG.info("Stopping: " + this);
+            if (fireTimer != null) {
+                fireTimer.cancel(true);
+                fireTimer = null;
+            }
+            if (expirationTimer != null) {
+                expirationTimer.cancel(true);
+                expirationTimer = null;
+            }
+            if (statsTimer != null) {
+                statsTimer.cancel(true);
+                statsTimer = null;
+            }
+            running = false;
+            return true;
+        });
+        if (stopped == null || !stopped) {
             return;
         }
-        LOG.info("Stopping: " + this);
-        if (fireTimer != null) {
-            fireTimer.cancel(true);
-            fireTimer = null;
-        }
-        if (statsTimer != null) {
-            statsTimer.cancel(true);
-            statsTimer = null;
-        }
-        running = false;
 
         if (!systemShutdownInProgress && assetLocationPredicatesConsumer != null) {
             assetLocationPredicatesConsumer.accept(this, null);
@@ -453,23 +627,40 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     public void updateFact(AssetState assetState, boolean fireImmediately) {
-        facts.putAssetState(assetState);
-        trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getName());
-        if (fireImmediately) {
-            fire();
-        }
+        withEngineLock(toString() + "::updateFact", () -> {
+            facts.putAssetState(assetState);
+            trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getName());
+            if (fireImmediately) {
+                firingMetrics.eventReceived(assetState.getTimestamp(), timerService.getCurrentTimeMillis());
+                fire();
+            }
+        });
     }
 
     public void removeFact(AssetState assetState) {
-        facts.removeAssetState(assetState);
-        trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getName());
-        fire();
+        withEngineLock(toString() + "::removeFact", () -> {
+            facts.removeAssetState(assetState);
+            trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getName());
+            firingMetrics.eventReceived(-1, timerService.getCurrentTimeMillis());
+            fire();
+        });
     }
 
     public void insertFact(String expires, AssetState assetState) {
-        facts.insertAssetEvent(expires, assetState);
-        trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getName());
-        fire();
+        withEngineLock(toString() + "::insertFact", () -> {
+            facts.insertAssetEvent(expires, assetState);
+            trackLocationPredicates = trackLocationPredicates || assetState.getAttributeName().equals(AttributeType.LOCATION.getName());
+            firingMetrics.eventReceived(assetState.getTimestamp(), timerService.getCurrentTimeMillis());
+            fire();
+        });
+    }
+
+    protected void withEngineLock(String info, Runnable runnable) {
+        ENGINE_LOCK.withLock(id, info, runnable);
+    }
+
+    protected <R> R withEngineLockReturning(String info, Supplier<R> supplier) {
+        return ENGINE_LOCK.withLockReturning(id, info, supplier);
     }
 
     protected void updateDeploymentInfo() {
@@ -481,7 +672,7 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     protected void printSessionStats() {
-        withLock(toString() + "::printSessionStats", () -> {
+        withEngineLock(toString() + "::printSessionStats", () -> {
             Collection<AssetState> assetStateFacts = facts.getAssetStates();
             Collection<TemporaryFact<AssetState>> assetEventFacts = facts.getAssetEvents();
             Map<String, Object> namedFacts = facts.getNamedFacts();
@@ -493,7 +684,9 @@ public class RulesEngine<T extends Ruleset> {
                 + ", AssetEvent: " + assetEventFacts.size()
                 + ", Named: " + namedFacts.size()
                 + ", Anonymous: " + anonFacts.size()
-                + ", Temporary: " + temporaryFactsCount);
+                + ", Temporary: " + temporaryFactsCount
+                + (dependencyTracker != null ? ", Dependencies: " + dependencyTracker : "")
+                + ", Firing: " + firingMetrics);
 
             // Additional details if FINEST is enabled
             if (STATS_LOG.isLoggable(Level.FINEST)) {
@@ -525,7 +718,7 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     protected void publishRulesEngineStatus() {
-        withLock(getClass().getSimpleName() + "::publishRulesEngineStatus", () -> {
+        withEngineLock(toString() + "::publishRulesEngineStatus", () -> {
 
             String engineId = id == null ? null : id.getRealmId().orElse(id.getAssetId().orElse(null));
             int compilationErrors = getCompilationErrorDeploymentCount();
@@ -549,7 +742,7 @@ public class RulesEngine<T extends Ruleset> {
     }
 
     protected void publishRulesetStatus(Ruleset ruleset, RulesetStatus status, String error) {
-        withLock(getClass().getSimpleName() + "::publishRulesetStatus", () -> {
+        withEngineLock(toString() + "::publishRulesetStatus", () -> {
 
             String engineId = id == null ? null : id.getRealmId().orElse(id.getAssetId().orElse(null));
 
@@ -25,6 +25,7 @@ import org.jeasy.rules.api.RuleListener;
 import org.openremote.container.timer.TimerService;
 import org.openremote.model.attribute.AttributeType;
 import org.openremote.model.query.AssetQuery;
+import org.openremote.model.query.BaseAssetQuery;
 import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.attribute.AttributeExecuteStatus;
 import org.openremote.model.query.filter.LocationPredicate;
@@ -64,21 +65,56 @@ public class RulesFacts extends Facts implements RuleListener {
 
     public RulesClock clock;
 
-    final protected Map<String, Collection<AssetState>> assetIdIndex = new HashMap<>();
-    final protected Map<String, Collection<AssetState>> assetTypeIndex = new HashMap<>();
+    // The asset states in the scope of the rules engine, usually shared with other engines
+    final protected AssetStateStore.View assetStates;
+
+    // Set when rules are evaluated incrementally
+    protected RuleDependencyTracker dependencyTracker;
 
     protected int triggerCount;
     protected boolean trackLocationRules;
     protected Map<String, Set<LocationPredicate>> assetStateLocationPredicateMap = null;
 
+    // Temporary facts ordered by expiration, removed or replaced facts are skipped when polled
+    final protected PriorityQueue<ExpiringFact> expiryQueue = new PriorityQueue<>();
+
+    protected static class ExpiringFact implements Comparable<ExpiringFact> {
+        final long expirationTimestamp;
+        final TemporaryFact<?> fact;
+        // Set for named facts, null for asset events and anonymous facts
+        final String name;
+        final boolean assetEvent;
+
+        ExpiringFact(TemporaryFact<?> fact, String name, boolean assetEvent) {
+            this.expirationTimestamp = fact.getTimestamp() + fact.getExpirationMilliseconds();
+            this.fact = fact;
+            this.name = name;
+            this.assetEvent = assetEvent;
+        }
+
+        @Override
+        public int compareTo(ExpiringFact that) {
+            return Long.compare(expirationTimestamp, that.expirationTimestamp);
+        }
+    }
+
+    /**
+     * Creates facts with their own asset states, not shared with other rules engines.
+     */
     public RulesFacts(TimerService timerService, Assets assetsFacade, Object loggingContext, Logger logger) {
+        this(timerService, assetsFacade, loggingContext, logger, new AssetStateStore().createModifiableView());
+    }
+
+    public RulesFacts(TimerService timerService, Assets assetsFacade, Object loggingContext, Logger logger, AssetStateStore.View assetStates) {
         this.timerService = timerService;
         this.assetsFacade = assetsFacade;
         this.loggingContext = loggingContext;
         this.LOG = logger;
+        this.assetStates = assetStates;
 
-        asMap().put(ASSET_STATES, new ArrayDeque(INITIAL_CAPACITY));
-        asMap().put(ASSET_EVENTS, new ArrayDeque(INITIAL_CAPACITY));
+        asMap().put(ASSET_STATES, assetStates.getAssetStates());
+        // Temporary facts compare by identity, expired asset events are removed in constant time
+        asMap().put(ASSET_EVENTS, new LinkedHashSet(INITIAL_CAPACITY));
         asMap().put(EXECUTION_VARS, new HashMap());
         asMap().put(ANONYMOUS_FACTS, new ArrayDeque(INITIAL_CAPACITY));
     }
@@ -100,12 +136,31 @@ public class RulesFacts extends Facts implements RuleListener {
                          assetStateSetEntry.getValue())).collect(Collectors.toList());
     }
 
+    public void setDependencyTracker(RuleDependencyTracker dependencyTracker) {
+        this.dependencyTracker = dependencyTracker;
+    }
+
+    public RuleDependencyTracker getDependencyTracker() {
+        return dependencyTracker;
+    }
+
+    /**
+     * Call this in a rule condition that reads state which is not tracked in the facts, e.g. the result of a
+     * database query. The rule will then be evaluated on every firing when rules are evaluated incrementally.
+     */
+    public void dependOnExternalState() {
+        if (dependencyTracker != null) {
+            dependencyTracker.readExternalState();
+        }
+    }
+
     public void setClock(RulesClock clock) {
         this.clock = clock;
         asMap().put(CLOCK, clock);
     }
 
     public RulesClock getClock() {
+        dependOnExternalState();
         return clock;
     }
 
@@ -114,6 +169,43 @@ public class RulesFacts extends Facts implements RuleListener {
         return (Collection<AssetState>) get(ASSET_STATES);
     }
 
+    /**
+     * Asset states read through these facts don't change until {@link #closeAssetStatesSnapshot()}, e.g. while
+     * firing, when the asset states are shared with other rules engines.
+     */
+    public void openAssetStatesSnapshot() {
+        assetStates.openSnapshot();
+    }
+
+    public void closeAssetStatesSnapshot() {
+        assetStates.closeSnapshot();
+    }
+
+    /**
+     * Asset states of the given assets, or of the given asset types if no asset identifiers are given, or all asset
+     * states. Use this in rule conditions that filter asset states with their own predicate, so that reads are
+     * restricted and tracked when rules are evaluated incrementally.
+     *
+     * @param assetIds   Exact asset identifiers or <code>null</code>.
+     * @param assetTypes Exact, case-sensitive asset types or <code>null</code>.
+     */
+    public Collection<AssetState> getAssetStates(Collection<String> assetIds, Collection<String> assetTypes) {
+        if (dependencyTracker != null) {
+            dependencyTracker.readAssetStates(assetIds, assetTypes, null);
+        }
+        if (assetIds != null) {
+            Set<AssetState> assetStates = new LinkedHashSet<>();
+            assetIds.forEach(assetId -> assetStates.addAll(this.assetStates.getById(assetId)));
+            return assetStates;
+        }
+        if (assetTypes != null && !assetTypes.isEmpty()) {
+            Set<AssetState> assetStates = new LinkedHashSet<>();
+            assetTypes.forEach(assetType -> assetStates.addAll(this.assetStates.getByType(assetType)));
+            return assetStates;
+        }
+        return getInternalAssetStates();
+    }
+
     @SuppressWarnings("unchecked")
     public Collection<TemporaryFact<AssetState>> getAssetEvents() {
         return (Collection<TemporaryFact<AssetState>>) get(ASSET_EVENTS);
@@ -125,6 +217,9 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Map<String, Object> getNamedFacts() {
+        if (dependencyTracker != null) {
+            dependencyTracker.readFacts();
+        }
         return asMap().entrySet().stream().filter(entry ->
             !entry.getKey().equals(CLOCK)
                 && !entry.getKey().equals(ASSET_STATES)
@@ -166,6 +261,23 @@ public class RulesFacts extends Facts implements RuleListener {
     @SuppressWarnings("unchecked")
     @Override
     public <T> T get(String name) {
+        if (dependencyTracker != null && dependencyTracker.isRecording()) {
+            switch (name) {
+                case ASSET_STATES:
+                    dependencyTracker.readAllAssetStates();
+                    break;
+                case ASSET_EVENTS:
+                    dependencyTracker.readAssetEvents();
+                    break;
+                case CLOCK:
+                    dependencyTracker.readExternalState();
+                    break;
+                case EXECUTION_VARS:
+                    break;
+                default:
+                    dependencyTracker.readFacts();
+            }
+        }
         Object fact = super.get(name);
         if (fact != null && fact instanceof TemporaryFact) {
             TemporaryFact temporaryFact = (TemporaryFact) fact;
@@ -192,6 +304,10 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (UPDATE): " + name + " => " + fact + " - on: " + loggingContext);
         }
         super.put(name, fact);
+        if (fact instanceof TemporaryFact) {
+            scheduleExpiration((TemporaryFact<?>) fact, name, false);
+        }
+        factsChanged();
         return this;
     }
 
@@ -201,6 +317,10 @@ public class RulesFacts extends Facts implements RuleListener {
         }
         getAnonymousFacts().remove(o);
         getAnonymousFacts().add(o);
+        if (o instanceof TemporaryFact) {
+            scheduleExpiration((TemporaryFact<?>) o, null, false);
+        }
+        factsChanged();
         return this;
     }
 
@@ -208,19 +328,10 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (UPDATE): " + assetState + " - on: " + loggingContext);
         }
-        getAssetStates().remove(assetState);
-        getAssetStates().add(assetState);
-
-        // Maintain index of all asset states for this asset by ID
-        assetIdIndex.putIfAbsent(assetState.getId(), new ArrayDeque<>());
-        assetIdIndex.get(assetState.getId()).remove(assetState);
-        assetIdIndex.get(assetState.getId()).add(assetState);
-
-        // Maintain index of all asset states for this asset by type
-        assetTypeIndex.putIfAbsent(assetState.getTypeString(), new ArrayDeque<>());
-        assetTypeIndex.get(assetState.getTypeString()).remove(assetState);
-        assetTypeIndex.get(assetState.getTypeString()).add(assetState);
-
+        assetStates.put(assetState);
+        if (dependencyTracker != null) {
+            dependencyTracker.assetStateChanged(assetState);
+        }
         return this;
     }
 
@@ -228,20 +339,10 @@ public class RulesFacts extends Facts implements RuleListener {
         if (LOG.isLoggable(Level.FINEST)) {
             LOG.finest("Fact change (DELETE): " + assetState + " - on: " + loggingContext);
         }
-        getAssetStates().remove(assetState);
-
-        // Maintain index of all asset states for this asset by ID
-        Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-        if (assetIdIndexCollection != null) {
-            assetIdIndexCollection.remove(assetState);
-        }
-
-        // Maintain index of all asset states for this asset by type
-        Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-        if (assetTypeIndexCollection != null) {
-            assetTypeIndexCollection.remove(assetState);
+        assetStates.remove(assetState);
+        if (dependencyTracker != null) {
+            dependencyTracker.assetStateChanged(assetState);
         }
-
         return this;
     }
 
@@ -255,6 +356,10 @@ public class RulesFacts extends Facts implements RuleListener {
             LOG.finest("Fact change (INSERT): " + fact + " - on: " + loggingContext);
         }
         getAssetEvents().add(fact);
+        scheduleExpiration(fact, null, true);
+        if (dependencyTracker != null) {
+            dependencyTracker.assetEventsChanged();
+        }
         return this;
     }
 
@@ -271,7 +376,10 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public RulesFacts putTemporary(long expires, Object value) {
-        getAnonymousFacts().add(new TemporaryFact<>((long) getClock().getTimestamp(), expires, value));
+        TemporaryFact<Object> fact = new TemporaryFact<>((long) getClock().getTimestamp(), expires, value);
+        getAnonymousFacts().add(fact);
+        scheduleExpiration(fact, null, false);
+        factsChanged();
         return this;
     }
 
@@ -305,6 +413,7 @@ public class RulesFacts extends Facts implements RuleListener {
     @Override
     public RulesFacts remove(String name) {
         super.remove(name);
+        factsChanged();
         return this;
     }
 
@@ -315,6 +424,7 @@ public class RulesFacts extends Facts implements RuleListener {
             }
             return anonFact.equals(fact);
         });
+        factsChanged();
         return this;
     }
 
@@ -331,6 +441,10 @@ public class RulesFacts extends Facts implements RuleListener {
         // transport values between LHS and RHS
         getVars().clear();
 
+        if (dependencyTracker != null) {
+            dependencyTracker.beforeEvaluate(rule);
+        }
+
         logRule(rule, "Rule candidate", true, false);
 
         return true;
@@ -338,6 +452,9 @@ public class RulesFacts extends Facts implements RuleListener {
 
     @Override
     public void afterEvaluate(Rule rule, Facts facts, boolean evaluationResult) {
+        if (dependencyTracker != null) {
+            dependencyTracker.afterEvaluate(rule);
+        }
         if (evaluationResult) {
             triggerCount++;
             if (triggerCount >= MAX_RULES_TRIGGERED_PER_EXECUTION) {
@@ -430,6 +547,22 @@ public class RulesFacts extends Facts implements RuleListener {
     }
 
     public Stream<AssetState> matchAssetState(AssetQuery assetQuery) {
+        return matchAssetState(new AssetQueryMatcher(timerService, assetQuery));
+    }
+
+    public Optional<AssetState> matchFirstAssetState(AssetQueryMatcher assetQueryMatcher) {
+        return matchAssetState(assetQueryMatcher).findFirst();
+    }
+
+    /**
+     * Match asset states with a compiled query, rules can compile a query once with {@link #compile} and reuse it.
+     */
+    public Stream<AssetState> matchAssetState(AssetQueryMatcher assetQueryMatcher) {
+        BaseAssetQuery assetQuery = assetQueryMatcher.getQuery();
+
+        if (dependencyTracker != null) {
+            dependencyTracker.readAssetStates(assetQueryMatcher);
+        }
 
         if (trackLocationRules) {
             if (assetQuery.location != null) {
@@ -437,8 +570,8 @@ public class RulesFacts extends Facts implements RuleListener {
                 // Collect asset states only where the attribute is location (location predicates only make sense when the location
                 // attribute is exposed to rules - we don't support RULE_EVENT facts just RULE_STATE
                 if (assetStateLocationPredicateMap == null) {
-                    // TODO: Use static reference to well known location attribute when it is implemented
-                    Collection<AssetState> locationAssetStates = getAssetStates().stream().filter(assetState -> assetState.getAttributeName().equalsIgnoreCase(AttributeType.LOCATION.getName())).collect(Collectors.toSet());
+                    // Once per firing, the location asset states are indexed by attribute name, matched ignoring case
+                    Collection<AssetState> locationAssetStates = assetStates.getByAttributeNameIgnoreCase(AttributeType.LOCATION.getName());
                     assetStateLocationPredicateMap = new HashMap<>(locationAssetStates.size());
                     locationAssetStates.forEach(assetState -> assetStateLocationPredicateMap.put(assetState.getId(), new HashSet<>()));
                 }
@@ -447,24 +580,12 @@ public class RulesFacts extends Facts implements RuleListener {
             }
         }
 
-        Predicate<AssetState> p = new AssetQueryPredicate(timerService, assetQuery);
-
-        // Match against all asset states by default
-        Stream<AssetState> assetStates = getAssetStates().stream();
-
-        // If the query is by asset ID, look up a smaller stream on asset ID index
-        Collection<AssetState> assetStatesForId;
-        if (assetQuery.ids != null && ((assetStatesForId = assetIdIndex.get(assetQuery.ids)) != null)) {
-            return assetStatesForId.stream().parallel().filter(p);
-        }
-
-        // If the query is by asset type, look up a smaller stream on asset type index
-        Collection<AssetState> assetStatesForType;
-        if (assetQuery.type != null && ((assetStatesForType = assetTypeIndex.get(assetQuery.type.value)) != null)) {
-            return assetStatesForType.stream().parallel().filter(p);
-        }
+        // Only the smallest indexed candidate set is tested, all asset states are scanned if nothing is indexed
+        return assetStates.match(assetQueryMatcher);
+    }
 
-        return assetStates.parallel().filter(p);
+    public AssetQueryMatcher compile(AssetQuery assetQuery) {
+        return new AssetQueryMatcher(timerService, assetQuery);
     }
 
     public Optional<TemporaryFact<AssetState>> matchFirstAssetEvent(AssetQuery assetQuery) {
@@ -507,25 +628,17 @@ public class RulesFacts extends Facts implements RuleListener {
 
     protected RulesFacts invalidateAssetStateAndDispatch(String assetId, String attributeName, Value value) {
         // Remove the asset state from the facts, it is invalid now
-        getAssetStates()
-            .removeIf(assetState -> {
-                boolean invalid = assetState.getId().equals(assetId) && assetState.getAttributeName().equals(attributeName);
-                if (invalid) {
-                    if (LOG.isLoggable(Level.FINEST)) {
-                        LOG.finest("Fact change (INTERNAL DELETE): " + assetState + " - on: " + loggingContext);
-                    }
-                    // Maintain index of all asset states for this asset by ID
-                    Collection<AssetState> assetIdIndexCollection = assetIdIndex.get(assetState.getId());
-                    if (assetIdIndexCollection != null) {
-                        assetIdIndexCollection.remove(assetState);
-                    }
-                    // Maintain index of all asset states for this asset by type
-                    Collection<AssetState> assetTypeIndexCollection = assetTypeIndex.get(assetState.getTypeString());
-                    if (assetTypeIndexCollection != null) {
-                        assetTypeIndexCollection.remove(assetState);
-                    }
+        assetStates.getById(assetId).stream()
+            .filter(assetState -> assetState.getAttributeName().equals(attributeName))
+            .forEach(assetState -> {
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Fact change (INTERNAL DELETE): " + assetState + " - on: " + loggingContext);
+                }
+                // Only hidden from this engine, other engines keep the state until the update is processed
+                assetStates.hide(assetState);
+                if (dependencyTracker != null) {
+                    dependencyTracker.assetStateChanged(assetState);
                 }
-                return invalid;
             });
 
         // Dispatch the update to the asset processing service
@@ -536,41 +649,95 @@ public class RulesFacts extends Facts implements RuleListener {
         return this;
     }
 
+    /**
+     * Removes the temporary facts that expired at the current clock time, only the expired facts are visited.
+     */
     public void removeExpiredTemporaryFacts() {
         long currentTimestamp = (long) getClock().getTimestamp();
-        getAssetEvents().removeIf(fact -> {
-            boolean result = fact.isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
-            }
-            return result;
-        });
-        asMap().entrySet().removeIf(entry -> {
-            if (entry.getKey().equals(CLOCK)
-                || entry.getKey().equals(ASSET_STATES)
-                || entry.getKey().equals(ASSET_EVENTS)
-                || entry.getKey().equals(EXECUTION_VARS)
-                || entry.getKey().equals(ANONYMOUS_FACTS)
-                || !(entry.getValue() instanceof TemporaryFact)) {
-                return false;
-            }
-            boolean result = ((TemporaryFact) entry.getValue()).isExpired(currentTimestamp);
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + entry.getValue() + " - on: " + loggingContext);
-            }
-            return result;
-        });
-        getAnonymousFacts().removeIf(fact -> {
-            boolean result = false;
-            if (fact instanceof TemporaryFact) {
-                TemporaryFact temporaryFact = (TemporaryFact) fact;
-                result = temporaryFact.isExpired((long) getClock().getTimestamp());
+        boolean assetEventsExpired = false;
+        boolean factsExpired = false;
+        ExpiringFact next;
+        while ((next = expiryQueue.peek()) != null && next.fact.isExpired(currentTimestamp)) {
+            expiryQueue.poll();
+            boolean removed;
+            if (next.assetEvent) {
+                removed = getInternalAssetEvents().remove(next.fact);
+                assetEventsExpired |= removed;
+            } else if (next.name != null) {
+                removed = asMap().remove(next.name, next.fact);
+                factsExpired |= removed;
+            } else {
+                // Expiring anonymous facts are usually the oldest, close to the head of the collection
+                removed = getInternalAnonymousFacts().remove(next.fact);
+                factsExpired |= removed;
             }
-            if (result && LOG.isLoggable(Level.FINEST)) {
-                LOG.finest("Fact change (DELETE EXPIRED): " + fact + " - on: " + loggingContext);
+            if (removed && LOG.isLoggable(Level.FINEST)) {
+                LOG.finest("Fact change (DELETE EXPIRED): " + next.fact + " - on: " + loggingContext);
             }
-            return result;
-        });
+        }
+        if (dependencyTracker != null) {
+            if (assetEventsExpired)
+                dependencyTracker.assetEventsChanged();
+            if (factsExpired)
+                dependencyTracker.factsChanged();
+        }
+    }
+
+    /**
+     * @return The timestamp after which the next temporary fact expires, empty if there are no temporary facts.
+     */
+    public OptionalLong getNextExpirationTimestamp() {
+        ExpiringFact next;
+        while ((next = expiryQueue.peek()) != null && !isScheduledFactPresent(next)) {
+            expiryQueue.poll();
+        }
+        return next != null ? OptionalLong.of(next.expirationTimestamp) : OptionalLong.empty();
+    }
+
+    protected void scheduleExpiration(TemporaryFact<?> fact, String name, boolean assetEvent) {
+        expiryQueue.add(new ExpiringFact(fact, name, assetEvent));
+
+        // Drop the entries of removed and replaced facts when they outnumber the facts, amortized constant time
+        int factCount = getInternalAssetEvents().size() + getInternalAnonymousFacts().size() + asMap().size();
+        if (expiryQueue.size() > INITIAL_CAPACITY && expiryQueue.size() > 2 * factCount) {
+            Set<Object> anonymousFacts = Collections.newSetFromMap(new IdentityHashMap<>());
+            anonymousFacts.addAll(getInternalAnonymousFacts());
+            expiryQueue.removeIf(entry -> entry.name == null && !entry.assetEvent
+                ? !anonymousFacts.contains(entry.fact)
+                : !isScheduledFactPresent(entry)
+            );
+        }
+    }
+
+    protected boolean isScheduledFactPresent(ExpiringFact entry) {
+        if (entry.assetEvent) {
+            return getInternalAssetEvents().contains(entry.fact);
+        } else if (entry.name != null) {
+            return asMap().get(entry.name) == entry.fact;
+        }
+        return getInternalAnonymousFacts().contains(entry.fact);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Collection<TemporaryFact<AssetState>> getInternalAssetEvents() {
+        // Not tracked as a read of asset events
+        return (Collection<TemporaryFact<AssetState>>) super.get(ASSET_EVENTS);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected Collection<Object> getInternalAnonymousFacts() {
+        return (Collection<Object>) super.get(ANONYMOUS_FACTS);
+    }
+
+    protected Collection<AssetState> getInternalAssetStates() {
+        // Not tracked as a read of all asset states
+        return assetStates.getAssetStates();
+    }
+
+    protected void factsChanged() {
+        if (dependencyTracker != null) {
+            dependencyTracker.factsChanged();
+        }
     }
 
     public boolean logFacts(Logger logger) {
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.rules;
+
+import org.jeasy.rules.api.Facts;
+import org.jeasy.rules.api.Rule;
+import org.jeasy.rules.api.RuleListener;
+import org.openremote.model.value.ObjectValue;
+import org.openremote.model.value.Values;
+
+/**
+ * Latency of a rules engine from the events that triggered a firing to the firing and to the first rule action
+ * executed in that firing. The latency of a firing is measured from the oldest event coalesced into the firing,
+ * using the event timestamp, so it includes the time the event took to reach the rules engine.
+ */
+public class RulesFiringMetrics implements RuleListener {
+
+    public static class Latency {
+        protected long count;
+        protected long totalMillis;
+        protected long maxMillis;
+        protected long lastMillis;
+
+        protected void record(long millis) {
+            millis = Math.max(millis, 0);
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            lastMillis = millis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getAverageMillis() {
+            return count > 0 ? totalMillis / count : 0;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public long getLastMillis() {
+            return lastMillis;
+        }
+
+        public ObjectValue toObjectValue() {
+            ObjectValue objectValue = Values.createObject();
+            objectValue.put("count", count);
+            objectValue.put("averageMillis", getAverageMillis());
+            objectValue.put("maxMillis", maxMillis);
+            objectValue.put("lastMillis", lastMillis);
+            return objectValue;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", averageMillis=" + getAverageMillis() + ", maxMillis=" + maxMillis + "}";
+        }
+    }
+
+    final protected Latency firingLatency = new Latency();
+    final protected Latency actionLatency = new Latency();
+    protected long events;
+    protected long firings;
+
+    // Timestamp of the oldest event not yet fired, and of the oldest event of the current firing
+    protected long pendingEventTimestamp = -1;
+    protected long firingEventTimestamp = -1;
+    protected long currentTimestamp;
+    protected long firingStartNanos;
+
+    /**
+     * @param eventTimestamp The time of the event or a value less than 1 if unknown.
+     * @param now            The current time, used if the time of the event is unknown.
+     */
+    public synchronized void eventReceived(long eventTimestamp, long now) {
+        events++;
+        long timestamp = eventTimestamp > 0 ? eventTimestamp : now;
+        if (pendingEventTimestamp < 0 || timestamp < pendingEventTimestamp) {
+            pendingEventTimestamp = timestamp;
+        }
+    }
+
+    public synchronized void firingStarted(long now) {
+        firings++;
+        currentTimestamp = now;
+        firingStartNanos = System.nanoTime();
+        firingEventTimestamp = pendingEventTimestamp;
+        pendingEventTimestamp = -1;
+        if (firingEventTimestamp >= 0) {
+            firingLatency.record(now - firingEventTimestamp);
+        }
+    }
+
+    /**
+     * Records the latency of the first rule action of the current firing, the time of the action is the time the
+     * firing started plus the time elapsed since.
+     */
+    public synchronized void actionExecuted() {
+        if (firingEventTimestamp < 0)
+            return;
+        long elapsedMillis = (System.nanoTime() - firingStartNanos) / 1000000;
+        actionLatency.record(currentTimestamp + elapsedMillis - firingEventTimestamp);
+        firingEventTimestamp = -1;
+    }
+
+    public synchronized long getEvents() {
+        return events;
+    }
+
+    public synchronized long getFirings() {
+        return firings;
+    }
+
+    public synchronized Latency getFiringLatency() {
+        return firingLatency;
+    }
+
+    public synchronized Latency getActionLatency() {
+        return actionLatency;
+    }
+
+    public synchronized ObjectValue toObjectValue() {
+        ObjectValue objectValue = Values.createObject();
+        objectValue.put("events", events);
+        objectValue.put("firings", firings);
+        objectValue.put("firingLatency", firingLatency.toObjectValue());
+        objectValue.put("actionLatency", actionLatency.toObjectValue());
+        return objectValue;
+    }
+
+    @Override
+    public boolean beforeEvaluate(Rule rule, Facts facts) {
+        return true;
+    }
+
+    @Override
+    public void afterEvaluate(Rule rule, Facts facts, boolean evaluationResult) {
+    }
+
+    @Override
+    public void beforeExecute(Rule rule, Facts facts) {
+        actionExecuted();
+    }
+
+    @Override
+    public void onSuccess(Rule rule, Facts facts) {
+    }
+
+    @Override
+    public void onFailure(Rule rule, Facts facts, Exception exception) {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "{" +
+            "events=" + events +
+            ", firings=" + firings +
+            ", firingLatency=" + firingLatency +
+            ", actionLatency=" + actionLatency +
+            '}';
+    }
+}
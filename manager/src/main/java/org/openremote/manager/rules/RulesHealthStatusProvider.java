@@ -126,6 +126,8 @@ public class RulesHealthStatusProvider implements HealthStatusProvider, Containe
         val.put("totalDeployments", totalDeployments);
         val.put("executionErrorDeployments", executionErrorDeployments);
         val.put("compilationErrorDeployments", compilationErrorDeployments);
+        val.put("fireDelayMillis", rulesEngine.getFireDelayMillis());
+        val.put("firing", rulesEngine.getFiringMetrics().toObjectValue());
 
         ObjectValue deployments = Values.createObject();
 
@@ -63,8 +63,12 @@ import static java.util.logging.Level.FINEST;
 import static java.util.logging.Level.SEVERE;
 import static org.openremote.container.concurrent.GlobalLock.withLock;
 import static org.openremote.container.concurrent.GlobalLock.withLockReturning;
+import static org.openremote.container.concurrent.GlobalLock.withReadLock;
+import static org.openremote.container.concurrent.GlobalLock.withReadLockReturning;
 import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
 import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getBoolean;
+import static org.openremote.container.util.MapAccess.getInteger;
 import static org.openremote.container.util.MapAccess.getString;
 import static org.openremote.model.AbstractValueTimestampHolder.VALUE_TIMESTAMP_FIELD_NAME;
 import static org.openremote.model.asset.AssetAttribute.attributesFromJson;
@@ -95,6 +99,11 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
     public static final String RULE_EVENT_EXPIRES = "RULE_EVENT_EXPIRES";
     public static final String RULE_EVENT_EXPIRES_DEFAULT = "1h";
+    // Only evaluate rules whose facts changed since the last firing, see RuleDependencyTracker
+    public static final String RULES_INCREMENTAL_EVALUATION = "RULES_INCREMENTAL_EVALUATION";
+    public static final boolean RULES_INCREMENTAL_EVALUATION_DEFAULT = false;
+    public static final String RULES_FIRE_DELAY_MILLIS = "RULES_FIRE_DELAY_MILLIS";
+    public static final int RULES_FIRE_DELAY_MILLIS_DEFAULT = TemporaryFact.GUARANTEED_MIN_EXPIRATION_MILLIS;
     private static final Logger LOG = Logger.getLogger(RulesService.class.getName());
     protected static List<GeofenceAssetAdapter> geofenceAssetAdapters;
 
@@ -125,9 +134,13 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     protected Set<String> assetsWithModifiedLocationPredicates = new HashSet<>();
     // Keep global list of asset states that have been pushed to any engines
     // The objects are already in memory inside the rule engines but keeping them
-    // here means we can quickly insert facts into newly started engines
-    protected Set<AssetState> assetStates = new HashSet<>();
+    // here means we can quickly insert facts into newly started engines, updated
+    // concurrently by the asset queue processors
+    // The asset states of all rules engines, each engine reads the asset states in its scope
+    final protected AssetStateStore assetStateStore = new AssetStateStore();
     protected String configEventExpires;
+    protected boolean incrementalEvaluation;
+    protected int fireDelayMillis;
 
     @Override
     public void init(Container container) throws Exception {
@@ -172,6 +185,8 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
         container.getService(MessageBrokerSetupService.class).getContext().addRoutes(this);
         configEventExpires = getString(container.getConfig(), RULE_EVENT_EXPIRES, RULE_EVENT_EXPIRES_DEFAULT);
+        incrementalEvaluation = getBoolean(container.getConfig(), RULES_INCREMENTAL_EVALUATION, RULES_INCREMENTAL_EVALUATION_DEFAULT);
+        fireDelayMillis = getInteger(container.getConfig(), RULES_FIRE_DELAY_MILLIS, RULES_FIRE_DELAY_MILLIS_DEFAULT);
     }
 
     @Override
@@ -306,7 +321,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     }
 
     public GeofenceDefinition[] getAssetGeofences(String assetId) {
-        return withLockReturning(getClass().getSimpleName() + "::getAssetGeofences", () -> {
+        return withReadLockReturning(getClass().getSimpleName() + "::getAssetGeofences", () -> {
 
             LOG.finest("Requesting geofences for asset: " + assetId);
 
@@ -471,10 +486,9 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
             } else {
                 if (ruleset instanceof GlobalRuleset) {
 
+                    // A new engine reads the existing asset states through its view of the store
                     RulesEngine newEngine = deployGlobalRuleset((GlobalRuleset) ruleset);
                     if (newEngine != null) {
-                        // Push all existing facts into the engine, this is an initial import of state so fire delayed
-                        assetStates.forEach(assetState -> newEngine.updateFact(assetState, false));
                         newEngine.fire();
                     }
 
@@ -482,12 +496,6 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
 
                     RulesEngine newEngine = deployTenantRuleset((TenantRuleset) ruleset);
                     if (newEngine != null) {
-                        // Push all existing facts into the engine, this is an initial import of state so fire delayed
-                        assetStates.forEach(assetState -> {
-                            if (assetState.getRealmId().equals(((TenantRuleset) ruleset).getRealmId())) {
-                                newEngine.updateFact(assetState, false);
-                            }
-                        });
                         newEngine.fire();
                     }
 
@@ -497,10 +505,6 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     AssetRuleset assetRuleset = rulesetStorageService.findEnabledAssetRuleset(ruleset.getId());
                     RulesEngine newEngine = deployAssetRuleset(assetRuleset);
                     if (newEngine != null) {
-                        // Push all existing facts for this asset (and it's children into the engine), this is an
-                        // initial import of state so fire delayed
-                        getAssetStatesInScope(((AssetRuleset) ruleset).getAssetId())
-                            .forEach(assetState -> newEngine.updateFact(assetState, false));
                         newEngine.fire();
                     }
                 }
@@ -526,8 +530,11 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                     assetProcessingService,
                     notificationService,
                     clientEventService,
+                    assetStateStore,
                     new RulesEngineId<>(),
-                    this::onEngineLocationRulesChanged
+                    this::onEngineLocationRulesChanged,
+                    incrementalEvaluation,
+                    fireDelayMillis
                 );
             }
 
@@ -564,8 +571,11 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                         assetProcessingService,
                         notificationService,
                         clientEventService,
+                        assetStateStore,
                         new RulesEngineId<>(realmId),
-                        this::onEngineLocationRulesChanged
+                        this::onEngineLocationRulesChanged,
+                        incrementalEvaluation,
+                        fireDelayMillis
                     );
                 });
 
@@ -632,8 +642,11 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                         assetProcessingService,
                         notificationService,
                         clientEventService,
+                        assetStateStore,
                         new RulesEngineId<>(ruleset.getRealmId(), assetId),
-                        this::onEngineLocationRulesChanged
+                        this::onEngineLocationRulesChanged,
+                        incrementalEvaluation,
+                        fireDelayMillis
                     );
                 });
 
@@ -656,7 +669,7 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
     }
 
     protected void insertAssetEvent(AssetState assetState, String expires) {
-        withLock(getClass().getSimpleName() + "::insertAssetEvent", () -> {
+        withReadLock(getClass().getSimpleName() + "::insertAssetEvent", () -> {
             // Get the chain of rule engines that we need to pass through
             List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
 
@@ -673,15 +686,16 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                 return;
             }
 
-            // Pass through each engine
+            // Pass through each engine, sharing the asset information with the stored asset states
+            AssetState assetEvent = assetStateStore.intern(assetState);
             for (RulesEngine rulesEngine : rulesEngines) {
-                rulesEngine.insertFact(expires, assetState);
+                rulesEngine.insertFact(expires, assetEvent);
             }
         });
     }
 
     protected void updateAssetState(AssetState assetState, boolean skipStatusCheck, boolean fireImmediately) {
-        withLock(getClass().getSimpleName() + "::updateAssetState", () -> {
+        withReadLock(getClass().getSimpleName() + "::updateAssetState", () -> {
             // TODO: implement rules processing error state handling
 
             LOG.fine("Updating asset state: " + assetState);
@@ -699,39 +713,37 @@ public class RulesService extends RouteBuilder implements ContainerService, Asse
                 }
             }
 
-            // Remove asset state with same attribute ref as new state, add new state
-            assetStates.remove(assetState);
-            assetStates.add(assetState);
+            // Replace asset state with same attribute ref, the engines in scope read the stored state
+            AssetState storedAssetState = assetStateStore.put(assetState);
 
             // Pass through each rules engine
             for (RulesEngine rulesEngine : rulesEngines) {
-                rulesEngine.updateFact(assetState, fireImmediately);
+                rulesEngine.updateFact(storedAssetState, fireImmediately);
             }
         });
     }
 
     protected void retractAssetState(AssetState assetState) {
-        // Get the chain of rule engines that we need to pass through
-        List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
+        withReadLock(getClass().getSimpleName() + "::retractAssetState", () -> {
+            // Get the chain of rule engines that we need to pass through
+            List<RulesEngine> rulesEngines = getEnginesInScope(assetState.getRealmId(), assetState.getPath());
 
-        // Remove asset state with same attribute ref
-        assetStates.remove(assetState);
+            // Remove asset state with same attribute ref
+            assetStateStore.remove(assetState);
 
-        if (rulesEngines.size() == 0) {
-            LOG.fine("Ignoring as there are no matching rules engines: " + assetState);
-        }
+            if (rulesEngines.size() == 0) {
+                LOG.fine("Ignoring as there are no matching rules engines: " + assetState);
+            }
 
-        // Pass through each rules engine
-        for (RulesEngine rulesEngine : rulesEngines) {
-            rulesEngine.removeFact(assetState);
-        }
+            // Pass through each rules engine
+            for (RulesEngine rulesEngine : rulesEngines) {
+                rulesEngine.removeFact(assetState);
+            }
+        });
     }
 
-    protected List<AssetState> getAssetStatesInScope(String assetId) {
-        return assetStates
-            .stream()
-            .filter(assetState -> Arrays.asList(assetState.getPath()).contains(assetId))
-            .collect(Collectors.toList());
+    public Collection<AssetState> getAssetStates() {
+        return assetStateStore.getAssetStates();
     }
 
     protected List<RulesEngine> getEnginesInScope(String realmId, String[] assetPath) {
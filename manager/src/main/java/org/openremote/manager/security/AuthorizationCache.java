@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.manager.security;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches the data checked when authorizing restricted users: the restricted flag of a user and the identifiers
+ * of the assets linked to a user. Entries are invalidated when {@link UserConfiguration} and
+ * {@link org.openremote.model.asset.UserAsset} entities are modified: synchronously after the commit by the
+ * services that modify them, and again when the asynchronous persistence event arrives. Entries also expire
+ * after a fixed time, which bounds staleness after changes that are not published as persistence events, such
+ * as cascading deletes.
+ * <p>
+ * Loads racing with an invalidation are not cached, the generation is compared before and after loading.
+ */
+public class AuthorizationCache {
+
+    final protected Cache<String, Boolean> restrictedUsers;
+    final protected Cache<String, Set<String>> userAssets;
+    final protected AtomicLong restrictedUsersGeneration = new AtomicLong();
+    final protected AtomicLong userAssetsGeneration = new AtomicLong();
+
+    public AuthorizationCache(int maximumSize, int expireAfterSeconds) {
+        this.restrictedUsers = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(expireAfterSeconds, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+        this.userAssets = CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(expireAfterSeconds, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+    }
+
+    public boolean isRestrictedUser(String userId, Supplier<Boolean> loader) {
+        Boolean cached = restrictedUsers.getIfPresent(userId);
+        if (cached != null)
+            return cached;
+
+        long generation = restrictedUsersGeneration.get();
+        Boolean restricted = loader.get();
+        if (restricted != null && restrictedUsersGeneration.get() == generation) {
+            restrictedUsers.put(userId, restricted);
+        }
+        return restricted != null && restricted;
+    }
+
+    /**
+     * @return The identifiers of the assets linked to the user, don't modify.
+     */
+    public Set<String> getUserAssetIds(String userId, Supplier<? extends Set<String>> loader) {
+        Set<String> cached = userAssets.getIfPresent(userId);
+        if (cached != null)
+            return cached;
+
+        long generation = userAssetsGeneration.get();
+        Set<String> assetIds = Collections.unmodifiableSet(new HashSet<>(loader.get()));
+        if (userAssetsGeneration.get() == generation) {
+            userAssets.put(userId, assetIds);
+        }
+        return assetIds;
+    }
+
+    public void invalidateUser(String userId) {
+        restrictedUsersGeneration.incrementAndGet();
+        userAssetsGeneration.incrementAndGet();
+        restrictedUsers.invalidate(userId);
+        userAssets.invalidate(userId);
+    }
+
+    public void invalidateUserAssets(String userId) {
+        userAssetsGeneration.incrementAndGet();
+        userAssets.invalidate(userId);
+    }
+
+    /**
+     * Invalidate the links of all users to the asset, e.g. when the asset was deleted.
+     */
+    public void invalidateAsset(String assetId) {
+        userAssetsGeneration.incrementAndGet();
+        userAssets.asMap().values().removeIf(assetIds -> assetIds.contains(assetId));
+    }
+
+    public void invalidateAll() {
+        restrictedUsersGeneration.incrementAndGet();
+        userAssetsGeneration.incrementAndGet();
+        restrictedUsers.invalidateAll();
+        userAssets.invalidateAll();
+    }
+
+    public CacheStats getRestrictedUsersStats() {
+        return restrictedUsers.stats();
+    }
+
+    public CacheStats getUserAssetsStats() {
+        return userAssets.stats();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "restrictedUsers=" + restrictedUsers.size() +
+            ", restrictedUsersHitRate=" + restrictedUsers.stats().hitRate() +
+            ", userAssets=" + userAssets.size() +
+            ", userAssetsHitRate=" + userAssets.stats().hitRate() +
+            '}';
+    }
+}
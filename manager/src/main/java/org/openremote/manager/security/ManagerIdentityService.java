@@ -19,7 +19,10 @@
  */
 package org.openremote.manager.security;
 
+import org.apache.camel.builder.RouteBuilder;
 import org.openremote.container.Container;
+import org.openremote.container.message.MessageBrokerSetupService;
+import org.openremote.container.persistence.PersistenceEvent;
 import org.openremote.container.persistence.PersistenceService;
 import org.openremote.container.security.IdentityService;
 import org.openremote.container.timer.TimerService;
@@ -29,18 +32,56 @@ import javax.persistence.EntityManager;
 import java.util.Locale;
 import java.util.logging.Logger;
 
+import static org.openremote.container.persistence.PersistenceEvent.PERSISTENCE_TOPIC;
+import static org.openremote.container.persistence.PersistenceEvent.isPersistenceEventForEntityType;
+import static org.openremote.container.util.MapAccess.getInteger;
+
 public class ManagerIdentityService extends IdentityService {
 
     private static final Logger LOG = Logger.getLogger(ManagerIdentityService.class.getName());
 
+    // Maximum number of users in the authorization cache, 0 disables the cache
+    public static final String AUTHORIZATION_CACHE_MAX_SIZE = "AUTHORIZATION_CACHE_MAX_SIZE";
+    public static final int AUTHORIZATION_CACHE_MAX_SIZE_DEFAULT = 10000;
+
+    // Entries expire even if no change was published, e.g. after a cascading delete in the database
+    public static final String AUTHORIZATION_CACHE_EXPIRE_SECONDS = "AUTHORIZATION_CACHE_EXPIRE_SECONDS";
+    public static final int AUTHORIZATION_CACHE_EXPIRE_SECONDS_DEFAULT = 60;
+
     protected ManagerIdentityProvider identityProvider;
     protected PersistenceService persistenceService;
+    protected AuthorizationCache authorizationCache;
 
     @Override
     public void init(Container container) throws Exception {
+        // The identity provider is created in super.init() and uses the cache
+        int authorizationCacheMaxSize = getInteger(container.getConfig(), AUTHORIZATION_CACHE_MAX_SIZE, AUTHORIZATION_CACHE_MAX_SIZE_DEFAULT);
+        if (authorizationCacheMaxSize > 0) {
+            authorizationCache = new AuthorizationCache(
+                authorizationCacheMaxSize,
+                getInteger(container.getConfig(), AUTHORIZATION_CACHE_EXPIRE_SECONDS, AUTHORIZATION_CACHE_EXPIRE_SECONDS_DEFAULT)
+            );
+        }
+
         super.init(container);
         persistenceService = container.getService(PersistenceService.class);
 
+        if (authorizationCache != null) {
+            container.getService(MessageBrokerSetupService.class).getContext().addRoutes(new RouteBuilder() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public void configure() throws Exception {
+                    from(PERSISTENCE_TOPIC)
+                        .routeId("UserConfigurationPersistenceChanges")
+                        .filter(isPersistenceEventForEntityType(UserConfiguration.class))
+                        .process(exchange -> {
+                            PersistenceEvent<UserConfiguration> persistenceEvent = exchange.getIn().getBody(PersistenceEvent.class);
+                            authorizationCache.invalidateUser(persistenceEvent.getEntity().getUserId());
+                        });
+                }
+            });
+        }
+
         container.getService(WebService.class).getApiSingletons().add(
             new TenantResourceImpl(container.getService(TimerService.class), this)
         );
@@ -54,6 +95,13 @@ public class ManagerIdentityService extends IdentityService {
         return identityProvider;
     }
 
+    /**
+     * @return The cache of restricted user flags and user asset links, <code>null</code> if disabled.
+     */
+    public AuthorizationCache getAuthorizationCache() {
+        return authorizationCache;
+    }
+
     @Override
     public ManagerIdentityProvider createIdentityProvider(Container container, String identityProviderType) {
         if (identityProvider == null) {
@@ -87,7 +135,12 @@ public class ManagerIdentityService extends IdentityService {
     }
 
     public UserConfiguration mergeUserConfiguration(UserConfiguration userConfiguration) {
-        return persistenceService.doReturningTransaction(entityManager -> mergeUserConfiguration(entityManager, userConfiguration));
+        UserConfiguration mergedUserConfiguration = persistenceService.doReturningTransaction(entityManager -> mergeUserConfiguration(entityManager, userConfiguration));
+        // Invalidate once committed, the persistence event is delivered asynchronously
+        if (authorizationCache != null) {
+            authorizationCache.invalidateUser(mergedUserConfiguration.getUserId());
+        }
+        return mergedUserConfiguration;
     }
 
     protected UserConfiguration mergeUserConfiguration(EntityManager em, UserConfiguration userConfiguration) {
@@ -102,6 +155,7 @@ public class ManagerIdentityService extends IdentityService {
     public String toString() {
         return getClass().getSimpleName() + "{" +
             "identityProvider=" + identityProvider +
+            ", authorizationCache=" + authorizationCache +
             '}';
     }
 }
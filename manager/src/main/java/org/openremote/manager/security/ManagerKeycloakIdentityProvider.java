@@ -66,6 +66,7 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
     final protected TimerService timerService;
     final protected MessageBrokerService messageBrokerService;
     final protected ClientEventService clientEventService;
+    final protected AuthorizationCache authorizationCache;
 
     public ManagerKeycloakIdentityProvider(UriBuilder externalServerUri, Container container) {
         super(KEYCLOAK_CLIENT_ID, externalServerUri, container);
@@ -75,6 +76,7 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
         this.persistenceService = container.getService(PersistenceService.class);
         this.messageBrokerService = container.getService(MessageBrokerService.class);
         this.clientEventService = container.getService(ClientEventService.class);
+        this.authorizationCache = container.getService(ManagerIdentityService.class).getAuthorizationCache();
 
         enableAuthProxy(container.getService(WebService.class));
     }
@@ -243,6 +245,10 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
                     .build()
             );
         }
+        // User configuration and asset links are deleted by the database cascade, no persistence event
+        if (authorizationCache != null) {
+            authorizationCache.invalidateUser(userId);
+        }
     }
 
     @Override
@@ -436,6 +442,13 @@ public class ManagerKeycloakIdentityProvider extends KeycloakIdentityProvider im
 
     @Override
     public boolean isRestrictedUser(String userId) {
+        if (authorizationCache != null) {
+            return authorizationCache.isRestrictedUser(userId, () -> loadRestrictedUser(userId));
+        }
+        return loadRestrictedUser(userId);
+    }
+
+    protected boolean loadRestrictedUser(String userId) {
         UserConfiguration userConfiguration = persistenceService.doReturningTransaction(em -> em.find(UserConfiguration.class, userId));
         return userConfiguration != null && userConfiguration.isRestricted();
     }
@@ -0,0 +1,9 @@
+
+/*
+  Datapoints are queried by attribute and time range, the primary key starts with the timestamp and can't be used.
+  New datapoints are stored in time partitions (child tables of ASSET_DATAPOINT) which are created on demand by
+  the manager, each with a primary key on (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP). This index covers the rows
+  still stored in the parent table.
+ */
+
+create index ASSET_DATAPOINT_ATTRIBUTE_TIMESTAMP_IDX on ASSET_DATAPOINT (ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP);
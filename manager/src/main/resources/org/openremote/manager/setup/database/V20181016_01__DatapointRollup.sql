@@ -0,0 +1,35 @@
+
+/*
+  Aggregates of number and boolean datapoints per attribute and minute, hour and day (UTC), maintained by the
+  manager when datapoints are inserted. Existing datapoints are aggregated once here.
+ */
+
+create table ASSET_DATAPOINT_ROLLUP (
+  ENTITY_ID      varchar(36)  not null,
+  ATTRIBUTE_NAME varchar(255) not null,
+  RESOLUTION     varchar(10)  not null,
+  BUCKET         int8         not null,
+  MIN_VALUE      numeric      not null,
+  MAX_VALUE      numeric      not null,
+  SUM_VALUE      numeric      not null,
+  VALUE_COUNT    int8         not null,
+  primary key (ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, BUCKET)
+);
+
+alter table ASSET_DATAPOINT_ROLLUP
+  add foreign key (ENTITY_ID) references ASSET (ID) on delete cascade;
+
+insert into ASSET_DATAPOINT_ROLLUP (ENTITY_ID, ATTRIBUTE_NAME, RESOLUTION, BUCKET, MIN_VALUE, MAX_VALUE, SUM_VALUE, VALUE_COUNT)
+  select ENTITY_ID, ATTRIBUTE_NAME, R.RESOLUTION, TIMESTAMP - TIMESTAMP % R.MILLIS as BUCKET,
+    min(NUMBER), max(NUMBER), sum(NUMBER), count(NUMBER)
+  from (
+         select ENTITY_ID, ATTRIBUTE_NAME, TIMESTAMP,
+           case jsonb_typeof(VALUE)
+           when 'number' then (VALUE #>> '{}')::numeric
+           when 'boolean' then case when (VALUE #>> '{}')::boolean then 1 else 0 end
+           end as NUMBER
+         from ASSET_DATAPOINT
+       ) DP
+    cross join (values ('MINUTE', 60000), ('HOUR', 3600000), ('DAY', 86400000)) as R (RESOLUTION, MILLIS)
+  where NUMBER is not null
+  group by ENTITY_ID, ATTRIBUTE_NAME, R.RESOLUTION, BUCKET;
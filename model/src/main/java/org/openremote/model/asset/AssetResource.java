@@ -19,8 +19,11 @@
  */
 package org.openremote.model.asset;
 
+import javaemul.internal.annotations.GwtIncompatible;
 import jsinterop.annotations.JsType;
+import org.openremote.model.attribute.AttributeEvent;
 import org.openremote.model.attribute.AttributeRef;
+import org.openremote.model.attribute.AttributeWriteResult;
 import org.openremote.model.http.RequestParams;
 import org.openremote.model.http.SuccessStatusCode;
 import org.openremote.model.query.AssetQuery;
@@ -28,6 +31,7 @@ import org.openremote.model.query.AssetQuery;
 import javax.annotation.security.RolesAllowed;
 import javax.validation.Valid;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
 
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
@@ -55,6 +59,8 @@ import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
  * <li>{@link #get}</li>
  * <li>{@link #update}</li>
  * <li>{@link #writeAttributeValue}</li>
+ * <li>{@link #writeAttributeValues}</li>
+ * <li>{@link #writeAttributeValuesAsync}</li>
  * </ul>
  */
 @Path("asset")
@@ -212,6 +218,37 @@ public interface AssetResource {
     @SuppressWarnings("unusable-by-js")
     void writeAttributeValue(@BeanParam RequestParams requestParams, @PathParam("assetId") String assetId, @PathParam("attributeName") String attributeName, String rawJson);
 
+    /**
+     * Updates several attributes of one or more assets, with the same access rules as {@link #writeAttributeValue}.
+     * Access of the user is checked once per asset and not once per attribute. If an event has no timestamp, the time
+     * of processing is used.
+     * <p>
+     * All attribute events are queued for processing before any of them is processed, this operation returns when
+     * all events have been processed or the processing timed out. The result of each event is returned in the order of
+     * the request, a failure of one event does not affect the others. Events of the same asset are processed in the
+     * order of the request. A 400 status is returned if the request contains no events.
+     */
+    @PUT
+    @Path("attributes")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @SuccessStatusCode(200)
+    @SuppressWarnings("unusable-by-js")
+    AttributeWriteResult[] writeAttributeValues(@BeanParam RequestParams requestParams, AttributeEvent[] events);
+
+    /**
+     * Same as {@link #writeAttributeValues} but returns with a 202 status as soon as the events have been queued for
+     * processing, the outcome of the writes is not returned. A 503 status is returned if the events could not be
+     * queued because the system is overloaded, events up to the first rejected event may have been queued.
+     */
+    @PUT
+    @Path("attributes/async")
+    @Consumes(APPLICATION_JSON)
+    @SuccessStatusCode(202)
+    @SuppressWarnings("unusable-by-js")
+    @GwtIncompatible
+    Response writeAttributeValuesAsync(@BeanParam RequestParams requestParams, AttributeEvent[] events);
+
     /**
      * Creates an asset. The identifier value of the asset can be provided, it should be a globally unique string value,
      * and must be 22 characters long. If no identifier value is provided, a unique value will be generated by
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.attribute;
+
+/**
+ * The reason why writing an attribute value failed.
+ */
+public enum AttributeWriteFailure {
+
+    /**
+     * The request did not reference an asset and attribute.
+     */
+    INVALID_ATTRIBUTE_REF,
+
+    /**
+     * The asset does not exist.
+     */
+    ASSET_NOT_FOUND,
+
+    /**
+     * The attribute does not exist.
+     */
+    ATTRIBUTE_NOT_FOUND,
+
+    /**
+     * The client is not allowed to write the attribute.
+     */
+    INSUFFICIENT_ACCESS,
+
+    /**
+     * The attribute can't be written with this request, for example the value or timestamp is not valid for the
+     * attribute.
+     */
+    INVALID_REQUEST,
+
+    /**
+     * The request was rejected because the system is overloaded, it can be retried later.
+     */
+    QUEUE_FULL,
+
+    /**
+     * The outcome is unknown, the request wasn't processed in time.
+     */
+    TIMEOUT,
+
+    /**
+     * Any other processing error.
+     */
+    PROCESSING_FAILURE
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.model.attribute;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * The outcome of writing an attribute value, the {@link #failure} is <code>null</code> if the write was successful.
+ */
+public class AttributeWriteResult {
+
+    @JsonProperty
+    protected AttributeRef ref;
+    @JsonProperty
+    protected AttributeWriteFailure failure;
+
+    @JsonCreator
+    public AttributeWriteResult(@JsonProperty("ref") AttributeRef ref,
+                                @JsonProperty("failure") AttributeWriteFailure failure) {
+        this.ref = ref;
+        this.failure = failure;
+    }
+
+    /**
+     * @return <code>null</code> if the request did not reference an asset and attribute.
+     */
+    public AttributeRef getRef() {
+        return ref;
+    }
+
+    public AttributeWriteFailure getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+            "ref=" + ref +
+            ", failure=" + failure +
+            '}';
+    }
+}
@@ -19,10 +19,15 @@
  */
 package org.openremote.model.datapoint;
 
+/**
+ * An aggregated datapoint, the number is the average of all values in the labeled interval.
+ */
 public class NumberDatapoint {
 
     protected String label;
     protected Number number;
+    protected Number min;
+    protected Number max;
 
     protected NumberDatapoint() {
     }
@@ -32,6 +37,13 @@ public class NumberDatapoint {
         this.number = number;
     }
 
+    public NumberDatapoint(String label, Number number, Number min, Number max) {
+        this.label = label;
+        this.number = number;
+        this.min = min;
+        this.max = max;
+    }
+
     public String getLabel() {
         return label;
     }
@@ -48,11 +60,29 @@ public class NumberDatapoint {
         this.number = number;
     }
 
+    public Number getMin() {
+        return min;
+    }
+
+    public void setMin(Number min) {
+        this.min = min;
+    }
+
+    public Number getMax() {
+        return max;
+    }
+
+    public void setMax(Number max) {
+        this.max = max;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + "{" +
             "label='" + label + '\'' +
             ", number=" + number +
+            ", min=" + min +
+            ", max=" + max +
             '}';
     }
 }
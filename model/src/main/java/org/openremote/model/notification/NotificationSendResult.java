@@ -19,14 +19,24 @@
  */
 package org.openremote.model.notification;
 
+import org.openremote.model.value.ObjectValue;
+
+import java.util.Optional;
+
 public class NotificationSendResult {
 
     protected boolean success;
     protected String message;
+    protected ObjectValue sentMessage;
 
     protected NotificationSendResult(boolean success, String message) {
+        this(success, message, null);
+    }
+
+    protected NotificationSendResult(boolean success, String message, ObjectValue sentMessage) {
         this.success = success;
         this.message = message;
+        this.sentMessage = sentMessage;
     }
 
     public boolean isSuccess() {
@@ -37,6 +47,21 @@ public class NotificationSendResult {
         return message;
     }
 
+    /**
+     * The message as sent to the target, if the handler sent a message that differs from the notification message
+     * (e.g. with the target set).
+     */
+    public Optional<ObjectValue> getSentMessage() {
+        return Optional.ofNullable(sentMessage);
+    }
+
+    /**
+     * Results may be shared, so this returns a copy with the specified sent message.
+     */
+    public NotificationSendResult withSentMessage(ObjectValue sentMessage) {
+        return new NotificationSendResult(success, message, sentMessage);
+    }
+
     public static NotificationSendResult success() {
         return new NotificationSendResult(true, null);
     }
@@ -36,6 +36,7 @@ import org.openremote.model.value.Values;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Objects;
 import java.util.Optional;
@@ -50,70 +51,110 @@ import java.util.Optional;
 @GwtIncompatible
 public class AssetState implements Comparable<AssetState> {
 
-    final protected String attributeName;
+    /**
+     * The state of the asset that is the same for all of its attributes. Asset states of the same asset may share
+     * the instance instead of each holding copies of path, parent, type and realm.
+     */
+    public static class AssetInfo {
 
-    final protected AttributeValueType attributeValueType;
+        final protected String id;
 
-    final protected Value value;
+        final protected String name;
 
-    final protected long timestamp;
+        final protected String typeString;
 
-    final protected LocalDateTime time;
+        final protected AssetType type;
 
-    final protected AttributeEvent.Source source;
+        final protected Date createdOn;
 
-    final protected Value oldValue;
+        final protected String[] path;
 
-    final protected long oldValueTimestamp;
+        final protected String parentId;
 
-    final protected String id;
+        final protected String parentName;
 
-    final protected String name;
+        final protected String parentTypeString;
 
-    final protected String typeString;
+        final protected AssetType parentType;
 
-    final protected AssetType type;
+        final protected String realmId;
 
-    final protected Date createdOn;
+        final protected String tenantRealm;
 
-    final protected String[] path;
+        public AssetInfo(Asset asset) {
+            this.id = asset.getId();
+            this.name = asset.getName();
+            this.typeString = asset.getType();
+            this.type = asset.getWellKnownType();
+            this.createdOn = asset.getCreatedOn();
+            this.path = asset.getPath();
+            this.parentId = asset.getParentId();
+            this.parentName = asset.getParentName();
+            this.parentTypeString = asset.getParentType();
+            this.parentType = asset.getParentWellKnownType();
+            this.realmId = asset.getRealmId();
+            this.tenantRealm = asset.getTenantRealm();
+        }
 
-    final protected String parentId;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            AssetInfo that = (AssetInfo) o;
+            return Objects.equals(id, that.id) &&
+                Objects.equals(name, that.name) &&
+                Objects.equals(typeString, that.typeString) &&
+                Objects.equals(createdOn, that.createdOn) &&
+                Arrays.equals(path, that.path) &&
+                Objects.equals(parentId, that.parentId) &&
+                Objects.equals(parentName, that.parentName) &&
+                Objects.equals(parentTypeString, that.parentTypeString) &&
+                Objects.equals(realmId, that.realmId) &&
+                Objects.equals(tenantRealm, that.tenantRealm);
+        }
 
-    final protected String parentName;
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, name, typeString);
+        }
+    }
 
-    final protected String parentTypeString;
+    final protected String attributeName;
 
-    final protected AssetType parentType;
+    final protected AttributeValueType attributeValueType;
 
-    final protected String realmId;
+    final protected Value value;
 
-    final protected String tenantRealm;
+    final protected long timestamp;
+
+    final protected AttributeEvent.Source source;
+
+    final protected Value oldValue;
+
+    final protected long oldValueTimestamp;
+
+    final protected AssetInfo assetInfo;
 
     final protected Meta meta;
 
     public AssetState(AssetState that) {
+        this(that, that.assetInfo, that.meta);
+    }
+
+    /**
+     * Copies the attribute state, with the given asset state and attribute meta which are equal to the ones of that
+     * asset state but may be shared with other asset states.
+     */
+    public AssetState(AssetState that, AssetInfo assetInfo, Meta meta) {
         this.attributeName = that.attributeName;
         this.attributeValueType = that.attributeValueType;
         this.value = that.value;
         this.timestamp = that.timestamp;
-        this.time = that.time;
         this.source = that.source;
         this.oldValue = that.oldValue;
         this.oldValueTimestamp = that.oldValueTimestamp;
-        this.id = that.id;
-        this.name = that.name;
-        this.typeString = that.typeString;
-        this.type = that.type;
-        this.createdOn = that.createdOn;
-        this.path = that.path;
-        this.parentId = that.parentId;
-        this.parentName = that.parentName;
-        this.parentTypeString = that.parentTypeString;
-        this.parentType = that.parentType;
-        this.realmId = that.realmId;
-        this.tenantRealm = that.tenantRealm;
-        this.meta = that.meta;
+        this.assetInfo = assetInfo;
+        this.meta = meta;
     }
 
     public AssetState(Asset asset, AssetAttribute attribute, AttributeEvent.Source source) {
@@ -121,22 +162,10 @@ public class AssetState implements Comparable<AssetState> {
         this.attributeValueType = attribute.getTypeOrThrow();
         this.value = attribute.getValue().orElse(null);
         this.timestamp = attribute.getValueTimestamp().orElse(-1L);
-        this.time = timestamp > 0 ? LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()) : null;
         this.source = source;
         this.oldValue = asset.getAttribute(attributeName).flatMap(AbstractValueHolder::getValue).orElse(null);
         this.oldValueTimestamp = asset.getAttribute(attributeName).flatMap(AbstractValueTimestampHolder::getValueTimestamp).orElse(-1L);
-        this.id = asset.getId();
-        this.name = asset.getName();
-        this.typeString = asset.getType();
-        this.type = asset.getWellKnownType();
-        this.createdOn = asset.getCreatedOn();
-        this.path = asset.getPath();
-        this.parentId = asset.getParentId();
-        this.parentName = asset.getParentName();
-        this.parentTypeString = asset.getParentType();
-        this.parentType = asset.getParentWellKnownType();
-        this.realmId = asset.getRealmId();
-        this.tenantRealm = asset.getTenantRealm();
+        this.assetInfo = new AssetInfo(asset);
         this.meta = attribute.getMeta();
     }
 
@@ -157,7 +186,8 @@ public class AssetState implements Comparable<AssetState> {
     }
 
     public LocalDateTime getTime() {
-        return time;
+        // Not stored, most asset states are never asked for their time
+        return timestamp > 0 ? LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()) : null;
     }
 
     public AttributeEvent.Source getSource() {
@@ -173,51 +203,55 @@ public class AssetState implements Comparable<AssetState> {
     }
 
     public String getId() {
-        return id;
+        return assetInfo.id;
     }
 
     public Date getCreatedOn() {
-        return createdOn;
+        return assetInfo.createdOn;
     }
 
     public String getName() {
-        return name;
+        return assetInfo.name;
     }
 
     public String getTypeString() {
-        return typeString;
+        return assetInfo.typeString;
     }
 
     public AssetType getType() {
-        return type;
+        return assetInfo.type;
     }
 
     public String[] getPath() {
-        return path;
+        return assetInfo.path;
     }
 
     public String getParentId() {
-        return parentId;
+        return assetInfo.parentId;
     }
 
     public String getParentName() {
-        return parentName;
+        return assetInfo.parentName;
     }
 
     public String getParentTypeString() {
-        return parentTypeString;
+        return assetInfo.parentTypeString;
     }
 
     public AssetType getParentType() {
-        return parentType;
+        return assetInfo.parentType;
     }
 
     public String getRealmId() {
-        return realmId;
+        return assetInfo.realmId;
     }
 
     public String getTenantRealm() {
-        return tenantRealm;
+        return assetInfo.tenantRealm;
+    }
+
+    public AssetInfo getAssetInfo() {
+        return assetInfo;
     }
 
     public Meta getMeta() {
@@ -326,12 +360,12 @@ public class AssetState implements Comparable<AssetState> {
         if (o == null || getClass() != o.getClass()) return false;
         AssetState that = (AssetState) o;
         return Objects.equals(attributeName, that.attributeName) &&
-            Objects.equals(id, that.id);
+            Objects.equals(getId(), that.getId());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(attributeName, id);
+        return Objects.hash(attributeName, getId());
     }
 
     @Override
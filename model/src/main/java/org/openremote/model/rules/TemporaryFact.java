@@ -34,9 +34,10 @@ import java.time.temporal.ChronoUnit;
 public class TemporaryFact<T> extends Event {
 
     /**
-     * This value defines the periodic firing of the rules engines, and therefore
-     * has an impact on system load. If a temporary fact has a shorter expiration
-     * time, it's not guaranteed to be removed within that time. Any time-based
+     * This value defines the default delay of rules engine firings and the minimum
+     * delay of firings when temporary facts expire, and therefore has an impact on
+     * system load. If a temporary fact has a shorter expiration time, it's not
+     * guaranteed to be removed within that time. Any time-based
      * operation, such as matching temporary facts in a sliding time window, must
      * be designed with this margin in mind.
      */
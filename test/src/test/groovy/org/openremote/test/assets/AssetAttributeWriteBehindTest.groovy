@@ -0,0 +1,175 @@
+package org.openremote.test.assets
+
+import org.openremote.manager.asset.AssetAttributeWriteBehind
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.asset.AssetType
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class AssetAttributeWriteBehindTest extends Specification {
+
+    /**
+     * Doesn't write to the database, records the written batches or fails while {@link #failing} is set.
+     */
+    static class TestWriteBehind extends AssetAttributeWriteBehind {
+
+        boolean failing
+        List<Map<String, Map<String, Object>>> written = []
+        Closure beforeWrite
+
+        TestWriteBehind(int maxPending) {
+            super(null, maxPending)
+        }
+
+        @Override
+        protected int writeBatch(Map<Integer, List<Map.Entry<String, Map<String, AssetAttributeWriteBehind.PendingValue>>>> byAttributeCount) {
+            if (beforeWrite != null)
+                beforeWrite()
+            if (failing)
+                throw new IllegalStateException("Database not available")
+            Map<String, Map<String, Object>> batch = [:]
+            byAttributeCount.values().flatten().each { Map.Entry<String, Map<String, AssetAttributeWriteBehind.PendingValue>> asset ->
+                batch[asset.key] = asset.value.collectEntries { [(it.key): it.value.value] }
+            }
+            written << batch
+            return batch.size()
+        }
+    }
+
+    static Asset createAsset(String id, double temperature) {
+        def asset = new Asset("Room " + id, AssetType.ROOM)
+        asset.setId(id)
+        asset.addAttributes(new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(temperature)))
+        return asset
+    }
+
+    static double getTemperature(Asset asset) {
+        asset.getAttribute("temperature").get().getValueAsNumber().get()
+    }
+
+    static double getAppliedTemperature(AssetAttributeWriteBehind writeBehind, String id) {
+        def asset = createAsset(id, 0)
+        writeBehind.apply(asset)
+        return getTemperature(asset)
+    }
+
+    def "Reject new values when too many values are pending"() {
+
+        given: "a write-behind limited to two pending values"
+        def writeBehind = new TestWriteBehind(2)
+
+        expect: "values up to the limit to be queued"
+        writeBehind.queue("room1", "temperature", Values.create(20), 1000)
+        writeBehind.queue("room2", "temperature", Values.create(20), 1000)
+        writeBehind.pendingCount == 2
+
+        and: "values of new attributes to be rejected without writing"
+        !writeBehind.queue("room3", "temperature", Values.create(20), 1000)
+        !writeBehind.queue("room1", "humidity", Values.create(50), 1000)
+        writeBehind.valuesRejected == 2
+        writeBehind.written.isEmpty()
+
+        and: "values of pending attributes to be merged"
+        writeBehind.queue("room1", "temperature", Values.create(21), 2000)
+        writeBehind.pendingCount == 2
+        writeBehind.valuesMerged == 1
+
+        when: "the pending values are flushed"
+        writeBehind.flush()
+
+        then: "the latest values should have been written"
+        writeBehind.written.size() == 1
+        writeBehind.written[0]["room1"]["temperature"] == Values.create(21)
+        writeBehind.written[0]["room2"]["temperature"] == Values.create(20)
+        writeBehind.pendingCount == 0
+
+        and: "new values should be accepted again"
+        writeBehind.queue("room3", "temperature", Values.create(20), 3000)
+    }
+
+    def "Requeue the values of a failed write only as long as the limit allows"() {
+
+        given: "a write-behind limited to three pending values and an unavailable database"
+        def writeBehind = new TestWriteBehind(3)
+        writeBehind.failing = true
+        writeBehind.queue("room1", "temperature", Values.create(20), 1000)
+        writeBehind.queue("room2", "temperature", Values.create(20), 1000)
+        writeBehind.queue("room3", "temperature", Values.create(20), 1000)
+
+        when: "newer values are queued while the pending values are written"
+        writeBehind.beforeWrite = {
+            writeBehind.beforeWrite = null
+            assert writeBehind.queue("room1", "temperature", Values.create(22), 2000)
+            assert writeBehind.queue("room4", "temperature", Values.create(22), 2000)
+        }
+        writeBehind.flush()
+
+        then: "the newer values should win and the failed values over the limit should be dropped"
+        writeBehind.flushFailures == 1
+        writeBehind.pendingCount == 3
+        writeBehind.valuesDropped == 1
+        getAppliedTemperature(writeBehind, "room1") == 22
+        getAppliedTemperature(writeBehind, "room4") == 22
+
+        when: "the database keeps failing"
+        writeBehind.flush()
+        writeBehind.flush()
+
+        then: "the number of pending values should not grow"
+        writeBehind.flushFailures == 3
+        writeBehind.pendingCount == 3
+
+        when: "the database is available again"
+        writeBehind.failing = false
+        writeBehind.flush()
+
+        then: "the remaining values should have been written"
+        writeBehind.pendingCount == 0
+        writeBehind.written.size() == 1
+        writeBehind.written[0].size() == 3
+        writeBehind.written[0]["room1"]["temperature"] == Values.create(22)
+        writeBehind.written[0]["room4"]["temperature"] == Values.create(22)
+    }
+
+    def "Apply written values to assets loaded by readers before the commit"() {
+
+        given: "a pending value"
+        def writeBehind = new TestWriteBehind(10)
+        writeBehind.queue("room1", "temperature", Values.create(21), 1000)
+        def writing = new CountDownLatch(1)
+        writeBehind.beforeWrite = { writing.countDown() }
+
+        when: "a reader loads the asset while the value is written"
+        writeBehind.readLock.lock()
+        def asset = createAsset("room1", 20)
+        def flush = CompletableFuture.runAsync { writeBehind.flush() }
+        assert writing.await(10, TimeUnit.SECONDS)
+
+        and: "the flush waits for the reader after the commit"
+        try {
+            flush.get(200, TimeUnit.MILLISECONDS)
+            assert false: "Flush should wait for the reader"
+        } catch (TimeoutException ignored) {
+        }
+
+        and: "the reader applies the values"
+        writeBehind.apply(asset)
+        writeBehind.readLock.unlock()
+        flush.get(10, TimeUnit.SECONDS)
+
+        then: "the written value should have been applied"
+        writeBehind.written.size() == 1
+        getTemperature(asset) == 21
+
+        and: "no values should be pending or in flight anymore"
+        writeBehind.pendingCount == 0
+        getAppliedTemperature(writeBehind, "room1") == 0
+    }
+}
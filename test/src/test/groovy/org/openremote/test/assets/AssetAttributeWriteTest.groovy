@@ -0,0 +1,103 @@
+package org.openremote.test.assets
+
+import org.openremote.manager.asset.AssetProcessingService
+import org.openremote.manager.asset.AssetQueue
+import org.openremote.manager.setup.SetupService
+import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.AssetResource
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeWriteFailure
+import org.openremote.model.value.Values
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.openremote.container.util.MapAccess.getString
+import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD
+import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD_DEFAULT
+import static org.openremote.model.Constants.*
+
+class AssetAttributeWriteTest extends Specification implements ManagerContainerTrait {
+
+    def "Write attribute values while the asset queue is busy"() {
+
+        given: "the server container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+        def conditions = new PollingConditions(timeout: 10)
+
+        and: "an asset queue with a partition capacity of one that blocks processing the events of the smart office"
+        def continueProcessing = new CountDownLatch(1)
+        def officeId = managerDemoSetup.smartOfficeId
+        def homeId = managerDemoSetup.smartHomeId
+        // The smart office and smart home must not share a partition
+        def partitions = (2..64).find { Math.abs(officeId.hashCode() % it) != Math.abs(homeId.hashCode() % it) }
+        assetProcessingService.assetQueue.stop()
+        assetProcessingService.@assetQueue = new AssetQueue(partitions, 1, false, 0, 100, { exchange ->
+            if (exchange.in.getBody(AttributeEvent.class).entityId == officeId) {
+                continueProcessing.await(30, TimeUnit.SECONDS)
+            }
+            assetProcessingService.processFromAssetQueue(exchange)
+        })
+        assetProcessingService.assetQueue.start()
+
+        and: "the asset resource of the superuser"
+        def accessToken = authenticate(
+                container,
+                MASTER_REALM,
+                KEYCLOAK_CLIENT_ID,
+                MASTER_REALM_ADMIN_USER,
+                getString(container.getConfig(), SETUP_ADMIN_PASSWORD, SETUP_ADMIN_PASSWORD_DEFAULT)
+        ).token
+        def assetResource = getClientTarget(serverUri(serverPort), MASTER_REALM, accessToken).proxy(AssetResource.class)
+
+        when: "attributes of both assets are written in one request"
+        def results = assetResource.writeAttributeValues(null, [
+                new AttributeEvent(officeId, "geoStreet", Values.create("Office street 1")),
+                new AttributeEvent(homeId, "geoStreet", Values.create("Home street 1"))
+        ] as AttributeEvent[])
+
+        then: "the partial result should be returned after the timeout"
+        results.length == 2
+        results[0].failure == AttributeWriteFailure.TIMEOUT
+        results[1].success
+        assetResource.get(null, homeId).getAttribute("geoStreet").get().getValue().get().toJson() == Values.create("Home street 1").toJson()
+
+        when: "more attributes of the smart office are written asynchronously than its partition can hold"
+        def response = assetResource.writeAttributeValuesAsync(null, [
+                new AttributeEvent(officeId, "geoStreet", Values.create("Office street 2")),
+                new AttributeEvent(officeId, "geoStreet", Values.create("Office street 3"))
+        ] as AttributeEvent[])
+
+        then: "the service should be unavailable"
+        response.status == 503
+        assetProcessingService.assetQueue.getMetrics(AttributeEvent.Source.CLIENT).dropped == 1
+
+        when: "an attribute of the smart home is written asynchronously"
+        response = assetResource.writeAttributeValuesAsync(null, [
+                new AttributeEvent(homeId, "geoStreet", Values.create("Home street 2"))
+        ] as AttributeEvent[])
+
+        then: "the request should be accepted"
+        response.status == 202
+
+        when: "the processing of the smart office events continues"
+        continueProcessing.countDown()
+
+        then: "the queued events should have been processed, the rejected event never"
+        conditions.eventually {
+            assert assetResource.get(null, officeId).getAttribute("geoStreet").get().getValue().get().toJson() == Values.create("Office street 2").toJson()
+            assert assetResource.get(null, homeId).getAttribute("geoStreet").get().getValue().get().toJson() == Values.create("Home street 2").toJson()
+            assert assetProcessingService.assetQueue.size == 0
+        }
+
+        cleanup: "the server should be stopped"
+        continueProcessing.countDown()
+        stopContainer(container)
+    }
+}
@@ -0,0 +1,164 @@
+package org.openremote.test.assets
+
+import org.openremote.container.persistence.PersistenceService
+import org.openremote.manager.asset.AssetCache
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.setup.SetupService
+import org.openremote.manager.setup.builtin.KeycloakDemoSetup
+import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.asset.AssetType
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.security.TenantResource
+import org.openremote.model.value.Values
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+import static org.openremote.container.util.MapAccess.getString
+import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD
+import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD_DEFAULT
+import static org.openremote.model.Constants.*
+
+class AssetCacheTest extends Specification implements ManagerContainerTrait {
+
+    static Asset createAsset(String id, String realmId, double temperature) {
+        def asset = new Asset("Room " + id, AssetType.ROOM)
+        asset.setId(id)
+        asset.setRealmId(realmId)
+        asset.addAttributes(new AssetAttribute("temperature", AttributeValueType.NUMBER, Values.create(temperature)))
+        return asset
+    }
+
+    static double getTemperature(Asset asset) {
+        asset.getAttribute("temperature").get().getValueAsNumber().get()
+    }
+
+    def "Apply attribute value updates to cached assets once they are committed"() {
+
+        given: "a cache with an asset"
+        def cache = new AssetCache(10)
+        def stored = createAsset("room1", "realm1", 20)
+        def loads = 0
+        def loader = { loads++; stored }
+        cache.get("room1", loader)
+
+        expect: "the asset to be served from the cache"
+        getTemperature(cache.get("room1", loader)) == 20
+        loads == 1
+
+        when: "an update of the asset is pending"
+        cache.beginUpdate("room1")
+        stored = createAsset("room1", "realm1", 21)
+
+        then: "the asset should be loaded without the cache and not be cached"
+        getTemperature(cache.get("room1", loader)) == 21
+        getTemperature(cache.get("room1", loader)) == 21
+        loads == 3
+
+        when: "the update is committed"
+        cache.updateAttributeValue("room1", "temperature", Values.create(21), 1000)
+        cache.endUpdate("room1")
+
+        then: "the updated asset should be served from the cache"
+        getTemperature(cache.get("room1", loader)) == 21
+        loads == 3
+
+        when: "another update is rolled back"
+        cache.beginUpdate("room1")
+        cache.invalidate("room1")
+        cache.endUpdate("room1")
+
+        then: "the asset should be loaded and cached again"
+        getTemperature(cache.get("room1", loader)) == 21
+        getTemperature(cache.get("room1", loader)) == 21
+        loads == 4
+    }
+
+    def "Invalidate the cached assets of a realm"() {
+
+        given: "a cache with assets of two realms"
+        def cache = new AssetCache(10)
+        cache.get("room1", { createAsset("room1", "realm1", 20) })
+        cache.get("room2", { createAsset("room2", "realm2", 20) })
+
+        when: "the assets of a realm are invalidated"
+        cache.invalidateRealm("realm1")
+
+        then: "only the assets of the other realm should be cached"
+        cache.size == 1
+        cache.get("room2", { null }) != null
+        cache.get("room1", { null }) == null
+    }
+
+    def "Keep uncommitted attribute values out of the asset cache"() {
+
+        given: "the server container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def persistenceService = container.getService(PersistenceService.class)
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+        def conditions = new PollingConditions(timeout: 10)
+
+        expect: "the asset cache to be enabled and the asset to be cached"
+        assetStorageService.getAssetCache() != null
+        def street = assetStorageService.find(managerDemoSetup.smartOfficeId, true).getAttribute("geoStreet").get().getValueAsString().get()
+
+        when: "an attribute value is stored in a transaction that is rolled back"
+        String readDuringTransaction = null
+        persistenceService.doTransaction { em ->
+            assert assetStorageService.storeAttributeValue(em, managerDemoSetup.smartOfficeId, "geoStreet", Values.create("Uncommitted street"), "1")
+            // Read by another thread while the transaction isn't committed
+            readDuringTransaction = CompletableFuture.supplyAsync {
+                assetStorageService.find(managerDemoSetup.smartOfficeId, true).getAttribute("geoStreet").get().getValueAsString().get()
+            }.get(10, TimeUnit.SECONDS)
+            throw new IllegalStateException("Rollback")
+        }
+
+        then: "the uncommitted value should never have been visible"
+        thrown(IllegalStateException)
+        readDuringTransaction == street
+        assetStorageService.find(managerDemoSetup.smartOfficeId, true).getAttribute("geoStreet").get().getValueAsString().get() == street
+
+        when: "an attribute value is stored in a transaction that is committed"
+        persistenceService.doTransaction { em ->
+            assetStorageService.storeAttributeValue(em, managerDemoSetup.smartOfficeId, "geoStreet", Values.create("Committed street"), "2")
+        }
+
+        then: "the value should be visible"
+        assetStorageService.find(managerDemoSetup.smartOfficeId, true).getAttribute("geoStreet").get().getValueAsString().get() == "Committed street"
+
+        and: "the asset without path and attributes should be loaded from the database"
+        def asset = assetStorageService.find(managerDemoSetup.smartOfficeId)
+        asset.id == managerDemoSetup.smartOfficeId
+        asset.name == "Smart Office"
+
+        when: "the display name of the tenant of a cached asset is changed"
+        assetStorageService.find(managerDemoSetup.smartHomeId, true)
+        def accessToken = authenticate(
+            container,
+            MASTER_REALM,
+            KEYCLOAK_CLIENT_ID,
+            MASTER_REALM_ADMIN_USER,
+            getString(container.getConfig(), SETUP_ADMIN_PASSWORD, SETUP_ADMIN_PASSWORD_DEFAULT)
+        ).token
+        def tenantResource = getClientTarget(serverUri(serverPort), MASTER_REALM, accessToken).proxy(TenantResource.class)
+        def tenant = tenantResource.get(null, keycloakDemoSetup.customerATenant.realm)
+        tenant.setDisplayName("Changed Customer A")
+        tenantResource.update(null, keycloakDemoSetup.customerATenant.realm, tenant)
+
+        then: "the cached asset should have been invalidated"
+        conditions.eventually {
+            assert assetStorageService.find(managerDemoSetup.smartHomeId, true).tenantDisplayName == "Changed Customer A"
+        }
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+}
@@ -0,0 +1,130 @@
+package org.openremote.test.assets
+
+import org.openremote.manager.datapoint.AssetDatapointStorage
+import org.openremote.model.datapoint.AssetDatapoint
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+import static org.openremote.manager.datapoint.AssetDatapointStorage.MAX_INSERT_ATTEMPTS
+
+class AssetDatapointStorageTest extends Specification {
+
+    /**
+     * Records the written batches instead of inserting them, fails while the database is "down".
+     */
+    static class TestDatapointStorage extends AssetDatapointStorage {
+
+        List<List<AssetDatapoint>> written = []
+        boolean databaseDown
+
+        TestDatapointStorage(int maxPending) {
+            super(null, AssetDatapointStorage.Partitioning.DAY, maxPending)
+        }
+
+        @Override
+        protected long write(List<AssetDatapoint> batch) {
+            if (databaseDown)
+                throw new IllegalStateException("Database is down")
+            written.add(new ArrayList<>(batch))
+            return batch.size()
+        }
+    }
+
+    static AssetDatapoint datapoint(long timestamp) {
+        new AssetDatapoint("asset1", "temperature", Values.create(timestamp), timestamp)
+    }
+
+    def "Insert buffered datapoints in batches"() {
+
+        given: "a datapoint storage"
+        def storage = new TestDatapointStorage(10)
+
+        when: "datapoints are queued"
+        4.times { storage.queue(datapoint(it)) }
+
+        then: "they should be pending until flushed"
+        storage.written.isEmpty()
+        storage.pendingCount == 4
+
+        when: "the storage is flushed"
+        storage.flush()
+
+        then: "they should be inserted as one batch"
+        storage.written.size() == 1
+        storage.written[0]*.timestamp == [0L, 1L, 2L, 3L]
+        storage.pendingCount == 0
+        storage.datapointsInserted == 4
+
+        when: "the maximum of pending datapoints is reached"
+        10.times { storage.queue(datapoint(10 + it)) }
+
+        then: "the producer should have flushed"
+        storage.written.size() == 2
+        storage.written[1].size() == 10
+        storage.pendingCount == 0
+    }
+
+    def "Retry batches that could not be inserted"() {
+
+        given: "a datapoint storage with an unavailable database"
+        def storage = new TestDatapointStorage(10)
+        storage.databaseDown = true
+
+        when: "two batches are flushed"
+        3.times { storage.queue(datapoint(it)) }
+        storage.flush()
+        2.times { storage.queue(datapoint(3 + it)) }
+        storage.flush()
+
+        then: "nothing should have been inserted or discarded"
+        storage.written.isEmpty()
+        storage.insertFailures == 2
+        storage.failedCount == 5
+        storage.datapointsDiscarded == 0
+
+        when: "the database is available again and new datapoints are flushed"
+        storage.databaseDown = false
+        storage.queue(datapoint(5))
+        storage.flush()
+
+        then: "the failed batches should have been inserted first, in order"
+        storage.written*.collect { it.timestamp } == [[0L, 1L, 2L], [3L, 4L], [5L]]
+        storage.failedCount == 0
+        storage.datapointsInserted == 6
+        storage.datapointsDiscarded == 0
+    }
+
+    def "Discard failed batches after too many attempts or when too many datapoints failed"() {
+
+        given: "a datapoint storage with an unavailable database"
+        def storage = new TestDatapointStorage(10)
+        storage.databaseDown = true
+
+        when: "a batch fails on every attempt"
+        3.times { storage.queue(datapoint(it)) }
+        MAX_INSERT_ATTEMPTS.times { storage.flush() }
+
+        then: "it should have been discarded"
+        storage.failedCount == 0
+        storage.datapointsDiscarded == 3
+        storage.insertFailures == MAX_INSERT_ATTEMPTS
+
+        when: "more datapoints fail than can be buffered"
+        3.times { batch ->
+            4.times { storage.queue(datapoint(10 * batch + it)) }
+            storage.flush()
+        }
+
+        then: "the oldest failed batch should have been discarded"
+        storage.failedCount == 8
+        storage.datapointsDiscarded == 7
+
+        when: "the database is available again"
+        storage.databaseDown = false
+        storage.flush()
+
+        then: "the remaining failed batches should have been inserted"
+        storage.written*.collect { it.timestamp } == [[10L, 11L, 12L, 13L], [20L, 21L, 22L, 23L]]
+        storage.failedCount == 0
+    }
+}
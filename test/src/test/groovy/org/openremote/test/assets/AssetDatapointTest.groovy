@@ -1,12 +1,15 @@
 package org.openremote.test.assets
 
 import org.openremote.agent.protocol.simulator.SimulatorProtocol
+import org.openremote.container.persistence.PersistenceService
 import org.openremote.manager.asset.AssetStorageService
 import org.openremote.manager.datapoint.AssetDatapointService
+import org.openremote.manager.datapoint.AssetDatapointStorage
 import org.openremote.manager.setup.SetupService
 import org.openremote.manager.setup.builtin.ManagerDemoSetup
 import org.openremote.model.attribute.AttributeRef
 import org.openremote.model.datapoint.DatapointInterval
+import org.openremote.model.datapoint.NumberDatapoint
 import org.openremote.model.value.Values
 import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
@@ -22,6 +25,16 @@ import static org.openremote.manager.setup.builtin.ManagerDemoSetup.thingLightTo
 
 class AssetDatapointTest extends Specification implements ManagerContainerTrait {
 
+    static void assertSameAggregates(NumberDatapoint[] actual, NumberDatapoint[] expected) {
+        assert actual*.label == expected*.label
+        [actual as List, expected as List].transpose().each { NumberDatapoint a, NumberDatapoint e ->
+            ["number", "min", "max"].each { property ->
+                assert (a[property] == null) == (e[property] == null)
+                assert a[property] == null || Math.abs(a[property] - e[property]) < 0.000001
+            }
+        }
+    }
+
     def "Test number and toggle attribute storage, retrieval and purging"() {
 
         given: "expected conditions"
@@ -34,6 +47,7 @@ class AssetDatapointTest extends Specification implements ManagerContainerTrait
         def simulatorProtocol = container.getService(SimulatorProtocol.class)
         def assetStorageService = container.getService(AssetStorageService.class)
         def assetDatapointService = container.getService(AssetDatapointService.class)
+        def persistenceService = container.getService(PersistenceService.class)
 
         then: "the simulator elements should have the initial state"
         conditions.eventually {
@@ -111,6 +125,67 @@ class AssetDatapointTest extends Specification implements ManagerContainerTrait
                     getClockTimeOf(container)
             )
             assert aggregatedDatapoints.size() == 61
+            assert aggregatedDatapoints.any { it.number != null }
+            assert aggregatedDatapoints.findAll { it.number != null }.every {
+                it.min <= it.number && it.number <= it.max
+            }
+        }
+
+        and: "the datapoints should have been added to the rollups of every resolution"
+        conditions.eventually {
+            def datapoints = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, "light1PowerConsumption"))
+            def values = datapoints.collect { Values.getNumber(it.value).get() }
+            AssetDatapointStorage.RollupResolution.values().each { resolution ->
+                def rollup = persistenceService.doReturningTransaction { em ->
+                    em.createNativeQuery(
+                            "select sum(VALUE_COUNT), sum(SUM_VALUE), min(MIN_VALUE), max(MAX_VALUE), count(*) from ASSET_DATAPOINT_ROLLUP " +
+                                    "where ENTITY_ID = :entityId and ATTRIBUTE_NAME = :attributeName and RESOLUTION = :resolution"
+                    ).setParameter("entityId", managerDemoSetup.thingId)
+                            .setParameter("attributeName", "light1PowerConsumption")
+                            .setParameter("resolution", resolution.name())
+                            .getSingleResult()
+                } as Object[]
+                assert (rollup[0] as long) == datapoints.size()
+                assert Math.abs((rollup[1] as double) - values.sum()) < 0.000001
+                assert (rollup[2] as double) == values.min()
+                assert (rollup[3] as double) == values.max()
+                assert (rollup[4] as long) == datapoints.collect { it.timestamp - it.timestamp % resolution.millis }.unique().size()
+            }
+        }
+
+        and: "the aggregation of the rollups should match the aggregation of the datapoints"
+        conditions.eventually {
+            def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+            def attribute = thing.getAttribute("light1PowerConsumption").get()
+            assert assetDatapointService.datapointStorage.getRollupResolution("minute") == AssetDatapointStorage.RollupResolution.MINUTE
+            assert assetDatapointService.datapointStorage.getRollupResolution("week") == null
+            assertSameAggregates(
+                    assetDatapointService.aggregateDatapoints(attribute, DatapointInterval.HOUR, getClockTimeOf(container), true),
+                    assetDatapointService.aggregateDatapoints(attribute, DatapointInterval.HOUR, getClockTimeOf(container), false)
+            )
+            assertSameAggregates(
+                    assetDatapointService.aggregateDatapoints(attribute, DatapointInterval.DAY, getClockTimeOf(container), true),
+                    assetDatapointService.aggregateDatapoints(attribute, DatapointInterval.DAY, getClockTimeOf(container), false)
+            )
+        }
+
+        and: "the first interval should be aggregated completely, also before the requested period, with and without rollups"
+        conditions.eventually {
+            def thing = assetStorageService.find(managerDemoSetup.thingId, true)
+            def attribute = thing.getAttribute("light1PowerConsumption").get()
+            // The period starts one second before the second datapoint
+            def timestamp = datapoint2ExpectedTimestamp + 3600000 - 1000
+            def periodStart = (long) (timestamp / 1000) * 1000 - 3600000
+            def firstMinute = periodStart - periodStart % 60000
+            def firstMinuteValues = assetDatapointService.getDatapoints(new AttributeRef(managerDemoSetup.thingId, "light1PowerConsumption"))
+                    .findAll { it.timestamp >= firstMinute && it.timestamp < firstMinute + 60000 }
+                    .collect { Values.getNumber(it.value).get() }
+            assert !firstMinuteValues.isEmpty()
+            [true, false].each { useRollups ->
+                def aggregatedDatapoints = assetDatapointService.aggregateDatapoints(attribute, DatapointInterval.HOUR, timestamp, useRollups)
+                assert aggregatedDatapoints[0].min == firstMinuteValues.min()
+                assert aggregatedDatapoints[0].max == firstMinuteValues.max()
+            }
         }
 
         // ------------------------------------
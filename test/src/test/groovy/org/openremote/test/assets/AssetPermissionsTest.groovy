@@ -8,7 +8,10 @@ import org.openremote.model.asset.Asset
 import org.openremote.model.asset.AssetAttribute
 import org.openremote.model.query.AssetQuery
 import org.openremote.model.asset.AssetType
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.attribute.AttributeRef
 import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.attribute.AttributeWriteFailure
 import org.openremote.model.attribute.Meta
 import org.openremote.model.attribute.MetaItem
 import org.openremote.model.query.filter.ParentPredicate
@@ -397,6 +400,37 @@ class AssetPermissionsTest extends Specification implements ManagerContainerTrai
         ex = thrown()
         ex.response.status == 403
 
+        when: "several asset attributes are written in one request"
+        def results = assetResource.writeAttributeValues(null, [
+                new AttributeEvent(managerDemoSetup.smartOfficeId, "geoCity", Values.create("Testcity")),
+                new AttributeEvent(managerDemoSetup.smartOfficeId, "doesnotexist", Values.create("Test")),
+                new AttributeEvent(managerDemoSetup.smartHomeId, "geoStreet", Values.create("Teststreet 456")),
+                new AttributeEvent(managerDemoSetup.smartOfficeId, "geoStreet", Values.create("Teststreet 789"))
+        ] as AttributeEvent[])
+
+        then: "the result of each write should match"
+        results.length == 4
+        results[0].success
+        results[0].ref == new AttributeRef(managerDemoSetup.smartOfficeId, "geoCity")
+        results[1].failure == AttributeWriteFailure.ATTRIBUTE_NOT_FOUND
+        results[2].failure == AttributeWriteFailure.INSUFFICIENT_ACCESS
+        results[3].success
+        def smartOffice = assetResource.get(null, managerDemoSetup.smartOfficeId)
+        smartOffice.getAttribute("geoCity").get().getValue().get().toJson() == Values.create("Testcity").toJson()
+        smartOffice.getAttribute("geoStreet").get().getValue().get().toJson() == Values.create("Teststreet 789").toJson()
+
+        when: "several asset attributes are written asynchronously"
+        def response = assetResource.writeAttributeValuesAsync(null, [
+                new AttributeEvent(managerDemoSetup.smartOfficeId, "geoCity", Values.create("Othercity"))
+        ] as AttributeEvent[])
+
+        then: "the request should be accepted and the attribute should eventually be updated"
+        response.status == 202
+        conditions.eventually {
+            def asset = assetResource.get(null, managerDemoSetup.smartOfficeId)
+            assert asset.getAttribute("geoCity").get().getValue().get().toJson() == Values.create("Othercity").toJson()
+        }
+
         cleanup: "the server should be stopped"
         stopContainer(container)
     }
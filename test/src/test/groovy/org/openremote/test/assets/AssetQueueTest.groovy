@@ -0,0 +1,253 @@
+package org.openremote.test.assets
+
+import org.apache.camel.ExchangePattern
+import org.apache.camel.ExchangeTimedOutException
+import org.apache.camel.impl.DefaultCamelContext
+import org.apache.camel.impl.DefaultExchange
+import org.openremote.manager.asset.AssetProcessingException
+import org.openremote.manager.asset.AssetQueue
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.value.Values
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import static org.openremote.manager.asset.AssetQueue.Result.*
+import static org.openremote.model.attribute.AttributeEvent.Source.*
+
+class AssetQueueTest extends Specification {
+
+    def camelContext = new DefaultCamelContext()
+
+    def createExchange(AttributeEvent event, ExchangePattern pattern = ExchangePattern.InOnly) {
+        def exchange = new DefaultExchange(camelContext, pattern)
+        exchange.in.body = event
+        return exchange
+    }
+
+    def "Conflate queued sensor events and drop sensor events when full"() {
+
+        given: "an asset queue with a single partition and a worker blocked processing the first event"
+        def conditions = new PollingConditions(timeout: 5)
+        def processingStarted = new CountDownLatch(1)
+        def continueProcessing = new CountDownLatch(1)
+        def processed = new CopyOnWriteArrayList<AttributeEvent>()
+        def assetQueue = new AssetQueue(1, 4, true, 0, 1000, { exchange ->
+            processingStarted.countDown()
+            continueProcessing.await(5, TimeUnit.SECONDS)
+            processed.add(exchange.in.getBody(AttributeEvent.class))
+        })
+        assetQueue.start()
+        def blocking = new AttributeEvent("asset1", "blocking", Values.create(0), 1)
+        assetQueue.offer(createExchange(blocking), blocking, SENSOR)
+        processingStarted.await(5, TimeUnit.SECONDS)
+
+        when: "sensor events of the same attribute are queued"
+        def results = (1..3).collect { i ->
+            def event = new AttributeEvent("asset1", "temperature", Values.create(i), i)
+            assetQueue.offer(createExchange(event), event, SENSOR)
+        }
+
+        then: "the queued event should have been replaced"
+        results == [QUEUED, CONFLATED, CONFLATED]
+        assetQueue.size == 1
+        assetQueue.getMetrics(SENSOR).conflated == 2
+
+        when: "events of other attributes fill the partition"
+        results = ["a", "b", "c", "d"].collect { attributeName ->
+            def event = new AttributeEvent("asset1", attributeName, Values.create(1), 10)
+            assetQueue.offer(createExchange(event), event, SENSOR)
+        }
+
+        then: "backpressure should be signalled and the event that doesn't fit should be dropped"
+        results == [QUEUED, BACKPRESSURE, BACKPRESSURE, DROPPED]
+        assetQueue.getMetrics(SENSOR).dropped == 1
+
+        when: "an internal event is queued in the full partition"
+        def internalEvent = new AttributeEvent("asset1", "e", Values.create(1), 10)
+        def internalResult = assetQueue.offer(createExchange(internalEvent), internalEvent, INTERNAL)
+
+        then: "it should have been accepted"
+        internalResult == BACKPRESSURE
+        assetQueue.size == 5
+
+        when: "a client event is queued in the full partition by a producer not waiting for the result"
+        def clientEvent = new AttributeEvent("asset1", "f", Values.create(1), 10)
+        def start = System.currentTimeMillis()
+        assetQueue.offer(createExchange(clientEvent), clientEvent, CLIENT)
+
+        then: "it should have been rejected without waiting"
+        AssetProcessingException ex = thrown()
+        ex.reason == AssetProcessingException.Reason.QUEUE_FULL
+        System.currentTimeMillis() - start < 500
+
+        when: "the worker continues"
+        continueProcessing.countDown()
+
+        then: "the latest value of the conflated events and the other queued events should have been processed in order"
+        conditions.eventually {
+            assert processed.collect { it.attributeName } == ["blocking", "temperature", "a", "b", "c", "e"]
+            assert processed[1].timestamp == 3
+            assert assetQueue.size == 0
+            assert assetQueue.getMetrics(SENSOR).queued == 0
+        }
+
+        cleanup: "the queue should be stopped"
+        assetQueue.stop()
+    }
+
+    def "Reject internal and attribute linking events when the partition overflows"() {
+
+        given: "an asset queue with a partition capacity of two and a worker blocked processing the first event"
+        def processingStarted = new CountDownLatch(1)
+        def continueProcessing = new CountDownLatch(1)
+        def assetQueue = new AssetQueue(1, 2, false, 0, 1000, { exchange ->
+            processingStarted.countDown()
+            continueProcessing.await(5, TimeUnit.SECONDS)
+        })
+        assetQueue.start()
+        def blocking = new AttributeEvent("asset1", "blocking", Values.create(0), 1)
+        assetQueue.offer(createExchange(blocking), blocking, SENSOR)
+        processingStarted.await(5, TimeUnit.SECONDS)
+
+        when: "internal and attribute linking events are queued up to the overflow limit"
+        def results = (1..4).collect { i ->
+            def event = new AttributeEvent("asset1", "attribute" + i, Values.create(i), i)
+            assetQueue.offer(createExchange(event), event, i % 2 == 0 ? INTERNAL : ATTRIBUTE_LINKING_SERVICE)
+        }
+
+        then: "they should have been accepted beyond the capacity"
+        results == [QUEUED, BACKPRESSURE, BACKPRESSURE, BACKPRESSURE]
+        assetQueue.size == 2 * AssetQueue.OVERFLOW_FACTOR
+
+        when: "another internal event is queued"
+        def event = new AttributeEvent("asset1", "attribute5", Values.create(5), 5)
+        assetQueue.offer(createExchange(event), event, INTERNAL)
+
+        then: "it should have been rejected"
+        AssetProcessingException ex = thrown()
+        ex.reason == AssetProcessingException.Reason.QUEUE_FULL
+        assetQueue.getMetrics(INTERNAL).dropped == 1
+        assetQueue.size == 4
+
+        cleanup: "the queue should be stopped"
+        continueProcessing.countDown()
+        assetQueue.stop()
+    }
+
+    def "Wait for the processing of events that expect a reply"() {
+
+        given: "an asset queue that sets a reply"
+        def assetQueue = new AssetQueue(2, 10, false, 0, 1000, { exchange ->
+            exchange.out.body = "processed " + exchange.in.getBody(AttributeEvent.class).attributeName
+        })
+        assetQueue.start()
+
+        when: "a client event is queued by a producer expecting a reply"
+        def event = new AttributeEvent("asset1", "temperature", Values.create(1), 1)
+        def exchange = createExchange(event, ExchangePattern.InOut)
+        def result = assetQueue.offer(exchange, event, CLIENT)
+
+        then: "the event should have been processed when the producer continues"
+        result == QUEUED
+        exchange.out.body == "processed temperature"
+        exchange.exception == null
+
+        cleanup: "the queue should be stopped"
+        assetQueue.stop()
+    }
+
+    def "Remove events that expect a reply when they are not processed in time"() {
+
+        given: "an asset queue with a single partition and a worker blocked processing the first event"
+        def processingStarted = new CountDownLatch(1)
+        def continueProcessing = new CountDownLatch(1)
+        def processed = new CopyOnWriteArrayList<String>()
+        def assetQueue = new AssetQueue(1, 10, false, 0, 200, { exchange ->
+            def attributeName = exchange.in.getBody(AttributeEvent.class).attributeName
+            if (attributeName == "blocking") {
+                processingStarted.countDown()
+                continueProcessing.await(5, TimeUnit.SECONDS)
+            }
+            processed.add(attributeName)
+            exchange.out.body = "processed " + attributeName
+        })
+        assetQueue.start()
+        def blocking = new AttributeEvent("asset1", "blocking", Values.create(0), 1)
+        def blockingExchange = createExchange(blocking, ExchangePattern.InOut)
+        def blockingThread = Thread.start { assetQueue.offer(blockingExchange, blocking, CLIENT) }
+        processingStarted.await(5, TimeUnit.SECONDS)
+
+        when: "a client event is queued behind it by a producer expecting a reply"
+        def event = new AttributeEvent("asset1", "temperature", Values.create(1), 1)
+        def exchange = createExchange(event, ExchangePattern.InOut)
+        def result = assetQueue.offer(exchange, event, CLIENT)
+
+        then: "the producer should have timed out and the event should have been removed from the queue"
+        result == QUEUED
+        exchange.exception instanceof ExchangeTimedOutException
+        assetQueue.size == 0
+        assetQueue.getMetrics(CLIENT).queued == 0
+
+        and: "the producer of the event being processed should still wait for its result"
+        blockingThread.alive
+
+        when: "the worker continues"
+        continueProcessing.countDown()
+        blockingThread.join(5000)
+
+        then: "the event being processed should have taken effect and the removed event never"
+        blockingExchange.exception == null
+        blockingExchange.out.body == "processed blocking"
+        processed == ["blocking"]
+        !exchange.hasOut()
+
+        cleanup: "the queue should be stopped"
+        assetQueue.stop()
+    }
+
+    def "Wait once for a batch of sensor events when the partition is full"() {
+
+        given: "an asset queue with a partition capacity of one and a worker blocked processing the first event"
+        def processingStarted = new CountDownLatch(1)
+        def continueProcessing = new CountDownLatch(1)
+        def processed = new CopyOnWriteArrayList<AttributeEvent>()
+        def assetQueue = new AssetQueue(1, 1, false, 200, 1000, { exchange ->
+            processingStarted.countDown()
+            continueProcessing.await(5, TimeUnit.SECONDS)
+            processed.add(exchange.in.getBody(AttributeEvent.class))
+        })
+        assetQueue.start()
+        def blocking = new AttributeEvent("asset1", "blocking", Values.create(0), 1)
+        assetQueue.offer(createExchange(blocking), blocking, SENSOR)
+        processingStarted.await(5, TimeUnit.SECONDS)
+
+        when: "a batch of sensor events is queued"
+        def events = (1..5).collect { new AttributeEvent("asset1", "temperature", Values.create(it), it) }
+        def batchExchange = createExchange(null)
+        batchExchange.in.body = events
+        def start = System.currentTimeMillis()
+        def results = assetQueue.offer(batchExchange, events, SENSOR)
+        def waitedMillis = System.currentTimeMillis() - start
+
+        then: "the first event should have been queued and the others dropped after a single wait"
+        results == [BACKPRESSURE, DROPPED, DROPPED, DROPPED, DROPPED]
+        waitedMillis < 600
+        assetQueue.getMetrics(SENSOR).dropped == 4
+
+        when: "the worker continues"
+        continueProcessing.countDown()
+
+        then: "the queued event should have been processed with its own exchange"
+        new PollingConditions(timeout: 5).eventually {
+            assert processed.collect { it.attributeName } == ["blocking", "temperature"]
+            assert processed[1].timestamp == 1
+        }
+
+        cleanup: "the queue should be stopped"
+        assetQueue.stop()
+    }
+}
@@ -0,0 +1,153 @@
+package org.openremote.test.assets
+
+import org.openremote.manager.asset.AssetStorageService
+import org.openremote.manager.security.ManagerIdentityService
+import org.openremote.manager.setup.SetupService
+import org.openremote.manager.setup.builtin.KeycloakDemoSetup
+import org.openremote.manager.setup.builtin.ManagerDemoSetup
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetResource
+import org.openremote.model.asset.AssetType
+import org.openremote.model.asset.UserAsset
+import org.openremote.model.security.UserResource
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import javax.ws.rs.WebApplicationException
+
+import static org.openremote.container.util.MapAccess.getString
+import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD
+import static org.openremote.manager.setup.AbstractKeycloakSetup.SETUP_ADMIN_PASSWORD_DEFAULT
+import static org.openremote.model.Constants.*
+
+class AuthorizationCacheTest extends Specification implements ManagerContainerTrait {
+
+    def "Invalidate cached restricted users and user assets when they change"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 0.2)
+
+        and: "the server container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def identityService = container.getService(ManagerIdentityService.class)
+        def identityProvider = identityService.getIdentityProvider()
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+        def customerARealmId = keycloakDemoSetup.customerATenant.id
+
+        expect: "the authorization cache to be enabled"
+        identityService.getAuthorizationCache() != null
+
+        when: "the restricted flag of a user is read twice"
+        def restrictedUsersHits = identityService.getAuthorizationCache().getRestrictedUsersStats().hitCount()
+        def restricted = identityProvider.isRestrictedUser(keycloakDemoSetup.testuser2Id)
+        restricted = identityProvider.isRestrictedUser(keycloakDemoSetup.testuser2Id)
+
+        then: "it should have been cached"
+        !restricted
+        identityService.getAuthorizationCache().getRestrictedUsersStats().hitCount() == restrictedUsersHits + 1
+
+        when: "the user configuration is changed"
+        def userConfiguration = identityService.getUserConfiguration(keycloakDemoSetup.testuser2Id)
+        userConfiguration.setRestricted(true)
+        identityService.mergeUserConfiguration(userConfiguration)
+
+        then: "the cached flag should have been invalidated right away"
+        identityProvider.isRestrictedUser(keycloakDemoSetup.testuser2Id)
+
+        when: "the asset links of a user are read"
+        def linked = assetStorageService.isUserAsset(keycloakDemoSetup.testuser2Id, managerDemoSetup.apartment2Id)
+
+        then: "the asset should not be linked"
+        !linked
+
+        when: "the asset is linked to the user"
+        assetStorageService.storeUserAsset(new UserAsset(customerARealmId, keycloakDemoSetup.testuser2Id, managerDemoSetup.apartment2Id))
+
+        then: "the cached links should have been invalidated right away"
+        assetStorageService.isUserAsset(keycloakDemoSetup.testuser2Id, managerDemoSetup.apartment2Id)
+
+        when: "the asset is unlinked from the user"
+        assetStorageService.deleteUserAsset(customerARealmId, keycloakDemoSetup.testuser2Id, managerDemoSetup.apartment2Id)
+
+        then: "the cached links should have been invalidated right away"
+        !assetStorageService.isUserAsset(keycloakDemoSetup.testuser2Id, managerDemoSetup.apartment2Id)
+
+        when: "a new asset is linked to a user and the links are read"
+        def testAsset = assetStorageService.merge(new Asset("Test Room", AssetType.ROOM, null, customerARealmId))
+        assetStorageService.storeUserAsset(new UserAsset(customerARealmId, keycloakDemoSetup.testuser3Id, testAsset.id))
+
+        then: "the asset should be linked"
+        assetStorageService.isUserAsset(keycloakDemoSetup.testuser3Id, testAsset.id)
+        assetStorageService.isUserAsset(keycloakDemoSetup.testuser3Id, managerDemoSetup.apartment1Id)
+
+        when: "the asset is deleted, the link is deleted by the database"
+        assetStorageService.delete(testAsset.id)
+
+        then: "the cached links of the asset should have been invalidated"
+        conditions.eventually {
+            assert !assetStorageService.isUserAsset(keycloakDemoSetup.testuser3Id, testAsset.id)
+        }
+        assetStorageService.isUserAsset(keycloakDemoSetup.testuser3Id, managerDemoSetup.apartment1Id)
+        identityProvider.isRestrictedUser(keycloakDemoSetup.testuser3Id)
+
+        when: "the user is deleted, the configuration and links are deleted by the database"
+        def accessToken = authenticate(
+            container,
+            MASTER_REALM,
+            KEYCLOAK_CLIENT_ID,
+            MASTER_REALM_ADMIN_USER,
+            getString(container.getConfig(), SETUP_ADMIN_PASSWORD, SETUP_ADMIN_PASSWORD_DEFAULT)
+        ).token
+        def userResource = getClientTarget(serverUri(serverPort), MASTER_REALM, accessToken).proxy(UserResource.class)
+        userResource.delete(null, keycloakDemoSetup.customerATenant.realm, keycloakDemoSetup.testuser3Id)
+
+        then: "the cached flag and links of the user should have been invalidated"
+        !identityProvider.isRestrictedUser(keycloakDemoSetup.testuser3Id)
+        !assetStorageService.isUserAsset(keycloakDemoSetup.testuser3Id, managerDemoSetup.apartment1Id)
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+
+    def "Deny access of a restricted user right after an asset is unlinked"() {
+
+        given: "the server container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), defaultServices())
+        def assetStorageService = container.getService(AssetStorageService.class)
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+
+        and: "the asset resource of the restricted testuser3"
+        def accessToken = authenticate(
+            container,
+            keycloakDemoSetup.customerATenant.realm,
+            KEYCLOAK_CLIENT_ID,
+            "testuser3",
+            "testuser3"
+        ).token
+        def assetResource = getClientTarget(serverUri(serverPort), keycloakDemoSetup.customerATenant.realm, accessToken).proxy(AssetResource.class)
+
+        when: "a linked asset is retrieved"
+        def apartment = assetResource.get(null, managerDemoSetup.apartment1Id)
+
+        then: "access should be granted and the links of the user cached"
+        apartment.id == managerDemoSetup.apartment1Id
+        assetStorageService.isUserAsset(keycloakDemoSetup.testuser3Id, managerDemoSetup.apartment1Id)
+
+        when: "the asset is unlinked from the user and retrieved again"
+        assetStorageService.deleteUserAsset(keycloakDemoSetup.customerATenant.id, keycloakDemoSetup.testuser3Id, managerDemoSetup.apartment1Id)
+        assetResource.get(null, managerDemoSetup.apartment1Id)
+
+        then: "access should be forbidden right away"
+        WebApplicationException ex = thrown()
+        ex.response.status == 403
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+}
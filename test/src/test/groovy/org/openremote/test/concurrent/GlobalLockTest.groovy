@@ -0,0 +1,74 @@
+package org.openremote.test.concurrent
+
+import org.openremote.agent.protocol.simulator.SimulatorProtocol
+import org.openremote.container.concurrent.GlobalLock
+import org.openremote.manager.agent.AgentService
+import org.openremote.model.attribute.AttributeRef
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class GlobalLockTest extends Specification {
+
+    def "Exclusive global lock can not be obtained while holding the shared lock"() {
+
+        given: "another thread"
+        def executor = Executors.newSingleThreadExecutor()
+
+        when: "the exclusive lock is requested while holding the shared lock"
+        GlobalLock.withReadLock("shared", {
+            GlobalLock.withLock("exclusive", {})
+        })
+
+        then: "it should fail immediately instead of deadlocking"
+        thrown(IllegalStateException)
+
+        and: "the shared lock should have been released, another thread can obtain the exclusive lock"
+        !GlobalLock.isOnlySharedLockHeldByCurrentThread()
+        executor.submit({ GlobalLock.withLockReturning("exclusive", { true }) } as Callable).get(10, TimeUnit.SECONDS)
+
+        and: "the shared lock can be obtained while holding the exclusive lock"
+        GlobalLock.withLockReturning("exclusive", {
+            GlobalLock.withReadLockReturning("shared", { !GlobalLock.isOnlySharedLockHeldByCurrentThread() })
+        })
+
+        cleanup:
+        executor?.shutdownNow()
+    }
+
+    def "Call nested read and write paths in the order they can be obtained"() {
+
+        given: "services with read-only paths"
+        def agentService = new AgentService()
+        agentService.@agentMap = [:]
+        def simulatorProtocol = new SimulatorProtocol()
+        def attributeRef = new AttributeRef("asset1", "attribute1")
+
+        expect: "read-only paths can be called while holding the shared lock"
+        GlobalLock.withReadLockReturning("shared", {
+            GlobalLock.withReadLockReturning("nested shared", {
+                agentService.getAgents().isEmpty()
+                    && !simulatorProtocol.getValue(attributeRef).isPresent()
+                    && !simulatorProtocol.getSimulatorState(attributeRef).isPresent()
+            })
+        })
+
+        and: "read-only paths can be called while holding the exclusive lock"
+        GlobalLock.withLockReturning("exclusive", {
+            GlobalLock.withReadLockReturning("nested shared", {
+                GlobalLock.withLockReturning("nested exclusive", { agentService.getAgents().isEmpty() })
+            })
+        })
+
+        when: "a write path is called while holding only the shared lock"
+        GlobalLock.withReadLock("shared", {
+            agentService.removeAgent(null)
+        })
+
+        then: "it should fail"
+        thrown(IllegalStateException)
+        !GlobalLock.isOnlySharedLockHeldByCurrentThread()
+    }
+}
@@ -0,0 +1,182 @@
+package org.openremote.test.concurrent
+
+import org.openremote.container.concurrent.GlobalLock
+import org.openremote.container.concurrent.StripedLock
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Contention and throughput of {@link StripedLock} compared with the exclusive {@link GlobalLock}, each task
+ * simulates the processing of an attribute event for one of many assets.
+ */
+class StripedLockTest extends Specification {
+
+    static final int THREADS = 8
+    static final int ASSETS = 64
+    static final int EVENTS = 800
+    static final long WORK_MILLIS = 2
+
+    def "Serialize work on the same key"() {
+
+        given: "a striped lock and a counter per key"
+        def stripedLock = new StripedLock("Test", 4)
+        def counters = new ConcurrentHashMap<String, Integer>()
+        def concurrentAccess = new AtomicInteger()
+        def executor = Executors.newFixedThreadPool(THREADS)
+
+        when: "many threads increment the counters non-atomically"
+        EVENTS.times { i ->
+            String key = "asset" + (i % ASSETS)
+            executor.submit {
+                stripedLock.withLock(key, "increment", {
+                    Integer value = counters.getOrDefault(key, 0)
+                    if (counters.containsKey(key + "-busy")) {
+                        concurrentAccess.incrementAndGet()
+                    }
+                    counters.put(key + "-busy", 1)
+                    Thread.yield()
+                    counters.remove(key + "-busy")
+                    counters.put(key, value + 1)
+                })
+            }
+        }
+        executor.shutdown()
+        executor.awaitTermination(30, TimeUnit.SECONDS)
+
+        then: "no increment should have been lost"
+        concurrentAccess.get() == 0
+        ASSETS.times { i ->
+            assert counters.get("asset" + i) == EVENTS / ASSETS
+        }
+        stripedLock.getStripeCount() == 4
+    }
+
+    def "Run work on keys of different stripes concurrently"() {
+
+        given: "a striped lock and two keys of different stripes"
+        def stripedLock = new StripedLock("Test", 4)
+        def firstKey = "asset0"
+        def secondKey = (1..100).collect { "asset" + it }.find {
+            stripedLock.getStripeIndex(it) != stripedLock.getStripeIndex(firstKey)
+        }
+        def firstLocked = new CountDownLatch(1)
+        def secondLocked = new CountDownLatch(1)
+        def executor = Executors.newSingleThreadExecutor()
+
+        when: "the second key is locked while the first key is held"
+        def secondResult = executor.submit({
+            assert firstLocked.await(10, TimeUnit.SECONDS)
+            stripedLock.withLock(secondKey, "second", { secondLocked.countDown() })
+        } as Runnable)
+        boolean concurrent = stripedLock.withLockReturning(firstKey, "first", {
+            firstLocked.countDown()
+            secondLocked.await(10, TimeUnit.SECONDS)
+        })
+        secondResult.get(10, TimeUnit.SECONDS)
+
+        then: "the second key should have been locked without waiting for the first"
+        concurrent
+
+        cleanup:
+        executor.shutdownNow()
+    }
+
+    def "Process events of different assets concurrently with the striped lock"() {
+
+        given: "counters of the threads holding a lock at the same time"
+        def holders = new AtomicInteger()
+        def maxGlobalLockHolders = new AtomicInteger()
+        def maxStripedLockHolders = new AtomicInteger()
+
+        when: "the events are processed with the global lock"
+        long globalLockMillis = runEvents { String assetId, Runnable work ->
+            GlobalLock.withLock("process " + assetId, {
+                maxGlobalLockHolders.accumulateAndGet(holders.incrementAndGet(), { a, b -> Math.max(a, b) })
+                try {
+                    work.run()
+                } finally {
+                    holders.decrementAndGet()
+                }
+            })
+        }
+
+        and: "the events are processed with the shared global lock and a striped asset lock"
+        def assetLock = new StripedLock("Asset", THREADS * 4)
+        long stripedLockMillis = runEvents { String assetId, Runnable work ->
+            GlobalLock.withReadLock("process " + assetId, {
+                assetLock.withLock(assetId, "process " + assetId, {
+                    maxStripedLockHolders.accumulateAndGet(holders.incrementAndGet(), { a, b -> Math.max(a, b) })
+                    try {
+                        work.run()
+                    } finally {
+                        holders.decrementAndGet()
+                    }
+                })
+            })
+        }
+
+        then: "the global lock should have been held by one thread at a time"
+        maxGlobalLockHolders.get() == 1
+
+        and: "events of different assets should have been processed concurrently with the striped lock"
+        maxStripedLockHolders.get() > 1
+
+        and: "processing with the striped lock should have been faster, the global lock serializes all work"
+        stripedLockMillis < globalLockMillis
+    }
+
+    def "Restore the interrupt status when interrupted while waiting for a lock"() {
+
+        given: "a striped lock held by another thread"
+        def stripedLock = new StripedLock("Test", 1)
+        def locked = new CountDownLatch(1)
+        def release = new CountDownLatch(1)
+        def executor = Executors.newSingleThreadExecutor()
+        executor.submit({
+            stripedLock.withLock("asset", "hold", {
+                locked.countDown()
+                release.await(10, TimeUnit.SECONDS)
+            })
+        } as Runnable)
+        assert locked.await(10, TimeUnit.SECONDS)
+
+        when: "the current thread waits for the lock while interrupted"
+        def executed = false
+        Thread.currentThread().interrupt()
+        def result = stripedLock.withLockReturning("asset", "wait", { executed = true })
+
+        then: "the guarded code should not have been executed and the thread should still be interrupted"
+        result == null
+        !executed
+        Thread.interrupted()
+
+        cleanup:
+        release.countDown()
+        executor.shutdownNow()
+    }
+
+    protected static long runEvents(Closure lockedProcessing) {
+        def executor = Executors.newFixedThreadPool(THREADS)
+        def processed = new AtomicInteger()
+        long start = System.currentTimeMillis()
+        EVENTS.times { i ->
+            String assetId = "asset" + (i % ASSETS)
+            executor.submit {
+                lockedProcessing(assetId, {
+                    // Simulate a database round trip while holding the lock
+                    Thread.sleep(WORK_MILLIS)
+                    processed.incrementAndGet()
+                } as Runnable)
+            }
+        }
+        executor.shutdown()
+        assert executor.awaitTermination(60, TimeUnit.SECONDS)
+        assert processed.get() == EVENTS
+        return System.currentTimeMillis() - start
+    }
+}
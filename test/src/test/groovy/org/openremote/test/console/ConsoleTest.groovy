@@ -52,10 +52,10 @@ import static org.openremote.model.value.Values.parse
 class ConsoleTest extends Specification implements ManagerContainerTrait {
 
     def "Check full console behaviour"() {
-        def notificationIds = []
-        def targetTypes = []
-        def targetIds = []
-        def messages = []
+        def notificationIds = Collections.synchronizedList([])
+        def targetTypes = Collections.synchronizedList([])
+        def targetIds = Collections.synchronizedList([])
+        def messages = Collections.synchronizedList([])
 
         given: "a mock push notification handler"
         PushNotificationHandler mockPushNotificationHandler = Spy(PushNotificationHandler) {
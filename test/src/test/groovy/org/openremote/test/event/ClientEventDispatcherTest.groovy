@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.event
+
+import org.openremote.container.Container
+import org.openremote.container.web.socket.WebsocketSessions
+import org.openremote.manager.event.ClientEventDispatcher
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.event.shared.SharedEvent
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+import javax.websocket.CloseReason
+import javax.websocket.RemoteEndpoint
+import javax.websocket.SendHandler
+import javax.websocket.SendResult
+import javax.websocket.Session
+import java.util.concurrent.Executor
+
+class ClientEventDispatcherTest extends Specification {
+
+    // The messages sent on the session, the send handlers of the sends in flight
+    List<String> sent = []
+    List<SendHandler> inFlight = []
+    List<CloseReason> closeReasons = []
+    boolean open = true
+    Session session
+
+    def setup() {
+        RemoteEndpoint.Async remote = Stub {
+            sendText(_ as String, _ as SendHandler) >> { String text, SendHandler handler ->
+                sent << text
+                inFlight << handler
+            }
+        }
+        session = Stub {
+            getAsyncRemote() >> remote
+            isOpen() >> { open }
+            close(_ as CloseReason) >> { CloseReason closeReason ->
+                closeReasons << closeReason
+                open = false
+            }
+        }
+    }
+
+    ClientEventDispatcher createDispatcher(int maxQueueSize, int conflateThreshold, int maxBatchSize) {
+        WebsocketSessions websocketSessions = Stub {
+            get("session1") >> session
+        }
+        new ClientEventDispatcher({ websocketSessions }, { Runnable runnable -> runnable.run() } as Executor, maxQueueSize, conflateThreshold, maxBatchSize, 0)
+    }
+
+    static AttributeEvent createEvent(String attributeName, int value) {
+        new AttributeEvent("asset1", attributeName, Values.create(value), value)
+    }
+
+    static String toJson(SharedEvent event) {
+        Container.JSON.writeValueAsString(event)
+    }
+
+    static String toMessage(SharedEvent... events) {
+        events.length == 1
+            ? SharedEvent.MESSAGE_PREFIX + toJson(events[0])
+            : SharedEvent.MESSAGE_PREFIX + "[" + events.collect { toJson(it) }.join(",") + "]"
+    }
+
+    void completeSend() {
+        inFlight.remove(0).onResult(new SendResult())
+    }
+
+    def "Batch events queued while a send is in flight into one message"() {
+
+        given: "a dispatcher with a batch size of three"
+        def dispatcher = createDispatcher(100, 100, 3)
+        def events = (1..5).collect { createEvent("attribute" + it, it) }
+
+        when: "an event is dispatched"
+        dispatcher.dispatch(events[0], ["session1"])
+
+        then: "it should have been sent on its own"
+        sent == [toMessage(events[0])]
+
+        when: "more events are dispatched while the send is in flight"
+        events[1..4].each { dispatcher.dispatch(it, ["session1"]) }
+
+        then: "nothing else should have been sent"
+        sent.size() == 1
+
+        when: "the sends complete"
+        completeSend()
+        completeSend()
+
+        then: "the queued events should have been sent in order, batched into messages of at most the batch size"
+        sent == [
+            toMessage(events[0]),
+            toMessage(events[1], events[2], events[3]),
+            toMessage(events[4])
+        ]
+        dispatcher.messagesSent == 2
+
+        when: "the last send completes"
+        completeSend()
+
+        then: "nothing should be in flight anymore"
+        inFlight.isEmpty()
+        dispatcher.messagesSent == 3
+    }
+
+    def "Conflate events of the same attribute when the queue reaches the threshold"() {
+
+        given: "a dispatcher which conflates when two messages are queued"
+        def dispatcher = createDispatcher(100, 2, 100)
+        def first = createEvent("temperature", 0)
+        dispatcher.dispatch(first, ["session1"])
+
+        when: "events are dispatched while the first send is in flight"
+        def temperature1 = createEvent("temperature", 1)
+        def humidity = createEvent("humidity", 50)
+        def temperature2 = createEvent("temperature", 2)
+        def temperature3 = createEvent("temperature", 3)
+        [temperature1, humidity, temperature2, temperature3].each { dispatcher.dispatch(it, ["session1"]) }
+
+        and: "the first send completes"
+        completeSend()
+
+        then: "the latest value of the attribute should have replaced the queued value, in its position"
+        sent == [toMessage(first), toMessage(temperature3, humidity)]
+        dispatcher.eventsConflated == 2
+    }
+
+    def "Close the session when its queue overflows"() {
+
+        given: "a dispatcher with a queue of three messages which doesn't conflate"
+        def dispatcher = createDispatcher(3, 100, 100)
+        dispatcher.dispatch(createEvent("attribute0", 0), ["session1"])
+
+        when: "more events are dispatched than the queue can hold while the send is in flight"
+        (1..4).each { dispatcher.dispatch(createEvent("attribute" + it, it), ["session1"]) }
+
+        then: "the session should have been closed"
+        closeReasons.size() == 1
+        closeReasons[0].closeCode == CloseReason.CloseCodes.TRY_AGAIN_LATER
+        dispatcher.sessionsClosed == 1
+
+        when: "the send in flight completes and more events are dispatched"
+        completeSend()
+        dispatcher.dispatch(createEvent("attribute5", 5), ["session1"])
+
+        then: "nothing more should have been sent"
+        sent.size() == 1
+    }
+
+    def "Send messages in order with events"() {
+
+        given: "a dispatcher"
+        def dispatcher = createDispatcher(100, 100, 100)
+        def events = (1..4).collect { createEvent("attribute" + it, it) }
+
+        when: "events and messages are queued while a send is in flight"
+        dispatcher.dispatch(events[0], ["session1"])
+        dispatcher.dispatch(events[1], ["session1"])
+        dispatcher.send("session1", "MESSAGE1")
+        dispatcher.dispatch(events[2], ["session1"])
+        dispatcher.dispatch(events[3], ["session1"])
+        dispatcher.send("session1", "MESSAGE2")
+
+        and: "all sends complete"
+        while (!inFlight.isEmpty()) {
+            completeSend()
+        }
+
+        then: "the messages should have been sent in order, events batched only between messages"
+        sent == [
+            toMessage(events[0]),
+            toMessage(events[1]),
+            "MESSAGE1",
+            toMessage(events[2], events[3]),
+            "MESSAGE2"
+        ]
+    }
+
+    def "Ignore sessions which are closed or unknown"() {
+
+        given: "a dispatcher"
+        def dispatcher = createDispatcher(100, 100, 100)
+
+        when: "an event is dispatched to an unknown session"
+        dispatcher.dispatch(createEvent("attribute1", 1), ["session2"])
+
+        then: "nothing should have been sent"
+        sent.isEmpty()
+
+        when: "the session is closed and an event dispatched"
+        open = false
+        dispatcher.dispatch(createEvent("attribute1", 1), ["session1"])
+        dispatcher.send("session1", "MESSAGE")
+
+        then: "nothing should have been sent"
+        sent.isEmpty()
+    }
+}
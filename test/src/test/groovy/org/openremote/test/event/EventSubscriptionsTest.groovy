@@ -0,0 +1,116 @@
+package org.openremote.test.event
+
+import org.openremote.container.timer.TimerService
+import org.openremote.manager.concurrent.ManagerExecutorService
+import org.openremote.manager.event.EventSubscriptions
+import org.openremote.model.asset.AssetTreeModifiedEvent
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.event.shared.CancelEventSubscription
+import org.openremote.model.event.shared.EventFilter
+import org.openremote.model.event.shared.EventSubscription
+import org.openremote.model.event.shared.SharedEvent
+import org.openremote.model.event.shared.TenantFilter
+import spock.lang.Specification
+
+import java.util.concurrent.ScheduledFuture
+
+class EventSubscriptionsTest extends Specification {
+
+    EventSubscriptions eventSubscriptions
+
+    def setup() {
+        def timerService = new TimerService()
+        timerService.clock = TimerService.Clock.PSEUDO
+        // Expiry is not tested here, don't start the background task
+        def executorService = new ManagerExecutorService() {
+            @Override
+            ScheduledFuture scheduleAtFixedRate(Runnable runnable, long initialDelayMillis, long periodMillis) {
+                return null
+            }
+        }
+        eventSubscriptions = new EventSubscriptions(timerService, executorService)
+    }
+
+    static EventFilter<AttributeEvent> attributeNameFilter(String attributeName) {
+        return new EventFilter<AttributeEvent>() {
+            @Override
+            String getFilterType() {
+                return "test-attribute-name"
+            }
+
+            @Override
+            boolean apply(AttributeEvent event) {
+                return event.attributeName == attributeName
+            }
+        }
+    }
+
+    Set<String> subscribedSessions(SharedEvent event, boolean accessibleForRestrictedUsers = true) {
+        return new HashSet<>(eventSubscriptions.getSubscribedSessions(accessibleForRestrictedUsers, event))
+    }
+
+    def "Indexed and unindexed subscriptions receive exactly the matching events"() {
+
+        given: "subscriptions by asset, by realm, with other filters and without filter"
+        List<SharedEvent> internalEvents = []
+        eventSubscriptions.update("assets12", false, new EventSubscription(AttributeEvent, new AttributeEvent.EntityIdFilter("asset1", "asset2")))
+        eventSubscriptions.update("asset2", false, new EventSubscription(AttributeEvent, new AttributeEvent.EntityIdFilter("asset2")))
+        eventSubscriptions.update("restricted", true, new EventSubscription(AttributeEvent, new AttributeEvent.EntityIdFilter("asset1")))
+        eventSubscriptions.update("internal", false, new EventSubscription(AttributeEvent, new AttributeEvent.EntityIdFilter("asset3"), { internalEvents.add(it) }))
+        eventSubscriptions.update("temperature", false, new EventSubscription(AttributeEvent, attributeNameFilter("temperature")))
+        eventSubscriptions.update("allAttributes", false, new EventSubscription(AttributeEvent))
+        eventSubscriptions.update("realm1", false, new EventSubscription(AssetTreeModifiedEvent, new TenantFilter<AssetTreeModifiedEvent>("realm1")))
+        eventSubscriptions.update("realm2", false, new EventSubscription(AssetTreeModifiedEvent, new TenantFilter<AssetTreeModifiedEvent>("realm2")))
+
+        expect: "attribute events to be received by the subscriptions of their asset and the matching unindexed subscriptions"
+        subscribedSessions(new AttributeEvent("asset1", "temperature")) == ["assets12", "restricted", "temperature", "allAttributes"] as Set
+        subscribedSessions(new AttributeEvent("asset2", "humidity")) == ["assets12", "asset2", "allAttributes"] as Set
+        subscribedSessions(new AttributeEvent("asset4", "humidity")) == ["allAttributes"] as Set
+        internalEvents.isEmpty()
+
+        and: "restricted user sessions to only receive events accessible for restricted users"
+        subscribedSessions(new AttributeEvent("asset1", "humidity"), false) == ["assets12", "allAttributes"] as Set
+
+        and: "internal subscriptions to receive their events directly"
+        subscribedSessions(new AttributeEvent("asset3", "humidity")) == ["allAttributes"] as Set
+        internalEvents.size() == 1
+        ((AttributeEvent) internalEvents[0]).entityId == "asset3"
+
+        and: "tenant scoped events to be received by the subscriptions of their realm"
+        subscribedSessions(new AssetTreeModifiedEvent(0, "realm1", "asset1")) == ["realm1"] as Set
+        subscribedSessions(new AssetTreeModifiedEvent(0, "realm2", "asset1")) == ["realm2"] as Set
+        subscribedSessions(new AssetTreeModifiedEvent(0, "realm3", "asset1")).isEmpty()
+
+        when: "a subscription is replaced with a subscription of other assets"
+        eventSubscriptions.update("asset2", false, new EventSubscription(AttributeEvent, new AttributeEvent.EntityIdFilter("asset4")))
+
+        then: "it should only receive the events of the other assets"
+        subscribedSessions(new AttributeEvent("asset2", "humidity")) == ["assets12", "allAttributes"] as Set
+        subscribedSessions(new AttributeEvent("asset4", "humidity")) == ["asset2", "allAttributes"] as Set
+
+        when: "an unindexed subscription is replaced with an indexed subscription"
+        eventSubscriptions.update("allAttributes", false, new EventSubscription(AttributeEvent, new AttributeEvent.EntityIdFilter("asset5")))
+
+        then: "it should only receive the events of its asset"
+        subscribedSessions(new AttributeEvent("asset4", "humidity")) == ["asset2"] as Set
+        subscribedSessions(new AttributeEvent("asset5", "humidity")) == ["allAttributes"] as Set
+
+        when: "subscriptions are cancelled"
+        eventSubscriptions.cancel("assets12", new CancelEventSubscription(AttributeEvent))
+        eventSubscriptions.cancelAll("realm1")
+
+        then: "they should no longer receive events"
+        subscribedSessions(new AttributeEvent("asset1", "temperature")) == ["restricted", "temperature"] as Set
+        subscribedSessions(new AssetTreeModifiedEvent(0, "realm1", "asset1")).isEmpty()
+        subscribedSessions(new AssetTreeModifiedEvent(0, "realm2", "asset1")) == ["realm2"] as Set
+
+        when: "all subscriptions are cancelled"
+        ["asset2", "restricted", "internal", "temperature", "allAttributes", "realm2"].each {
+            eventSubscriptions.cancelAll(it)
+        }
+
+        then: "the index should be empty"
+        subscribedSessions(new AttributeEvent("asset1", "temperature")).isEmpty()
+        eventSubscriptions.subscriptionsByEventType.isEmpty()
+    }
+}
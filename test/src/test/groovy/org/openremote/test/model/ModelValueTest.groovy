@@ -1,5 +1,7 @@
 package org.openremote.test.model
 
+import org.openremote.container.Container
+import org.openremote.container.json.ValueCodec
 import org.openremote.model.value.ArrayValue
 import org.openremote.model.value.ObjectValue
 import org.openremote.model.value.Value
@@ -159,4 +161,31 @@ class ModelValueTest extends Specification {
         differentValues1.hashCode() != differentValues2.hashCode()
     }
 
+    def "Read and write JSON with the streaming codec"() {
+        given: "a value like an attribute with meta items"
+        def meta = Values.createArray()
+            .add(Values.createObject().put("name", "urn:openremote:asset:meta:label").put("value", "Temperature"))
+            .add(Values.createObject().put("name", "urn:openremote:asset:meta:readOnly").put("value", true))
+            .add(Values.createObject().put("name", "urn:openremote:asset:meta:range").put("value", Values.createArray().add(Values.create(-10)).add(Values.create(42.5))))
+            .add(null)
+        def attribute = Values.createObject()
+            .put("type", "TEMPERATURE")
+            .put("value", 21.5)
+            .put("valueTimestamp", 1530000000000)
+            .put("2", "numeric key")
+            .put("meta", meta)
+
+        expect: "the same JSON as the value visitor"
+        new String(ValueCodec.writeBytes(attribute), "UTF-8") == attribute.toJson()
+        new String(ValueCodec.writeBytes(Values.create(123)), "UTF-8") == Values.create(123).toJson()
+
+        and: "the same value as the value parser"
+        ValueCodec.parse(attribute.toJson().getBytes("UTF-8")).get() == Values.parse(attribute.toJson()).get()
+        ValueCodec.parse("{'lenient':1, unquoted:[null,true]}").get() == Values.parse("{'lenient':1, unquoted:[null,true]}").get()
+        !ValueCodec.parse(new byte[0]).isPresent()
+
+        and: "the same value after mapping with Jackson"
+        Container.JSON.readValue(Container.JSON.writeValueAsString(attribute), ObjectValue.class) == attribute
+        Container.JSON.readValue(Container.JSON.writeValueAsString(meta), Value.class) == meta
+    }
 }
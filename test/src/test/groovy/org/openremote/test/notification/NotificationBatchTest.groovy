@@ -0,0 +1,166 @@
+package org.openremote.test.notification
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.google.auth.oauth2.AccessToken
+import com.google.auth.oauth2.GoogleCredentials
+import com.google.firebase.FirebaseApp
+import com.google.firebase.FirebaseOptions
+import com.google.firebase.messaging.FirebaseMessaging
+import org.openremote.container.Container
+import org.openremote.container.persistence.PersistenceService
+import org.openremote.manager.notification.NotificationService
+import org.openremote.manager.notification.PushNotificationHandler
+import org.openremote.model.notification.AbstractNotificationMessage
+import org.openremote.model.notification.Notification
+import org.openremote.model.notification.NotificationSendResult
+import org.openremote.model.notification.PushNotificationMessage
+import org.openremote.model.notification.SentNotification
+import org.openremote.test.ManagerContainerTrait
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+import static org.openremote.manager.notification.NotificationService.SEND_BATCH_SIZE
+import static org.openremote.model.notification.Notification.Source.INTERNAL
+
+class NotificationBatchTest extends Specification implements ManagerContainerTrait {
+
+    /**
+     * Stands in for the FCM send endpoint, records the device token and notification ID of each request and
+     * rejects the messages to the failing tokens.
+     */
+    static class LocalFcmTransport extends MockHttpTransport {
+
+        final Map<String, Long> sentNotificationIds = new ConcurrentHashMap<>()
+        final Set<String> failingTokens = ConcurrentHashMap.newKeySet()
+
+        @Override
+        LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            new MockLowLevelHttpRequest(url) {
+                @Override
+                LowLevelHttpResponse execute() throws IOException {
+                    def message = Container.JSON.readTree(getContentAsString()).get("message")
+                    def token = message.get("token").asText()
+                    sentNotificationIds.put(token, message.get("data").get("notification-id").asText() as Long)
+                    if (failingTokens.contains(token)) {
+                        return new MockLowLevelHttpResponse()
+                            .setStatusCode(400)
+                            .setContentType("application/json")
+                            .setContent('{"error": {"code": 400, "message": "Invalid token", "status": "INVALID_ARGUMENT"}}')
+                    }
+                    new MockLowLevelHttpResponse()
+                        .setContentType("application/json")
+                        .setContent('{"name": "projects/openremote-test/messages/' + token + '"}')
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends through the real FCM client to the local transport and records the targets of each batch.
+     */
+    static class LocalFcmPushNotificationHandler extends PushNotificationHandler {
+
+        final FirebaseApp firebaseApp
+        final List<List<String>> batchTargetIds = Collections.synchronizedList([])
+        final List<List<Long>> batchIds = Collections.synchronizedList([])
+
+        LocalFcmPushNotificationHandler(LocalFcmTransport transport) {
+            firebaseApp = FirebaseApp.initializeApp(
+                new FirebaseOptions.Builder()
+                    .setCredentials(GoogleCredentials.create(new AccessToken("test", new Date(Long.MAX_VALUE))))
+                    .setProjectId("openremote-test")
+                    .setHttpTransport(transport)
+                    .build(),
+                "NotificationBatchTest"
+            )
+        }
+
+        @Override
+        boolean isValid() {
+            return true
+        }
+
+        @Override
+        protected FirebaseMessaging getFirebaseMessaging() {
+            return FirebaseMessaging.getInstance(firebaseApp)
+        }
+
+        @Override
+        CompletableFuture<List<NotificationSendResult>> sendMessages(List<Long> ids, Notification.Source source, String sourceId, Notification.TargetType targetType, List<String> targetIds, AbstractNotificationMessage message) {
+            batchIds << new ArrayList<>(ids)
+            batchTargetIds << new ArrayList<>(targetIds)
+            return super.sendMessages(ids, source, sourceId, targetType, targetIds, message)
+        }
+    }
+
+    def "Send a notification to many consoles in batches through FCM"() {
+
+        given: "a push notification handler sending to a local FCM endpoint"
+        def transport = new LocalFcmTransport()
+        transport.failingTokens.addAll(["token100", "token700"])
+        def pushNotificationHandler = new LocalFcmPushNotificationHandler(transport)
+
+        and: "the container environment is started with the handler"
+        def serverPort = findEphemeralPort()
+        def services = defaultServices()
+        ((NotificationService) services.find { it instanceof NotificationService }).notificationHandlerMap.put(PushNotificationMessage.TYPE, pushNotificationHandler)
+        def container = startContainer(defaultConfig(serverPort), services)
+        def notificationService = container.getService(NotificationService.class)
+        def persistenceService = container.getService(PersistenceService.class)
+
+        and: "many consoles with FCM tokens and one without"
+        def consoleIds = (0..<1201).collect { "console" + it }
+        consoleIds.each { pushNotificationHandler.consoleFCMTokenMap.put(it, it.replace("console", "token")) }
+        def targetIds = consoleIds + ["consoleWithoutToken"]
+
+        when: "a notification is sent to all consoles"
+        def notification = new Notification("Batch", new PushNotificationMessage().setTitle("Test").setBody("Batch"), null, null, null)
+        notificationService.sendMessages(
+            pushNotificationHandler,
+            notification,
+            INTERNAL,
+            null,
+            new Notification.Targets(Notification.TargetType.ASSET, targetIds as String[])
+        )
+
+        then: "the targets should have been sent in batches of the maximum size, in order"
+        pushNotificationHandler.batchTargetIds*.size() == [SEND_BATCH_SIZE, SEND_BATCH_SIZE, 202]
+        pushNotificationHandler.batchTargetIds.flatten() == targetIds
+
+        and: "every console with a token should have received its own FCM message with the ID of its sent notification"
+        def sentNotifications = persistenceService.doReturningTransaction { em ->
+            em.createQuery("select n from SentNotification n where n.name = :name", SentNotification.class)
+                .setParameter("name", "Batch")
+                .getResultList()
+        }
+        def sentNotificationsByTargetId = sentNotifications.collectEntries { [(it.targetId): it] }
+        transport.sentNotificationIds.size() == 1201
+        consoleIds.every {
+            transport.sentNotificationIds[it.replace("console", "token")] == sentNotificationsByTargetId[it].id
+        }
+
+        and: "a sent notification should have been inserted for every target with the IDs of its batch"
+        sentNotifications.size() == targetIds.size()
+        sentNotifications*.id.toSet() == pushNotificationHandler.batchIds.flatten().toSet()
+        [pushNotificationHandler.batchIds, pushNotificationHandler.batchTargetIds].transpose().every { List<Long> ids, List<String> batch ->
+            [ids, batch].transpose().every { Long id, String targetId -> sentNotificationsByTargetId[targetId].id == id }
+        }
+
+        and: "the result of each target should have been stored with its sent notification"
+        sentNotifications.findAll { it.error != null }*.targetId.toSet() == ["console100", "console700", "consoleWithoutToken"].toSet()
+        sentNotificationsByTargetId["console100"].error == "FCM send failed: invalid-argument"
+        sentNotificationsByTargetId["consoleWithoutToken"].error == "No FCM token found for console: consoleWithoutToken"
+        sentNotificationsByTargetId["console5"].message.getString("target").get() == "token5"
+        sentNotificationsByTargetId["console1200"].message.getString("target").get() == "token1200"
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+        pushNotificationHandler?.firebaseApp?.delete()
+    }
+}
@@ -0,0 +1,134 @@
+package org.openremote.test.notification
+
+import org.hibernate.Session
+import org.openremote.container.persistence.PersistenceService
+import org.openremote.container.timer.TimerService
+import org.openremote.manager.notification.NotificationHandler
+import org.openremote.manager.notification.NotificationService
+import org.openremote.model.notification.Notification
+import org.openremote.model.notification.NotificationSendResult
+import org.openremote.model.notification.PushNotificationMessage
+import org.openremote.model.notification.RepeatFrequency
+import spock.lang.Specification
+
+import javax.persistence.EntityManager
+import javax.persistence.TypedQuery
+import java.time.Instant
+import java.util.concurrent.CompletableFuture
+import java.util.function.Function
+
+import static org.openremote.model.notification.Notification.Source.ASSET_RULESET
+import static org.openremote.model.notification.Notification.TargetType.ASSET
+
+class NotificationLastSentTest extends Specification {
+
+    Instant now = Instant.parse("2018-06-01T12:00:00Z")
+    // The last sent times in the database by target ID
+    Map<String, Date> storedLastSent = [:]
+    int lastSentQueries
+    boolean failCommit
+    NotificationService notificationService
+
+    def setup() {
+        TimerService timerService = Stub {
+            getNow() >> { now }
+        }
+
+        TypedQuery<Object[]> lastSentQuery = Stub()
+        lastSentQuery.setParameter(_ as String, _) >> { lastSentQuery }
+        lastSentQuery.getResultList() >> {
+            lastSentQueries++
+            storedLastSent.collect { [it.key, it.value] as Object[] }
+        }
+
+        Session session = Stub()
+        EntityManager entityManager = Stub {
+            unwrap(Session) >> session
+            createQuery(_ as String, Object[]) >> lastSentQuery
+        }
+
+        PersistenceService persistenceService = Stub {
+            doReturningTransaction(_ as Function) >> { Function function ->
+                def result = function.apply(entityManager)
+                if (failCommit) {
+                    throw new IllegalStateException("Commit failed")
+                }
+                result
+            }
+        }
+
+        notificationService = new NotificationService()
+        notificationService.@timerService = timerService
+        notificationService.@persistenceService = persistenceService
+    }
+
+    static Notification notification(String name) {
+        new Notification(name, new PushNotificationMessage().setTitle("Test"), null, RepeatFrequency.ONCE, null)
+    }
+
+    NotificationHandler handler() {
+        Stub(NotificationHandler) {
+            sendMessages(*_) >> { ids, source, sourceId, targetType, targetIds, message ->
+                CompletableFuture.completedFuture(targetIds.collect { NotificationSendResult.success() })
+            }
+        }
+    }
+
+    String[] okToSend(String name, List<String> targetIds) {
+        notificationService.getTargetsOkToSend(ASSET_RULESET, "ruleset1", ASSET, targetIds as String[], notification(name))
+    }
+
+    def "Cache the last sent time of a notification once it has been stored"() {
+
+        given: "a notification was sent to one of the targets before"
+        storedLastSent["console1"] = Date.from(now.minusSeconds(3600))
+
+        when: "the targets to send to are checked"
+        def targets = okToSend("alarm", ["console1", "console2"])
+
+        then: "the last sent times should have been loaded with one query"
+        targets as List == ["console2"]
+        lastSentQueries == 1
+
+        when: "the notification is sent to the other target"
+        notificationService.sendMessages(handler(), notification("alarm"), ASSET_RULESET, "ruleset1", new Notification.Targets(ASSET, "console2"))
+
+        then: "the notification should no longer be sent to any target, without querying the database again"
+        okToSend("alarm", ["console1", "console2"]).length == 0
+        lastSentQueries == 1
+
+        when: "the notification is sent to a target that wasn't checked before"
+        notificationService.sendMessages(handler(), notification("alarm"), ASSET_RULESET, "ruleset1", new Notification.Targets(ASSET, "console3"))
+
+        then: "its last sent time should have been cached too"
+        okToSend("alarm", ["console3"]).length == 0
+        lastSentQueries == 1
+    }
+
+    def "Don't cache the last sent time if the sent notifications were not stored"() {
+
+        given: "the targets were checked and the commit of sent notifications fails"
+        okToSend("alarm", ["console1"])
+        failCommit = true
+
+        when: "the notification is sent"
+        notificationService.sendMessages(handler(), notification("alarm"), ASSET_RULESET, "ruleset1", new Notification.Targets(ASSET, "console1"))
+
+        then: "sending should have failed"
+        thrown(IllegalStateException)
+
+        and: "the notification should still be sent to the target"
+        okToSend("alarm", ["console1"]) as List == ["console1"]
+    }
+
+    def "Always send notifications without name as before"() {
+
+        given: "a notification without name was sent to a target"
+        notificationService.sendMessages(handler(), notification(null), ASSET_RULESET, "ruleset1", new Notification.Targets(ASSET, "console1"))
+
+        expect: "the notification should be sent again without querying the database"
+        okToSend(null, ["console1"]) as List == ["console1"]
+        lastSentQueries == 0
+        notificationService.lastSentCache.isEmpty()
+    }
+}
@@ -41,10 +41,10 @@ class NotificationTest extends Specification implements ManagerContainerTrait {
 
     def "Check push notification functionality"() {
 
-        def notificationIds = []
-        def notificationTargetTypes = []
-        def notificationTargetIds = []
-        def notificationMessages = []
+        def notificationIds = Collections.synchronizedList([])
+        def notificationTargetTypes = Collections.synchronizedList([])
+        def notificationTargetIds = Collections.synchronizedList([])
+        def notificationMessages = Collections.synchronizedList([])
 
         given: "a mock push notification handler"
         PushNotificationHandler mockPushNotificationHandler = Spy(PushNotificationHandler) {
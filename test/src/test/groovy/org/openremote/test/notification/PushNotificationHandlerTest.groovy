@@ -0,0 +1,88 @@
+package org.openremote.test.notification
+
+import com.google.firebase.messaging.Message
+import org.openremote.manager.notification.PushNotificationHandler
+import org.openremote.model.notification.Notification
+import org.openremote.model.notification.NotificationSendResult
+import org.openremote.model.notification.PushNotificationMessage
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import static org.openremote.model.notification.Notification.Source.INTERNAL
+
+class PushNotificationHandlerTest extends Specification {
+
+    /**
+     * Stands in for FCM, each send takes a while and messages to the failing token are rejected.
+     */
+    static class LocalFcmPushNotificationHandler extends PushNotificationHandler {
+
+        final AtomicInteger activeRequests = new AtomicInteger()
+        final AtomicInteger maxActiveRequests = new AtomicInteger()
+        final Map<String, Message> sentMessages = new ConcurrentHashMap<>()
+        volatile String failingToken
+
+        LocalFcmPushNotificationHandler(int maxConcurrentRequests, Map<String, String> consoleTokens) {
+            valid = true
+            consoleFCMTokenMap.putAll(consoleTokens)
+            sendExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxConcurrentRequests)
+        }
+
+        @Override
+        NotificationSendResult sendMessage(Message message) {
+            String token = message.@token
+            maxActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), { a, b -> Math.max(a, b) })
+            try {
+                // Later targets respond faster so results complete out of order
+                Thread.sleep(20 + (token == "token0" ? 100 : 0))
+                sentMessages.put(token, message)
+                return token == failingToken ? NotificationSendResult.failure("FCM send failed: invalid-argument") : NotificationSendResult.success()
+            } finally {
+                activeRequests.decrementAndGet()
+            }
+        }
+    }
+
+    def "Send a batch of push notifications with concurrent FCM requests"() {
+
+        given: "a push notification handler with a local FCM stand-in and consoles with FCM tokens"
+        def consoleIds = (0..<20).collect { "console" + it }
+        def handler = new LocalFcmPushNotificationHandler(4, consoleIds.collectEntries { [(it): it.replace("console", "token")] })
+        handler.failingToken = "token5"
+        def ids = (0..<20).collect { it as Long }
+        def message = new PushNotificationMessage().setTitle("Test").setBody("Batch")
+
+        when: "the message is sent to a batch of consoles and one without FCM token"
+        def results = handler.sendMessages(
+            ids + [20L], INTERNAL, null, Notification.TargetType.ASSET, consoleIds + ["consoleWithoutToken"], message
+        ).get(10, TimeUnit.SECONDS)
+
+        then: "each console should have received its own FCM message with requests sent concurrently up to the limit"
+        handler.sentMessages.size() == 20
+        handler.sentMessages.keySet() == (0..<20).collect { "token" + it }.toSet()
+        handler.maxActiveRequests.get() > 1
+        handler.maxActiveRequests.get() <= 4
+
+        and: "the results should be at the position of the target"
+        results.size() == 21
+        results.findIndexValues { !it.success } == [5, 20]
+        results[5].message == "FCM send failed: invalid-argument"
+        results[20].message == "No FCM token found for console: consoleWithoutToken"
+
+        and: "the sent message of each result should contain the device token of the target"
+        (0..<20).every { results[it].sentMessage.get().getString("target").get() == "token" + it }
+        !results[20].sentMessage.isPresent()
+
+        and: "the shared message should not have been modified except for the default target type"
+        message.target == null
+        message.targetType == PushNotificationMessage.TargetType.DEVICE
+
+        cleanup:
+        handler?.sendExecutor?.shutdownNow()
+    }
+}
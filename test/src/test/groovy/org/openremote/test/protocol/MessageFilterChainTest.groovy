@@ -0,0 +1,66 @@
+package org.openremote.test.protocol
+
+import org.openremote.agent.protocol.filter.JsonFilter
+import org.openremote.agent.protocol.filter.MessageFilterChain
+import org.openremote.agent.protocol.filter.RegexFilter
+import org.openremote.agent.protocol.filter.SubStringFilter
+import org.openremote.container.json.ValueCodec
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+class MessageFilterChainTest extends Specification {
+
+    def json = '{"status": {"ok": true, "values": [{"temperature": 19.5}, {"temperature": 21.5, "unit": "C"}]}, "id": "sensor1"}'
+
+    def "Extract values from JSON without parsing the document"() {
+
+        expect: "the value of the path to be extracted"
+        ValueCodec.extract(json, ["id"]).get() == Values.create("sensor1")
+        ValueCodec.extract(json, ["status", "ok"]).get().toJson() == "true"
+        ValueCodec.extract(json, ["status", "values", "1", "temperature"]).get() == Values.create(21.5)
+        ValueCodec.extract(json, ["status", "values", "0"]).get().toJson() == '{"temperature":19.5}'
+
+        and: "the last of duplicate keys to be extracted, same as when the document is parsed"
+        ValueCodec.extract('{"a": 1, "b": true, "a": 2}', ["a"]).get() == Values.create(2)
+        ValueCodec.extract('{"a": {"b": 1}, "a": {"c": 2}}', ["a", "c"]).get() == Values.create(2)
+        !ValueCodec.extract('{"a": {"b": 1}, "a": {"c": 2}}', ["a", "b"]).isPresent()
+        ValueCodec.extract('{"a": 1, "a": 2}', ["a"]).get() == Values.parse('{"a": 1, "a": 2}').get().get("a").get()
+
+        and: "nothing to be extracted for paths that don't exist"
+        !ValueCodec.extract(json, ["status", "values", "2"]).isPresent()
+        !ValueCodec.extract(json, ["status", "missing"]).isPresent()
+        !ValueCodec.extract(json, ["id", "0"]).isPresent()
+        !ValueCodec.extract('[{"id": 1}]', ["0"]).isPresent()
+    }
+
+    def "Apply compiled filter chains the same way as the filters"() {
+
+        expect: "the compiled chain to return the same value as applying the filters one by one"
+        def chain = MessageFilterChain.compile(filters)
+        chain.process(Values.create(message)) == expected
+
+        where:
+        message                                  | filters                                                                   | expected
+        '{"status": {"temperature": 19.5}}'      | [new JsonFilter("status", "temperature")]                                 | Values.create(19.5)
+        '{"status": {"temperature": 19.5}}'      | [new JsonFilter("status", "humidity")]                                    | null
+        'not json'                               | [new JsonFilter("status")]                                                | null
+        'temp=19.5;hum=40'                       | [new RegexFilter("(\\w+)=([\\d.]+)", 2, 1)]                               | Values.create("40")
+        'temp=19.5;hum=40'                       | [new RegexFilter("(\\w+)=([\\d.]+)", 3, 0)]                               | null
+        'temp=19.5;hum=40'                       | [new SubStringFilter(5, 9)]                                               | Values.create("19.5")
+        'temp=19.5;hum=40'                       | [new SubStringFilter(20)]                                                 | null
+        '{"reading": "value: 42%"}'              | [new JsonFilter("reading"), new SubStringFilter(7), new RegexFilter("\\d+", 0, 0)] | Values.create("42")
+        '{"reading": 42}'                        | [new JsonFilter("reading"), new RegexFilter("\\d+", 0, 0)]                | Values.create("42")
+    }
+
+    def "Apply compiled filter chains to parsed values"() {
+
+        given: "a chain with a JSON filter"
+        def chain = MessageFilterChain.compile([new JsonFilter("status", "temperature")])
+
+        expect: "an object value to be filtered like a JSON message"
+        chain.process(Values.parse('{"status": {"temperature": 19.5}}').get()) == Values.create(19.5)
+
+        and: "a value that can't be converted to an object to be filtered out"
+        chain.process(Values.create(19.5)) == null
+    }
+}
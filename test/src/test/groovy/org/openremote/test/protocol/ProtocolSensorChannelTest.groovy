@@ -0,0 +1,167 @@
+package org.openremote.test.protocol
+
+import org.apache.camel.Exchange
+import org.apache.camel.Processor
+import org.apache.camel.ProducerTemplate
+import org.apache.camel.impl.DefaultCamelContext
+import org.apache.camel.impl.DefaultExchange
+import org.openremote.agent.protocol.ProtocolExecutorService
+import org.openremote.agent.protocol.simulator.SimulatorProtocol
+import org.openremote.model.attribute.AttributeEvent
+import org.openremote.model.value.Values
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import static org.openremote.agent.protocol.AbstractProtocol.SENSOR_CHANNEL_BATCH_SIZE
+import static org.openremote.agent.protocol.Protocol.SENSOR_QUEUE
+import static org.openremote.agent.protocol.Protocol.SENSOR_QUEUE_BACKPRESSURE
+
+class ProtocolSensorChannelTest extends Specification {
+
+    def camelContext = new DefaultCamelContext()
+    def conditions = new PollingConditions(timeout: 10)
+    ExecutorService executor = Executors.newCachedThreadPool()
+    // The messages sent on the sensor queue
+    List<List<AttributeEvent>> messages = new CopyOnWriteArrayList<>()
+    // Blocks sending on the sensor queue until counted down
+    CountDownLatch continueSending = new CountDownLatch(0)
+    CountDownLatch sendingStarted = new CountDownLatch(1)
+    volatile boolean signalBackpressure
+    SimulatorProtocol protocol
+
+    def setup() {
+        ProducerTemplate producerTemplate = Stub {
+            send(SENSOR_QUEUE, _ as Processor) >> { String uri, Processor processor ->
+                sendingStarted.countDown()
+                continueSending.await(10, TimeUnit.SECONDS)
+                Exchange exchange = new DefaultExchange(camelContext)
+                processor.process(exchange)
+                def body = exchange.in.body
+                messages.add(body instanceof List ? new ArrayList<>(body) : [body])
+                if (signalBackpressure) {
+                    exchange.setProperty(SENSOR_QUEUE_BACKPRESSURE, true)
+                }
+                exchange
+            }
+        }
+        ProtocolExecutorService executorService = Stub {
+            execute(_ as Runnable) >> { Runnable runnable -> executor.execute(runnable) }
+        }
+        protocol = new SimulatorProtocol()
+        protocol.@producerTemplate = producerTemplate
+        protocol.@executorService = executorService
+    }
+
+    def cleanup() {
+        continueSending.countDown()
+        executor.shutdownNow()
+    }
+
+    static AttributeEvent createEvent(int value) {
+        new AttributeEvent("asset1", "counter", Values.create(value), value)
+    }
+
+    def "Send sensor events in order and in batches"() {
+
+        given: "sending on the sensor queue is blocked"
+        continueSending = new CountDownLatch(1)
+
+        when: "the first event is queued"
+        protocol.queueSensorEvent(createEvent(0))
+
+        then: "it should be sent on its own"
+        sendingStarted.await(10, TimeUnit.SECONDS)
+
+        when: "more events are queued while sending is blocked"
+        (1..1200).each { protocol.queueSensorEvent(createEvent(it)) }
+
+        then: "they should be waiting in the channel"
+        protocol.sensorChannelSize.get() == 1200
+
+        when: "sending continues"
+        continueSending.countDown()
+
+        then: "all events should have been sent in order, in batches of at most the batch size"
+        conditions.eventually {
+            assert messages.sum { it.size() } == 1201
+        }
+        messages.collect { it.size() } == [1, SENSOR_CHANNEL_BATCH_SIZE, SENSOR_CHANNEL_BATCH_SIZE, 200]
+        messages.flatten().collect { it.timestamp } == (0..1200).collect { it as Long }
+        protocol.sensorChannelSize.get() == 0
+        !protocol.isSensorQueueBackpressure()
+    }
+
+    static AttributeEvent createEvent(String attributeName, int value) {
+        new AttributeEvent("asset1", attributeName, Values.create(value), value)
+    }
+
+    def "Replace or drop sensor events and signal backpressure when the channel is full"() {
+
+        given: "a channel with a capacity of 100 events and sending on the sensor queue is blocked with the first event"
+        protocol.sensorChannelCapacity = 100
+        continueSending = new CountDownLatch(1)
+        protocol.queueSensorEvent(createEvent(0))
+        sendingStarted.await(10, TimeUnit.SECONDS)
+
+        when: "the channel is filled to half of its capacity"
+        (1..50).each { protocol.queueSensorEvent(createEvent(it)) }
+
+        then: "no backpressure should be signalled"
+        !protocol.isSensorQueueBackpressure()
+
+        when: "more events of the same attribute are queued than the channel can hold"
+        (51..110).each { protocol.queueSensorEvent(createEvent(it)) }
+
+        then: "the events that don't fit should have replaced the last waiting event and backpressure should be signalled"
+        protocol.sensorChannelSize.get() == 100
+        protocol.sensorEventsMerged == 10
+        protocol.sensorEventsDropped == 0
+        protocol.isSensorQueueBackpressure()
+
+        when: "an event of an attribute without waiting events is queued"
+        protocol.queueSensorEvent(createEvent("other", 111))
+
+        then: "it should have been dropped"
+        protocol.sensorChannelSize.get() == 100
+        protocol.sensorEventsDropped == 1
+
+        when: "sending continues"
+        continueSending.countDown()
+
+        then: "the events in the channel should have been sent in order with the newest value last"
+        conditions.eventually {
+            assert messages.sum { it.size() } == 101
+        }
+        messages.flatten().collect { it.timestamp } == (0..99).collect { it as Long } + [110L]
+
+        when: "the channel is empty and another event is queued"
+        protocol.queueSensorEvent(createEvent(112))
+
+        then: "it should have been sent"
+        conditions.eventually {
+            assert messages.flatten().last().timestamp == 112
+        }
+        protocol.sensorChannelLatest.isEmpty()
+    }
+
+    def "Signal backpressure when the sensor queue signals backpressure"() {
+
+        given: "the sensor queue signals backpressure"
+        signalBackpressure = true
+
+        when: "an event is queued"
+        protocol.queueSensorEvent(createEvent(0))
+
+        then: "it should have been sent and the protocol should be under backpressure"
+        conditions.eventually {
+            assert messages.size() == 1
+            assert protocol.isSensorQueueBackpressure()
+        }
+    }
+}
@@ -136,6 +136,11 @@ class SocketMessageProcessorTest extends Specification implements ManagerContain
             assert socketServer.allChannels.size() == 2
         }
 
+        and: "the connection should use the shared event loops which should not have been shut down on disconnect"
+        messageProcessor.workerGroup == protocolExecutorService.nettyEventLoops.workerGroup
+        !protocolExecutorService.nettyEventLoops.workerGroup.isShuttingDown()
+        protocolExecutorService.nettyEventLoops.toObjectValue().getObject("eventLoops").isPresent()
+
         when: "the server sends a message"
         socketServer.sendMessage("Is there anyone there?")
 
@@ -200,4 +205,67 @@ class SocketMessageProcessorTest extends Specification implements ManagerContain
         socketServer.stop()
         stopContainer(container)
     }
+
+    def "Close the client connections when a server using the shared event loops is stopped"() {
+
+        given: "expected conditions"
+        def conditions = new PollingConditions(timeout: 10, delay: 1)
+
+        and: "the container is started"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort), Collections.singletonList(new ManagerExecutorService()))
+        def eventLoops = container.getService(ManagerExecutorService.class).nettyEventLoops
+
+        and: "a socket echo server using the shared event loops"
+        def socketServerPort = findEphemeralPort()
+        def socketServer = new TcpStringServer(new InetSocketAddress(socketServerPort), ";", Integer.MAX_VALUE, true)
+        socketServer.setEventLoops(eventLoops)
+        socketServer.addMessageConsumer({
+            channel, message -> socketServer.sendMessage(message + ";")
+        })
+        socketServer.start()
+
+        and: "a connected client"
+        def client = new Socket("localhost", socketServerPort)
+        client.soTimeout = 5000
+        conditions.eventually {
+            assert socketServer.allChannels.size() == 2
+        }
+
+        when: "the client sends a message"
+        client.outputStream.write("Hello;".bytes)
+        client.outputStream.flush()
+        def reply = new byte[6]
+        new DataInputStream(client.inputStream).readFully(reply)
+
+        then: "the server should have replied on the shared event loops"
+        new String(reply) == "Hello;"
+        socketServer.workerGroup.is(eventLoops.workerGroup)
+
+        when: "the server is stopped"
+        socketServer.stop()
+
+        then: "the client connection should have been closed and the shared event loops should still be running"
+        client.inputStream.read() == -1
+        socketServer.allChannels.isEmpty()
+        !eventLoops.workerGroup.isShuttingDown()
+
+        when: "the server is started again"
+        socketServer.start()
+        client.close()
+        client = new Socket("localhost", socketServerPort)
+        client.soTimeout = 5000
+        client.outputStream.write("Again;".bytes)
+        client.outputStream.flush()
+        reply = new byte[6]
+        new DataInputStream(client.inputStream).readFully(reply)
+
+        then: "the server should reply again"
+        new String(reply) == "Again;"
+
+        cleanup: "the server should be stopped"
+        client?.close()
+        socketServer?.stop()
+        stopContainer(container)
+    }
 }
@@ -22,6 +22,7 @@ package org.openremote.test.protocol.http
 import org.jboss.resteasy.spi.ResteasyUriInfo
 import org.jboss.resteasy.util.BasicAuthHelper
 import org.openremote.agent.protocol.Protocol
+import org.openremote.agent.protocol.filter.JsonFilter
 import org.openremote.agent.protocol.filter.RegexFilter
 import org.openremote.agent.protocol.http.*
 import org.openremote.manager.agent.AgentService
@@ -67,6 +68,8 @@ class HttpClientProtocolTest extends Specification implements ManagerContainerTr
         private int pingCount = 0
         private int pollCountFast = 0
         private int pollCountSlow = 0
+        private int pollCountJson = 0
+        private int pollCountJsonNotModified = 0
         private boolean putRequestWithHeadersCalled = false
         private int successFailureCount = 0
 
@@ -234,6 +237,20 @@ class HttpClientProtocolTest extends Specification implements ManagerContainerTr
                             .build()
                     )
                     return
+                case "https://mockapi/get_poll_json":
+                    if (requestContext.getHeaderString(HttpHeaders.IF_NONE_MATCH) == '"v1"') {
+                        pollCountJsonNotModified++
+                        requestContext.abortWith(Response.notModified().build())
+                    } else {
+                        pollCountJson++
+                        requestContext.abortWith(
+                            Response
+                                .ok('{"temperature": 21.5, "humidity": 60}', MediaType.APPLICATION_JSON)
+                                .header(HttpHeaders.ETAG, '"v1"')
+                                .build()
+                        )
+                    }
+                    return
                 case "https://mockapi/get_success_200":
                 case "https://redirected.mockapi/get_success_200":
                     successFailureCount++
@@ -265,6 +282,8 @@ class HttpClientProtocolTest extends Specification implements ManagerContainerTr
         mockServer.pingCount = 0
         mockServer.pollCountSlow = 0
         mockServer.pollCountFast = 0
+        mockServer.pollCountJson = 0
+        mockServer.pollCountJsonNotModified = 0
         mockServer.successFailureCount = 0
         mockServer.putRequestWithHeadersCalled = false
     }
@@ -533,6 +552,51 @@ class HttpClientProtocolTest extends Specification implements ManagerContainerTr
             assert asset.getAttribute("getPollFast").flatMap({it.getValueAsInteger()}).orElse(null) == 60
         }
 
+        when: "attributes are linked that poll the same endpoint with the same interval and filter different values"
+        asset.addAttributes(
+            new AssetAttribute("getPollTemperature", AttributeValueType.NUMBER)
+                .addMeta(
+                    new MetaItem(AssetMeta.AGENT_LINK, new AttributeRef(agent.id, "protocolConfig").toArrayValue()),
+                    new MetaItem(HttpClientProtocol.META_ATTRIBUTE_PATH, Values.create("get_poll_json")),
+                    new MetaItem(HttpClientProtocol.META_ATTRIBUTE_POLLING_SECONDS, Values.create(50)), // This is ms in testing
+                    new MetaItem(
+                        Protocol.META_PROTOCOL_FILTERS,
+                        Values.createArray().add(new JsonFilter("temperature").toValue().get())
+                    )
+                ),
+            new AssetAttribute("getPollHumidity", AttributeValueType.NUMBER)
+                .addMeta(
+                    new MetaItem(AssetMeta.AGENT_LINK, new AttributeRef(agent.id, "protocolConfig").toArrayValue()),
+                    new MetaItem(HttpClientProtocol.META_ATTRIBUTE_PATH, Values.create("get_poll_json")),
+                    new MetaItem(HttpClientProtocol.META_ATTRIBUTE_POLLING_SECONDS, Values.create(50)), // This is ms in testing
+                    new MetaItem(
+                        Protocol.META_PROTOCOL_FILTERS,
+                        Values.createArray().add(new JsonFilter("humidity").toValue().get())
+                    )
+                )
+        )
+        asset = assetStorageService.merge(asset)
+
+        then: "both attributes should share one polling request"
+        conditions.eventually {
+            def pollingGroups = httpClientProtocol.pollingGroupMap.values().findAll { it.clientRequest.path == "get_poll_json" }
+            assert pollingGroups.size() == 1
+            assert pollingGroups.first().attributeRefs.size() == 2
+        }
+
+        and: "the attributes should have the filtered values of the shared response"
+        conditions.eventually {
+            asset = assetStorageService.find(asset.getId(), true)
+            assert asset.getAttribute("getPollTemperature").flatMap({it.getValueAsNumber()}).orElse(null) == 21.5d
+            assert asset.getAttribute("getPollHumidity").flatMap({it.getValueAsInteger()}).orElse(null) == 60
+        }
+
+        and: "the unchanged resource should be polled with conditional requests"
+        conditions.eventually {
+            assert mockServer.pollCountJsonNotModified > 2
+            assert mockServer.pollCountJson <= 2
+        }
+
         when: "a linked attribute value is updated"
         def attributeEvent = new AttributeEvent(asset.id,
             "putRequestWithHeaders",
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.protocol.http
+
+import org.jboss.resteasy.client.jaxrs.ResteasyClient
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder
+import org.openremote.agent.protocol.http.NettyClientHttpEngine
+import spock.lang.Specification
+
+import javax.ws.rs.ProcessingException
+import javax.ws.rs.client.ClientRequestContext
+import javax.ws.rs.client.ClientRequestFilter
+import javax.ws.rs.client.Entity
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class NettyClientHttpEngineTest extends Specification {
+
+    /**
+     * A minimal HTTP/1.1 server that keeps connections alive, each connection is handled on its own thread.
+     */
+    static class TestHttpServer {
+
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+        final List<Socket> sockets = new CopyOnWriteArrayList<>()
+        final AtomicInteger connections = new AtomicInteger()
+        final AtomicInteger activeRequests = new AtomicInteger()
+        final AtomicInteger maxActiveRequests = new AtomicInteger()
+        final AtomicInteger requests = new AtomicInteger()
+        // The number of next requests to drop by closing the connection without response
+        final AtomicInteger dropRequests = new AtomicInteger()
+        final Map<String, String> lastHeaders = new ConcurrentHashMap<>()
+        volatile long responseDelayMillis
+        // Sends the body one byte at a time with this interval
+        volatile long bodyIntervalMillis
+
+        TestHttpServer() {
+            Thread.start {
+                while (!serverSocket.closed) {
+                    try {
+                        Socket socket = serverSocket.accept()
+                        sockets.add(socket)
+                        connections.incrementAndGet()
+                        Thread.start { handle(socket) }
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        URI getUri(String path) {
+            return URI.create("http://localhost:" + serverSocket.localPort + path)
+        }
+
+        void handle(Socket socket) {
+            try {
+                def input = new BufferedInputStream(socket.inputStream)
+                def output = socket.outputStream
+                String requestLine
+                while ((requestLine = readLine(input)) != null) {
+                    def headers = [:]
+                    String line
+                    while ((line = readLine(input)) != null && !line.isEmpty()) {
+                        def separator = line.indexOf(":")
+                        headers[line.substring(0, separator).trim().toLowerCase()] = line.substring(separator + 1).trim()
+                    }
+                    def contentLength = headers["content-length"] ? Integer.parseInt(headers["content-length"]) : 0
+                    contentLength.times { input.read() }
+                    lastHeaders.clear()
+                    lastHeaders.putAll(headers)
+
+                    if (dropRequests.getAndUpdate({ it > 0 ? it - 1 : 0 }) > 0) {
+                        socket.close()
+                        return
+                    }
+
+                    requests.incrementAndGet()
+                    maxActiveRequests.accumulateAndGet(activeRequests.incrementAndGet(), { a, b -> Math.max(a, b) })
+                    try {
+                        if (responseDelayMillis > 0) {
+                            Thread.sleep(responseDelayMillis)
+                        }
+                        def body = requestLine.split(" ")[1].getBytes(StandardCharsets.UTF_8)
+                        output.write(("HTTP/1.1 200 OK\r\n" +
+                            "Content-Type: text/plain\r\n" +
+                            "Content-Length: " + body.length + "\r\n" +
+                            "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.US_ASCII))
+                        if (bodyIntervalMillis > 0) {
+                            for (byte b : body) {
+                                output.flush()
+                                Thread.sleep(bodyIntervalMillis)
+                                output.write(b)
+                            }
+                        } else {
+                            output.write(body)
+                        }
+                        output.flush()
+                    } finally {
+                        activeRequests.decrementAndGet()
+                    }
+                }
+            } catch (IOException ignored) {
+            } finally {
+                socket.close()
+            }
+        }
+
+        static String readLine(InputStream input) {
+            def line = new StringBuilder()
+            int c
+            while ((c = input.read()) != -1) {
+                if (c == 10) {
+                    return line.toString().replaceAll("\r\$", "")
+                }
+                line.append((char) c)
+            }
+            return line.length() > 0 ? line.toString() : null
+        }
+
+        void close() {
+            serverSocket.close()
+            sockets.each { it.close() }
+        }
+    }
+
+    static class HeaderFilter implements ClientRequestFilter {
+        @Override
+        void filter(ClientRequestContext requestContext) throws IOException {
+            requestContext.headers.add("X-Test-Filter", "class")
+        }
+    }
+
+    TestHttpServer server
+    NettyClientHttpEngine engine
+    ResteasyClient client
+
+    def setup() {
+        server = new TestHttpServer()
+    }
+
+    def cleanup() {
+        client?.close()
+        server.close()
+    }
+
+    void createClient(int maxConnectionsPerOrigin, long socketTimeoutMillis) {
+        engine = new NettyClientHttpEngine(1, maxConnectionsPerOrigin, 2000, 5000, socketTimeoutMillis)
+        client = new ResteasyClientBuilder().httpEngine(engine).build()
+    }
+
+    static boolean causedBy(Throwable throwable, Class<? extends Throwable> type) {
+        while (throwable != null) {
+            if (type.isInstance(throwable))
+                return true
+            throwable = throwable.cause
+        }
+        return false
+    }
+
+    def "Reuse kept alive connections"() {
+
+        given: "a client"
+        createClient(10, 2000)
+
+        when: "requests are sent one after the other"
+        def bodies = (1..5).collect {
+            client.target(server.getUri("/request" + it)).request().get().readEntity(String)
+        }
+
+        then: "the responses should have been received on a single connection"
+        bodies == (1..5).collect { "/request" + it }
+        server.requests.get() == 5
+        server.connections.get() == 1
+    }
+
+    def "Retry idempotent requests when the server closed the connection"() {
+
+        given: "a client with a kept alive connection"
+        createClient(10, 2000)
+        client.target(server.getUri("/first")).request().get().close()
+
+        when: "the server closes the connection when it receives the next request"
+        server.dropRequests.set(1)
+        def response = client.target(server.getUri("/second")).request().get()
+
+        then: "the request should have been retried on a new connection"
+        response.status == 200
+        response.readEntity(String) == "/second"
+        server.connections.get() == 2
+
+        when: "the server closes the connection when it receives a request that is not idempotent"
+        server.dropRequests.set(1)
+        client.target(server.getUri("/third")).request().post(Entity.text("body"))
+
+        then: "the request should not have been retried"
+        thrown(ProcessingException)
+        server.requests.get() == 2
+    }
+
+    def "Fail requests when no data is received within the socket timeout"() {
+
+        given: "a client with a short socket timeout"
+        createClient(10, 500)
+
+        when: "the server sends a response slowly, taking longer than the timeout in total"
+        server.bodyIntervalMillis = 200
+        def body = client.target(server.getUri("/slowly")).request().get().readEntity(String)
+
+        then: "the response should have been received, data was received within the timeout"
+        body == "/slowly"
+
+        when: "the server doesn't respond within the timeout"
+        server.bodyIntervalMillis = 0
+        server.responseDelayMillis = 1500
+        client.target(server.getUri("/late")).request().get()
+
+        then: "the request should have failed"
+        def e = thrown(ProcessingException)
+        causedBy(e, SocketTimeoutException)
+    }
+
+    def "Limit the connections per origin and queue requests for a free connection"() {
+
+        given: "a client with two connections per origin and a slow server"
+        createClient(2, 5000)
+        server.responseDelayMillis = 200
+
+        when: "many requests are submitted at once"
+        def executor = Executors.newCachedThreadPool()
+        def futures = (1..6).collect {
+            NettyClientHttpEngine.submit(client.target(server.getUri("/concurrent" + it)).request().buildGet(), executor)
+        }
+        def bodies = futures.collect { it.get(10, TimeUnit.SECONDS).readEntity(String) }
+
+        then: "all requests should have been handled on at most two connections"
+        bodies == (1..6).collect { "/concurrent" + it }
+        server.connections.get() == 2
+        server.maxActiveRequests.get() == 2
+
+        cleanup:
+        executor?.shutdownNow()
+    }
+
+    def "Send long-polling requests without the limit of connections per origin"() {
+
+        given: "a client with one connection per origin and a server holding requests"
+        createClient(1, 5000)
+        server.responseDelayMillis = 1000
+
+        when: "long-polling requests and a regular request are submitted at once"
+        def executor = Executors.newCachedThreadPool()
+        def longPolls = (1..3).collect {
+            NettyClientHttpEngine.submit(
+                client.target(server.getUri("/poll" + it)).request().property(NettyClientHttpEngine.LONG_POLL, true).buildGet(),
+                executor
+            )
+        }
+        def request = NettyClientHttpEngine.submit(client.target(server.getUri("/request")).request().buildGet(), executor)
+
+        then: "all requests should have been handled at the same time on their own connections"
+        longPolls.collect { it.get(10, TimeUnit.SECONDS).readEntity(String) } == (1..3).collect { "/poll" + it }
+        request.get(10, TimeUnit.SECONDS).readEntity(String) == "/request"
+        server.connections.get() == 4
+        server.maxActiveRequests.get() == 4
+
+        cleanup:
+        executor?.shutdownNow()
+    }
+
+    def "Execute filters registered as classes for submitted requests"() {
+
+        given: "a client with a request filter registered as class"
+        createClient(10, 2000)
+        client.register(HeaderFilter)
+
+        when: "a request is submitted"
+        def executor = Executors.newSingleThreadExecutor()
+        def response = NettyClientHttpEngine.submit(client.target(server.getUri("/filtered")).request().buildGet(), executor).get(5, TimeUnit.SECONDS)
+
+        then: "the filter should have been executed"
+        response.status == 200
+        server.lastHeaders["x-test-filter"] == "class"
+
+        cleanup:
+        executor?.shutdownNow()
+    }
+}
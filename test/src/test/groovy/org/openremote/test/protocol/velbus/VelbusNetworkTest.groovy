@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018, OpenRemote Inc.
+ *
+ * See the CONTRIBUTORS.txt file in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openremote.test.protocol.velbus
+
+import org.openremote.agent.protocol.velbus.VelbusNetwork
+import org.openremote.agent.protocol.velbus.VelbusPacket
+import org.openremote.manager.concurrent.ManagerExecutorService
+import org.openremote.test.ManagerContainerTrait
+import org.openremote.test.MockMessageProcessor
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import static org.openremote.agent.protocol.velbus.VelbusNetwork.SendPriority.BACKGROUND
+import static org.openremote.agent.protocol.velbus.VelbusPacket.InboundCommand.PUSH_BUTTON_STATUS
+import static org.openremote.agent.protocol.velbus.VelbusPacket.InboundCommand.RELAY_STATUS
+import static org.openremote.agent.protocol.velbus.VelbusPacket.InboundCommand.RX_BUFFER_FULL
+import static org.openremote.agent.protocol.velbus.VelbusPacket.InboundCommand.RX_READY
+import static org.openremote.agent.protocol.velbus.VelbusPacket.OutboundCommand.*
+import static org.openremote.agent.protocol.velbus.VelbusPacket.PacketPriority.HIGH
+
+class VelbusNetworkTest extends Specification implements ManagerContainerTrait {
+
+    def "Send writes ahead of status requests and replace superseded writes"() {
+
+        given: "a velbus network connected to a mock message processor"
+        def conditions = new PollingConditions(timeout: 10)
+        def container = startContainer(defaultConfig(findEphemeralPort()), Collections.singletonList(new ManagerExecutorService()))
+        def messageProcessor = new MockMessageProcessor()
+        def network = new VelbusNetwork(messageProcessor, container.getService(ManagerExecutorService.class), null)
+        network.connect()
+
+        when: "the bus interface signals its receive buffer is full"
+        messageProcessor.onMessageReceived(new VelbusPacket(0x00, RX_BUFFER_FULL.code, HIGH))
+
+        and: "status requests, time injection and writes are queued"
+        def statusRequest = new VelbusPacket(0x02, MODULE_STATUS.code, (byte) 0x0F)
+        def timePacket = new VelbusPacket(0x00, REALTIME_CLOCK_SET.code, (byte) 1, (byte) 12, (byte) 0)
+        def relayOn = new VelbusPacket(0x03, RELAY_ON.code, HIGH, (byte) 0x01)
+        def relayOff = new VelbusPacket(0x03, RELAY_OFF.code, HIGH, (byte) 0x01)
+        def blindUp = new VelbusPacket(0x04, BLIND_UP.code, HIGH, (byte) 0x01)
+        network.sendPackets(BACKGROUND, timePacket)
+        network.sendPackets(statusRequest)
+        network.sendWritePackets(0x03, "CH1", relayOn)
+        network.sendWritePackets(0x04, "CH1", blindUp)
+        network.sendWritePackets(0x03, "CH1", relayOff)
+
+        then: "nothing should have been sent while the bus is paused"
+        messageProcessor.sentMessages.isEmpty()
+
+        when: "the bus interface is ready again"
+        messageProcessor.onMessageReceived(new VelbusPacket(0x00, RX_READY.code, HIGH))
+
+        then: "the last write of each property should have been sent first, then the status request and time injection"
+        conditions.eventually {
+            assert messageProcessor.sentMessages == [relayOff, blindUp, statusRequest, timePacket]
+        }
+
+        cleanup: "the network is closed"
+        network?.close()
+        stopContainer(container)
+    }
+
+    def "Send every button press and release while replacing superseded state writes"() {
+
+        given: "a velbus network connected to a mock message processor"
+        def conditions = new PollingConditions(timeout: 10)
+        def container = startContainer(defaultConfig(findEphemeralPort()), Collections.singletonList(new ManagerExecutorService()))
+        def messageProcessor = new MockMessageProcessor()
+        def network = new VelbusNetwork(messageProcessor, container.getService(ManagerExecutorService.class), null)
+        network.connect()
+
+        when: "the bus interface signals its receive buffer is full"
+        messageProcessor.onMessageReceived(new VelbusPacket(0x00, RX_BUFFER_FULL.code, HIGH))
+
+        and: "a button of an input module is pressed and released and an LED state is written twice"
+        def pressed = new VelbusPacket(0x05, BUTTON_STATUS.code, HIGH, (byte) 0x01, (byte) 0x00, (byte) 0x00)
+        def released = new VelbusPacket(0x05, BUTTON_STATUS.code, HIGH, (byte) 0x00, (byte) 0x01, (byte) 0x00)
+        def ledOn = new VelbusPacket(0x05, LED_ON.code, HIGH, (byte) 0x01)
+        def ledOff = new VelbusPacket(0x05, LED_OFF.code, HIGH, (byte) 0x01)
+        network.sendWritePackets(0x05, "CH1", pressed)
+        network.sendWritePackets(0x05, "CH1_LED", ledOn)
+        network.sendWritePackets(0x05, "CH1", released)
+        network.sendWritePackets(0x05, "CH1_LED", ledOff)
+
+        and: "the bus interface is ready again"
+        messageProcessor.onMessageReceived(new VelbusPacket(0x00, RX_READY.code, HIGH))
+
+        then: "both the press and the release should have been sent in order and only the last LED state"
+        conditions.eventually {
+            assert messageProcessor.sentMessages == [pressed, ledOff, released]
+        }
+
+        cleanup: "the network is closed"
+        network?.close()
+        stopContainer(container)
+    }
+
+    def "Shrink the delay between packet writes while modules answer and grow it when they don't"() {
+
+        given: "a velbus network connected to a mock message processor"
+        def conditions = new PollingConditions(timeout: 10)
+        def container = startContainer(defaultConfig(findEphemeralPort()), Collections.singletonList(new ManagerExecutorService()))
+        def messageProcessor = new MockMessageProcessor()
+        def network = new VelbusNetwork(messageProcessor, container.getService(ManagerExecutorService.class), null)
+        network.connect()
+
+        and: "a module that answers status requests and a module that only broadcasts button presses"
+        def answeredRequest = new VelbusPacket(0x02, MODULE_STATUS.code, (byte) 0x0F)
+        def unansweredRequest = new VelbusPacket(0x05, MODULE_STATUS.code, (byte) 0x0F)
+        messageProcessor.mockPackets = [
+            (answeredRequest.toString())  : [new VelbusPacket(0x02, RELAY_STATUS.code, HIGH, (byte) 0x01, (byte) 0x00).toString()],
+            (unansweredRequest.toString()): [new VelbusPacket(0x05, PUSH_BUTTON_STATUS.code, HIGH, (byte) 0x01, (byte) 0x00, (byte) 0x00).toString()]
+        ]
+        def initialDelay = network.sendDelayMillis
+
+        when: "status requests are sent to the module that answers"
+        (1..10).each { network.sendPackets(answeredRequest) }
+
+        then: "the delay should have shrunk to the minimum"
+        conditions.eventually {
+            assert messageProcessor.sentMessages.size() == 10
+            assert network.sendDelayMillis == VelbusNetwork.MIN_DELAY_BETWEEN_PACKET_WRITES_MILLISECONDS
+        }
+
+        when: "status requests are sent to the module that doesn't answer them"
+        (1..12).each { network.sendPackets(unansweredRequest) }
+
+        then: "the button broadcasts should not count as answers and the delay should have grown back"
+        conditions.eventually {
+            assert messageProcessor.sentMessages.size() == 22
+            assert network.sendDelayMillis == initialDelay
+        }
+
+        cleanup: "the network is closed"
+        network?.close()
+        stopContainer(container)
+    }
+}
@@ -0,0 +1,87 @@
+package org.openremote.test.rules
+
+import org.openremote.container.timer.TimerService
+import org.openremote.manager.rules.RulesClock
+import org.openremote.manager.rules.RulesEngine
+import org.openremote.manager.rules.RulesFacts
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.attribute.AttributeType
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.geo.GeoJSONPoint
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.query.filter.RadialLocationPredicate
+import org.openremote.model.query.filter.RectangularLocationPredicate
+import org.openremote.model.rules.AssetState
+import org.openremote.model.rules.Assets
+import spock.lang.Specification
+
+import static org.openremote.model.attribute.AttributeEvent.Source.SENSOR
+
+class AssetStateIndexTest extends Specification {
+
+    RulesFacts rulesFacts
+
+    def setup() {
+        def timerService = new TimerService()
+        timerService.clock = TimerService.Clock.PSEUDO
+        rulesFacts = new RulesFacts(timerService, Mock(Assets), this, RulesEngine.RULES_LOG)
+        rulesFacts.setClock(new RulesClock(0))
+    }
+
+    static AssetState createLocationAssetState(String assetId, double lat, double lng, String attributeName = AttributeType.LOCATION.getName()) {
+        def asset = new Asset("Asset " + assetId, "urn:test:vehicle")
+        asset.setId(assetId)
+        def attribute = new AssetAttribute(attributeName, AttributeValueType.GEO_JSON_POINT, new GeoJSONPoint(lng, lat).toValue())
+        return new AssetState(asset, attribute, SENSOR)
+    }
+
+    def "Match asset states by location"() {
+
+        given: "vehicles on a line of latitude and near the antimeridian"
+        100.times { i ->
+            rulesFacts.putAssetState(createLocationAssetState("vehicle" + i, 51.0, 4.0 + i * 0.01))
+        }
+        rulesFacts.putAssetState(createLocationAssetState("east", 0.0, 179.99))
+        rulesFacts.putAssetState(createLocationAssetState("west", 0.0, -179.99))
+
+        expect: "radial and rectangular queries to match the locations within them"
+        rulesFacts.matchAssetState(new AssetQuery().location(new RadialLocationPredicate(2000, 51.0, 4.0, false))).count() == 3
+        rulesFacts.matchAssetState(new AssetQuery().location(new RectangularLocationPredicate(50.9, 4.095, 51.1, 4.195))).count() == 10
+        rulesFacts.matchAssetState(new AssetQuery().location(new RadialLocationPredicate(5000, 0.0, 179.995, false))).count() == 2
+
+        and: "negated queries to match the locations outside of them"
+        rulesFacts.matchAssetState(new AssetQuery().location(new RadialLocationPredicate(2000, 51.0, 4.0, true))).count() == 99
+        rulesFacts.matchAssetState(new AssetQuery().location(new RectangularLocationPredicate(50.9, 4.095, 51.1, 4.195, true))).count() == 92
+
+        when: "a vehicle moves"
+        rulesFacts.putAssetState(createLocationAssetState("vehicle50", 0.0, 179.98))
+
+        then: "the location index should be updated"
+        rulesFacts.matchAssetState(new AssetQuery().location(new RadialLocationPredicate(5000, 0.0, 179.995, false))).count() == 3
+        rulesFacts.matchAssetState(new AssetQuery().location(new RectangularLocationPredicate(50.9, 4.0, 51.1, 5.0))).count() == 99
+
+        when: "a vehicle is removed"
+        rulesFacts.removeAssetState(createLocationAssetState("east", 0.0, 179.99))
+
+        then: "it should no longer match"
+        rulesFacts.matchAssetState(new AssetQuery().location(new RadialLocationPredicate(5000, 0.0, 179.995, false))).count() == 2
+    }
+
+    def "Track location predicates of location attributes matched ignoring case"() {
+
+        given: "vehicles with location attributes of different case"
+        rulesFacts.putAssetState(createLocationAssetState("vehicle1", 51.0, 4.0))
+        rulesFacts.putAssetState(createLocationAssetState("vehicle2", 51.0, 4.01, "Location"))
+
+        when: "location predicates are tracked while a location query is matched"
+        def predicate = new RadialLocationPredicate(2000, 51.0, 4.0, false)
+        rulesFacts.startTrackingLocationRules()
+        rulesFacts.matchAssetState(new AssetQuery().location(predicate)).count()
+        def locationPredicates = rulesFacts.stopTrackingLocationRules()
+
+        then: "the predicate should have been tracked for both vehicles"
+        locationPredicates.collect { it.assetId }.toSet() == ["vehicle1", "vehicle2"].toSet()
+        locationPredicates.every { it.locationPredicates == [predicate].toSet() }
+    }
+}
@@ -0,0 +1,272 @@
+package org.openremote.test.rules
+
+import org.openremote.container.timer.TimerService
+import org.openremote.manager.rules.AssetQueryMatcher
+import org.openremote.manager.rules.AssetStateStore
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.rules.AssetState
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import java.util.stream.Collectors
+
+import static org.openremote.model.attribute.AttributeEvent.Source.SENSOR
+import static org.openremote.model.query.BaseAssetQuery.Operator.GREATER_THAN
+
+class AssetStateStoreTest extends Specification {
+
+    static AssetState createState(String assetId, String realmId, List<String> path, String attributeName, double value) {
+        def asset = new Asset("Asset " + assetId, "urn:test:room")
+        asset.setId(assetId)
+        asset.setRealmId(realmId)
+        asset.@path = path as String[]
+        def attribute = new AssetAttribute(attributeName, AttributeValueType.NUMBER, Values.create(value))
+        return new AssetState(asset, attribute, SENSOR)
+    }
+
+    static AssetQueryMatcher matcher(AssetQuery query) {
+        return new AssetQueryMatcher(new TimerService(), query)
+    }
+
+    def "Share interned asset states between the views of rules engines"() {
+
+        given: "an asset state store with views of a global, tenant and asset rules engine"
+        def store = new AssetStateStore()
+        def globalView = store.createView(null, null)
+        def tenantView = store.createView("realmA", null)
+        def assetView = store.createView("realmA", "building1")
+
+        when: "asset states of different realms and buildings are stored"
+        def room1Temperature = store.put(createState("room1", "realmA", ["room1", "building1"], "temperature", 20))
+        def room1Co2 = store.put(createState("room1", "realmA", ["room1", "building1"], "co2Level", 400))
+        store.put(createState("room2", "realmA", ["room2", "building2"], "temperature", 21))
+        store.put(createState("room3", "realmB", ["room3", "building3"], "temperature", 22))
+
+        then: "each view should contain the asset states in its scope"
+        store.size() == 4
+        globalView.assetStates.size() == 4
+        tenantView.assetStates.size() == 3
+        assetView.assetStates.size() == 2
+        assetView.match(matcher(new AssetQuery().attributeValue("temperature", GREATER_THAN, 0))).count() == 1
+
+        and: "the asset information should be stored once per asset"
+        room1Temperature.assetInfo.is(room1Co2.assetInfo)
+
+        when: "an asset state is updated"
+        def updated = store.put(createState("room1", "realmA", ["room1", "building1"], "temperature", 25))
+
+        then: "the update should share the asset information and meta and replace the state in all views"
+        updated.assetInfo.is(room1Temperature.assetInfo)
+        updated.meta.is(room1Temperature.meta)
+        assetView.getById("room1").any { it.is(updated) }
+        globalView.assetStates.size() == 4
+
+        when: "an asset state is hidden in one view"
+        assetView.hide(updated)
+
+        then: "only that view should no longer contain it until it is replaced"
+        assetView.assetStates.size() == 1
+        tenantView.assetStates.size() == 3
+
+        when: "the asset state is replaced"
+        def replaced = store.put(createState("room1", "realmA", ["room1", "building1"], "temperature", 26))
+
+        then: "it should be visible again"
+        assetView.getById("room1").any { it.is(replaced) }
+        assetView.assetStates.size() == 2
+
+        when: "the asset states of an asset are removed"
+        store.remove(replaced)
+        store.remove(room1Co2)
+
+        then: "the views should no longer contain them"
+        globalView.assetStates.size() == 2
+        assetView.assetStates.isEmpty()
+    }
+
+    def "Move replaced asset states to the end"() {
+
+        given: "an asset state store with asset states of three rooms"
+        def store = new AssetStateStore()
+        def view = store.createView(null, null)
+        ["room1", "room2", "room3"].each {
+            store.put(createState(it, "realmA", [it], "temperature", 20))
+        }
+
+        when: "the asset state of the first room is replaced"
+        store.put(createState("room1", "realmA", ["room1"], "temperature", 21))
+
+        then: "it should be the last asset state of all collections"
+        view.assetStates*.id == ["room2", "room3", "room1"]
+        view.getByAttributeName("temperature")*.id == ["room2", "room3", "room1"]
+        view.match(matcher(new AssetQuery().type("urn:test:room"))).collect(Collectors.toList())*.id == ["room2", "room3", "room1"]
+    }
+
+    def "Read a stable snapshot of the asset states while firing"() {
+
+        given: "an asset state store with a view"
+        def store = new AssetStateStore()
+        def view = store.createView("realmA", null)
+        def temperature = store.put(createState("room1", "realmA", ["room1"], "temperature", 20))
+        def co2Level = store.put(createState("room1", "realmA", ["room1"], "co2Level", 400))
+
+        when: "a snapshot is opened and the store is updated"
+        view.openSnapshot()
+        def updatedTemperature = store.put(createState("room1", "realmA", ["room1"], "temperature", 25))
+        store.remove(co2Level)
+        store.put(createState("room2", "realmA", ["room2"], "temperature", 30))
+
+        then: "the view should read the asset states of the snapshot"
+        view.assetStates.size() == 2
+        view.assetStates.any { it.is(temperature) }
+        view.assetStates.any { it.is(co2Level) }
+        view.getById("room1").size() == 2
+        view.getById("room2").isEmpty()
+        view.match(matcher(new AssetQuery().attributeValue("temperature", GREATER_THAN, 22))).count() == 0
+        view.match(matcher(new AssetQuery().id("room1"))).count() == 2
+
+        and: "the store should contain the latest asset states"
+        store.size() == 2
+        store.assetStates.any { it.is(updatedTemperature) }
+
+        when: "the asset state of the snapshot is hidden"
+        view.hide(temperature)
+
+        then: "it should no longer be visible in the snapshot"
+        view.assetStates.size() == 1
+
+        when: "the snapshot is closed"
+        view.closeSnapshot()
+
+        then: "the view should read the latest asset states, the hidden asset state was replaced"
+        view.assetStates.size() == 2
+        view.getById("room1").size() == 1
+        view.getById("room1").any { it.is(updatedTemperature) }
+        view.match(matcher(new AssetQuery().attributeValue("temperature", GREATER_THAN, 22))).count() == 2
+
+        when: "the store is modified without open snapshot"
+        store.put(createState("room3", "realmA", ["room3"], "temperature", 20))
+
+        then: "the superseded asset states should have been purged"
+        store.index.superseded.isEmpty()
+        store.index.byId["room1"].entries.size() == 1
+    }
+
+    def "Count the asset states of each snapshot without iterating"() {
+
+        given: "an asset state store with a view and asset states of two rooms"
+        def store = new AssetStateStore()
+        def view = store.createView("realmA", null)
+        def room1Temperature = store.put(createState("room1", "realmA", ["room1"], "Temperature", 20))
+        store.put(createState("room2", "realmA", ["room2"], "temperature", 20))
+
+        when: "a snapshot is opened and the asset states are replaced, removed and added"
+        view.openSnapshot()
+        def replaced = store.put(createState("room1", "realmA", ["room1"], "Temperature", 21))
+        store.put(createState("room1", "realmA", ["room1"], "Temperature", 22))
+        store.remove(createState("room2", "realmA", ["room2"], "temperature", 20))
+        store.put(createState("room3", "realmA", ["room3"], "TEMPERATURE", 20))
+
+        then: "the sizes should be those of the snapshot"
+        view.assetStates.size() == 2
+        view.getByAttributeName("temperature").size() == 1
+        view.getByAttributeNameIgnoreCase("temperature").size() == 2
+        view.getByAttributeNameIgnoreCase("temperature").any { it.is(room1Temperature) }
+        view.getById("room1").size() == 1
+        view.getById("room3").isEmpty()
+
+        and: "the sizes of the store should be those of the latest version"
+        store.size() == 2
+        store.index.getSnapshot().getByAttributeNameIgnoreCase("Temperature")*.id.toSet() == ["room1", "room3"].toSet()
+
+        when: "an asset state of the snapshot is hidden"
+        view.hide(room1Temperature)
+
+        then: "it should no longer be counted"
+        view.assetStates.size() == 1
+        view.assetStates.every { it.id == "room2" }
+
+        when: "the snapshot is closed"
+        view.closeSnapshot()
+
+        then: "the hidden asset state was replaced and the sizes should be those of the latest version"
+        view.assetStates.size() == 2
+        view.assetStates.size() == view.assetStates.collect().size()
+        view.getByAttributeNameIgnoreCase("tEmPeRaTuRe")*.id == ["room1", "room3"]
+        view.getById("room2").isEmpty()
+
+        when: "an outdated asset state is hidden, which hides the stored asset state of the attribute"
+        view.hide(replaced)
+
+        then: "only the hidden asset state of the latest version should not be counted"
+        view.assetStates.size() == 1
+        view.assetStates*.id == ["room3"]
+
+        when: "the store is modified without open snapshot"
+        store.remove(createState("room3", "realmA", ["room3"], "TEMPERATURE", 20))
+
+        then: "only the sizes of the versions before and after the change should be kept in the changed buckets"
+        store.index.all.sizes.keySet() as List == [store.index.version - 1, store.index.version]
+        store.index.all.getSize(store.index.version) == 1
+        store.index.byId["room1"].getSize(store.index.version) == 1
+
+        and: "the empty buckets should have been removed"
+        store.index.byAttributeName.keySet() == ["Temperature"].toSet()
+        store.index.byAttributeNameIgnoreCase.keySet() == ["temperature"].toSet()
+        store.index.getSnapshot().getByAttributeNameIgnoreCase("TEMPERATURE").size() == 1
+    }
+
+    def "Replace asset states atomically for concurrent readers"() {
+
+        given: "an asset state store with the asset states of many rooms"
+        def store = new AssetStateStore()
+        def view = store.createView(null, null)
+        100.times {
+            store.put(createState("room" + it, "realmA", ["room" + it], "temperature", 0))
+        }
+
+        and: "a reader of the asset states"
+        def running = new AtomicBoolean(true)
+        def failure = new AtomicReference<String>()
+        def started = new CountDownLatch(1)
+        def reader = Thread.start {
+            started.countDown()
+            while (running.get() && failure.get() == null) {
+                view.openSnapshot()
+                try {
+                    def values = view.assetStates.collect { it.valueAsNumber.orElse(null) }
+                    if (values.size() != 100) {
+                        failure.set("Read " + values.size() + " asset states")
+                    } else if (view.getByAttributeName("temperature").size() != 100) {
+                        failure.set("Read asset states of other snapshot")
+                    } else if (values.toSet().size() > 2) {
+                        // The writer updates all rooms with the same value, a snapshot sees at most two values
+                        failure.set("Read values " + values.toSet())
+                    }
+                } finally {
+                    view.closeSnapshot()
+                }
+            }
+        }
+
+        when: "all asset states are replaced repeatedly"
+        started.await()
+        (1..200).each { value ->
+            100.times {
+                store.put(createState("room" + it, "realmA", ["room" + it], "temperature", value))
+            }
+        }
+        running.set(false)
+        reader.join()
+
+        then: "the reader should always have seen every asset state once"
+        failure.get() == null
+        store.size() == 100
+    }
+}
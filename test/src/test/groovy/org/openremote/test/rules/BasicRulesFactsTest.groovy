@@ -396,4 +396,42 @@ class BasicRulesFactsTest extends Specification {
         assert !rulesFacts.hasTemporaryFacts()
         assert rulesFacts.match(AnonFact).count() == 0
     }
+
+    def "Expire temporary facts in order of expiration"() {
+
+        expect: "no expiration without temporary facts"
+        !rulesFacts.nextExpirationTimestamp.isPresent()
+
+        when: "temporary facts are added and a named temporary fact is replaced"
+        rulesFacts.putTemporary("foo", "10s", "FOO")
+        rulesFacts.putTemporary("bar", "20s", "BAR")
+        rulesFacts.putTemporary("5s", new AnonFact("FOO1", 123, true))
+        rulesFacts.putTemporary("foo", "15s", "NEWFOO")
+
+        then: "the next expiration should be the earliest of the present facts"
+        rulesFacts.nextExpirationTimestamp.asLong == 5000
+
+        when: "the clock is advanced and temporary facts are expired"
+        rulesFacts.setClock(new RulesClock(11000))
+        rulesFacts.removeExpiredTemporaryFacts()
+
+        then: "the replaced fact should not be expired and be the next to expire"
+        rulesFacts.match(AnonFact).count() == 0
+        rulesFacts.get("foo") == "NEWFOO"
+        rulesFacts.nextExpirationTimestamp.asLong == 15000
+
+        when: "a temporary fact is removed manually"
+        rulesFacts.remove("foo")
+
+        then: "the next expiration should be of the remaining fact"
+        rulesFacts.nextExpirationTimestamp.asLong == 20000
+
+        when: "the clock is advanced past all expirations"
+        rulesFacts.setClock(new RulesClock(21000))
+        rulesFacts.removeExpiredTemporaryFacts()
+
+        then: "all temporary facts should be gone"
+        !rulesFacts.hasTemporaryFacts()
+        !rulesFacts.nextExpirationTimestamp.isPresent()
+    }
 }
@@ -24,6 +24,8 @@ import org.openremote.test.ManagerContainerTrait
 import spock.lang.Specification
 import spock.util.concurrent.PollingConditions
 
+import static org.openremote.manager.rules.RulesService.RULES_FIRE_DELAY_MILLIS
+import static org.openremote.manager.rules.RulesService.RULES_FIRE_DELAY_MILLIS_DEFAULT
 import static org.openremote.model.rules.RulesetStatus.*
 import static org.openremote.manager.setup.builtin.ManagerDemoSetup.*
 import static org.openremote.test.rules.BasicRulesImport.assertRulesFired
@@ -413,5 +415,61 @@ class BasicRulesProcessingTest extends Specification implements ManagerContainer
         stopContainer(container)
     }
 
+    def "Fire rules after the configured delay and again after each change"() {
+        given: "expected conditions, faster than the default firing delay"
+        def conditions = new PollingConditions(timeout: 10, initialDelay: 0.5, delay: 0.5)
+        def fastConditions = new PollingConditions(timeout: RULES_FIRE_DELAY_MILLIS_DEFAULT / 1000 - 1, delay: 0.05)
+
+        and: "the container is started with a short firing delay"
+        def serverPort = findEphemeralPort()
+        def container = startContainer(defaultConfig(serverPort) << [(RULES_FIRE_DELAY_MILLIS): "50"], defaultServices())
+        def managerDemoSetup = container.getService(SetupService.class).getTaskOfType(ManagerDemoSetup.class)
+        def keycloakDemoSetup = container.getService(SetupService.class).getTaskOfType(KeycloakDemoSetup.class)
+        def rulesService = container.getService(RulesService.class)
+        def rulesetStorageService = container.getService(RulesetStorageService.class)
+        def assetProcessingService = container.getService(AssetProcessingService.class)
+
+        and: "some test rulesets have been imported"
+        def rulesImport = new BasicRulesImport(rulesetStorageService, keycloakDemoSetup, managerDemoSetup)
+
+        expect: "the rules engines to be ready with the configured delay"
+        conditions.eventually {
+            rulesImport.assertEnginesReady(rulesService, keycloakDemoSetup, managerDemoSetup)
+            assert rulesImport.apartment2Engine.fireDelayMillis == 50
+            assert rulesImport.apartment2Engine.assetStates.size() == DEMO_RULE_STATES_APARTMENT_2
+        }
+
+        and: "the initial firings to be done"
+        long firings = 0
+        conditions.eventually {
+            def current = rulesImport.apartment2Engine.firingMetrics.firings
+            def done = current > 0 && current == firings
+            firings = current
+            assert done
+        }
+
+        when: "attribute events are pushed into the system one after the other"
+        def presenceDetected = false
+        3.times {
+            rulesImport.resetRulesFired()
+            presenceDetected = !presenceDetected
+            assetProcessingService.sendAttributeEvent(new AttributeEvent(
+                managerDemoSetup.apartment2LivingroomId, "presenceDetected", Values.create(presenceDetected)
+            ))
+
+            fastConditions.eventually {
+                assert rulesImport.apartment2Engine.firingMetrics.firings > firings
+                assertRulesFired(rulesImport.apartment2Engine, 1)
+            }
+            firings = rulesImport.apartment2Engine.firingMetrics.firings
+        }
+
+        then: "each event should have scheduled another firing before the default delay elapsed"
+        rulesImport.apartment2Engine.firingMetrics.firingLatency.lastMillis < RULES_FIRE_DELAY_MILLIS_DEFAULT
+
+        cleanup: "the server should be stopped"
+        stopContainer(container)
+    }
+
     //TODO add test for location Predicates in AssetQueryPredicate
 }
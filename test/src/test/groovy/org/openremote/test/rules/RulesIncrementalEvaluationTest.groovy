@@ -0,0 +1,137 @@
+package org.openremote.test.rules
+
+import org.jeasy.rules.api.Rules
+import org.jeasy.rules.core.InferenceRulesEngine
+import org.jeasy.rules.core.RulesEngineParameters
+import org.openremote.container.Container
+import org.openremote.container.timer.TimerService
+import org.openremote.manager.rules.RuleDependencyTracker
+import org.openremote.manager.rules.RulesBuilder
+import org.openremote.manager.rules.RulesClock
+import org.openremote.manager.rules.RulesEngine
+import org.openremote.manager.rules.RulesFacts
+import org.openremote.model.asset.Asset
+import org.openremote.model.asset.AssetAttribute
+import org.openremote.model.attribute.AttributeValueType
+import org.openremote.model.query.AssetQuery
+import org.openremote.model.rules.AssetState
+import org.openremote.model.rules.Assets
+import org.openremote.model.value.Values
+import spock.lang.Specification
+
+import static org.openremote.model.attribute.AttributeEvent.Source.SENSOR
+import static org.openremote.model.query.BaseAssetQuery.Operator.GREATER_THAN
+import static org.openremote.model.query.BaseAssetQuery.Operator.LESS_THAN
+
+class RulesIncrementalEvaluationTest extends Specification {
+
+    RulesFacts rulesFacts
+    RuleDependencyTracker dependencyTracker
+    InferenceRulesEngine engine
+
+    def setupSpec() {
+        // Init logging config
+        Container.LOG.info("Running test...")
+    }
+
+    def setup() {
+        def timerService = new TimerService()
+        timerService.clock = TimerService.Clock.PSEUDO
+        rulesFacts = new RulesFacts(timerService, Mock(Assets), this, RulesEngine.RULES_LOG)
+        rulesFacts.setClock(new RulesClock(0))
+        dependencyTracker = new RuleDependencyTracker()
+        rulesFacts.setDependencyTracker(dependencyTracker)
+        engine = new InferenceRulesEngine(
+            new RulesEngineParameters(false, true, false, RulesEngineParameters.DEFAULT_RULE_PRIORITY_THRESHOLD)
+        )
+        engine.registerRuleListener(rulesFacts)
+    }
+
+    static AssetState createAssetState(String assetId, String type, String attributeName, double value) {
+        def asset = new Asset("Asset " + assetId, type)
+        asset.setId(assetId)
+        def attribute = new AssetAttribute(attributeName, AttributeValueType.NUMBER, Values.create(value))
+        return new AssetState(asset, attribute, SENSOR)
+    }
+
+    def "Match asset states with secondary indexes"() {
+
+        given: "asset states of many rooms"
+        100.times { i ->
+            rulesFacts.putAssetState(createAssetState("room" + i, "urn:test:room", "temperature", i))
+            rulesFacts.putAssetState(createAssetState("room" + i, "urn:test:room", "co2Level", 400 + i))
+        }
+
+        expect: "queries by identifiers, type, attribute name and value range to match"
+        rulesFacts.matchAssetState(new AssetQuery().ids(["room1", "room2"])).count() == 4
+        rulesFacts.matchAssetState(new AssetQuery().type("urn:test:room")).count() == 200
+        rulesFacts.matchAssetState(new AssetQuery().attributeValue("temperature", GREATER_THAN, 94)).count() == 5
+        rulesFacts.matchAssetState(new AssetQuery().attributeValue("co2Level", LESS_THAN, 403)).count() == 3
+        rulesFacts.matchAssetState(new AssetQuery().id("room7").attributeValue("temperature", GREATER_THAN, 6)).count() == 1
+
+        when: "an asset state is updated"
+        rulesFacts.putAssetState(createAssetState("room1", "urn:test:room", "temperature", 99))
+
+        then: "the indexes should be updated"
+        rulesFacts.matchAssetState(new AssetQuery().attributeValue("temperature", GREATER_THAN, 94)).count() == 6
+        rulesFacts.assetStates.size() == 200
+
+        when: "an asset state is removed"
+        rulesFacts.removeAssetState(createAssetState("room1", "urn:test:room", "temperature", 0))
+
+        then: "it should no longer match"
+        rulesFacts.matchAssetState(new AssetQuery().attributeValue("temperature", GREATER_THAN, 94)).count() == 5
+        rulesFacts.matchAssetState(new AssetQuery().id("room1")).count() == 1
+    }
+
+    def "Only evaluate rules with changed inputs"() {
+
+        given: "rules reading the asset states of different assets"
+        def evaluations = [room1: 0, room2: 0, all: 0]
+        def rulesBuilder = new RulesBuilder()
+        ["room1", "room2"].each { assetId ->
+            rulesBuilder.add()
+                .name("Rule " + assetId)
+                .when({ facts ->
+                    evaluations[assetId]++
+                    facts.matchFirstAssetState(new AssetQuery().id(assetId).attributeValue("temperature", GREATER_THAN, 30)).isPresent()
+                })
+        }
+        rulesBuilder.add()
+            .name("Rule all")
+            .when({ facts ->
+                evaluations["all"]++
+                facts.assetStates.isEmpty()
+            })
+        def rules = new Rules(rulesBuilder.build() as Object[])
+
+        and: "some asset states"
+        rulesFacts.putAssetState(createAssetState("room1", "urn:test:room", "temperature", 20))
+        rulesFacts.putAssetState(createAssetState("room2", "urn:test:room", "temperature", 20))
+
+        when: "the rules are fired the first time"
+        engine.fire(dependencyTracker.selectRules(rules, true), rulesFacts)
+
+        then: "all rules should be evaluated"
+        evaluations.room1 > 0
+        evaluations.room2 > 0
+        evaluations.all > 0
+
+        when: "nothing changed and the rules are fired again"
+        evaluations = [room1: 0, room2: 0, all: 0]
+        engine.fire(dependencyTracker.selectRules(rules, true), rulesFacts)
+
+        then: "no rule should be evaluated"
+        evaluations == [room1: 0, room2: 0, all: 0]
+
+        when: "the asset state of one asset changes"
+        rulesFacts.putAssetState(createAssetState("room2", "urn:test:room", "temperature", 21))
+        engine.fire(dependencyTracker.selectRules(rules, true), rulesFacts)
+
+        then: "only the rules reading this asset state should be evaluated"
+        evaluations.room1 == 0
+        evaluations.room2 > 0
+        evaluations.all > 0
+        dependencyTracker.rulesSkipped > 0
+    }
+}
@@ -37,10 +37,10 @@ class ResidenceNotifyAlarmTriggerTest extends Specification implements ManagerCo
 
     def "Trigger notification when presence is detected and alarm enabled"() {
 
-        def notificationIds = []
-        def targetTypes = []
-        def targetIds = []
-        def messages = []
+        def notificationIds = Collections.synchronizedList([])
+        def targetTypes = Collections.synchronizedList([])
+        def targetIds = Collections.synchronizedList([])
+        def messages = Collections.synchronizedList([])
 
         given: "a mock push notification handler"
         PushNotificationHandler mockPushNotificationHandler = Spy(PushNotificationHandler) {